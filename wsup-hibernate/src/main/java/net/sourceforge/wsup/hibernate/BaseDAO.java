@@ -17,14 +17,29 @@
 package net.sourceforge.wsup.hibernate;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
+import javax.transaction.Synchronization;
+
+import net.sourceforge.wsup.core.Assert;
+
+import org.hibernate.CacheMode;
 import org.hibernate.Criteria;
 import org.hibernate.LockOptions;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.Dialect;
 
 /**
  * This is a base class for DAOs (Data Access Objects) for Hibernate-based
@@ -55,8 +70,26 @@ import org.hibernate.criterion.Restrictions;
  */
 public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
 {
+	/**
+	 * Batch size used by the bulk operations if
+	 * <code>hibernate.jdbc.batch_size</code> has not been configured.
+	 * 
+	 * @see #getBatchSize(DataAccessContext)
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 50;
+
+	/**
+	 * Default maximum number of IDs in the <code>IN</code> clause of a single
+	 * query made by {@link #getByIds(DataAccessContext, Collection)}.
+	 * 
+	 * @see #getIdFetchSize(DataAccessContext)
+	 */
+	public static final int DEFAULT_ID_FETCH_SIZE = 500;
+
 	private Class<PERSISTENTCLASS> persistantClass;
 
+	private volatile CountStrategy countStrategy = ExactCountStrategy.INSTANCE;
+
 	/**
 	 * Constructor.
 	 *
@@ -163,6 +196,97 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
 				LockOptions.UPGRADE);
 	}
 
+	/**
+	 * Load the instances identified by a collection of IDs. This is equivalent
+	 * to calling {@link #getById(DataAccessContext, Serializable)} for each ID,
+	 * but instances that are not already in the session are fetched using as
+	 * few queries as possible.
+	 * 
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param ids
+	 *            IDs to be found.
+	 * @return <code>List</code> of the instances found, in the order of the
+	 *         first occurrence of their IDs in <code>ids</code>. IDs that are
+	 *         not present are skipped, so the list may be shorter than
+	 *         <code>ids</code>.
+	 * @see #getMapByIds(DataAccessContext, Collection)
+	 */
+	public List<PERSISTENTCLASS> getByIds(DataAccessContext daoContext,
+			Collection<? extends IDTYPE> ids)
+	{
+		return new ArrayList<PERSISTENTCLASS>(getMapByIds(daoContext, ids)
+				.values());
+	}
+
+	/**
+	 * Load the instances identified by a collection of IDs. Instances that are
+	 * already in the session are taken from there. The rest are fetched using
+	 * queries with <code>IN</code> clauses of at most
+	 * {@link #getIdFetchSize(DataAccessContext)} IDs each.
+	 * 
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param ids
+	 *            IDs to be found. <code>null</code> and duplicate IDs are
+	 *            ignored.
+	 * @return <code>Map</code> from ID to instance, iterating in the order of
+	 *         the first occurrence of the IDs in <code>ids</code>. IDs that are
+	 *         not present have no entry.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<IDTYPE, PERSISTENTCLASS> getMapByIds(
+			DataAccessContext daoContext, Collection<? extends IDTYPE> ids)
+	{
+		Collection<IDTYPE> requested = new LinkedHashSet<IDTYPE>(ids);
+		requested.remove(null);
+
+		Map<IDTYPE, PERSISTENTCLASS> found = new HashMap<IDTYPE, PERSISTENTCLASS>();
+		List<IDTYPE> missing = new ArrayList<IDTYPE>();
+
+		for (IDTYPE id : requested)
+		{
+			Object entity = daoContext.getFromSession(getPersistentClass(), id);
+			if (entity != null)
+			{
+				found.put(id, (PERSISTENTCLASS) entity);
+			}
+			else
+			{
+				missing.add(id);
+			}
+		}
+
+		int fetchSize = getIdFetchSize(daoContext);
+
+		for (int start = 0; start < missing.size(); start += fetchSize)
+		{
+			List<IDTYPE> batch = missing.subList(start, Math.min(start
+					+ fetchSize, missing.size()));
+
+			Criteria criteria = buildCriteria(daoContext, Restrictions.in("id",
+					batch));
+			criteria.setComment(getClass().getSimpleName() + ".getByIds()");
+
+			for (PERSISTENTCLASS entity : listDistinct(criteria))
+			{
+				found.put((IDTYPE) daoContext.getIdentifier(entity), entity);
+			}
+		}
+
+		Map<IDTYPE, PERSISTENTCLASS> result = new LinkedHashMap<IDTYPE, PERSISTENTCLASS>();
+		for (IDTYPE id : requested)
+		{
+			PERSISTENTCLASS entity = found.get(id);
+			if (entity != null)
+			{
+				result.put(id, entity);
+			}
+		}
+
+		return result;
+	}
+
 	/**
 	 * Return the entity in the table that meets the specified criteria.
 	 *
@@ -204,6 +328,7 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
 			PERSISTENTCLASS entity)
 	{
 		daoContext.save(entity);
+		countChanged(daoContext);
 		return entity;
 	}
 
@@ -225,9 +350,84 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
 			PERSISTENTCLASS entity)
 	{
 		daoContext.saveOrUpdate(entity);
+		countChanged(daoContext);
 		return entity;
 	}
 
+	/**
+	 * Insert a collection of new entities into the database. The session is
+	 * flushed every {@link #getBatchSize(DataAccessContext)} entities, and the
+	 * entities inserted so far are evicted from it, so that the inserts can be
+	 * sent as JDBC batches and the session cache does not grow without bound.
+	 * <p>
+	 * The inserted entities are detached on return. Other objects in the
+	 * session are left alone.
+	 * </p>
+	 * 
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param entities
+	 *            Entities to be saved
+	 * @see #insert(DataAccessContext, Object)
+	 */
+	public void insertAll(DataAccessContext daoContext,
+			Collection<? extends PERSISTENTCLASS> entities)
+	{
+		int batchSize = getBatchSize(daoContext);
+		List<PERSISTENTCLASS> batch = new ArrayList<PERSISTENTCLASS>(batchSize);
+
+		for (PERSISTENTCLASS entity : entities)
+		{
+			insert(daoContext, entity);
+			batch.add(entity);
+
+			if (batch.size() == batchSize)
+			{
+				flushAndEvict(daoContext, batch);
+				batch.clear();
+			}
+		}
+
+		flushAndEvict(daoContext, batch);
+	}
+
+	/**
+	 * Update a collection of entities in the database. The session is flushed
+	 * every {@link #getBatchSize(DataAccessContext)} entities, and the entities
+	 * updated so far are evicted from it, so that the updates can be sent as
+	 * JDBC batches and the session cache does not grow without bound.
+	 * <p>
+	 * The updated entities are detached on return. Other objects in the
+	 * session are left alone.
+	 * </p>
+	 * 
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param entities
+	 *            Entities to be updated
+	 * @see #update(DataAccessContext, Object)
+	 */
+	public void updateAll(DataAccessContext daoContext,
+			Collection<? extends PERSISTENTCLASS> entities)
+	{
+		int batchSize = getBatchSize(daoContext);
+		List<PERSISTENTCLASS> batch = new ArrayList<PERSISTENTCLASS>(batchSize);
+
+		for (PERSISTENTCLASS entity : entities)
+		{
+			update(daoContext, entity);
+			batch.add(entity);
+
+			if (batch.size() == batchSize)
+			{
+				flushAndEvict(daoContext, batch);
+				batch.clear();
+			}
+		}
+
+		flushAndEvict(daoContext, batch);
+	}
+
 	/**
 	 * Delete a persistent entity from the database.
 	 *
@@ -240,6 +440,7 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
 	{
 		daoContext.delete(entity);
 		daoContext.flush();
+		countChanged(daoContext);
 	}
 
 	/**
@@ -289,7 +490,63 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
 		Query query = daoContext.createQuery(hql);
 		query.setComment(getClass().getSimpleName() + ".deleteById");
 		query.setParameter("id", id);
-		return query.executeUpdate() != 0;
+		boolean deleted = query.executeUpdate() != 0;
+		countChanged(daoContext);
+		return deleted;
+	}
+
+	/**
+	 * Perform an entity-by-entity delete on the entities with the specified
+	 * IDs. Unlike {@link #deleteById(DataAccessContext, Serializable)}, this
+	 * delete will cascade, if the table is set up that way.
+	 * <p>
+	 * The entities are loaded <code>getBatchSize</code> at a time using an
+	 * <code>in</code> clause, deleted, and then the session is flushed (which
+	 * removes them from it) before the next group is loaded. Thus, memory use
+	 * is bounded by the batch size, not by the number of IDs. Other objects in
+	 * the session are left alone. IDs for which there is no entity in the
+	 * database are ignored.
+	 * </p>
+	 * <p>
+	 * This method assumes that the unique ID for the object is, in fact,
+	 * called <code>id</code>.
+	 * </p>
+	 * 
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param ids
+	 *            IDs of the entities to be deleted
+	 * @return Number of entities actually deleted.
+	 * @see #getBatchSize(DataAccessContext)
+	 */
+	public int deleteByIds(DataAccessContext daoContext,
+			Collection<? extends IDTYPE> ids)
+	{
+		int batchSize = getBatchSize(daoContext);
+		List<IDTYPE> idList = new ArrayList<IDTYPE>(ids);
+		int deleted = 0;
+
+		for (int start = 0; start < idList.size(); start += batchSize)
+		{
+			List<IDTYPE> batch = idList.subList(start,
+					Math.min(start + batchSize, idList.size()));
+
+			Criteria criteria = buildCriteria(daoContext,
+					Restrictions.in("id", batch));
+			criteria.setComment(getClass().getSimpleName() + ".deleteByIds()");
+
+			List<PERSISTENTCLASS> entities = listDistinct(criteria);
+			for (PERSISTENTCLASS entity : entities)
+			{
+				daoContext.delete(entity);
+				deleted++;
+			}
+
+			flushAndEvict(daoContext, entities);
+		}
+
+		countChanged(daoContext);
+		return deleted;
 	}
 
 	/**
@@ -318,37 +575,192 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
 		query.setComment(getClass().getSimpleName() + ".clearTable()");
 		query.executeUpdate();
 		daoContext.flush();
+		countChanged(daoContext);
 	}
 
 	/**
 	 * Perform an entity-by-entity delete on the entities in the database. This
 	 * delete will cascade, if the table is set up that way. Performing this
-	 * operation requires selecting all the entities, however, which can be slow
-	 * and memory-intensive for large tables. When possible, it is faster to use
-	 * {@link BaseDAO#clearTable(DataAccessContext)} and make sure that
-	 * dependent objects are deleted first.
-	 *
+	 * operation requires selecting all the IDs and then loading the entities
+	 * in batches, however, which can be slow for large tables. When possible,
+	 * it is faster to use {@link BaseDAO#clearTable(DataAccessContext)} and
+	 * make sure that dependent objects are deleted first.
+	 * <p>
+	 * Only the deleted entities leave the session; other objects loaded in it
+	 * before this call remain attached.
+	 * </p>
+	 * 
 	 * @param daoContext
 	 *            {@link DataAccessContext} object for the database.
 	 * @see #clearTable(DataAccessContext)
+	 * @see #deleteByCriteria(DataAccessContext, Criterion...)
 	 */
 	public void deleteAll(DataAccessContext daoContext)
 	{
-		for (PERSISTENTCLASS entity : listAll(daoContext, null))
+		deleteByCriteria(daoContext);
+	}
+
+	/**
+	 * Perform an entity-by-entity delete on the entities in the table that meet
+	 * the specified criteria. This delete will cascade, if the table is set up
+	 * that way. The IDs of the matching entities are selected first, and the
+	 * entities are then deleted via
+	 * {@link #deleteByIds(DataAccessContext, Collection)}, so memory use is
+	 * bounded by the batch size rather than by the number of matching
+	 * entities.
+	 * 
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param criterions
+	 *            Zero or more <code>Criterion</code> objects describing the
+	 *            objects to be deleted. If no <code>Criterion</code>s are
+	 *            specified, all the entities are deleted.
+	 * @return Number of entities actually deleted.
+	 * @see #deleteByIds(DataAccessContext, Collection)
+	 */
+	@SuppressWarnings("unchecked")
+	public int deleteByCriteria(DataAccessContext daoContext,
+			Criterion... criterions)
+	{
+		Criteria criteria = buildCriteria(daoContext, criterions);
+		criteria.setProjection(Projections.id());
+		criteria.setComment(getClass().getSimpleName() + ".deleteByCriteria()");
+
+		return deleteByIds(daoContext, (List<IDTYPE>) criteria.list());
+	}
+
+	/**
+	 * Return the number of entities that the bulk operations (
+	 * {@link #insertAll(DataAccessContext, Collection)},
+	 * {@link #updateAll(DataAccessContext, Collection)},
+	 * {@link #deleteByIds(DataAccessContext, Collection)}, etc.) process
+	 * between flushing the session and evicting them. The default
+	 * implementation returns the configured
+	 * <code>hibernate.jdbc.batch_size</code>, or {@link #DEFAULT_BATCH_SIZE}
+	 * if JDBC batching has not been configured. Derived classes may override
+	 * this to tune a particular DAO.
+	 * 
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @return Batch size. Must be greater than zero.
+	 */
+	protected int getBatchSize(DataAccessContext daoContext)
+	{
+		int batchSize = daoContext.getJdbcBatchSize();
+		return batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+	}
+
+	/**
+	 * Flush pending changes to the database and then evict the entities
+	 * processed so far from the session, so that they no longer occupy the
+	 * session cache. Unlike clearing the session, this leaves any other
+	 * objects the caller has loaded attached.
+	 * 
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param entities
+	 *            Entities to be evicted. Those no longer in the session
+	 *            (deleted entities, for example) are skipped.
+	 */
+	protected void flushAndEvict(DataAccessContext daoContext,
+			Collection<?> entities)
+	{
+		daoContext.flush();
+
+		for (Object entity : entities)
 		{
-			daoContext.delete(entity);
+			if (daoContext.contains(entity))
+			{
+				daoContext.evict(entity);
+			}
 		}
-		daoContext.flush();
 	}
 
 	/**
-	 * Count the number of entities in the database.
+	 * Return the maximum number of IDs in the <code>IN</code> clause of a
+	 * single query made by {@link #getByIds(DataAccessContext, Collection)}.
+	 * This is {@link #DEFAULT_ID_FETCH_SIZE}, limited by
+	 * {@link #getMaxInListSize(Dialect)}. Derived classes may override this to
+	 * tune a particular DAO.
+	 * 
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @return Fetch size. Must be greater than zero.
+	 */
+	protected int getIdFetchSize(DataAccessContext daoContext)
+	{
+		return Math.min(DEFAULT_ID_FETCH_SIZE, getMaxInListSize(daoContext
+				.getDialect()));
+	}
+
+	/**
+	 * Return the maximum number of values that the database accepts in a
+	 * single <code>IN</code> list. Oracle allows at most 1000 expressions in a
+	 * list, and SQL Server and Sybase at most 2100 parameters in a statement.
+	 * Other databases are assumed to be limited only by the size of the
+	 * statement.
+	 * 
+	 * @param dialect
+	 *            <code>Dialect</code> of the database.
+	 * @return Maximum number of values.
+	 */
+	protected int getMaxInListSize(Dialect dialect)
+	{
+		String name = dialect.getClass().getName();
+
+		if (name.contains("Oracle"))
+		{
+			return 1000;
+		}
+		if (name.contains("SQLServer") || name.contains("Sybase"))
+		{
+			return 2000;
+		}
+
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Count the number of entities in the database, using the
+	 * <code>CountStrategy</code> installed on this DAO. By default this is an
+	 * exact count.
 	 *
 	 * @param daoContext
 	 *            {@link DataAccessContext} object for the database.
 	 * @return Number of entities in the table.
+	 * @see #setCountStrategy(CountStrategy)
 	 */
 	public long getCount(DataAccessContext daoContext)
+	{
+		return getCount(daoContext, countStrategy);
+	}
+
+	/**
+	 * Count the number of entities in the database, using a specific
+	 * <code>CountStrategy</code>. This allows an individual screen to choose a
+	 * cheaper (but less precise) count than the DAO's default.
+	 *
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param strategy
+	 *            <code>CountStrategy</code> to be used.
+	 * @return Number of entities in the table.
+	 */
+	public long getCount(DataAccessContext daoContext, CountStrategy strategy)
+	{
+		return strategy.getCount(daoContext, this);
+	}
+
+	/**
+	 * Count the number of entities in the database exactly. This flushes the
+	 * session and then performs a <code>select count(*)</code> on the table.
+	 *
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @return Number of entities in the table.
+	 * @see ExactCountStrategy
+	 */
+	public long getExactCount(DataAccessContext daoContext)
 	{
 		daoContext.flush();
 		String queryString = "select count(*) from " + getPersistentClassName();
@@ -358,6 +770,93 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
 		return result.longValue();
 	}
 
+	/**
+	 * Return the <code>CountStrategy</code> used by
+	 * {@link #getCount(DataAccessContext)}.
+	 *
+	 * @return <code>CountStrategy</code> object.
+	 */
+	public CountStrategy getCountStrategy()
+	{
+		return countStrategy;
+	}
+
+	/**
+	 * Set the <code>CountStrategy</code> used by
+	 * {@link #getCount(DataAccessContext)}. The strategy installed here is
+	 * notified whenever the table is changed through this DAO, so strategies
+	 * that remember counts (such as {@link CachedCountStrategy}) should be
+	 * installed here rather than passed to
+	 * {@link #getCount(DataAccessContext, CountStrategy)}.
+	 *
+	 * @param countStrategy
+	 *            <code>CountStrategy</code> object.
+	 */
+	public void setCountStrategy(CountStrategy countStrategy)
+	{
+		Assert.isNotNull(countStrategy);
+		this.countStrategy = countStrategy;
+	}
+
+	/**
+	 * Notify the <code>CountStrategy</code> that the table has been changed.
+	 * Derived classes should prefer
+	 * {@link #countChanged(DataAccessContext)}, which also notifies the
+	 * strategy when the transaction making the change completes.
+	 */
+	protected void countChanged()
+	{
+		countStrategy.invalidate(this);
+	}
+
+	/**
+	 * Notify the <code>CountStrategy</code> that the table has been changed,
+	 * once now and again when the current transaction completes. This is
+	 * called by all the methods on this class that insert or delete entities.
+	 * Derived classes that make such changes by other means (e.g. HQL bulk
+	 * operations) should call it as well.
+	 * 
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 */
+	protected void countChanged(DataAccessContext daoContext)
+	{
+		countChanged();
+
+		if (daoContext.getSynchronization(this) == null)
+		{
+			daoContext.registerSynchronization(this, new Synchronization()
+			{
+				@Override
+				public void beforeCompletion()
+				{
+				}
+
+				@Override
+				public void afterCompletion(int status)
+				{
+					countChanged();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Determine whether the table has been changed through this DAO in the
+	 * current transaction. Anything read from the table in such a transaction
+	 * may include changes that are not yet committed (and may never be), so it
+	 * must not be remembered for use by other transactions.
+	 * 
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @return <code>true</code> if the current transaction has changed the
+	 *         table.
+	 */
+	public boolean isChangedInTransaction(DataAccessContext daoContext)
+	{
+		return daoContext.getSynchronization(this) != null;
+	}
+
 	/**
 	 * Return a <code>List</code> of all the entities in the table.
 	 *
@@ -482,6 +981,152 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
 		return listDistinct(criteria);
 	}
 
+	/**
+	 * Return one page of the entities in the table that meet the specified
+	 * criteria, using keyset (or "seek") pagination rather than an offset.
+	 * <p>
+	 * The entities are ordered by <code>keyProperty</code>, and the page
+	 * begins with the first entity whose key comes after <code>lastKey</code>.
+	 * Since the database can seek directly to that key (assuming the column is
+	 * indexed), the cost of retrieving a page does not depend on how deep into
+	 * the results it is, unlike <code>setFirstResult</code>, which requires
+	 * the database to scan and discard all the preceding rows.
+	 * </p>
+	 * <p>
+	 * <code>keyProperty</code> must be unique and not null for the ordering to
+	 * be stable (the <code>id</code> is usually a good choice). To find out
+	 * whether there is a following page, ask for one more entity than the page
+	 * size.
+	 * </p>
+	 *
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param comment
+	 *            Comment to be added to the query for debugging purposes.
+	 *            (Optional - may be <code>null</code>).
+	 * @param keyProperty
+	 *            Name of the unique property on which the entities are
+	 *            ordered.
+	 * @param ascending
+	 *            <code>true</code> to page in ascending key order,
+	 *            <code>false</code> for descending.
+	 * @param lastKey
+	 *            Key of the last entity on the previous page, or
+	 *            <code>null</code> to retrieve the first page.
+	 * @param maxResults
+	 *            Maximum number of entities to return.
+	 * @param criterions
+	 *            Zero or more <code>Criterion</code> objects describing the
+	 *            objects to be selected.
+	 * @return <code>List</code> of at most <code>maxResults</code> entities.
+	 *         The returned <code>List</code> will not be <code>null</code>,
+	 *         but may be empty.
+	 */
+	public List<PERSISTENTCLASS> listKeysetPage(DataAccessContext daoContext,
+			String comment, String keyProperty, boolean ascending,
+			Object lastKey, int maxResults, Criterion... criterions)
+	{
+		Criteria criteria = buildCriteria(daoContext, criterions);
+
+		if (comment != null)
+		{
+			criteria.setComment(comment);
+		}
+
+		if (lastKey != null)
+		{
+			criteria.add(ascending ? Restrictions.gt(keyProperty, lastKey)
+					: Restrictions.lt(keyProperty, lastKey));
+		}
+
+		criteria.addOrder(ascending ? Order.asc(keyProperty) : Order
+				.desc(keyProperty));
+		criteria.setMaxResults(maxResults);
+
+		return list(criteria);
+	}
+
+	/**
+	 * Stream all the entities in the table to an {@link EntityProcessor}.
+	 * Unlike {@link #listAll(DataAccessContext, Order)}, the result is not
+	 * loaded into a <code>List</code>. Instead, the rows are read through a
+	 * forward-only <code>ScrollableResults</code>, and each entity is evicted
+	 * from the session as soon as the processor has handled it, so memory use
+	 * stays constant regardless of the size of the table.
+	 * <p>
+	 * Eviction only cascades to associations mapped with
+	 * <tt>cascade="evict"</tt>, so processors that navigate other lazy
+	 * associations should evict those objects themselves.
+	 * </p>
+	 *
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param order
+	 *            <code>Order</code> in which the data should be returned.
+	 *            (Optional - may be <code>null</code>.)
+	 * @param fetchSize
+	 *            JDBC fetch size (number of rows retrieved per round trip).
+	 *            If zero or negative, the driver default is used.
+	 * @param processor
+	 *            <code>EntityProcessor</code> to be handed each entity.
+	 * @return Number of entities processed.
+	 */
+	public long scrollAll(DataAccessContext daoContext, Order order,
+			int fetchSize, EntityProcessor<? super PERSISTENTCLASS> processor)
+	{
+		Criteria criteria = buildCriteria(daoContext);
+		criteria.setComment(getClass().getSimpleName() + ".scrollAll()");
+		if (order != null)
+		{
+			criteria.addOrder(order);
+		}
+		return scroll(daoContext, criteria, fetchSize, processor);
+	}
+
+	/**
+	 * Stream the entities in the table that meet the specified criteria to an
+	 * {@link EntityProcessor}. This is the streaming equivalent of
+	 * {@link #listByCriteria(DataAccessContext, String, Order, Criterion...)}.
+	 *
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param comment
+	 *            Comment to be added to the query for debugging purposes.
+	 *            (Optional - may be <code>null</code>).
+	 * @param order
+	 *            <code>Order</code> object indicating order in which to return
+	 *            objects. (Optional - may be <code>null</code>).
+	 * @param fetchSize
+	 *            JDBC fetch size (number of rows retrieved per round trip).
+	 *            If zero or negative, the driver default is used.
+	 * @param processor
+	 *            <code>EntityProcessor</code> to be handed each entity.
+	 * @param criterions
+	 *            One or more <code>Criterion</code> objects describing the
+	 *            objects to be selected.
+	 * @return Number of entities processed.
+	 * @see #scrollAll(DataAccessContext, Order, int, EntityProcessor)
+	 */
+	public long scrollByCriteria(DataAccessContext daoContext, String comment,
+			Order order, int fetchSize,
+			EntityProcessor<? super PERSISTENTCLASS> processor,
+			Criterion... criterions)
+	{
+		Criteria criteria = buildCriteria(daoContext, criterions);
+
+		if (comment != null)
+		{
+			criteria.setComment(comment);
+		}
+
+		if (order != null)
+		{
+			criteria.addOrder(order);
+		}
+
+		return scroll(daoContext, criteria, fetchSize, processor);
+	}
+
 	/**
 	 * Utility function that applies the <code>DISTINCT_ROOT_ENTITY</code>
 	 * <code>ResultTransformer</code>. This is useful if you have an entity with
@@ -565,6 +1210,100 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
         return query.list();
     }
 
+	/**
+	 * Stream the objects that satisfy the specified <code>Criteria</code> to
+	 * an {@link EntityProcessor}, evicting each one from the session after it
+	 * has been processed.
+	 * <p>
+	 * Note that the <code>DISTINCT_ROOT_ENTITY</code> transformer cannot be
+	 * applied to scrolled results, so this should not be used with joins that
+	 * produce duplicate root entities.
+	 * </p>
+	 *
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param criteria
+	 *            <code>Criteria</code> object specifying the selection
+	 *            criteria.
+	 * @param fetchSize
+	 *            JDBC fetch size. If zero or negative, the driver default is
+	 *            used.
+	 * @param processor
+	 *            <code>EntityProcessor</code> to be handed each entity.
+	 * @return Number of entities processed.
+	 */
+	protected long scroll(DataAccessContext daoContext, Criteria criteria,
+			int fetchSize, EntityProcessor<? super PERSISTENTCLASS> processor)
+	{
+		if (fetchSize > 0)
+		{
+			criteria.setFetchSize(fetchSize);
+		}
+		criteria.setCacheMode(CacheMode.IGNORE);
+
+		return process(daoContext, criteria.scroll(ScrollMode.FORWARD_ONLY),
+				processor);
+	}
+
+	/**
+	 * Stream the objects that satisfy the specified <code>Query</code> to an
+	 * {@link EntityProcessor}, evicting each one from the session after it has
+	 * been processed. The query must return instances of
+	 * <code>PERSISTENTCLASS</code> as its first (or only) column.
+	 *
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param query
+	 *            <code>Query</code> object specifying retrieval.
+	 * @param fetchSize
+	 *            JDBC fetch size. If zero or negative, the driver default is
+	 *            used.
+	 * @param processor
+	 *            <code>EntityProcessor</code> to be handed each entity.
+	 * @return Number of entities processed.
+	 */
+	protected long scroll(DataAccessContext daoContext, Query query,
+			int fetchSize, EntityProcessor<? super PERSISTENTCLASS> processor)
+	{
+		if (fetchSize > 0)
+		{
+			query.setFetchSize(fetchSize);
+		}
+		query.setCacheMode(CacheMode.IGNORE);
+
+		return process(daoContext, query.scroll(ScrollMode.FORWARD_ONLY),
+				processor);
+	}
+
+	/*
+	 * Hand each row of the results to the processor, evicting it afterwards,
+	 * and make sure the results are closed no matter how we leave.
+	 */
+	@SuppressWarnings("unchecked")
+	private long process(DataAccessContext daoContext,
+			ScrollableResults results,
+			EntityProcessor<? super PERSISTENTCLASS> processor)
+	{
+		long count = 0;
+
+		try
+		{
+			while (results.next())
+			{
+				PERSISTENTCLASS entity = (PERSISTENTCLASS) results.get(0);
+				processor.process(entity);
+				daoContext.evict(entity);
+				count++;
+			}
+		}
+		finally
+		{
+			results.close();
+		}
+
+		return count;
+	}
+
 	/**
 	 * Utility method to return the unique entity that satisfies the specified
 	 * <code>Criteria</code> specification.
@@ -71,6 +71,12 @@ public abstract class BaseDatabase implements DatabaseContextProvider
 	 */
 	private volatile DatabaseTestInterceptor databaseTestInterceptor;
 
+	/*
+	 * Statistics for operations made through DataAccessContexts, or null if
+	 * they are not being collected.
+	 */
+	private volatile QueryStatistics queryStatistics;
+
 	/**
 	 * Base constructor for derived classes
 	 */
@@ -102,6 +108,37 @@ public abstract class BaseDatabase implements DatabaseContextProvider
 		return databaseTestInterceptor;
 	}
 
+	/**
+	 * Install a <code>QueryStatistics</code> in which the timings of all
+	 * operations made through <code>DataAccessContext</code>s subsequently
+	 * created for this database are recorded.
+	 * <p>
+	 * This method is thread-safe.
+	 * </p>
+	 * 
+	 * @param queryStatistics
+	 *            <code>QueryStatistics</code> instance, or <code>null</code> to
+	 *            stop collecting statistics.
+	 * @see net.sourceforge.wsup.hibernate.impl.InstrumentedDataAccessContext
+	 */
+	public void setQueryStatistics(QueryStatistics queryStatistics)
+	{
+		this.queryStatistics = queryStatistics;
+	}
+
+	/**
+	 * Get the current <code>QueryStatistics</code>.
+	 * <p>
+	 * This method is thread-safe.
+	 * </p>
+	 * 
+	 * @return <code>QueryStatistics</code> instance or <code>null</code>.
+	 */
+	public QueryStatistics getQueryStatistics()
+	{
+		return queryStatistics;
+	}
+
 	/**
 	 * "Open" the database, making it possible to create <code>Session</code>s.
 	 * Opening a database that is already open is benign, although an
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.hibernate;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import org.hibernate.HibernateException;
+
+/**
+ * <code>CountStrategy</code> that remembers the counts returned by another
+ * strategy for a configurable period of time. A remembered count is discarded
+ * when it expires, or when the table is changed through a DAO on which this
+ * strategy is installed (see {@link BaseDAO#setCountStrategy(CountStrategy)}):
+ * once when the change is made, and again when the transaction making it
+ * completes. A count obtained in a transaction that has itself changed the
+ * table is never remembered, since it includes changes that are not yet
+ * committed.
+ * <p>
+ * Changes made by other means (other processes, bulk HQL that bypasses the
+ * DAO, etc.) are only picked up when the count expires. This strategy is thus
+ * suited to screens that only need a count that is "recent enough."
+ * </p>
+ */
+@ThreadSafe
+public class CachedCountStrategy implements CountStrategy
+{
+	private final CountStrategy delegate;
+
+	private final long timeToLive;
+
+	private final ConcurrentMap<String, CachedCount> counts = new ConcurrentHashMap<String, CachedCount>();
+
+	/*
+	 * Bumped on every invalidation so that a count computed while an
+	 * invalidation was happening is not remembered.
+	 */
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Constructor. Counts are obtained using an {@link ExactCountStrategy}.
+	 * 
+	 * @param timeToLive
+	 *            Time (in milliseconds) for which a count is remembered.
+	 */
+	public CachedCountStrategy(long timeToLive)
+	{
+		this(ExactCountStrategy.INSTANCE, timeToLive);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param delegate
+	 *            <code>CountStrategy</code> used to obtain the counts that are
+	 *            remembered.
+	 * @param timeToLive
+	 *            Time (in milliseconds) for which a count is remembered.
+	 */
+	public CachedCountStrategy(CountStrategy delegate, long timeToLive)
+	{
+		this.delegate = delegate;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * @see net.sourceforge.wsup.hibernate.CountStrategy#getCount(DataAccessContext,
+	 *      BaseDAO)
+	 */
+	@Override
+	public long getCount(DataAccessContext daoContext, BaseDAO<?, ?> dao)
+			throws HibernateException
+	{
+		if (dao.isChangedInTransaction(daoContext))
+		{
+			return delegate.getCount(daoContext, dao);
+		}
+
+		String key = dao.getPersistentClassName();
+		long now = getCurrentTime();
+
+		CachedCount cached = counts.get(key);
+		if (cached != null && cached.expires > now)
+		{
+			return cached.count;
+		}
+
+		long generation = invalidations.get();
+		long count = delegate.getCount(daoContext, dao);
+		if (generation == invalidations.get())
+		{
+			counts.put(key, new CachedCount(count, now + timeToLive));
+		}
+
+		return count;
+	}
+
+	/**
+	 * Discard any remembered count for the DAO's table, and pass the
+	 * notification on to the delegate.
+	 * 
+	 * @see net.sourceforge.wsup.hibernate.CountStrategy#invalidate(BaseDAO)
+	 */
+	@Override
+	public void invalidate(BaseDAO<?, ?> dao)
+	{
+		invalidations.incrementAndGet();
+		counts.remove(dao.getPersistentClassName());
+		delegate.invalidate(dao);
+	}
+
+	/**
+	 * Discard all remembered counts.
+	 */
+	public void invalidateAll()
+	{
+		invalidations.incrementAndGet();
+		counts.clear();
+	}
+
+	/**
+	 * Return the current time, in milliseconds. Only <code>protected</code> so
+	 * that unit tests can control the passage of time.
+	 * 
+	 * @return Current time.
+	 */
+	protected long getCurrentTime()
+	{
+		return System.currentTimeMillis();
+	}
+
+	@Immutable
+	private static final class CachedCount
+	{
+		private final long count;
+		private final long expires;
+
+		private CachedCount(long count, long expires)
+		{
+			this.count = count;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.hibernate;
+
+import org.hibernate.HibernateException;
+
+/**
+ * Strategy used by {@link BaseDAO#getCount(DataAccessContext)} to determine
+ * the number of entities in a table. Exact counts require a full
+ * <code>select count(*)</code>, which can be the slowest query on a paged
+ * screen for a large table, so a DAO (or an individual call) may choose a
+ * cheaper, less precise strategy.
+ * <p>
+ * Implementations must be thread-safe, since DAOs are typically shared.
+ * </p>
+ * 
+ * @see ExactCountStrategy
+ * @see CachedCountStrategy
+ * @see EstimatedCountStrategy
+ */
+public interface CountStrategy
+{
+	/**
+	 * Return the number of entities in the table managed by a DAO.
+	 * 
+	 * @param daoContext
+	 *            {@link DataAccessContext} object for the database.
+	 * @param dao
+	 *            DAO whose entities are to be counted.
+	 * @return Number of entities (possibly approximate, depending on the
+	 *         strategy).
+	 * @throws HibernateException
+	 */
+	public long getCount(DataAccessContext daoContext, BaseDAO<?, ?> dao)
+			throws HibernateException;
+
+	/**
+	 * Notification that the contents of the table managed by a DAO have been
+	 * changed through that DAO. Strategies that remember counts should forget
+	 * them.
+	 * 
+	 * @param dao
+	 *            DAO whose table has been changed.
+	 */
+	public void invalidate(BaseDAO<?, ?> dao);
+}
@@ -22,6 +22,8 @@ import java.io.Serializable;
 import java.sql.Blob;
 import java.sql.Clob;
 
+import javax.transaction.Synchronization;
+
 import org.hibernate.CacheMode;
 import org.hibernate.Criteria;
 import org.hibernate.EntityMode;
@@ -34,6 +36,7 @@ import org.hibernate.Query;
 import org.hibernate.ReplicationMode;
 import org.hibernate.SQLQuery;
 import org.hibernate.UnknownProfileException;
+import org.hibernate.dialect.Dialect;
 import org.hibernate.Session.LockRequest;
 import org.hibernate.jdbc.Work;
 import org.hibernate.stat.SessionStatistics;
@@ -205,6 +208,13 @@ public interface DataAccessContext
 	 */
 	public void evict(Object object) throws HibernateException;
 
+	/**
+	 * Completely clear the session. Evict all loaded instances and cancel all
+	 * pending saves, updates and deletions. Do not close open iterators or
+	 * instances of <tt>ScrollableResults</tt>.
+	 */
+	public void clear();
+
 	/**
 	 * Return the persistent instance of the given entity class with the given
 	 * identifier, obtaining the specified lock mode, assuming the instance
@@ -716,6 +726,22 @@ public interface DataAccessContext
 	 */
 	public String getEntityName(Object object) throws HibernateException;
 
+	/**
+	 * Return the persistent instance of the given entity class with the given
+	 * identifier if it is already associated with the session, without going
+	 * to the database. Instances that have been deleted in the session are not
+	 * returned.
+	 * 
+	 * @param clazz
+	 *            a persistent class
+	 * @param id
+	 *            an identifier
+	 * @return a persistent instance or null
+	 * @throws HibernateException
+	 */
+	public Object getFromSession(Class<?> clazz, Serializable id)
+			throws HibernateException;
+
 	/**
 	 * Enable the named filter for this current session.
 	 * 
@@ -845,6 +871,52 @@ public interface DataAccessContext
 	public String getTableNameForClass(Class<?> persistentClass)
 			throws HibernateException;
 
+	/**
+	 * Return the JDBC batch size configured for the database via the
+	 * <code>hibernate.jdbc.batch_size</code> property.
+	 * 
+	 * @return Configured batch size, or zero if JDBC batching has not been
+	 *         configured.
+	 */
+	public int getJdbcBatchSize();
+
+	/**
+	 * Return the SQL <code>Dialect</code> in use for the database.
+	 * 
+	 * @return <code>Dialect</code> object.
+	 * @throws HibernateException
+	 */
+	public Dialect getDialect() throws HibernateException;
+
+	/**
+	 * Register a callback for the completion (commit or rollback) of the
+	 * current transaction under a key, so that later calls in the same
+	 * transaction can find it with {@link #getSynchronization(Object)} rather
+	 * than register another. If no transaction is active there is nothing to
+	 * wait for, so the callback is completed (as if committed) at once.
+	 * 
+	 * @param key
+	 *            key under which the callback is registered
+	 * @param synchronization
+	 *            the callback
+	 * @throws HibernateException
+	 */
+	public void registerSynchronization(Object key,
+			Synchronization synchronization) throws HibernateException;
+
+	/**
+	 * Return the callback registered under a key by
+	 * {@link #registerSynchronization(Object, Synchronization)} for the
+	 * current transaction.
+	 * 
+	 * @param key
+	 *            key under which the callback was registered
+	 * @return the callback, or <code>null</code> if none has been registered
+	 *         under the key since the current transaction began (or no
+	 *         transaction is active)
+	 */
+	public Synchronization getSynchronization(Object key);
+
 	/**
 	 * Create a <code>Blob</code> associated with the current session. If called
 	 * before <code>beginSession</code>, this method will automatically begin a
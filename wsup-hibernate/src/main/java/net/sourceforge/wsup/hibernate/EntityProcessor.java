@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.sourceforge.wsup.hibernate;
+
+/**
+ * Callback interface used by the streaming ("scroll") methods on
+ * {@link BaseDAO}. The processor is handed each entity in turn as it is read
+ * from the database.
+ * 
+ * 
+ * @param <T>
+ *            The type of the persistent entity.
+ * @see BaseDAO#scrollAll(DataAccessContext, org.hibernate.criterion.Order,
+ *      int, EntityProcessor)
+ */
+public interface EntityProcessor<T>
+{
+	/**
+	 * Process a single entity. The entity is evicted from the session once
+	 * this method returns, so any changes made to it will not be written to
+	 * the database unless the processor flushes the session itself.
+	 * 
+	 * @param entity
+	 *            Entity read from the database.
+	 */
+	public void process(T entity);
+}
@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.hibernate;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.hibernate.HibernateException;
+import org.hibernate.SQLQuery;
+import org.hibernate.dialect.Dialect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <code>CountStrategy</code> that reads an estimated row count from the
+ * database's catalog statistics instead of counting the rows. This is very
+ * cheap regardless of the size of the table, but is only as accurate as the
+ * statistics, which are typically refreshed by the database's analyze/vacuum
+ * process.
+ * <p>
+ * Estimates are supported for PostgreSQL, MySQL, Oracle and SQL Server, based
+ * on the <code>Dialect</code> in use. For any other database, or if the
+ * statistics have not been gathered for the table, the count is obtained from
+ * a fallback strategy.
+ * </p>
+ */
+@ThreadSafe
+public class EstimatedCountStrategy implements CountStrategy
+{
+	private static final Logger log = LoggerFactory
+			.getLogger(EstimatedCountStrategy.class);
+
+	private final CountStrategy fallback;
+
+	/**
+	 * Constructor. If an estimate is not available, an exact count will be
+	 * done.
+	 */
+	public EstimatedCountStrategy()
+	{
+		this(ExactCountStrategy.INSTANCE);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param fallback
+	 *            <code>CountStrategy</code> used if an estimate is not
+	 *            available.
+	 */
+	public EstimatedCountStrategy(CountStrategy fallback)
+	{
+		this.fallback = fallback;
+	}
+
+	/**
+	 * @see net.sourceforge.wsup.hibernate.CountStrategy#getCount(DataAccessContext,
+	 *      BaseDAO)
+	 */
+	@Override
+	public long getCount(DataAccessContext daoContext, BaseDAO<?, ?> dao)
+			throws HibernateException
+	{
+		String sql = getEstimateSQL(daoContext.getDialect());
+		if (sql != null)
+		{
+			SQLQuery query = daoContext.createSQLQuery(sql);
+			query.setComment(dao.getClass().getSimpleName()
+					+ ".getCount(estimated)");
+			query.setString(0, dao.getTableName(daoContext));
+			Object result = query.uniqueResult();
+
+			if (result instanceof Number && ((Number) result).longValue() >= 0)
+			{
+				return ((Number) result).longValue();
+			}
+
+			log.debug("No estimated count available for {}", dao
+					.getPersistentClassName());
+		}
+
+		return fallback.getCount(daoContext, dao);
+	}
+
+	/**
+	 * Passes the notification on to the fallback strategy.
+	 * 
+	 * @see net.sourceforge.wsup.hibernate.CountStrategy#invalidate(BaseDAO)
+	 */
+	@Override
+	public void invalidate(BaseDAO<?, ?> dao)
+	{
+		fallback.invalidate(dao);
+	}
+
+	/**
+	 * Return the SQL used to read the estimated row count of a table from the
+	 * catalog. The SQL must take the table name as its only (positional)
+	 * parameter, and return a single numeric value, or no row or
+	 * <code>null</code> if no estimate is available.
+	 * <p>
+	 * Derived classes may override this to support other databases.
+	 * </p>
+	 * 
+	 * @param dialect
+	 *            <code>Dialect</code> of the database.
+	 * @return SQL, or <code>null</code> if estimates are not supported for
+	 *         this database.
+	 */
+	protected String getEstimateSQL(Dialect dialect)
+	{
+		String name = dialect.getClass().getName();
+
+		if (name.contains("PostgreSQL"))
+		{
+			return "select cast(reltuples as bigint) from pg_class "
+					+ "where oid = cast(? as regclass)";
+		}
+		if (name.contains("MySQL"))
+		{
+			return "select table_rows from information_schema.tables "
+					+ "where table_schema = database() and table_name = ?";
+		}
+		if (name.contains("Oracle"))
+		{
+			return "select num_rows from user_tables "
+					+ "where table_name = upper(?)";
+		}
+		if (name.contains("SQLServer"))
+		{
+			return "select sum(p.rows) from sys.partitions p "
+					+ "where p.object_id = object_id(?) and p.index_id in (0, 1)";
+		}
+
+		return null;
+	}
+}
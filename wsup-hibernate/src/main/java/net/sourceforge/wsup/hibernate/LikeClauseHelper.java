@@ -18,10 +18,20 @@ package net.sourceforge.wsup.hibernate;
 
 import org.apache.commons.lang.StringUtils;
 import org.hibernate.Query;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Restrictions;
 
 public class LikeClauseHelper
 {
-    public static final String LIKE_WIDECARDS = "[%_";
+    public static final String LIKE_WIDECARDS  = "[%_";
+
+    /**
+     * Wildcard character recognized in user-supplied search values by
+     * {@link #createSearchCriterion(String, String)}.
+     */
+    public static final char   SEARCH_WILDCARD = '*';
+
+    private static final char  ESCAPE          = '!';
 
     /**
      * Escape a LIKE clause value using the supplied escape character. If the supplied
@@ -50,15 +60,114 @@ public class LikeClauseHelper
             throw new IllegalArgumentException("Invalid escape [" + escape + "]");
         }
 
-        value = StringUtils.replace(value, "" + escape, "" + escape + escape);
+        if (value == null)
+        {
+            return null;
+        }
+
+        StringBuilder builder = null;
 
-        for (int i = 0; i < LIKE_WIDECARDS.length(); i++)
+        for (int i = 0; i < value.length(); i++)
         {
-            String wildcard = LIKE_WIDECARDS.substring(i, i + 1);
-            value = StringUtils.replace(value, wildcard, escape + wildcard);
+            char c = value.charAt(i);
+
+            if (c == escape || LIKE_WIDECARDS.indexOf(c) != -1)
+            {
+                if (builder == null)
+                {
+                    builder = new StringBuilder(value.length() + 8);
+                    builder.append(value, 0, i);
+                }
+                builder.append(escape);
+            }
+
+            if (builder != null)
+            {
+                builder.append(c);
+            }
+        }
+
+        return builder == null ? value : builder.toString();
+    }
+
+    /**
+     * Build a case-insensitive <code>Criterion</code> that searches a field for a user-supplied
+     * value, using the cheapest SQL form that will do the job. The value may contain the
+     * {@link #SEARCH_WILDCARD} character ('*') to match any sequence of characters; any SQL
+     * wildcard characters in it are matched literally.
+     * <ul>
+     * <li>A value without wildcards is matched with an equality test,
+     * <code>lower(field) = 'value'</code>.</li>
+     * <li>A value whose only wildcards are at the end is matched as a prefix,
+     * <code>lower(field) like 'value%'</code>. Like the equality test, this can use an index on
+     * <code>lower(field)</code>.</li>
+     * <li>Any other value is translated to a general LIKE pattern, which typically requires a scan.
+     * </li>
+     * </ul>
+     * 
+     * <pre>
+     * LikeClauseHelper.createSearchCriterion("name", "Abc")     : lower(name) = 'abc'
+     * LikeClauseHelper.createSearchCriterion("name", "Abc*")    : lower(name) like 'abc%'
+     * LikeClauseHelper.createSearchCriterion("name", "*50%")    : lower(name) like '%50!%'
+     * LikeClauseHelper.createSearchCriterion("name", "A*c")     : lower(name) like 'a%c'
+     * </pre>
+     * 
+     * @param propertyName the name of the field.
+     * @param value the search value, possibly containing '*' wildcards.
+     * @return <code>Criterion</code> for the search.
+     * @throws IllegalArgumentException if the value is <code>null</code>.
+     */
+    public static Criterion createSearchCriterion(String propertyName, String value)
+    {
+        if (value == null)
+        {
+            throw new IllegalArgumentException("value must not be null");
+        }
+
+        int firstWildcard = value.indexOf(SEARCH_WILDCARD);
+
+        if (firstWildcard == -1)
+        {
+            return Restrictions.eq(propertyName, value).ignoreCase();
+        }
+
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) == SEARCH_WILDCARD)
+        {
+            end--;
+        }
+
+        if (firstWildcard == end)
+        {
+            return EscapedLikeExpression.startsWith(propertyName, value.substring(0, end));
+        }
+
+        StringBuilder pattern = new StringBuilder(value.length() + 8);
+        boolean inWildcard = false;
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            if (c == SEARCH_WILDCARD)
+            {
+                if (!inWildcard)
+                {
+                    pattern.append('%');
+                    inWildcard = true;
+                }
+                continue;
+            }
+
+            inWildcard = false;
+            if (c == ESCAPE || LIKE_WIDECARDS.indexOf(c) != -1)
+            {
+                pattern.append(ESCAPE);
+            }
+            pattern.append(c);
         }
 
-        return value;
+        return EscapedLikeExpression.matching(propertyName, pattern.toString());
     }
 
     /**
@@ -0,0 +1,317 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.hibernate;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.jcip.annotations.ThreadSafe;
+import net.sourceforge.wsup.core.stat.BasicStatisticSeries;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects timing statistics for database operations and queries made through
+ * an {@link net.sourceforge.wsup.hibernate.impl.InstrumentedDataAccessContext}.
+ * Timings (in milliseconds) are kept in a {@link BasicStatisticSeries} per
+ * key. Queries are keyed by their comment (see <code>Query.setComment</code>,
+ * which <code>BaseDAO</code> sets on all its queries) or, if they have no
+ * comment, by the "shape" of the query string, with literals replaced by
+ * <code>?</code>. Other operations are keyed by the name of the
+ * <code>Session</code> method (e.g. <code>Session.get</code>).
+ * <p>
+ * The number of keys is limited, so that an application that builds queries
+ * containing literal values cannot cause unbounded growth. Once the limit has
+ * been reached, timings for new keys are recorded under {@link #OTHER_KEY}.
+ * </p>
+ * <p>
+ * Operations that take longer than the slow query threshold are logged at
+ * <code>WARN</code> level, along with the number of parameters bound to the
+ * query.
+ * </p>
+ * <p>
+ * A single <code>QueryStatistics</code> is normally installed on the database
+ * via {@link BaseDatabase#setQueryStatistics(QueryStatistics)}. This class is
+ * thread-safe.
+ * </p>
+ */
+@ThreadSafe
+public class QueryStatistics
+{
+	/**
+	 * Default period (in minutes) of each statistic in a series.
+	 */
+	public static final int DEFAULT_PERIOD = 1;
+
+	/**
+	 * Default length of each series, in periods.
+	 */
+	public static final int DEFAULT_LENGTH = 60;
+
+	/**
+	 * Default maximum number of distinct keys.
+	 */
+	public static final int DEFAULT_MAX_KEYS = 500;
+
+	/**
+	 * Key under which timings are recorded once the maximum number of keys has
+	 * been reached.
+	 */
+	public static final String OTHER_KEY = "(other)";
+
+	private static final int MAX_SHAPE_LENGTH = 250;
+
+	private static final Logger log = LoggerFactory
+			.getLogger(QueryStatistics.class);
+
+	private final int period;
+
+	private final int length;
+
+	private final int maxKeys;
+
+	private final ConcurrentMap<String, BasicStatisticSeries> series = new ConcurrentHashMap<String, BasicStatisticSeries>();
+
+	private volatile long slowQueryThreshold;
+
+	/**
+	 * Constructor, using the default period, length and maximum number of
+	 * keys. Slow query logging is initially disabled.
+	 */
+	public QueryStatistics()
+	{
+		this(DEFAULT_PERIOD, DEFAULT_LENGTH, DEFAULT_MAX_KEYS);
+	}
+
+	/**
+	 * Constructor. Slow query logging is initially disabled.
+	 * 
+	 * @param period
+	 *            Period (in minutes) of each statistic in a series.
+	 * @param length
+	 *            Length of each series, in periods.
+	 * @param maxKeys
+	 *            Maximum number of distinct keys.
+	 * @see BasicStatisticSeries#BasicStatisticSeries(int, int)
+	 */
+	public QueryStatistics(int period, int length, int maxKeys)
+	{
+		if (period < 1)
+		{
+			throw new IllegalArgumentException("period must be greater then 0");
+		}
+		if (length < 2)
+		{
+			throw new IllegalArgumentException("length must be greater then 1");
+		}
+		if (maxKeys < 1)
+		{
+			throw new IllegalArgumentException(
+					"maxKeys must be greater then 0");
+		}
+
+		this.period = period;
+		this.length = length;
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * Return the threshold above which operations are logged as slow.
+	 * 
+	 * @return Threshold in milliseconds, or zero if slow query logging is
+	 *         disabled.
+	 */
+	public long getSlowQueryThreshold()
+	{
+		return slowQueryThreshold;
+	}
+
+	/**
+	 * Set the threshold above which operations are logged as slow.
+	 * 
+	 * @param slowQueryThreshold
+	 *            Threshold in milliseconds. Zero (or a negative value)
+	 *            disables slow query logging.
+	 */
+	public void setSlowQueryThreshold(long slowQueryThreshold)
+	{
+		this.slowQueryThreshold = Math.max(0, slowQueryThreshold);
+	}
+
+	/**
+	 * Record the time taken by an operation.
+	 * 
+	 * @param key
+	 *            Key identifying the operation.
+	 * @param elapsedNanos
+	 *            Time taken, in nanoseconds (as from
+	 *            <code>System.nanoTime()</code>).
+	 * @param bindCount
+	 *            Number of parameters bound to the query, or zero if not
+	 *            applicable.
+	 */
+	public void record(String key, long elapsedNanos, int bindCount)
+	{
+		double elapsedMillis = elapsedNanos / 1000000.0;
+
+		getSeriesForUpdate(key).increment(elapsedMillis);
+
+		long threshold = slowQueryThreshold;
+		if (threshold > 0 && elapsedMillis > threshold && log.isWarnEnabled())
+		{
+			log.warn(String.format("Slow query (%.1f ms, %d binds): %s",
+					elapsedMillis, bindCount, key));
+		}
+	}
+
+	/**
+	 * Return the series for a key.
+	 * 
+	 * @param key
+	 *            Key identifying the operation.
+	 * @return <code>BasicStatisticSeries</code>, or <code>null</code> if
+	 *         nothing has been recorded for the key.
+	 */
+	public BasicStatisticSeries getSeries(String key)
+	{
+		return series.get(key);
+	}
+
+	/**
+	 * Return a snapshot of all the series, sorted by key.
+	 * 
+	 * @return <code>Map</code> of key to <code>BasicStatisticSeries</code>.
+	 */
+	public SortedMap<String, BasicStatisticSeries> getAllSeries()
+	{
+		SortedMap<String, BasicStatisticSeries> copy = new TreeMap<String, BasicStatisticSeries>(
+				series);
+		return Collections.unmodifiableSortedMap(copy);
+	}
+
+	/**
+	 * Discard all the statistics.
+	 */
+	public void clear()
+	{
+		series.clear();
+	}
+
+	private BasicStatisticSeries getSeriesForUpdate(String key)
+	{
+		BasicStatisticSeries result = series.get(key);
+		if (result != null)
+		{
+			return result;
+		}
+
+		if (series.size() >= maxKeys)
+		{
+			key = OTHER_KEY;
+			result = series.get(key);
+			if (result != null)
+			{
+				return result;
+			}
+		}
+
+		BasicStatisticSeries created = new BasicStatisticSeries(period, length);
+		result = series.putIfAbsent(key, created);
+		return result != null ? result : created;
+	}
+
+	/**
+	 * Return the "shape" of a query string, for use as a key. Runs of
+	 * whitespace are collapsed to a single space, and string and numeric
+	 * literals are replaced by <code>?</code>, so that queries that differ only
+	 * in their literal values share a key. Very long queries are truncated.
+	 * 
+	 * @param queryString
+	 *            HQL or SQL query string.
+	 * @return Shape of the query.
+	 */
+	public static String getQueryShape(String queryString)
+	{
+		int length = queryString.length();
+		StringBuilder buffer = new StringBuilder(Math.min(length,
+				MAX_SHAPE_LENGTH));
+		char previous = ' ';
+
+		for (int i = 0; i < length && buffer.length() < MAX_SHAPE_LENGTH; i++)
+		{
+			char c = queryString.charAt(i);
+
+			if (Character.isWhitespace(c))
+			{
+				if (previous != ' ')
+				{
+					buffer.append(' ');
+					previous = ' ';
+				}
+				continue;
+			}
+
+			if (c == '\'')
+			{
+				/*
+				 * Skip to the closing quote, allowing for doubled quotes.
+				 */
+				i++;
+				while (i < length)
+				{
+					if (queryString.charAt(i) == '\'')
+					{
+						if (i + 1 < length && queryString.charAt(i + 1) == '\'')
+						{
+							i++;
+						}
+						else
+						{
+							break;
+						}
+					}
+					i++;
+				}
+				c = '?';
+			}
+			else if (Character.isDigit(c)
+					&& !Character.isLetterOrDigit(previous) && previous != '_'
+					&& previous != ':' && previous != '?')
+			{
+				while (i + 1 < length
+						&& (Character.isDigit(queryString.charAt(i + 1)) || queryString
+								.charAt(i + 1) == '.'))
+				{
+					i++;
+				}
+				c = '?';
+			}
+
+			buffer.append(c);
+			previous = c;
+		}
+
+		int end = buffer.length();
+		if (end > 0 && buffer.charAt(end - 1) == ' ')
+		{
+			buffer.setLength(end - 1);
+		}
+
+		return buffer.toString();
+	}
+}
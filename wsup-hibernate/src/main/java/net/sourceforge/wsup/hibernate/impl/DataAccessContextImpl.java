@@ -22,6 +22,8 @@ import java.io.Serializable;
 import java.sql.Blob;
 import java.sql.Clob;
 
+import javax.transaction.Synchronization;
+
 import net.sourceforge.wsup.hibernate.BaseDatabase;
 import net.sourceforge.wsup.hibernate.DataAccessContext;
 
@@ -39,8 +41,18 @@ import org.hibernate.SQLQuery;
 import org.hibernate.Session;
 import org.hibernate.UnknownProfileException;
 import org.hibernate.Session.LockRequest;
+import org.hibernate.cfg.Environment;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.engine.Status;
 import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.stat.SessionStatistics;
+import org.hibernate.util.PropertiesHelper;
 
 /**
  * Implementation of the <code>DataAccessContext</code> interface that is
@@ -87,6 +99,15 @@ public class DataAccessContextImpl implements DataAccessContext
 		databaseContext.getSafeSession().cancelQuery();
 	}
 
+	/**
+	 * @see net.sourceforge.wsup.hibernate.DataAccessContext#clear()
+	 */
+	@Override
+	public void clear()
+	{
+		databaseContext.getSafeSession().clear();
+	}
+
 	/**
 	 * @see net.sourceforge.wsup.hibernate.DataAccessContext#contains(java.lang.Object)
 	 */
@@ -340,6 +361,37 @@ public class DataAccessContextImpl implements DataAccessContext
 		return databaseContext.getSafeSession().getEntityName(object);
 	}
 
+	/**
+	 * @see net.sourceforge.wsup.hibernate.DataAccessContext#getFromSession(java.lang.Class,
+	 *      java.io.Serializable)
+	 */
+	@Override
+	public Object getFromSession(Class<?> clazz, Serializable id)
+			throws HibernateException
+	{
+		SessionImplementor session = (SessionImplementor) databaseContext
+				.getSafeSession();
+		EntityPersister persister = session.getFactory().getEntityPersister(
+				clazz.getName());
+		PersistenceContext persistenceContext = session.getPersistenceContext();
+
+		Object entity = persistenceContext.getEntity(new EntityKey(id,
+				persister, session.getEntityMode()));
+		if (entity == null)
+		{
+			return null;
+		}
+
+		EntityEntry entry = persistenceContext.getEntry(entity);
+		Status status = entry != null ? entry.getStatus() : null;
+		if (status == Status.DELETED || status == Status.GONE)
+		{
+			return null;
+		}
+
+		return entity;
+	}
+
 	/**
 	 * @see net.sourceforge.wsup.hibernate.DataAccessContext#getFlushMode()
 	 */
@@ -656,6 +708,45 @@ public class DataAccessContextImpl implements DataAccessContext
 				persistentClass.getName()).getTable().getName();
 	}
 
+	/**
+	 * @see net.sourceforge.wsup.hibernate.DataAccessContext#getJdbcBatchSize()
+	 */
+	@Override
+	public int getJdbcBatchSize()
+	{
+		return PropertiesHelper.getInt(Environment.STATEMENT_BATCH_SIZE,
+				getDatabase().getConfiguration().getProperties(), 0);
+	}
+
+	/**
+	 * @see net.sourceforge.wsup.hibernate.DataAccessContext#getDialect()
+	 */
+	@Override
+	public Dialect getDialect() throws HibernateException
+	{
+		return ((SessionFactoryImplementor) databaseContext.getSafeSession()
+				.getSessionFactory()).getDialect();
+	}
+
+	/**
+	 * @see DataAccessContext#registerSynchronization(Object, Synchronization)
+	 */
+	@Override
+	public void registerSynchronization(Object key,
+			Synchronization synchronization) throws HibernateException
+	{
+		databaseContext.registerSynchronization(key, synchronization);
+	}
+
+	/**
+	 * @see DataAccessContext#getSynchronization(Object)
+	 */
+	@Override
+	public Synchronization getSynchronization(Object key)
+	{
+		return databaseContext.getSynchronization(key);
+	}
+
 	/**
 	 * @see DataAccessContext#createBlob(byte[])
 	 */
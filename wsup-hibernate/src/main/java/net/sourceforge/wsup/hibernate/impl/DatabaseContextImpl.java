@@ -20,11 +20,17 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.sql.Blob;
 import java.sql.Clob;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
 
 import net.sourceforge.wsup.core.Assert;
 import net.sourceforge.wsup.hibernate.BaseDatabase;
 import net.sourceforge.wsup.hibernate.DataAccessContext;
 import net.sourceforge.wsup.hibernate.DatabaseContext;
+import net.sourceforge.wsup.hibernate.QueryStatistics;
 
 import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
@@ -51,6 +57,11 @@ public class DatabaseContextImpl implements DatabaseContext
 
 	private Transaction transaction;
 
+	/*
+	 * Callbacks registered under a key for the current transaction.
+	 */
+	private final Map<Object, Synchronization> synchronizations = new HashMap<Object, Synchronization>();
+
 	/**
 	 * Constructor.
 	 * 
@@ -120,6 +131,7 @@ public class DatabaseContextImpl implements DatabaseContext
 		finally
 		{
 			transaction = null;
+			synchronizations.clear();
 		}
 	}
 
@@ -138,6 +150,7 @@ public class DatabaseContextImpl implements DatabaseContext
 		finally
 		{
 			transaction = null;
+			synchronizations.clear();
 			doCloseSession();
 		}
 	}
@@ -160,6 +173,7 @@ public class DatabaseContextImpl implements DatabaseContext
 			}
 
 			transaction = null;
+			synchronizations.clear();
 		}
 
 		try
@@ -199,7 +213,16 @@ public class DatabaseContextImpl implements DatabaseContext
 	{
 		beginSession(false);
 
-		return new DataAccessContextImpl(this);
+		DataAccessContext daoContext = new DataAccessContextImpl(this);
+
+		QueryStatistics queryStatistics = database.getQueryStatistics();
+		if (queryStatistics != null)
+		{
+			daoContext = InstrumentedDataAccessContext.instrument(daoContext,
+					queryStatistics);
+		}
+
+		return daoContext;
 	}
 
 	/**
@@ -275,6 +298,57 @@ public class DatabaseContextImpl implements DatabaseContext
 		return session;
 	}
 
+	/**
+	 * Register a callback for the completion of the current transaction under
+	 * a key, or complete it at once if no transaction is active.
+	 * 
+	 * @param key
+	 *            key under which the callback is registered
+	 * @param synchronization
+	 *            the callback
+	 * @see DataAccessContext#registerSynchronization(Object, Synchronization)
+	 */
+	void registerSynchronization(final Object key,
+			Synchronization synchronization)
+	{
+		Transaction current = getSafeSession().getTransaction();
+		if (current == null || !current.isActive())
+		{
+			synchronization.beforeCompletion();
+			synchronization.afterCompletion(Status.STATUS_COMMITTED);
+			return;
+		}
+
+		current.registerSynchronization(synchronization);
+		current.registerSynchronization(new Synchronization()
+		{
+			@Override
+			public void beforeCompletion()
+			{
+			}
+
+			@Override
+			public void afterCompletion(int status)
+			{
+				synchronizations.remove(key);
+			}
+		});
+		synchronizations.put(key, synchronization);
+	}
+
+	/**
+	 * Return the callback registered under a key for the current transaction.
+	 * 
+	 * @param key
+	 *            key under which the callback was registered
+	 * @return the callback, or <code>null</code> if there is none
+	 * @see DataAccessContext#getSynchronization(Object)
+	 */
+	Synchronization getSynchronization(Object key)
+	{
+		return synchronizations.get(key);
+	}
+
 	/**
 	 * Get the underlying Hibernate <code>Transaction</code> object.
 	 * 
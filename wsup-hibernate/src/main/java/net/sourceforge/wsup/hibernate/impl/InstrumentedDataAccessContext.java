@@ -0,0 +1,419 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.hibernate.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.sourceforge.wsup.hibernate.DataAccessContext;
+import net.sourceforge.wsup.hibernate.QueryStatistics;
+
+import org.hibernate.Criteria;
+import org.hibernate.SQLQuery;
+import org.hibernate.ScrollableResults;
+
+/**
+ * Decorator for a <code>DataAccessContext</code> that times database
+ * operations and records them in a {@link QueryStatistics}. The decorator is
+ * a dynamic proxy implementing <code>DataAccessContext</code>, created by
+ * {@link #instrument(DataAccessContext, QueryStatistics)}. What is measured:
+ * <ul>
+ * <li>The <code>Session</code> operations that may touch the database
+ * (<code>get</code>, <code>load</code>, <code>save</code>, <code>update</code>,
+ * <code>saveOrUpdate</code>, <code>merge</code>, <code>persist</code>,
+ * <code>delete</code>, <code>refresh</code>, <code>replicate</code>,
+ * <code>flush</code> and <code>doWork</code>), recorded as
+ * <code>Session.</code><i>name</i>.</li>
+ * <li>The execution (<code>list</code>, <code>uniqueResult</code>,
+ * <code>scroll</code>, <code>iterate</code> and <code>executeUpdate</code>) of
+ * the <code>Query</code>, <code>SQLQuery</code> and <code>Criteria</code>
+ * objects returned, recorded under the query's comment if it has one, or else
+ * its shape (see {@link QueryStatistics#getQueryShape(String)}),
+ * <code>named:</code><i>name</i> or <code>criteria:</code><i>entity</i>, along
+ * with a count of the parameters bound to a <code>Query</code> or the
+ * restrictions added to a <code>Criteria</code>. Sub-criteria are wrapped as
+ * well; their restrictions and executions count towards the
+ * <code>Criteria</code> from which they were created.</li>
+ * <li>The fetching of rows through a <code>ScrollableResults</code> returned
+ * by <code>scroll</code>. The time spent moving through the results is
+ * accumulated and recorded, under the query's key followed by
+ * <code>" (scroll)"</code>, when the <code>ScrollableResults</code> is closed;
+ * it is not recorded if it is never closed.</li>
+ * </ul>
+ * Not measured are the rows loaded while walking an <code>Iterator</code>
+ * returned by <code>iterate</code>, lazy loading of proxies and collections,
+ * and the flush performed when a transaction is committed. An automatic flush
+ * before a query is included in that query's time.
+ * <p>
+ * The overhead is a pair of <code>System.nanoTime()</code> calls per timed
+ * operation, plus a reflective call per method through each proxy. The
+ * objects returned are proxies implementing only the Hibernate interfaces, so
+ * they cannot be cast to Hibernate implementation classes such as
+ * <code>CriteriaImpl</code> or <code>QueryImpl</code>;
+ * {@link #unwrap(Object)} returns the underlying object, whose use is not
+ * timed.
+ * </p>
+ * <p>
+ * This is normally not created directly - a <code>DatabaseContextImpl</code>
+ * creates one if a <code>QueryStatistics</code> has been installed on its
+ * database.
+ * </p>
+ * 
+ * @see net.sourceforge.wsup.hibernate.BaseDatabase#setQueryStatistics(QueryStatistics)
+ */
+public final class InstrumentedDataAccessContext
+{
+	private static final Set<String> SESSION_METHODS = new HashSet<String>(
+			Arrays.asList("get", "load", "save", "update", "saveOrUpdate",
+					"merge", "persist", "delete", "refresh", "replicate",
+					"flush", "doWork"));
+
+	private static final Set<String> EXECUTE_METHODS = new HashSet<String>(
+			Arrays.asList("list", "uniqueResult", "scroll", "iterate",
+					"executeUpdate"));
+
+	private static final Set<String> SCROLL_METHODS = new HashSet<String>(
+			Arrays.asList("next", "previous", "scroll", "first", "last",
+					"setRowNumber"));
+
+	private static final Set<String> NON_BIND_SETTERS = new HashSet<String>(
+			Arrays.asList("setMaxResults", "setFirstResult", "setFetchSize",
+					"setTimeout", "setCacheable", "setCacheRegion",
+					"setCacheMode", "setFlushMode", "setReadOnly",
+					"setLockMode", "setLockOptions", "setResultTransformer",
+					"setResultSetMapping"));
+
+	private InstrumentedDataAccessContext()
+	{
+	}
+
+	/**
+	 * Wrap a <code>DataAccessContext</code> so that its database operations
+	 * are timed.
+	 * 
+	 * @param delegate
+	 *            <code>DataAccessContext</code> to which operations are
+	 *            delegated.
+	 * @param statistics
+	 *            <code>QueryStatistics</code> in which timings are recorded.
+	 * @return Instrumented <code>DataAccessContext</code>.
+	 */
+	public static DataAccessContext instrument(DataAccessContext delegate,
+			QueryStatistics statistics)
+	{
+		return proxy(DataAccessContext.class, new ContextHandler(delegate,
+				statistics));
+	}
+
+	/**
+	 * Return the object wrapped by an instrumented
+	 * <code>DataAccessContext</code>, <code>Query</code>,
+	 * <code>Criteria</code> or <code>ScrollableResults</code>. Any other
+	 * object is returned unchanged.
+	 * 
+	 * @param object
+	 *            Possibly instrumented object.
+	 * @return Underlying object.
+	 */
+	public static <T> T unwrap(T object)
+	{
+		if (object != null && Proxy.isProxyClass(object.getClass()))
+		{
+			InvocationHandler handler = Proxy.getInvocationHandler(object);
+			if (handler instanceof Handler)
+			{
+				@SuppressWarnings("unchecked")
+				T target = (T) ((Handler) handler).target;
+				return target;
+			}
+		}
+
+		return object;
+	}
+
+	private static <T> T proxy(Class<T> type, Handler handler)
+	{
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+
+	/*
+	 * Base for the proxy handlers, which forwards calls to the target, keeps
+	 * chained calls going through the proxy, and gives the proxy identity
+	 * semantics.
+	 */
+	private abstract static class Handler implements InvocationHandler
+	{
+		protected final Object target;
+
+		protected final QueryStatistics statistics;
+
+		protected Handler(Object target, QueryStatistics statistics)
+		{
+			this.target = target;
+			this.statistics = statistics;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable
+		{
+			String name = method.getName();
+
+			if ("equals".equals(name) && method.getParameterTypes().length == 1)
+			{
+				return Boolean.valueOf(proxy == args[0]);
+			}
+			if ("hashCode".equals(name)
+					&& method.getParameterTypes().length == 0)
+			{
+				return Integer.valueOf(System.identityHashCode(proxy));
+			}
+
+			Object result = handle(name, method, args);
+
+			return result == target ? proxy : result;
+		}
+
+		protected abstract Object handle(String name, Method method,
+				Object[] args) throws Throwable;
+
+		protected final Object invokeTarget(Method method, Object[] args)
+				throws Throwable
+		{
+			try
+			{
+				return method.invoke(target, args);
+			}
+			catch (InvocationTargetException e)
+			{
+				throw e.getCause();
+			}
+		}
+	}
+
+	/*
+	 * Handler for the DataAccessContext itself.
+	 */
+	private static final class ContextHandler extends Handler
+	{
+		private ContextHandler(DataAccessContext target,
+				QueryStatistics statistics)
+		{
+			super(target, statistics);
+		}
+
+		@Override
+		protected Object handle(String name, Method method, Object[] args)
+				throws Throwable
+		{
+			if (SESSION_METHODS.contains(name))
+			{
+				long start = System.nanoTime();
+				try
+				{
+					return invokeTarget(method, args);
+				}
+				finally
+				{
+					statistics.record("Session." + name, System.nanoTime()
+							- start, 0);
+				}
+			}
+
+			Object result = invokeTarget(method, args);
+
+			String key = getStatementKey(name, args);
+			if (key == null || result == null)
+			{
+				return result;
+			}
+
+			Class<?> type = result instanceof SQLQuery ? SQLQuery.class
+					: method.getReturnType();
+			return proxy(type, new StatementHandler(result, statistics, key,
+					null));
+		}
+
+		/**
+		 * Return the default key for a <code>Query</code> or
+		 * <code>Criteria</code> created by a method, or <code>null</code> if
+		 * the method does not create one.
+		 */
+		private static String getStatementKey(String name, Object[] args)
+		{
+			if ("createCriteria".equals(name))
+			{
+				Object entity = args[0];
+				return "criteria:"
+						+ (entity instanceof Class ? ((Class<?>) entity)
+								.getName() : entity);
+			}
+			if ("createQuery".equals(name) || "createSQLQuery".equals(name))
+			{
+				return QueryStatistics.getQueryShape((String) args[0]);
+			}
+			if ("createFilter".equals(name))
+			{
+				return QueryStatistics.getQueryShape((String) args[1]);
+			}
+			if ("getNamedQuery".equals(name))
+			{
+				return "named:" + args[0];
+			}
+
+			return null;
+		}
+	}
+
+	/*
+	 * Handler for a Query or Criteria, or for a sub-criteria, which shares
+	 * the comment and bind count of the Criteria from which it was created.
+	 * These objects are only used by a single thread, so no synchronization
+	 * is required.
+	 */
+	private static final class StatementHandler extends Handler
+	{
+		private final StatementHandler root;
+
+		private final String defaultKey;
+
+		private final boolean criteria;
+
+		private String comment;
+
+		private int bindCount;
+
+		private StatementHandler(Object target, QueryStatistics statistics,
+				String defaultKey, StatementHandler root)
+		{
+			super(target, statistics);
+			this.root = root != null ? root : this;
+			this.defaultKey = defaultKey;
+			this.criteria = target instanceof Criteria;
+		}
+
+		@Override
+		protected Object handle(String name, Method method, Object[] args)
+				throws Throwable
+		{
+			if (EXECUTE_METHODS.contains(name))
+			{
+				String key = root.comment != null ? root.comment
+						: root.defaultKey;
+				Object result;
+				long start = System.nanoTime();
+				try
+				{
+					result = invokeTarget(method, args);
+				}
+				finally
+				{
+					statistics.record(key, System.nanoTime() - start,
+							root.bindCount);
+				}
+
+				if (result instanceof ScrollableResults)
+				{
+					return proxy(ScrollableResults.class, new ScrollHandler(
+							result, statistics, key, root.bindCount));
+				}
+				return result;
+			}
+
+			if ("setComment".equals(name))
+			{
+				root.comment = (String) args[0];
+			}
+			else if (criteria ? "add".equals(name) : name.startsWith("set")
+					&& !NON_BIND_SETTERS.contains(name))
+			{
+				root.bindCount++;
+			}
+
+			Object result = invokeTarget(method, args);
+
+			if (criteria && "createCriteria".equals(name) && result != target)
+			{
+				return proxy(Criteria.class, new StatementHandler(result,
+						statistics, null, root));
+			}
+			return result;
+		}
+	}
+
+	/*
+	 * Handler for a ScrollableResults, which accumulates the time spent
+	 * moving through the results and records it when they are closed.
+	 */
+	private static final class ScrollHandler extends Handler
+	{
+		private final String key;
+
+		private final int bindCount;
+
+		private long elapsed;
+
+		private boolean closed;
+
+		private ScrollHandler(Object target, QueryStatistics statistics,
+				String key, int bindCount)
+		{
+			super(target, statistics);
+			this.key = key + " (scroll)";
+			this.bindCount = bindCount;
+		}
+
+		@Override
+		protected Object handle(String name, Method method, Object[] args)
+				throws Throwable
+		{
+			if (SCROLL_METHODS.contains(name))
+			{
+				long start = System.nanoTime();
+				try
+				{
+					return invokeTarget(method, args);
+				}
+				finally
+				{
+					elapsed += System.nanoTime() - start;
+				}
+			}
+
+			if ("close".equals(name))
+			{
+				try
+				{
+					return invokeTarget(method, args);
+				}
+				finally
+				{
+					if (!closed)
+					{
+						closed = true;
+						statistics.record(key, elapsed, bindCount);
+					}
+				}
+			}
+
+			return invokeTarget(method, args);
+		}
+	}
+}
@@ -17,13 +17,19 @@
 package net.sourceforge.wsup.hibernate.interceptors;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.jcip.annotations.ThreadSafe;
 import net.sourceforge.wsup.hibernate.CreatedDate;
 import net.sourceforge.wsup.hibernate.UpdatedDate;
 
+import org.hibernate.CallbackException;
 import org.hibernate.EmptyInterceptor;
+import org.hibernate.Transaction;
 import org.hibernate.type.Type;
 
 /**
@@ -38,6 +44,13 @@ import org.hibernate.type.Type;
  * not already have a value.
  * </p>
  * <p>
+ * The positions of the <code>created</code> and <code>updated</code>
+ * properties are looked up once per entity class by each interceptor and
+ * cached. All entities updated during a single flush receive the same
+ * <code>Date</code> instance as their <code>updated</code> value, so entities
+ * should not modify the <code>Date</code>s they are given.
+ * </p>
+ * <p>
  * This interceptor is thread-safe, so a single instance of it can be used
  * across multiple <code>Session</code>s.
  * </p>
@@ -50,6 +63,54 @@ public class DateAwareInterceptor extends EmptyInterceptor
 {
 	private static final long serialVersionUID = 8880860040080446369L;
 
+	private static final String CREATED = "created";
+	private static final String UPDATED = "updated";
+
+	/*
+	 * Property positions, by entity class. An interceptor may be shared by
+	 * several SessionFactories (the replicas of a database, for example), each
+	 * with its own propertyNames arrays, so an entry is reused for any array
+	 * with the same contents.
+	 */
+	private final ConcurrentMap<Class<?>, DateIndexes> indexes = new ConcurrentHashMap<Class<?>, DateIndexes>();
+
+	/*
+	 * Timestamp shared by all the entities in the flush that is in progress
+	 * on the current thread, if any. It is set afresh by every preFlush, and
+	 * cleared by postFlush or, if the flush failed, at the end of the
+	 * transaction.
+	 */
+	private static final ThreadLocal<Date> flushDate = new ThreadLocal<Date>();
+
+	/**
+	 * @see org.hibernate.EmptyInterceptor#preFlush(java.util.Iterator)
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void preFlush(Iterator entities) throws CallbackException
+	{
+		flushDate.set(new Date());
+	}
+
+	/**
+	 * @see org.hibernate.EmptyInterceptor#postFlush(java.util.Iterator)
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void postFlush(Iterator entities) throws CallbackException
+	{
+		flushDate.remove();
+	}
+
+	/**
+	 * @see org.hibernate.EmptyInterceptor#afterTransactionCompletion(org.hibernate.Transaction)
+	 */
+	@Override
+	public void afterTransactionCompletion(Transaction tx)
+	{
+		flushDate.remove();
+	}
+
 	/**
 	 * @see org.hibernate.EmptyInterceptor#onFlushDirty(java.lang.Object,
 	 *      java.io.Serializable, java.lang.Object[], java.lang.Object[],
@@ -62,8 +123,14 @@ public class DateAwareInterceptor extends EmptyInterceptor
 	{
 		if (entity instanceof UpdatedDate)
 		{
-			return setDate("updated", new Date(), currentState, propertyNames,
-					true);
+			Date now = flushDate.get();
+			if (now == null)
+			{
+				now = new Date();
+			}
+
+			int index = getIndexes(entity, propertyNames).updated;
+			return setDate(index, now, currentState, true);
 		}
 
 		return false;
@@ -78,44 +145,98 @@ public class DateAwareInterceptor extends EmptyInterceptor
 	public boolean onSave(Object entity, Serializable id, Object[] state,
 			String[] propertyNames, Type[] types)
 	{
+		if (!(entity instanceof UpdatedDate)
+				&& !(entity instanceof CreatedDate))
+		{
+			return false;
+		}
+
 		boolean objectChanged = false;
 		Date now = new Date();
+		DateIndexes dateIndexes = getIndexes(entity, propertyNames);
 
 		if (entity instanceof UpdatedDate)
 		{
-			objectChanged |= setDate("updated", now, state, propertyNames, true);
+			objectChanged |= setDate(dateIndexes.updated, now, state, true);
 		}
 
 		if (entity instanceof CreatedDate)
 		{
-			objectChanged |= setDate("created", now, state, propertyNames,
-					false);
+			objectChanged |= setDate(dateIndexes.created, now, state, false);
 		}
 
 		return objectChanged;
 	}
 
-	private boolean setDate(String datePropertyName, Date date,
-			Object[] currentState, String[] propertyNames, boolean unconditional)
+	private boolean setDate(int index, Date date, Object[] currentState,
+			boolean unconditional)
 	{
-		for (int i = 0; i < propertyNames.length; i++)
+		if (index < 0)
 		{
-			if (propertyNames[i].equals(datePropertyName))
+			return false;
+		}
+
+		if (unconditional || currentState[index] == null)
+		{
+			currentState[index] = date;
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Return the positions of the date properties for an entity. Hibernate
+	 * passes the same <code>propertyNames</code> array for every entity of a
+	 * given class, so the cached positions are normally found by identity;
+	 * an equal array from another <code>SessionFactory</code> also matches.
+	 */
+	private DateIndexes getIndexes(Object entity, String[] propertyNames)
+	{
+		DateIndexes dateIndexes = indexes.get(entity.getClass());
+
+		if (dateIndexes == null
+			|| (dateIndexes.propertyNames != propertyNames
+				&& !Arrays.equals(dateIndexes.propertyNames, propertyNames)))
+		{
+			dateIndexes = new DateIndexes(propertyNames);
+			indexes.put(entity.getClass(), dateIndexes);
+		}
+
+		return dateIndexes;
+	}
+
+	/**
+	 * Positions of the <code>created</code> and <code>updated</code>
+	 * properties within a particular <code>propertyNames</code> array, or -1
+	 * if absent.
+	 */
+	private static final class DateIndexes implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final String[] propertyNames;
+		private final int created;
+		private final int updated;
+
+		private DateIndexes(String[] propertyNames)
+		{
+			this.propertyNames = propertyNames;
+			this.created = indexOf(propertyNames, CREATED);
+			this.updated = indexOf(propertyNames, UPDATED);
+		}
+
+		private static int indexOf(String[] propertyNames, String name)
+		{
+			for (int i = 0; i < propertyNames.length; i++)
 			{
-				if (unconditional)
-				{
-					currentState[i] = date;
-					return true;
-				}
-				if (currentState[i] == null)
+				if (propertyNames[i].equals(name))
 				{
-					currentState[i] = date;
-					return true;
+					return i;
 				}
-				return false;
 			}
-		}
 
-		return false;
+			return -1;
+		}
 	}
 }
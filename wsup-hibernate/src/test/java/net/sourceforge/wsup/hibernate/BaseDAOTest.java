@@ -21,6 +21,7 @@ import static org.junit.Assert.*;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import net.sourceforge.wsup.hibernate.impl.DataAccessContextImpl;
 import net.sourceforge.wsup.hibernate.impl.DatabaseContextImpl;
@@ -420,6 +421,194 @@ public class BaseDAOTest
         commit();
     }
 
+    /*
+     * Delete all leaves other entities in the session attached, so changes to
+     * them are still saved
+     */
+    @Test
+    public void testDeleteAllLeavesOtherEntitiesAttached()
+    {
+        createTestBean("1");
+        TestDateBean other = createTestDateBean("before");
+
+        newSession();
+
+        beginTransaction();
+
+        TestDateBean loaded = testDateBeanDAO.getById(daoContext, other.getId());
+        loaded.setContents("after");
+        testBeanDAO.deleteAll(daoContext);
+        assertTrue(daoContext.contains(loaded));
+
+        commit();
+
+        newSession();
+
+        beginTransaction();
+
+        assertEquals(0, testBeanDAO.getCount(daoContext));
+        assertEquals("after", testDateBeanDAO.getById(daoContext, other.getId()).getContents());
+
+        commit();
+    }
+
+    /*
+     * Bulk insert and update process more entities than the batch size
+     */
+    @Test
+    public void testInsertAllAndUpdateAll()
+    {
+        List<TestBean> beans = new ArrayList<TestBean>();
+        for (int i = 0; i < 12; i++)
+        {
+            beans.add(new TestBean("bean" + i));
+        }
+
+        beginTransaction();
+
+        testBeanDAO.insertAll(daoContext, beans);
+
+        commit();
+
+        for (TestBean bean : beans)
+        {
+            assertNotNull(bean.getId());
+            assertFalse(daoContext.contains(bean));
+            bean.setContents("updated");
+        }
+
+        beginTransaction();
+
+        testBeanDAO.updateAll(daoContext, beans);
+
+        commit();
+
+        newSession();
+
+        beginTransaction();
+
+        assertEquals(12, testBeanDAO.getCount(daoContext));
+        assertEquals(12, testBeanDAO.listByCriteria(daoContext,
+                                                    null,
+                                                    null,
+                                                    Restrictions.eq("contents", "updated")).size());
+
+        commit();
+    }
+
+    /*
+     * Delete by IDs deletes only the specified beans, ignoring missing IDs
+     */
+    @Test
+    public void testDeleteByIds()
+    {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 12; i++)
+        {
+            ids.add(createTestBean("bean" + i).getId());
+        }
+        Long keptId = ids.remove(0);
+        ids.add(new Long(-1));
+
+        beginTransaction();
+
+        assertEquals(11, testBeanDAO.deleteByIds(daoContext, ids));
+
+        commit();
+
+        beginTransaction();
+
+        List<TestBean> beans = testBeanDAO.listAll(daoContext, null);
+        assertEquals(1, beans.size());
+        assertEquals(keptId, beans.get(0).getId());
+
+        assertEquals(0, testBeanDAO.deleteByIds(daoContext, new ArrayList<Long>()));
+
+        commit();
+    }
+
+    /*
+     * Get by IDs returns the beans in request order, skipping missing IDs and
+     * reusing instances already in the session
+     */
+    @Test
+    public void testGetByIds()
+    {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 12; i++)
+        {
+            ids.add(createTestBean("bean" + i).getId());
+        }
+
+        TestBeanDAO smallFetchDAO = new TestBeanDAO()
+        {
+            @Override
+            protected int getIdFetchSize(DataAccessContext context)
+            {
+                return 5;
+            }
+        };
+
+        newSession();
+
+        TestBean inSession = testBeanDAO.getById(daoContext, ids.get(3));
+
+        List<Long> request = new ArrayList<Long>();
+        request.add(new Long(-1));
+        for (int i = ids.size() - 1; i >= 0; i--)
+        {
+            request.add(ids.get(i));
+        }
+        request.add(ids.get(0));
+        request.add(null);
+
+        List<TestBean> beans = smallFetchDAO.getByIds(daoContext, request);
+        assertEquals(12, beans.size());
+        for (int i = 0; i < 12; i++)
+        {
+            assertEquals("bean" + (11 - i), beans.get(i).getContents());
+        }
+        assertTrue(beans.contains(inSession));
+        assertTrue(inSession == beans.get(8));
+
+        Map<Long, TestBean> map = testBeanDAO.getMapByIds(daoContext, request);
+        assertEquals(12, map.size());
+        assertEquals(ids.get(11), map.keySet().iterator().next());
+        assertFalse(map.containsKey(new Long(-1)));
+        assertTrue(inSession == map.get(ids.get(3)));
+
+        assertTrue(testBeanDAO.getByIds(daoContext, new ArrayList<Long>()).isEmpty());
+    }
+
+    /*
+     * Delete by criteria deletes only the matching beans
+     */
+    @Test
+    public void testDeleteByCriteria()
+    {
+        for (int i = 0; i < 7; i++)
+        {
+            createTestDateBean("a", "other" + i);
+            createTestDateBean("b", "other" + i);
+        }
+
+        beginTransaction();
+
+        assertEquals(7, testDateBeanDAO.deleteByCriteria(daoContext, Restrictions.eq("contents", "a")));
+
+        commit();
+
+        beginTransaction();
+
+        assertEquals(7, testDateBeanDAO.getCount(daoContext));
+        assertEquals(0, testDateBeanDAO.listByCriteria(daoContext,
+                                                       null,
+                                                       null,
+                                                       Restrictions.eq("contents", "a")).size());
+
+        commit();
+    }
+
     @Test
     public void testListAll()
     {
@@ -458,6 +647,53 @@ public class BaseDAOTest
         assertEquals(id1, list.get(2).getId());
     }
 
+    /*
+     * Scrolling hands each entity to the processor in order, and evicts it
+     */
+    @Test
+    public void testScrollAll()
+    {
+        Long id1 = createTestBean("a").getId();
+        Long id2 = createTestBean("b").getId();
+        Long id3 = createTestBean("c").getId();
+
+        beginTransaction();
+
+        final List<TestBean> seen = new ArrayList<TestBean>();
+        EntityProcessor<TestBean> processor = new EntityProcessor<TestBean>()
+        {
+            public void process(TestBean entity)
+            {
+                assertTrue(daoContext.contains(entity));
+                seen.add(entity);
+            }
+        };
+
+        assertEquals(3, testBeanDAO.scrollAll(daoContext, Order.desc("contents"), 2, processor));
+
+        assertEquals(3, seen.size());
+        assertEquals(id3, seen.get(0).getId());
+        assertEquals(id2, seen.get(1).getId());
+        assertEquals(id1, seen.get(2).getId());
+        for (TestBean bean : seen)
+        {
+            assertFalse(daoContext.contains(bean));
+        }
+
+        seen.clear();
+
+        assertEquals(1, testBeanDAO.scrollByCriteria(daoContext,
+                                                     "scroll b",
+                                                     null,
+                                                     0,
+                                                     processor,
+                                                     Restrictions.eq("contents", "b")));
+        assertEquals(1, seen.size());
+        assertEquals(id2, seen.get(0).getId());
+
+        commit();
+    }
+
     /*
      * Test variants on getByCriteria
      */
@@ -606,6 +842,47 @@ public class BaseDAOTest
         commit();
     }
 
+    /*
+     * Keyset paging walks the table in key order, one page at a time
+     */
+    @Test
+    public void testListKeysetPage()
+    {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 5; i++)
+        {
+            ids.add(createTestBean("bean" + i).getId());
+        }
+
+        beginTransaction();
+
+        List<TestBean> page = testBeanDAO.listKeysetPage(daoContext, null, "id", true, null, 3);
+        assertEquals(3, page.size());
+        assertEquals(ids.get(0), page.get(0).getId());
+        assertEquals(ids.get(2), page.get(2).getId());
+
+        page = testBeanDAO.listKeysetPage(daoContext, "page 2", "id", true, ids.get(1), 3);
+        assertEquals(3, page.size());
+        assertEquals(ids.get(2), page.get(0).getId());
+        assertEquals(ids.get(4), page.get(2).getId());
+
+        page = testBeanDAO.listKeysetPage(daoContext, null, "id", true, ids.get(4), 3);
+        assertEquals(0, page.size());
+
+        page = testBeanDAO.listKeysetPage(daoContext,
+                                          null,
+                                          "id",
+                                          false,
+                                          ids.get(3),
+                                          2,
+                                          Restrictions.ne("contents", "bean1"));
+        assertEquals(2, page.size());
+        assertEquals(ids.get(2), page.get(0).getId());
+        assertEquals(ids.get(0), page.get(1).getId());
+
+        commit();
+    }
+
     @Test
     public void testNullSafeContents()
     {
@@ -677,4 +954,42 @@ public class BaseDAOTest
         commit();
     }
 
+    @Test
+    public void testSearchCriterion()
+    {
+        List<TestBean> beans = new ArrayList<TestBean>();
+        beans.add(createTestBean("Abe made %50 profit"));
+        beans.add(createTestBean("Bob had %55 gain"));
+        beans.add(createTestBean("Carl swam %40 better"));
+
+        beginTransaction();
+
+        assertEquals(1, search("abe MADE %50 profit").size());
+        assertEquals(0, search("abe").size());
+
+        List<TestBean> results = search("BOB*");
+        assertEquals(1, results.size());
+        assertEquals(beans.get(1).getContents(), results.get(0).getContents());
+
+        results = search("*%5*");
+        assertEquals(2, results.size());
+        assertEquals(beans.get(0).getContents(), results.get(0).getContents());
+        assertEquals(beans.get(1).getContents(), results.get(1).getContents());
+
+        results = search("c**%40*");
+        assertEquals(1, results.size());
+        assertEquals(beans.get(2).getContents(), results.get(0).getContents());
+
+        commit();
+    }
+
+    private List<TestBean> search(String value)
+    {
+        return testBeanDAO.listDistinctByCriteria(daoContext,
+                                                  "comment",
+                                                  Order.asc("contents"),
+                                                  LikeClauseHelper.createSearchCriterion("contents",
+                                                                                         value));
+    }
+
 }
@@ -0,0 +1,218 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sourceforge.wsup.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.sourceforge.wsup.hibernate.impl.DataAccessContextImpl;
+import net.sourceforge.wsup.hibernate.impl.DatabaseContextImpl;
+
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.HSQLDialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.Oracle10gDialect;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.dialect.SQLServerDialect;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.impl.MockLogger;
+
+/**
+ * Unit test for the <code>CountStrategy</code> implementations and their use by
+ * <code>BaseDAO</code>.
+ */
+public class CountStrategyTest
+{
+    private DatabaseContextImpl databaseContext;
+
+    private DataAccessContext   daoContext;
+
+    private TestBeanDAO         testBeanDAO;
+
+    private long                now;
+
+    @Before
+    public void setup() throws Exception
+    {
+        MockLogger.get("org.hibernate").setWarn();
+        MockLogger.get("com.mchange.v2.c3p0").setWarn();
+        MockLogger.get("com.mchange.v2.log").setWarn();
+
+        testBeanDAO = new TestBeanDAO();
+        TestDatabase database = TestDatabaseManager.openTestDatabaseIfRequired();
+        database.initializeTables();
+        databaseContext = (DatabaseContextImpl) database.createDatabaseContext();
+        daoContext = new DataAccessContextImpl(databaseContext);
+        now = 1000L;
+    }
+
+    @After
+    public void cleanup() throws Exception
+    {
+        databaseContext.destroySession();
+
+        MockLogger.clear();
+    }
+
+    private void insert(String contents)
+    {
+        databaseContext.beginTransaction();
+        testBeanDAO.insert(daoContext, new TestBean(contents));
+        databaseContext.commitTransaction();
+    }
+
+    /*
+     * Sneak a row in behind the DAO's back, so that the strategy doesn't find out.
+     */
+    private void insertBehindDAO(String contents)
+    {
+        databaseContext.beginTransaction();
+        daoContext.save(new TestBean(contents));
+        databaseContext.commitTransaction();
+    }
+
+    @Test
+    public void testDefaultIsExact()
+    {
+        assertSame(ExactCountStrategy.INSTANCE, testBeanDAO.getCountStrategy());
+
+        insert("a");
+        insertBehindDAO("b");
+
+        assertEquals(2, testBeanDAO.getCount(daoContext));
+        assertEquals(2, testBeanDAO.getExactCount(daoContext));
+    }
+
+    @Test
+    public void testCachedCount()
+    {
+        CachedCountStrategy strategy = new CachedCountStrategy(5000L)
+        {
+            @Override
+            protected long getCurrentTime()
+            {
+                return now;
+            }
+        };
+        testBeanDAO.setCountStrategy(strategy);
+
+        insert("a");
+        assertEquals(1, testBeanDAO.getCount(daoContext));
+
+        // remembered, so a change behind the DAO's back isn't seen...
+        insertBehindDAO("b");
+        assertEquals(1, testBeanDAO.getCount(daoContext));
+
+        // ...until the count expires
+        now += 5000L;
+        assertEquals(2, testBeanDAO.getCount(daoContext));
+
+        // changes through the DAO are seen immediately
+        insert("c");
+        assertEquals(3, testBeanDAO.getCount(daoContext));
+
+        databaseContext.beginTransaction();
+        testBeanDAO.clearTable(daoContext);
+        databaseContext.commitTransaction();
+        assertEquals(0, testBeanDAO.getCount(daoContext));
+
+        insertBehindDAO("d");
+        assertEquals(0, testBeanDAO.getCount(daoContext));
+        strategy.invalidateAll();
+        assertEquals(1, testBeanDAO.getCount(daoContext));
+
+        // an explicit strategy bypasses the cache
+        insertBehindDAO("e");
+        assertEquals(1, testBeanDAO.getCount(daoContext));
+        assertEquals(2, testBeanDAO.getCount(daoContext, ExactCountStrategy.INSTANCE));
+    }
+
+    @Test
+    public void testCachedCountNotRememberedInWritingTransaction()
+    {
+        CachedCountStrategy strategy = new CachedCountStrategy(5000L)
+        {
+            @Override
+            protected long getCurrentTime()
+            {
+                return now;
+            }
+        };
+        testBeanDAO.setCountStrategy(strategy);
+
+        insert("a");
+
+        databaseContext.beginTransaction();
+        assertFalse(testBeanDAO.isChangedInTransaction(daoContext));
+        testBeanDAO.insert(daoContext, new TestBean("b"));
+        assertTrue(testBeanDAO.isChangedInTransaction(daoContext));
+        assertEquals(2, testBeanDAO.getCount(daoContext));
+        databaseContext.rollbackTransaction();
+
+        // the uncommitted count was not remembered
+        assertFalse(testBeanDAO.isChangedInTransaction(daoContext));
+        assertEquals(1, testBeanDAO.getCount(daoContext));
+
+        // a count remembered while a transaction is changing the table (here, through another
+        // DAO on the same table) is discarded when that transaction completes
+        databaseContext.beginTransaction();
+        testBeanDAO.insert(daoContext, new TestBean("c"));
+        assertEquals(2, strategy.getCount(daoContext, new TestBeanDAO()));
+        databaseContext.rollbackTransaction();
+        assertEquals(1, testBeanDAO.getCount(daoContext));
+    }
+
+    @Test
+    public void testEstimatedCountFallsBack()
+    {
+        insert("a");
+        insert("b");
+
+        // HSQLDB has no estimates, so we get the exact count
+        assertEquals(2, testBeanDAO.getCount(daoContext, new EstimatedCountStrategy()));
+    }
+
+    @Test
+    public void testEstimateSQL()
+    {
+        TestEstimatedCountStrategy strategy = new TestEstimatedCountStrategy();
+
+        assertEquals(null, strategy.getEstimateSQL(new HSQLDialect()));
+        assertSQLContains("pg_class", strategy, new PostgreSQLDialect());
+        assertSQLContains("information_schema.tables", strategy, new MySQLDialect());
+        assertSQLContains("user_tables", strategy, new Oracle10gDialect());
+        assertSQLContains("sys.partitions", strategy, new SQLServerDialect());
+    }
+
+    private static void assertSQLContains(String expected,
+                                          TestEstimatedCountStrategy strategy,
+                                          Dialect dialect)
+    {
+        String sql = strategy.getEstimateSQL(dialect);
+        assertEquals(sql, true, sql.contains(expected));
+    }
+
+    private static class TestEstimatedCountStrategy extends EstimatedCountStrategy
+    {
+        @Override
+        public String getEstimateSQL(Dialect dialect)
+        {
+            return super.getEstimateSQL(dialect);
+        }
+    }
+}
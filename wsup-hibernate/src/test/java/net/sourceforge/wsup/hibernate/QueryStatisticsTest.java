@@ -0,0 +1,143 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sourceforge.wsup.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import net.sourceforge.wsup.core.stat.BasicStatisticSeries;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.impl.MockLogger;
+import org.slf4j.impl.MockLogger.LogEntry;
+
+/**
+ * Unit test for <code>QueryStatistics</code>.
+ */
+public class QueryStatisticsTest
+{
+    @After
+    public void cleanup()
+    {
+        MockLogger.clear();
+    }
+
+    private static long count(QueryStatistics statistics, String key)
+    {
+        BasicStatisticSeries series = statistics.getSeries(key);
+        assertNotNull(key, series);
+        BasicStatisticSeries.Result[] results = series.getResults();
+        return results[results.length - 1].getValues().getCount();
+    }
+
+    @Test
+    public void testRecord()
+    {
+        QueryStatistics statistics = new QueryStatistics();
+
+        statistics.record("a", 2000000L, 0);
+        statistics.record("a", 4000000L, 0);
+        statistics.record("b", 1000000L, 0);
+
+        assertEquals(2, count(statistics, "a"));
+        assertEquals(1, count(statistics, "b"));
+        assertNull(statistics.getSeries("c"));
+        assertEquals("[a, b]", statistics.getAllSeries().keySet().toString());
+
+        BasicStatisticSeries.Result[] results = statistics.getSeries("a").getResults();
+        assertEquals(3.0, results[results.length - 1].getValues().getMean(), 0.0001);
+
+        statistics.clear();
+        assertTrue(statistics.getAllSeries().isEmpty());
+    }
+
+    @Test
+    public void testMaxKeys()
+    {
+        QueryStatistics statistics = new QueryStatistics(1, 2, 2);
+
+        statistics.record("a", 1L, 0);
+        statistics.record("b", 1L, 0);
+        statistics.record("c", 1L, 0);
+        statistics.record("d", 1L, 0);
+        statistics.record("a", 1L, 0);
+
+        assertEquals(2, count(statistics, "a"));
+        assertEquals(2, count(statistics, QueryStatistics.OTHER_KEY));
+        assertNull(statistics.getSeries("c"));
+    }
+
+    @Test
+    public void testSlowQueryLogging()
+    {
+        MockLogger.get(QueryStatistics.class).setPrinting(false);
+
+        QueryStatistics statistics = new QueryStatistics();
+        assertEquals(0, statistics.getSlowQueryThreshold());
+
+        statistics.record("fast", 50000000L, 1);
+        assertTrue(MockLogger.getFilteredLogEntries(QueryStatistics.class).isEmpty());
+
+        statistics.setSlowQueryThreshold(10);
+        statistics.record("fast", 5000000L, 1);
+        statistics.record("slow", 50000000L, 3);
+
+        List<LogEntry> entries = MockLogger.getFilteredLogEntries(QueryStatistics.class);
+        assertEquals(1, entries.size());
+        assertEquals(MockLogger.Level.WARN, entries.get(0).getLevel());
+        assertEquals("Slow query (50.0 ms, 3 binds): slow", entries.get(0).getMessage());
+
+        statistics.setSlowQueryThreshold(-1);
+        assertEquals(0, statistics.getSlowQueryThreshold());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadPeriod()
+    {
+        new QueryStatistics(0, 2, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadLength()
+    {
+        new QueryStatistics(1, 1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadMaxKeys()
+    {
+        new QueryStatistics(1, 2, 0);
+    }
+
+    @Test
+    public void testGetQueryShape()
+    {
+        assertEquals("from TestBean where id = ? and contents = ?",
+                     QueryStatistics.getQueryShape("  from TestBean\n\twhere id =  42 and contents = 'it''s'  "));
+        assertEquals("select x1 from t_2 where a = :p1 and b = ?1 and c > ?",
+                     QueryStatistics.getQueryShape("select x1 from t_2 where a = :p1 and b = ?1 and c > 3.5"));
+
+        StringBuilder longQuery = new StringBuilder("select");
+        for (int i = 0; i < 100; i++)
+        {
+            longQuery.append(" column");
+        }
+        assertEquals(250, QueryStatistics.getQueryShape(longQuery.toString()).length());
+    }
+}
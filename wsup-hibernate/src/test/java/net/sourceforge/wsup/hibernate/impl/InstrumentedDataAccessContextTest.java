@@ -0,0 +1,211 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sourceforge.wsup.hibernate.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import net.sourceforge.wsup.core.stat.BasicStatisticSeries;
+import net.sourceforge.wsup.hibernate.DataAccessContext;
+import net.sourceforge.wsup.hibernate.QueryStatistics;
+import net.sourceforge.wsup.hibernate.TestBean;
+import net.sourceforge.wsup.hibernate.TestBeanDAO;
+import net.sourceforge.wsup.hibernate.TestDatabase;
+import net.sourceforge.wsup.hibernate.TestDatabaseManager;
+
+import org.hibernate.Criteria;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.impl.CriteriaImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.impl.MockLogger;
+
+/**
+ * Unit test for <code>InstrumentedDataAccessContext</code>.
+ */
+public class InstrumentedDataAccessContextTest
+{
+    private TestDatabase        database;
+
+    private DatabaseContextImpl databaseContext;
+
+    private DataAccessContext   daoContext;
+
+    private QueryStatistics     statistics;
+
+    private TestBeanDAO         testBeanDAO;
+
+    @Before
+    public void setup() throws Exception
+    {
+        MockLogger.get("org.hibernate").setWarn();
+        MockLogger.get("com.mchange.v2.c3p0").setWarn();
+        MockLogger.get("com.mchange.v2.log").setWarn();
+
+        testBeanDAO = new TestBeanDAO();
+        database = TestDatabaseManager.openTestDatabaseIfRequired();
+        database.initializeTables();
+
+        statistics = new QueryStatistics();
+        database.setQueryStatistics(statistics);
+        databaseContext = (DatabaseContextImpl) database.createDatabaseContext();
+        daoContext = databaseContext.createDataAccessContext();
+    }
+
+    @After
+    public void cleanup() throws Exception
+    {
+        database.setQueryStatistics(null);
+        databaseContext.destroySession();
+
+        MockLogger.clear();
+    }
+
+    private long count(String key)
+    {
+        BasicStatisticSeries series = statistics.getSeries(key);
+        assertNotNull(key + " in " + statistics.getAllSeries().keySet(), series);
+        BasicStatisticSeries.Result[] results = series.getResults();
+        return results[results.length - 1].getValues().getCount();
+    }
+
+    @Test
+    public void testCreatedByDatabaseContext()
+    {
+        assertFalse(daoContext instanceof DataAccessContextImpl);
+        assertTrue(InstrumentedDataAccessContext.unwrap(daoContext) instanceof DataAccessContextImpl);
+        assertEquals(daoContext, daoContext);
+        assertSame("x", InstrumentedDataAccessContext.unwrap("x"));
+
+        database.setQueryStatistics(null);
+        assertTrue(databaseContext.createDataAccessContext() instanceof DataAccessContextImpl);
+    }
+
+    @Test
+    public void testSessionOperations()
+    {
+        databaseContext.beginTransaction();
+        TestBean bean = testBeanDAO.insert(daoContext, new TestBean("a"));
+        daoContext.flush();
+        databaseContext.commitTransaction();
+
+        daoContext.evict(bean);
+        assertEquals("a", testBeanDAO.getById(daoContext, bean.getId()).getContents());
+
+        assertEquals(1, count("Session.save"));
+        assertEquals(1, count("Session.flush"));
+        assertEquals(1, count("Session.get"));
+    }
+
+    @Test
+    public void testQueries()
+    {
+        databaseContext.beginTransaction();
+        testBeanDAO.insert(daoContext, new TestBean("a"));
+        testBeanDAO.insert(daoContext, new TestBean("b"));
+        databaseContext.commitTransaction();
+
+        // commented by BaseDAO
+        assertEquals(2, testBeanDAO.getCount(daoContext));
+        assertEquals(2, testBeanDAO.getCount(daoContext));
+        assertEquals(2, count("TestBeanDAO.getCount()"));
+
+        // keyed by shape, with chaining kept on the proxy
+        Query query = daoContext.createQuery("from TestBean where contents = 'a'").setMaxResults(5);
+        assertEquals(1, query.list().size());
+        assertEquals(1, count("from TestBean where contents = ?"));
+
+        SQLQuery sqlQuery = daoContext.createSQLQuery("select count(*) from testTable where id > ?");
+        sqlQuery.setLong(0, 0L);
+        assertEquals(2, ((Number) sqlQuery.uniqueResult()).intValue());
+        assertEquals(1, count("select count(*) from testTable where id > ?"));
+
+        Criteria criteria = daoContext.createCriteria(TestBean.class)
+            .add(Restrictions.eq("contents", "b"));
+        List<?> list = criteria.list();
+        assertEquals(1, list.size());
+        assertEquals(1, count("criteria:" + TestBean.class.getName()));
+
+        assertEquals(criteria, criteria);
+    }
+
+    @Test
+    public void testSubCriteriaAndScrolling()
+    {
+        databaseContext.beginTransaction();
+        testBeanDAO.insert(daoContext, new TestBean("a"));
+        testBeanDAO.insert(daoContext, new TestBean("b"));
+        databaseContext.commitTransaction();
+
+        // the test entities have no associations, so the sub-criteria fails, but it is still
+        // recorded against the Criteria it came from
+        Criteria criteria = daoContext.createCriteria(TestBean.class);
+        criteria.setComment("outer");
+        Criteria subCriteria = criteria.createCriteria("noSuchAssociation");
+        assertTrue(subCriteria.add(Restrictions.isNull("id")) == subCriteria);
+        try
+        {
+            subCriteria.list();
+            fail("Didn't throw");
+        }
+        catch (HibernateException e)
+        {
+        }
+        assertEquals(1, count("outer"));
+        assertTrue(InstrumentedDataAccessContext.unwrap(criteria) instanceof CriteriaImpl);
+
+        Query query = daoContext.createQuery("from TestBean order by id");
+        ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+        int rows = 0;
+        while (results.next())
+        {
+            rows++;
+        }
+        results.close();
+        results.close();
+        assertEquals(2, rows);
+        assertEquals(1, count("from TestBean order by id"));
+        assertEquals(1, count("from TestBean order by id (scroll)"));
+    }
+
+    @Test
+    public void testSlowQueryLogging()
+    {
+        MockLogger.get(QueryStatistics.class).setPrinting(false);
+        statistics.setSlowQueryThreshold(Long.MAX_VALUE);
+
+        Query query = daoContext.createQuery("from TestBean where id = :id and contents = :contents");
+        query.setComment("slow");
+        query.setLong("id", 1L).setString("contents", "x").setMaxResults(1);
+        query.list();
+        assertEquals(1, count("slow"));
+        assertTrue(MockLogger.getFilteredLogEntries(QueryStatistics.class).isEmpty());
+
+        statistics.setSlowQueryThreshold(1);
+        statistics.record("slow", 5000000L, 2);
+        assertEquals("Slow query (5.0 ms, 2 binds): slow", MockLogger.last().getMessage());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+
+package net.sourceforge.wsup.hibernate.interceptors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.type.Type;
+import org.junit.Test;
+
+public class MultiplexInterceptorTest
+{
+	public MultiplexInterceptorTest()
+	{
+	}
+
+	@Test
+	public void testDispatchesOnlyToOverridingInterceptors()
+	{
+		SavingInterceptor saving = new SavingInterceptor();
+		FlushingInterceptor flushing = new FlushingInterceptor();
+		MultiplexInterceptor interceptor = new MultiplexInterceptor(saving, flushing);
+
+		assertTrue(interceptor.onSave(null, null, null, null, null));
+		assertEquals(1, saving.saves);
+
+		List<Object> entities = Arrays.<Object> asList("a", "b");
+		Iterator<Object> iterator = entities.iterator();
+		interceptor.preFlush(iterator);
+		assertSame(iterator, flushing.iterator);
+
+		assertFalse(interceptor.onFlushDirty(null, null, null, null, null, null));
+		assertEquals("sql", interceptor.onPrepareStatement("sql"));
+	}
+
+	@Test
+	public void testDispatchesToAllOverridingInterceptors()
+	{
+		FlushingInterceptor first = new FlushingInterceptor();
+		FlushingInterceptor second = new FlushingInterceptor();
+		SavingInterceptor saving = new SavingInterceptor();
+		MultiplexInterceptor interceptor = new MultiplexInterceptor(first,
+																	new MultiplexInterceptor(saving),
+																	second);
+
+		interceptor.preFlush(Arrays.<Object> asList("a", "b").iterator());
+		assertEquals(2, first.entities.size());
+		assertEquals(2, second.entities.size());
+
+		assertTrue(interceptor.onSave(null, null, null, null, null));
+		assertEquals(1, saving.saves);
+	}
+
+	@Test
+	public void testFlushWithoutOverridingInterceptorsLeavesEntities()
+	{
+		MultiplexInterceptor interceptor = new MultiplexInterceptor(new SavingInterceptor());
+
+		Iterator<Object> iterator = Arrays.<Object> asList("a").iterator();
+		interceptor.preFlush(iterator);
+		interceptor.postFlush(iterator);
+		assertTrue(iterator.hasNext());
+	}
+
+	private static class SavingInterceptor extends EmptyInterceptor
+	{
+		private static final long serialVersionUID = 1L;
+
+		private int               saves;
+
+		@Override
+		public boolean onSave(Object entity,
+							  Serializable id,
+							  Object[] state,
+							  String[] propertyNames,
+							  Type[] types)
+		{
+			saves++;
+			return true;
+		}
+	}
+
+	private static class FlushingInterceptor extends EmptyInterceptor
+	{
+		private static final long serialVersionUID = 1L;
+
+		private Iterator<?>       iterator;
+		private List<Object>      entities         = new ArrayList<Object>();
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public void preFlush(Iterator entities)
+		{
+			this.iterator = entities;
+			while (entities.hasNext())
+			{
+				this.entities.add(entities.next());
+			}
+		}
+	}
+}
@@ -16,12 +16,22 @@
 
 package net.sourceforge.wsup.hibernate4.command;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.sourceforge.wsup.hibernate4.database.BaseDatabase;
 import net.sourceforge.wsup.hibernate4.database.DataAccessContext;
 import net.sourceforge.wsup.hibernate4.database.DatabaseContext;
+import net.sourceforge.wsup.hibernate4.database.LifecycleStatistics;
 
 import org.hibernate.HibernateException;
 import org.hibernate.exception.JDBCConnectionException;
@@ -29,18 +39,48 @@ import org.hibernate.exception.LockAcquisitionException;
 
 public class DatabaseCommandRunnerImpl implements DatabaseCommandRunner
 {
-    private final BaseDatabase database;
-    private final int          maxAttempts;
+    private final BaseDatabase    database;
+    private final int             maxAttempts;
+    private final ExecutorService executor;
 
     public DatabaseCommandRunnerImpl(BaseDatabase database, int maxAttempts)
+    {
+        this(database, maxAttempts, null);
+    }
+
+    /**
+     * Constructor for a runner that can execute independent, read-only
+     * <code>DatabaseCommand</code>s concurrently.
+     * 
+     * @param database
+     *            Database against which commands are executed.
+     * @param maxAttempts
+     *            Maximum number of attempts for each transaction.
+     * @param executor
+     *            <code>ExecutorService</code> on which independent commands are run. This bounds
+     *            the number of concurrent database sessions used by a single execution. The
+     *            caller remains responsible for shutting it down. May be <code>null</code>, in
+     *            which case all commands are executed sequentially.
+     * @see Independent
+     */
+    public DatabaseCommandRunnerImpl(BaseDatabase database,
+                                     int maxAttempts,
+                                     ExecutorService executor)
     {
         this.database = database;
         this.maxAttempts = maxAttempts;
+        this.executor = executor;
     }
 
     @Override
     public void execute(DatabaseCommand... commands) throws HibernateException
     {
+        if (isParallel(commands))
+        {
+            executeParallel(commands);
+            return;
+        }
+
         DatabaseContext databaseContext = database.createDatabaseContext();
 
         try
@@ -55,11 +95,253 @@ public class DatabaseCommandRunnerImpl implements DatabaseCommandRunner
 
     public void execute(DatabaseContext databaseContext, DatabaseCommand... commands)
         throws HibernateException
+    {
+        boolean wasReadOnly = databaseContext.isReadOnly();
+
+        databaseContext.setReadOnly(isReadOnly(commands));
+
+        try
+        {
+            doExecute(databaseContext, commands);
+        }
+        finally
+        {
+            databaseContext.setReadOnly(wasReadOnly);
+        }
+    }
+
+    private void doExecute(DatabaseContext databaseContext, DatabaseCommand... commands)
+        throws HibernateException
+    {
+        DatabaseCommandContext commandContext = new DatabaseCommandContext(commands);
+
+        handlePreExecute(commandContext);
+
+        boolean success;
+
+        try
+        {
+            success = executeTransaction(databaseContext, commandContext);
+        }
+        catch (RuntimeException e)
+        {
+            handlePostExecute(commandContext, false);
+            throw e;
+        }
+
+        handlePostExecute(commandContext, success);
+    }
+
+    /**
+     * Execute independent, read-only commands concurrently, each in its own
+     * <code>DatabaseContext</code>, waiting for all of them to finish.
+     * 
+     * @see Independent
+     */
+    private void executeParallel(DatabaseCommand... commands) throws HibernateException
     {
         DatabaseCommandContext commandContext = new DatabaseCommandContext(commands);
 
         handlePreExecute(commandContext);
 
+        CountDownLatch finished = new CountDownLatch(commands.length);
+        List<IndependentTask> tasks = new ArrayList<IndependentTask>(commands.length);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(commands.length);
+        for (DatabaseCommand command : commands)
+        {
+            tasks.add(new IndependentTask(command, finished));
+        }
+
+        try
+        {
+            for (IndependentTask task : tasks)
+            {
+                futures.add(executor.submit(task));
+            }
+        }
+        catch (RejectedExecutionException e)
+        {
+            // withdrawing every task also releases the latch for those never submitted
+            cancel(futures, tasks, finished);
+            handlePostExecute(commandContext, false);
+            throw e;
+        }
+
+        boolean success = true;
+        RuntimeException failure = null;
+
+        for (Future<Boolean> future : futures)
+        {
+            try
+            {
+                success &= future.get().booleanValue();
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof Error)
+                {
+                    cancel(futures, tasks, finished);
+                    handlePostExecute(commandContext, false);
+                    throw (Error) e.getCause();
+                }
+
+                if (failure == null)
+                {
+                    failure = toRuntimeException(e.getCause());
+                }
+            }
+            catch (InterruptedException e)
+            {
+                cancel(futures, tasks, finished);
+                Thread.currentThread().interrupt();
+                if (failure == null)
+                {
+                    failure = new HibernateException("Interrupted during parallel execution", e);
+                }
+                break;
+            }
+        }
+
+        if (failure != null)
+        {
+            handlePostExecute(commandContext, false);
+            throw failure;
+        }
+
+        handlePostExecute(commandContext, success);
+    }
+
+    /**
+     * Execute one independent command in its own read-only
+     * <code>DatabaseContext</code>.
+     */
+    private boolean executeIndependent(DatabaseCommand command)
+    {
+        DatabaseContext databaseContext = database.createDatabaseContext();
+        databaseContext.setReadOnly(true);
+
+        try
+        {
+            return executeTransaction(databaseContext, new DatabaseCommandContext(command));
+        }
+        finally
+        {
+            databaseContext.closeSession();
+        }
+    }
+
+    /**
+     * Cancel outstanding independent commands, and wait until none of them is still running, so
+     * that the <code>PostExecute</code> phase never overlaps a command that is using its
+     * <code>Session</code>. Commands that have not yet started are withdrawn; those that have are
+     * interrupted, and are waited for even if the calling thread is itself interrupted.
+     */
+    private static void cancel(List<Future<Boolean>> futures,
+                               List<IndependentTask> tasks,
+                               CountDownLatch finished)
+    {
+        for (IndependentTask task : tasks)
+        {
+            task.withdraw();
+        }
+
+        for (Future<Boolean> future : futures)
+        {
+            future.cancel(true);
+        }
+
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                finished.await();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Task executing one independent command. It counts down a shared latch when the command
+     * finishes, or when it is withdrawn before it starts.
+     */
+    private final class IndependentTask implements Callable<Boolean>
+    {
+        private final DatabaseCommand command;
+        private final CountDownLatch  finished;
+        private final AtomicBoolean   claimed = new AtomicBoolean();
+
+        public IndependentTask(DatabaseCommand command, CountDownLatch finished)
+        {
+            this.command = command;
+            this.finished = finished;
+        }
+
+        @Override
+        public Boolean call()
+        {
+            if (!claimed.compareAndSet(false, true))
+            {
+                return Boolean.FALSE;
+            }
+
+            try
+            {
+                return executeIndependent(command);
+            }
+            finally
+            {
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Prevent the command from starting, if it has not already done so.
+         */
+        public void withdraw()
+        {
+            if (claimed.compareAndSet(false, true))
+            {
+                finished.countDown();
+            }
+        }
+    }
+
+    private static RuntimeException toRuntimeException(Throwable t)
+    {
+        if (t instanceof RuntimeException)
+        {
+            return (RuntimeException) t;
+        }
+
+        return new HibernateException(t);
+    }
+
+    /**
+     * Run the transaction for a set of commands, retrying as required. If
+     * execution fails, the <code>PostTransaction</code> phase has been
+     * performed and the exception is thrown; the <code>PostExecute</code>
+     * phase is left to the caller.
+     * 
+     * @return <code>true</code> if the transaction was committed.
+     */
+    private boolean executeTransaction(DatabaseContext databaseContext,
+                                       DatabaseCommandContext commandContext)
+    {
+        DatabaseCommand[] commands = commandContext.getCommands()
+            .toArray(new DatabaseCommand[commandContext.getCommands().size()]);
+
+        LifecycleStatistics statistics = database.getLifecycleStatistics();
+
         boolean success = false;
 
         for (int attempt = 0; attempt < maxAttempts; attempt++)
@@ -68,6 +350,11 @@ public class DatabaseCommandRunnerImpl implements DatabaseCommandRunner
             {
                 commandContext.setAttemptNumber(attempt);
 
+                if (statistics != null)
+                {
+                    statistics.attemptStarted(attempt);
+                }
+
                 databaseContext.beginSession(attempt > 0);
 
                 handlePreTransaction(commandContext);
@@ -86,12 +373,16 @@ public class DatabaseCommandRunnerImpl implements DatabaseCommandRunner
             }
             catch (RuntimeException e)
             {
-                databaseContext.destroySession();
+                databaseContext.destroySession(e);
 
                 if (!shouldRetry(e, attempt, commands))
                 {
+                    if (statistics != null)
+                    {
+                        statistics.executionFinished(attempt + 1);
+                    }
+
                     handlePostTransaction(commandContext, false);
-                    handlePostExecute(commandContext, false);
                     throw e;
                 }
 
@@ -99,7 +390,12 @@ public class DatabaseCommandRunnerImpl implements DatabaseCommandRunner
             }
         }
 
-        handlePostExecute(commandContext, success);
+        if (statistics != null)
+        {
+            statistics.executionFinished(commandContext.getAttemptNumber() + 1);
+        }
+
+        return success;
     }
 
     /**
@@ -145,6 +441,64 @@ public class DatabaseCommandRunnerImpl implements DatabaseCommandRunner
         return false;
     }
 
+    /**
+     * Overrideable method that determines whether a set of <code>DatabaseCommand</code>s can be
+     * executed in read-only mode. The default implementation returns <code>true</code> only if
+     * every command implements {@link ReadOnly}.
+     * 
+     * @param commands
+     *            The commands to be executed.
+     * @return <code>true</code> if the commands should be executed read-only, <code>false</code>
+     *         if not.
+     * @see DatabaseContext#setReadOnly(boolean)
+     */
+    protected boolean isReadOnly(DatabaseCommand[] commands)
+    {
+        if (commands.length == 0)
+        {
+            return false;
+        }
+
+        for (DatabaseCommand command : commands)
+        {
+            if (!(command instanceof ReadOnly))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Overrideable method that determines whether a set of <code>DatabaseCommand</code>s is
+     * executed concurrently. The default implementation returns <code>true</code> if this runner
+     * was given an <code>ExecutorService</code>, there is more than one command, and every command
+     * implements both {@link Independent} and {@link ReadOnly}.
+     * 
+     * @param commands
+     *            The commands to be executed.
+     * @return <code>true</code> if the commands should be executed concurrently,
+     *         <code>false</code> if not.
+     */
+    protected boolean isParallel(DatabaseCommand[] commands)
+    {
+        if (executor == null || commands.length < 2)
+        {
+            return false;
+        }
+
+        for (DatabaseCommand command : commands)
+        {
+            if (!(command instanceof Independent))
+            {
+                return false;
+            }
+        }
+
+        return isReadOnly(commands);
+    }
+
     /**
      * Perform the <code>PreExecute</code> phase on any <code>Command</code>s
      * that support it.
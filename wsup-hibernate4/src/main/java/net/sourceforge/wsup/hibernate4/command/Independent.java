@@ -0,0 +1,40 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+
+package net.sourceforge.wsup.hibernate4.command;
+
+/**
+ * Marker interface that may be implemented by <code>DatabaseCommand</code>s that neither depend
+ * on, nor affect, any other <code>DatabaseCommand</code> executed with them.
+ * <p>
+ * If every <code>DatabaseCommand</code> passed to a single execution implements both this
+ * interface and {@link ReadOnly}, and the {@link DatabaseCommandRunnerImpl} has been given an
+ * <code>ExecutorService</code>, the commands are executed concurrently, each in its own
+ * <code>DatabaseContext</code> and transaction. In that case:
+ * </p>
+ * <ul>
+ * <li>The <code>PreExecute</code> and <code>PostExecute</code> phases are performed once for the
+ * whole execution, before any command starts and after every command has finished.</li>
+ * <li>The <code>PreTransaction</code> and <code>PostTransaction</code> phases are performed for
+ * each command's own transaction, with a <code>DatabaseCommandContext</code> containing only
+ * that command.</li>
+ * <li>Each command is retried independently.</li>
+ * </ul>
+ * 
+ * @see DatabaseCommand
+ * @see DatabaseCommandRunnerImpl
+ */
+public interface Independent
+{
+}
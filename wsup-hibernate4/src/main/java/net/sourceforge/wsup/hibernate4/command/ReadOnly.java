@@ -0,0 +1,42 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+
+package net.sourceforge.wsup.hibernate4.command;
+
+/**
+ * Marker interface that may be implemented by <code>DatabaseCommand</code>s that only read from
+ * the database, such as reporting commands.
+ * <p>
+ * If every <code>DatabaseCommand</code> passed to a single execution implements this interface,
+ * {@link DatabaseCommandRunnerImpl} runs them in read-only mode: the Hibernate
+ * <code>Session</code> loads entities read-only (so no snapshots are kept for dirty checking),
+ * and is never flushed, and the session may be opened on a read replica.
+ * </p>
+ * <p>
+ * Such a command must not write. Changes to the entities it loads are not saved, and neither are
+ * most calls to save or update an entity, since they are never flushed. Some writes are executed
+ * immediately, however, such as HQL bulk updates and inserts of entities whose identifiers are
+ * generated by the database, and these are committed (or, on a replica, fail).
+ * </p>
+ * <p>
+ * If any of the <code>DatabaseCommand</code>s does not implement this interface, execution
+ * proceeds in the normal read-write mode.
+ * </p>
+ * 
+ * @see DatabaseCommand
+ * @see net.sourceforge.wsup.hibernate4.database.DatabaseContext#setReadOnly(boolean)
+ */
+public interface ReadOnly
+{
+}
@@ -16,15 +16,40 @@
 
 package net.sourceforge.wsup.hibernate4.database;
 
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
 import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import net.sourceforge.wsup.core.Assert;
+import net.sourceforge.wsup.hibernate4.search.FullTextIndex;
+
+import org.hibernate.CacheMode;
 import org.hibernate.Criteria;
 import org.hibernate.LockOptions;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.Dialect;
 
 /**
  * This is a base class for DAOs (Data Access Objects) for Hibernate-based
@@ -55,8 +80,39 @@ import org.hibernate.criterion.Restrictions;
  */
 public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
 {
+    /**
+     * Batch size used by the bulk operations if <code>hibernate.jdbc.batch_size</code> has not
+     * been configured.
+     * 
+     * @see #getBatchSize(DataAccessContext)
+     */
+    public static final int        DEFAULT_BATCH_SIZE = 50;
+
+    /**
+     * Default maximum number of IDs in the <code>IN</code> clause of a single query made by
+     * {@link #getByIds(DataAccessContext, Collection)}.
+     * 
+     * @see #getIdFetchSize(DataAccessContext)
+     */
+    public static final int        DEFAULT_ID_FETCH_SIZE = 500;
+
+    /*
+     * Number of changed IDs remembered in one transaction, for the EntityCache or the
+     * FullTextIndex, beyond which the whole cache is invalidated, or the whole index rebuilt,
+     * instead.
+     */
+    private static final int       MAX_TRACKED_IDS = 1000;
+
     private Class<PERSISTENTCLASS> persistantClass;
 
+    private volatile CountStrategy countStrategy = ExactCountStrategy.INSTANCE;
+
+    private volatile EntityCache   entityCache;
+
+    private volatile FullTextIndex fullTextIndex;
+
+    private volatile Method[]      fullTextReaders = new Method[0];
+
     /**
      * Constructor.
      * 
@@ -140,7 +196,58 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
     @SuppressWarnings("unchecked")
     public PERSISTENTCLASS getById(DataAccessContext daoContext, IDTYPE id)
     {
-        return (PERSISTENTCLASS) daoContext.get(getPersistentClass(), id);
+        PERSISTENTCLASS entity = (PERSISTENTCLASS) daoContext.get(getPersistentClass(), id);
+        watchLoaded(daoContext, entity);
+        return entity;
+    }
+
+    /**
+     * Load the particular instance identified by the specified ID, for reading only. If an
+     * {@link EntityCache} has been installed on this DAO, the instance is taken from the cache
+     * where possible.
+     * <p>
+     * The instance must not be modified. If it is not already in the session, it is either a
+     * detached copy created from the cache or an instance that has been loaded and evicted again,
+     * so changes to it would not be saved. Either way, the session is left as it was, and a later
+     * {@link #getById(DataAccessContext, Serializable)} of the same ID loads an instance that can
+     * be updated as usual. Use
+     * {@link #getById(DataAccessContext, Serializable)} to load an instance that is to be changed.
+     * </p>
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param id
+     *            ID to be found.
+     * @return Instance identified by the ID, or <code>null</code> if not present.
+     * @see #setEntityCache(EntityCache)
+     */
+    @SuppressWarnings("unchecked")
+    public PERSISTENTCLASS getByIdReadOnly(DataAccessContext daoContext, IDTYPE id)
+    {
+        EntityCache cache = entityCache;
+        if (cache == null)
+        {
+            return (PERSISTENTCLASS) daoContext.get(getPersistentClass(), id);
+        }
+
+        PERSISTENTCLASS entity = getCached(daoContext, cache, id);
+        if (entity != null)
+        {
+            return entity;
+        }
+
+        long generation = cache.getGeneration();
+        entity = (PERSISTENTCLASS) daoContext.get(getPersistentClass(), id);
+        if (entity != null)
+        {
+            Serializable[] snapshot = daoContext.getEntitySnapshot(entity);
+            daoContext.evict(entity);
+            if (!isChangedInTransaction(daoContext))
+            {
+                cache.putEntity(id, snapshot, generation);
+            }
+        }
+        return entity;
     }
 
     /**
@@ -157,7 +264,95 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
     @SuppressWarnings("unchecked")
     public PERSISTENTCLASS getByIdLock(DataAccessContext daoContext, IDTYPE id)
     {
-        return (PERSISTENTCLASS) daoContext.get(getPersistentClass(), id, LockOptions.UPGRADE);
+        PERSISTENTCLASS entity = (PERSISTENTCLASS) daoContext.get(getPersistentClass(),
+                                                                  id,
+                                                                  LockOptions.UPGRADE);
+        watchLoaded(daoContext, entity);
+        return entity;
+    }
+
+    /**
+     * Load the instances identified by a collection of IDs. This is equivalent to calling
+     * {@link #getById(DataAccessContext, Serializable)} for each ID, but instances that are not
+     * already in the session are fetched using as few queries as possible.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param ids
+     *            IDs to be found.
+     * @return <code>List</code> of the instances found, in the order of the first occurrence of
+     *         their IDs in <code>ids</code>. IDs that are not present are skipped, so the list may
+     *         be shorter than <code>ids</code>.
+     * @see #getMapByIds(DataAccessContext, Collection)
+     */
+    public List<PERSISTENTCLASS> getByIds(DataAccessContext daoContext,
+                                          Collection<? extends IDTYPE> ids)
+    {
+        return new ArrayList<PERSISTENTCLASS>(getMapByIds(daoContext, ids).values());
+    }
+
+    /**
+     * Load the instances identified by a collection of IDs. Instances that are already in the
+     * session are taken from there. The rest are fetched using queries with <code>IN</code>
+     * clauses of at most {@link #getIdFetchSize(DataAccessContext)} IDs each.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param ids
+     *            IDs to be found. <code>null</code> and duplicate IDs are ignored.
+     * @return <code>Map</code> from ID to instance, iterating in the order of the first occurrence
+     *         of the IDs in <code>ids</code>. IDs that are not present have no entry.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<IDTYPE, PERSISTENTCLASS> getMapByIds(DataAccessContext daoContext,
+                                                    Collection<? extends IDTYPE> ids)
+    {
+        Collection<IDTYPE> requested = new LinkedHashSet<IDTYPE>(ids);
+        requested.remove(null);
+
+        Map<IDTYPE, PERSISTENTCLASS> found = new HashMap<IDTYPE, PERSISTENTCLASS>();
+        List<IDTYPE> missing = new ArrayList<IDTYPE>();
+
+        for (IDTYPE id : requested)
+        {
+            Object entity = daoContext.getFromSession(getPersistentClass(), id);
+            if (entity != null)
+            {
+                found.put(id, (PERSISTENTCLASS) entity);
+            }
+            else
+            {
+                missing.add(id);
+            }
+        }
+
+        int fetchSize = getIdFetchSize(daoContext);
+
+        for (int start = 0; start < missing.size(); start += fetchSize)
+        {
+            List<IDTYPE> batch = missing.subList(start, Math.min(start + fetchSize, missing.size()));
+
+            Criteria criteria = buildCriteria(daoContext, Restrictions.in("id", batch));
+            criteria.setComment(getClass().getSimpleName() + ".getByIds()");
+
+            for (PERSISTENTCLASS entity : listDistinct(criteria))
+            {
+                found.put((IDTYPE) daoContext.getIdentifier(entity), entity);
+                watchLoaded(daoContext, entity);
+            }
+        }
+
+        Map<IDTYPE, PERSISTENTCLASS> result = new LinkedHashMap<IDTYPE, PERSISTENTCLASS>();
+        for (IDTYPE id : requested)
+        {
+            PERSISTENTCLASS entity = found.get(id);
+            if (entity != null)
+            {
+                result.put(id, entity);
+            }
+        }
+
+        return result;
     }
 
     /**
@@ -197,7 +392,9 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
      */
     public PERSISTENTCLASS insert(DataAccessContext daoContext, PERSISTENTCLASS entity)
     {
-        daoContext.save(entity);
+        Serializable id = daoContext.save(entity);
+        entityChanged(daoContext, id);
+        indexChanged(daoContext, id, entity);
         return entity;
     }
 
@@ -214,9 +411,84 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
     public PERSISTENTCLASS update(DataAccessContext daoContext, PERSISTENTCLASS entity)
     {
         daoContext.saveOrUpdate(entity);
+        Serializable id = daoContext.getIdentifier(entity);
+        entityChanged(daoContext, id);
+        indexChanged(daoContext, id, entity);
         return entity;
     }
 
+    /**
+     * Insert a collection of new entities into the database. The session is
+     * flushed every {@link #getBatchSize(DataAccessContext)} entities, and the
+     * entities inserted so far are evicted from it, so that the inserts can be
+     * sent as JDBC batches and the session cache does not grow without bound.
+     * <p>
+     * The inserted entities are detached on return. Other objects in the
+     * session are left alone.
+     * </p>
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param entities
+     *            Entities to be saved
+     * @see #insert(DataAccessContext, Object)
+     */
+    public void insertAll(DataAccessContext daoContext, Collection<? extends PERSISTENTCLASS> entities)
+    {
+        int batchSize = getBatchSize(daoContext);
+        List<PERSISTENTCLASS> batch = new ArrayList<PERSISTENTCLASS>(batchSize);
+
+        for (PERSISTENTCLASS entity : entities)
+        {
+            insert(daoContext, entity);
+            batch.add(entity);
+
+            if (batch.size() == batchSize)
+            {
+                flushAndEvict(daoContext, batch);
+                batch.clear();
+            }
+        }
+
+        flushAndEvict(daoContext, batch);
+    }
+
+    /**
+     * Update a collection of entities in the database. The session is flushed
+     * every {@link #getBatchSize(DataAccessContext)} entities, and the entities
+     * updated so far are evicted from it, so that the updates can be sent as
+     * JDBC batches and the session cache does not grow without bound.
+     * <p>
+     * The updated entities are detached on return. Other objects in the
+     * session are left alone.
+     * </p>
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param entities
+     *            Entities to be updated
+     * @see #update(DataAccessContext, Object)
+     */
+    public void updateAll(DataAccessContext daoContext, Collection<? extends PERSISTENTCLASS> entities)
+    {
+        int batchSize = getBatchSize(daoContext);
+        List<PERSISTENTCLASS> batch = new ArrayList<PERSISTENTCLASS>(batchSize);
+
+        for (PERSISTENTCLASS entity : entities)
+        {
+            update(daoContext, entity);
+            batch.add(entity);
+
+            if (batch.size() == batchSize)
+            {
+                flushAndEvict(daoContext, batch);
+                batch.clear();
+            }
+        }
+
+        flushAndEvict(daoContext, batch);
+    }
+
     /**
      * Delete a persistent entity from the database.
      * 
@@ -227,8 +499,11 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
      */
     public void delete(DataAccessContext daoContext, PERSISTENTCLASS entity)
     {
+        Serializable id = daoContext.getEntityIdentifier(entity);
         daoContext.delete(entity);
         daoContext.flush();
+        entityChanged(daoContext, id);
+        indexChanged(daoContext, id, null);
     }
 
     /**
@@ -274,7 +549,61 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
         Query query = daoContext.createQuery(hql);
         query.setComment(getClass().getSimpleName() + ".deleteById");
         query.setParameter("id", id);
-        return query.executeUpdate() != 0;
+        boolean deleted = query.executeUpdate() != 0;
+        entityChanged(daoContext, id);
+        indexChanged(daoContext, id, null);
+        return deleted;
+    }
+
+    /**
+     * Perform an entity-by-entity delete on the entities with the specified
+     * IDs. Unlike {@link #deleteById(DataAccessContext, Serializable)}, this
+     * delete will cascade, if the table is set up that way.
+     * <p>
+     * The entities are loaded <code>getBatchSize</code> at a time using an
+     * <code>in</code> clause, deleted, and then the session is flushed (which
+     * removes them from it) before the next group is loaded. Thus, memory use
+     * is bounded by the batch size, not by the number of IDs. Other objects in
+     * the session are left alone. IDs for which there is no entity in the
+     * database are ignored.
+     * </p>
+     * <p>
+     * This method assumes that the unique ID for the object is, in fact, called <code>id</code>.
+     * </p>
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param ids
+     *            IDs of the entities to be deleted
+     * @return Number of entities actually deleted.
+     * @see #getBatchSize(DataAccessContext)
+     */
+    public int deleteByIds(DataAccessContext daoContext, Collection<? extends IDTYPE> ids)
+    {
+        int batchSize = getBatchSize(daoContext);
+        List<IDTYPE> idList = new ArrayList<IDTYPE>(ids);
+        int deleted = 0;
+
+        for (int start = 0; start < idList.size(); start += batchSize)
+        {
+            List<IDTYPE> batch = idList.subList(start, Math.min(start + batchSize, idList.size()));
+
+            Criteria criteria = buildCriteria(daoContext, Restrictions.in("id", batch));
+            criteria.setComment(getClass().getSimpleName() + ".deleteByIds()");
+
+            List<PERSISTENTCLASS> entities = listDistinct(criteria);
+            for (PERSISTENTCLASS entity : entities)
+            {
+                indexChanged(daoContext, daoContext.getIdentifier(entity), null);
+                daoContext.delete(entity);
+                deleted++;
+            }
+
+            flushAndEvict(daoContext, entities);
+        }
+
+        entityChanged(daoContext, null);
+        return deleted;
     }
 
     /**
@@ -302,176 +631,1253 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
         query.setComment(getClass().getSimpleName() + ".clearTable()");
         query.executeUpdate();
         daoContext.flush();
+        entityChanged(daoContext, null);
+
+        FullTextIndex index = fullTextIndex;
+        if (index != null)
+        {
+            TableChanges changes = getTableChanges(daoContext);
+            if (changes.isCompleted())
+            {
+                index.clear();
+            }
+            else
+            {
+                changes.indexCleared();
+            }
+        }
     }
 
     /**
      * Perform an entity-by-entity delete on the entities in the database. This
      * delete will cascade, if the table is set up that way. Performing this
-     * operation requires selecting all the entities, however, which can be slow
-     * and memory-intensive for large tables. When possible, it is faster to use
-     * {@link BaseDAO#clearTable(DataAccessContext)} and make sure that
-     * dependent objects are deleted first.
+     * operation requires selecting all the IDs and then loading the entities
+     * in batches, however, which can be slow for large tables. When possible,
+     * it is faster to use {@link BaseDAO#clearTable(DataAccessContext)} and
+     * make sure that dependent objects are deleted first.
+     * <p>
+     * Only the deleted entities leave the session; other objects loaded in it
+     * before this call remain attached.
+     * </p>
      * 
      * @param daoContext
      *            {@link DataAccessContext} object for the database.
      * @see #clearTable(DataAccessContext)
+     * @see #deleteByCriteria(DataAccessContext, Criterion...)
      */
     public void deleteAll(DataAccessContext daoContext)
     {
-        for (PERSISTENTCLASS entity : listAll(daoContext, null))
-        {
-            daoContext.delete(entity);
-        }
-        daoContext.flush();
+        deleteByCriteria(daoContext);
     }
 
     /**
-     * Count the number of entities in the database.
+     * Perform an entity-by-entity delete on the entities in the table that meet
+     * the specified criteria. This delete will cascade, if the table is set up
+     * that way. The IDs of the matching entities are selected first, and the
+     * entities are then deleted via {@link #deleteByIds(DataAccessContext, Collection)},
+     * so memory use is bounded by the batch size rather than by the number of
+     * matching entities.
      * 
      * @param daoContext
      *            {@link DataAccessContext} object for the database.
-     * @return Number of entities in the table.
+     * @param criterions
+     *            Zero or more <code>Criterion</code> objects describing the
+     *            objects to be deleted. If no <code>Criterion</code>s are
+     *            specified, all the entities are deleted.
+     * @return Number of entities actually deleted.
+     * @see #deleteByIds(DataAccessContext, Collection)
      */
-    public long getCount(DataAccessContext daoContext)
+    @SuppressWarnings("unchecked")
+    public int deleteByCriteria(DataAccessContext daoContext, Criterion... criterions)
     {
-        daoContext.flush();
-        String queryString = "select count(*) from " + getPersistentClassName();
-        Query query = daoContext.createQuery(queryString);
-        query.setComment(getClass().getSimpleName() + ".getCount()");
-        Long result = (Long) query.uniqueResult();
-        return result.longValue();
+        Criteria criteria = buildCriteria(daoContext, criterions);
+        criteria.setProjection(Projections.id());
+        criteria.setComment(getClass().getSimpleName() + ".deleteByCriteria()");
+
+        return deleteByIds(daoContext, (List<IDTYPE>) criteria.list());
     }
 
     /**
-     * Return a <code>List</code> of all the entities in the table.
+     * Return the number of entities that the bulk operations (
+     * {@link #insertAll(DataAccessContext, Collection)},
+     * {@link #updateAll(DataAccessContext, Collection)},
+     * {@link #deleteByIds(DataAccessContext, Collection)}, etc.) process
+     * between flushing the session and evicting them. The default implementation
+     * returns the configured <code>hibernate.jdbc.batch_size</code>, or
+     * {@link #DEFAULT_BATCH_SIZE} if JDBC batching has not been configured.
+     * Derived classes may override this to tune a particular DAO.
      * 
      * @param daoContext
      *            {@link DataAccessContext} object for the database.
-     * @param order
-     *            <code>Order</code> in which the data should be returned.
-     *            (Optional - may be <code>null</code>.)
-     * @return <code>List</code> of all the entities. The returned <code>List</code> will not be
-     *         <code>null</code>, but may be
-     *         empty.
+     * @return Batch size. Must be greater than zero.
      */
-    public List<PERSISTENTCLASS> listAll(DataAccessContext daoContext, Order order)
+    protected int getBatchSize(DataAccessContext daoContext)
     {
-        Criteria criteria = buildCriteria(daoContext).setComment(".listAll()");
-        if (order != null)
-        {
-            criteria.addOrder(order);
-        }
-        return list(criteria);
+        int batchSize = daoContext.getJdbcBatchSize();
+        return batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
     }
 
     /**
-     * Return a <code>List</code> of all the entities in the table. Similar to
-     * {@link #listAll(DataAccessContext, Order)}, except that it handles issues
-     * with duplicate root elements due to embedded collections.
+     * Flush pending changes to the database and then evict the entities processed so far from the
+     * session, so that they no longer occupy the session cache. Unlike clearing the session, this
+     * leaves any other objects the caller has loaded attached.
      * 
      * @param daoContext
      *            {@link DataAccessContext} object for the database.
-     * @param order
-     *            <code>Order</code> in which the data should be returned.
-     *            (Optional - may be <code>null</code>.)
-     * @return <code>List</code> of all the entities. The returned <code>List</code> will not be
-     *         <code>null</code>, but may be
-     *         empty.
+     * @param entities
+     *            Entities to be evicted. Those no longer in the session (deleted entities, for
+     *            example) are skipped.
      */
-    public List<PERSISTENTCLASS> listAllDistinct(DataAccessContext daoContext, Order order)
+    protected void flushAndEvict(DataAccessContext daoContext, Collection<?> entities)
     {
-        Criteria criteria = buildCriteria(daoContext).setComment(".listAll()");
-        if (order != null)
+        daoContext.flush();
+
+        for (Object entity : entities)
         {
-            criteria.addOrder(order);
+            if (daoContext.contains(entity))
+            {
+                daoContext.evict(entity);
+            }
         }
-        return listDistinct(criteria);
     }
 
     /**
-     * Return a <code>List</code> of entities in the table that meet the
-     * specified criteria.
+     * Return the maximum number of IDs in the <code>IN</code> clause of a single query made by
+     * {@link #getByIds(DataAccessContext, Collection)}. This is {@link #DEFAULT_ID_FETCH_SIZE},
+     * limited by {@link #getMaxInListSize(Dialect)}. Derived classes may override this to tune a
+     * particular DAO.
      * 
      * @param daoContext
      *            {@link DataAccessContext} object for the database.
-     * @param comment
-     *            Comment to be added to the query for debugging purposes.
-     *            (Optional - may be <code>null</code>).
-     * @param order
-     *            <code>Order</code> object indicating order in which to return
-     *            objects. (Optional - may be <code>null</code>).
-     * @param criterions
-     *            One or more <code>Criterion</code> objects describing the
-     *            objects to be selected.
-     * @return <code>List</code> of all the entities. The returned <code>List</code> will not be
-     *         <code>null</code>, but may be
-     *         empty.
+     * @return Fetch size. Must be greater than zero.
      */
-    public List<PERSISTENTCLASS> listByCriteria(DataAccessContext daoContext,
-                                                String comment,
-                                                Order order,
-                                                Criterion... criterions)
+    protected int getIdFetchSize(DataAccessContext daoContext)
     {
-        Criteria criteria = buildCriteria(daoContext, criterions);
-
-        if (comment != null)
-        {
-            criteria.setComment(comment);
-        }
-
-        if (order != null)
-        {
-            criteria.addOrder(order);
-        }
-
-        return list(criteria);
+        return Math.min(DEFAULT_ID_FETCH_SIZE, getMaxInListSize(daoContext.getDialect()));
     }
 
     /**
-     * Return a <code>List</code> of entities in the table that meet the
-     * specified criteria.Similar to
-     * {@link #listByCriteria(DataAccessContext, String, Order, Criterion...)},
-     * except that it handles issues
-     * with duplicate root elements due to embedded collections.
+     * Return the maximum number of values that the database accepts in a single
+     * <code>IN</code> list. Oracle allows at most 1000 expressions in a list, and SQL Server and
+     * Sybase at most 2100 parameters in a statement. Other databases are assumed to be limited
+     * only by the size of the statement.
      * 
-     * @param daoContext
-     *            {@link DataAccessContext} object for the database.
-     * @param comment
-     *            Comment to be added to the query for debugging purposes.
-     *            (Optional - may be <code>null</code>).
-     * @param order
-     *            <code>Order</code> object indicating order in which to return
-     *            objects. (Optional - may be <code>null</code>).
-     * @param criterions
-     *            One or more <code>Criterion</code> objects describing the
-     *            objects to be selected.
-     * @return <code>List</code> of all the entities. The returned <code>List</code> will not be
-     *         <code>null</code>, but may be
-     *         empty.
+     * @param dialect
+     *            <code>Dialect</code> of the database.
+     * @return Maximum number of values.
      */
-    public List<PERSISTENTCLASS> listDistinctByCriteria(DataAccessContext daoContext,
-                                                        String comment,
-                                                        Order order,
-                                                        Criterion... criterions)
+    protected int getMaxInListSize(Dialect dialect)
     {
-        Criteria criteria = buildCriteria(daoContext, criterions);
+        String name = dialect.getClass().getName();
 
-        if (comment != null)
+        if (name.contains("Oracle"))
         {
-            criteria.setComment(comment);
+            return 1000;
         }
-
-        if (order != null)
+        if (name.contains("SQLServer") || name.contains("Sybase"))
         {
-            criteria.addOrder(order);
+            return 2000;
         }
 
-        return listDistinct(criteria);
+        return Integer.MAX_VALUE;
     }
 
     /**
-     * Utility function that applies the <code>DISTINCT_ROOT_ENTITY</code>
-     * <code>ResultTransformer</code>. This is useful if you have an entity with
+     * Count the number of entities in the database, using the <code>CountStrategy</code>
+     * installed on this DAO. By default this is an exact count.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @return Number of entities in the table.
+     * @see #setCountStrategy(CountStrategy)
+     */
+    public long getCount(DataAccessContext daoContext)
+    {
+        return getCount(daoContext, countStrategy);
+    }
+
+    /**
+     * Count the number of entities in the database, using a specific <code>CountStrategy</code>.
+     * This allows an individual screen to choose a cheaper (but less precise) count than the
+     * DAO's default.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param strategy
+     *            <code>CountStrategy</code> to be used.
+     * @return Number of entities in the table.
+     */
+    public long getCount(DataAccessContext daoContext, CountStrategy strategy)
+    {
+        return strategy.getCount(daoContext, this);
+    }
+
+    /**
+     * Count the number of entities in the database exactly. This flushes the session and then
+     * performs a <code>select count(*)</code> on the table.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @return Number of entities in the table.
+     * @see ExactCountStrategy
+     */
+    public long getExactCount(DataAccessContext daoContext)
+    {
+        daoContext.flush();
+        String queryString = "select count(*) from " + getPersistentClassName();
+        Query query = daoContext.createQuery(queryString);
+        query.setComment(getClass().getSimpleName() + ".getCount()");
+        Long result = (Long) query.uniqueResult();
+        return result.longValue();
+    }
+
+    /**
+     * Return the <code>CountStrategy</code> used by {@link #getCount(DataAccessContext)}.
+     * 
+     * @return <code>CountStrategy</code> object.
+     */
+    public CountStrategy getCountStrategy()
+    {
+        return countStrategy;
+    }
+
+    /**
+     * Set the <code>CountStrategy</code> used by {@link #getCount(DataAccessContext)}. The
+     * strategy installed here is notified whenever the table is changed through this DAO, so
+     * strategies that remember counts (such as {@link CachedCountStrategy}) should be installed
+     * here rather than passed to {@link #getCount(DataAccessContext, CountStrategy)}.
+     * 
+     * @param countStrategy
+     *            <code>CountStrategy</code> object.
+     */
+    public void setCountStrategy(CountStrategy countStrategy)
+    {
+        Assert.isNotNull(countStrategy);
+        this.countStrategy = countStrategy;
+    }
+
+    /**
+     * Notify the <code>CountStrategy</code> that the table has been changed. This is called (via
+     * {@link #entityChanged(DataAccessContext, Serializable)}) by all the methods on this class
+     * that insert or delete entities, and again when the transaction making the change completes.
+     */
+    protected void countChanged()
+    {
+        countStrategy.invalidate(this);
+    }
+
+    /**
+     * Determine whether the table has been changed through this DAO in the current transaction.
+     * Anything read from the table in such a transaction may include changes that are not yet
+     * committed (and may never be), so it must not be remembered for use by other transactions.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @return <code>true</code> if the current transaction has changed the table.
+     */
+    public boolean isChangedInTransaction(DataAccessContext daoContext)
+    {
+        TableChanges changes = (TableChanges) daoContext.getSynchronization(this);
+        return changes != null && changes.isWritten();
+    }
+
+    /**
+     * Return the <code>EntityCache</code> used by this DAO.
+     * 
+     * @return <code>EntityCache</code> object, or <code>null</code> if entities are not cached.
+     */
+    public EntityCache getEntityCache()
+    {
+        return entityCache;
+    }
+
+    /**
+     * Set the <code>EntityCache</code> used by this DAO. When a cache is installed,
+     * {@link #getByIdReadOnly(DataAccessContext, Serializable)} and
+     * {@link #listAllReadOnly(DataAccessContext, Order)} are answered from the cache where
+     * possible. The other methods always go to the session or the database.
+     * <p>
+     * The cache is invalidated whenever the table is changed through this DAO, and again when
+     * the transaction making the change completes, so that a concurrent reader cannot leave the
+     * pre-change state in the cache. Entities loaded for update by
+     * {@link #getById(DataAccessContext, Serializable)},
+     * {@link #getByIdLock(DataAccessContext, Serializable)},
+     * {@link #getByIds(DataAccessContext, Collection)} and
+     * {@link #listAll(DataAccessContext, Order)} are also checked when the transaction
+     * completes, so that changes saved by Hibernate's dirty checking invalidate them too. Changes
+     * made by other means (including changes to entities loaded by queries) are only picked up
+     * when the cached entries expire, or when the application calls
+     * {@link EntityCache#invalidateAll()} (for example, from a <code>PostTransaction</code> hook).
+     * </p>
+     * <p>
+     * A cache is intended for reference data that is read far more often than it is written.
+     * Collection-valued properties are not cached, so entities with collections should not use
+     * one.
+     * </p>
+     * 
+     * @param entityCache
+     *            <code>EntityCache</code> object, or <code>null</code> to stop caching.
+     */
+    public void setEntityCache(EntityCache entityCache)
+    {
+        this.entityCache = entityCache;
+    }
+
+    /**
+     * Notify the <code>CountStrategy</code> and <code>EntityCache</code> that the table has been
+     * changed. This is called by all the methods on this class that insert, update or delete
+     * entities. Derived classes that make such changes by other means (e.g. HQL bulk operations)
+     * should call it as well. Both are notified at once, and again when the current transaction
+     * completes.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param id
+     *            ID of the entity that was changed, or <code>null</code> if several entities (or
+     *            an unknown entity) may have been changed.
+     */
+    protected void entityChanged(DataAccessContext daoContext, Serializable id)
+    {
+        countChanged();
+
+        EntityCache cache = entityCache;
+        if (cache != null)
+        {
+            cache.invalidate(id);
+        }
+
+        getTableChanges(daoContext).changed(id);
+    }
+
+    /*
+     * Return the TableChanges for the current transaction, registering a new one if required. If
+     * no transaction is active, the one returned has already been completed.
+     */
+    private TableChanges getTableChanges(DataAccessContext daoContext)
+    {
+        TableChanges changes = (TableChanges) daoContext.getSynchronization(this);
+        if (changes == null)
+        {
+            changes = new TableChanges(daoContext);
+            daoContext.registerSynchronization(this, changes);
+        }
+        return changes;
+    }
+
+    /*
+     * Remember the state of an entity that has been loaded in a session in which it may be
+     * changed, so that if the change is saved by dirty checking the entity is invalidated in the
+     * cache, and re-indexed, when the transaction completes.
+     */
+    private void watchLoaded(DataAccessContext daoContext, PERSISTENTCLASS entity)
+    {
+        if (entity == null || (entityCache == null && fullTextIndex == null)
+            || daoContext.isDefaultReadOnly() || daoContext.isReadOnly(entity))
+        {
+            return;
+        }
+
+        getTableChanges(daoContext).loaded(daoContext.getIdentifier(entity),
+                                           daoContext.getEntitySnapshot(entity));
+    }
+
+    /**
+     * Return the <code>FullTextIndex</code> used by this DAO.
+     * 
+     * @return <code>FullTextIndex</code> object, or <code>null</code> if entities are not indexed.
+     */
+    public FullTextIndex getFullTextIndex()
+    {
+        return fullTextIndex;
+    }
+
+    /**
+     * Set the <code>FullTextIndex</code> used by this DAO, and the properties whose text is
+     * indexed. Once an index is installed, the entities inserted, updated and deleted through this
+     * DAO are added to, replaced in and removed from the index as the transaction making the
+     * change commits. Their text is read just before the commit, so later changes made in the same
+     * transaction are included. Nothing is indexed if the transaction rolls back, and changes made
+     * with no transaction active are indexed at once.
+     * <p>
+     * Entities loaded through {@link #getById(DataAccessContext, Serializable)},
+     * {@link #getByIdLock(DataAccessContext, Serializable)},
+     * {@link #getByIds(DataAccessContext, Collection)} or
+     * {@link #listAll(DataAccessContext, Order)} and changed without calling
+     * {@link #update(DataAccessContext, Object)} (that is, saved by Hibernate's dirty checking)
+     * are re-indexed as well. Changes to entities loaded by other means must be saved through
+     * <code>update</code> to be indexed.
+     * </p>
+     * <p>
+     * Entities that are already in the table are not indexed by this call, so the application
+     * must add them itself, by calling {@link #rebuildFullTextIndex(DataAccessContext)} or
+     * loading a previously saved index, when the index is installed. Entities
+     * deleted by means other than this DAO remain in the index, but since
+     * {@link #search(DataAccessContext, String)} fetches the entities from the database, they are
+     * not returned.
+     * </p>
+     * 
+     * @param fullTextIndex
+     *            <code>FullTextIndex</code> object, or <code>null</code> to stop indexing.
+     * @param propertyNames
+     *            Names of the <code>String</code> properties whose text is indexed. Derived
+     *            classes that override {@link #getFullText(Object)} may not need any.
+     * @throws IllegalArgumentException
+     *             If the persistent class does not have a readable property with one of the names.
+     */
+    public void setFullTextIndex(FullTextIndex fullTextIndex, String... propertyNames)
+    {
+        Method[] readers = new Method[propertyNames.length];
+
+        try
+        {
+            PropertyDescriptor[] descriptors = Introspector.getBeanInfo(getPersistentClass())
+                .getPropertyDescriptors();
+
+            for (int i = 0; i < propertyNames.length; i++)
+            {
+                for (PropertyDescriptor descriptor : descriptors)
+                {
+                    if (descriptor.getName().equals(propertyNames[i]))
+                    {
+                        readers[i] = descriptor.getReadMethod();
+                    }
+                }
+
+                if (readers[i] == null)
+                {
+                    throw new IllegalArgumentException("No readable property '" + propertyNames[i]
+                                                       + "' in " + getPersistentClassName());
+                }
+            }
+        }
+        catch (IntrospectionException e)
+        {
+            throw new IllegalArgumentException(e);
+        }
+
+        this.fullTextReaders = readers;
+        this.fullTextIndex = fullTextIndex;
+    }
+
+    /**
+     * Return the text to be indexed for an entity. The default implementation joins the values of
+     * the properties passed to {@link #setFullTextIndex(FullTextIndex, String...)}, skipping any
+     * that are <code>null</code>. Derived classes may override this to index other text.
+     * 
+     * @param entity
+     *            Entity being indexed.
+     * @return Text to be indexed, or <code>null</code> if the entity has none.
+     */
+    protected String getFullText(PERSISTENTCLASS entity)
+    {
+        StringBuilder text = new StringBuilder();
+
+        for (Method reader : fullTextReaders)
+        {
+            Object value;
+            try
+            {
+                value = reader.invoke(entity);
+            }
+            catch (IllegalAccessException e)
+            {
+                throw new IllegalStateException(e);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw new IllegalStateException(e.getCause());
+            }
+
+            if (value != null)
+            {
+                text.append(value).append(' ');
+            }
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Return the IDs of the entities whose indexed text contains every word in the search text.
+     * The IDs can then be passed to {@link #getByIds(DataAccessContext, Collection)}, which is
+     * what {@link #search(DataAccessContext, String)} does.
+     * 
+     * @param text
+     *            Search text. A word ending in '*' matches any word with that prefix.
+     * @return <code>List</code> of IDs, in ascending order if the IDs are <code>Comparable</code>.
+     * @throws AssertionError
+     *             If no <code>FullTextIndex</code> has been set.
+     * @see FullTextIndex#search(String)
+     */
+    @SuppressWarnings("unchecked")
+    public List<IDTYPE> searchIds(String text)
+    {
+        FullTextIndex index = fullTextIndex;
+        Assert.isNotNull(index, "No FullTextIndex has been set");
+
+        return (List<IDTYPE>) (List<?>) index.search(text);
+    }
+
+    /**
+     * Return the entities whose indexed text contains every word in the search text. The IDs are
+     * found using {@link #searchIds(String)}, and the entities are then fetched using
+     * {@link #getByIds(DataAccessContext, Collection)}.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param text
+     *            Search text. A word ending in '*' matches any word with that prefix.
+     * @return <code>List</code> of entities, in the order of the IDs.
+     * @throws AssertionError
+     *             If no <code>FullTextIndex</code> has been set.
+     */
+    public List<PERSISTENTCLASS> search(DataAccessContext daoContext, String text)
+    {
+        return getByIds(daoContext, searchIds(text));
+    }
+
+    /**
+     * Rebuild the <code>FullTextIndex</code> from the entities in the table, for use when the
+     * index is first installed or after the table has been changed other than through this DAO.
+     * The index is cleared, and every entity is then streamed through
+     * {@link #scrollAll(DataAccessContext, Order, int, EntityProcessor)} and indexed, so memory use
+     * does not depend on the size of the table. Searches made while the index is being rebuilt
+     * may miss entities that have not been read yet.
+     * <p>
+     * The session is flushed first. As with <code>scrollAll</code>, each entity is evicted from
+     * the session once it has been indexed, so this is best called in a session of its own.
+     * </p>
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @return Number of entities indexed.
+     * @throws AssertionError
+     *             If no <code>FullTextIndex</code> has been set.
+     */
+    public long rebuildFullTextIndex(DataAccessContext daoContext)
+    {
+        final FullTextIndex index = fullTextIndex;
+        Assert.isNotNull(index, "No FullTextIndex has been set");
+
+        final DataAccessContext context = daoContext;
+        daoContext.flush();
+        index.clear();
+
+        return scrollAll(daoContext, null, getBatchSize(daoContext),
+                         new EntityProcessor<PERSISTENTCLASS>()
+                         {
+                             @Override
+                             public void process(PERSISTENTCLASS entity)
+                             {
+                                 String text = getFullText(entity);
+                                 if (text != null)
+                                 {
+                                     index.update(context.getIdentifier(entity), text);
+                                 }
+                             }
+                         });
+    }
+
+    /*
+     * Arrange for an entity to be re-indexed (or removed from the index, if the entity is null)
+     * when the current transaction commits. The text is read just before the commit, so that any
+     * later changes to the entity are indexed too.
+     */
+    private void indexChanged(DataAccessContext daoContext, Serializable id, PERSISTENTCLASS entity)
+    {
+        FullTextIndex index = fullTextIndex;
+        if (index == null || id == null)
+        {
+            return;
+        }
+
+        TableChanges changes = getTableChanges(daoContext);
+        if (!changes.isCompleted())
+        {
+            changes.indexChanged(id, entity == null);
+        }
+        else if (entity == null)
+        {
+            index.remove(id);
+        }
+        else
+        {
+            index.update(id, getFullText(entity));
+        }
+    }
+
+    /*
+     * Read the text of every entity in the table. The IDs are streamed, and the entities that are
+     * not already in the session are loaded getBatchSize at a time, read, and evicted again, so
+     * memory use does not depend on the size of the table and the caller's own objects are left
+     * attached. The session is flushed first, so that the IDs include anything it has pending.
+     */
+    @SuppressWarnings("unchecked")
+    private void readAllTexts(DataAccessContext daoContext, Map<Serializable, String> texts)
+    {
+        daoContext.flush();
+
+        Criteria criteria = buildCriteria(daoContext);
+        criteria.setProjection(Projections.id());
+        criteria.setComment(getClass().getSimpleName() + ".readAllTexts()");
+        criteria.setFetchSize(getIdFetchSize(daoContext));
+
+        int batchSize = getBatchSize(daoContext);
+        List<Serializable> missing = new ArrayList<Serializable>();
+        ScrollableResults results = criteria.scroll(ScrollMode.FORWARD_ONLY);
+        try
+        {
+            while (results.next())
+            {
+                Serializable id = (Serializable) results.get(0);
+                Object entity = daoContext.getFromSession(getPersistentClass(), id);
+                if (entity != null)
+                {
+                    texts.put(id, getFullText((PERSISTENTCLASS) entity));
+                    continue;
+                }
+
+                missing.add(id);
+                if (missing.size() == batchSize)
+                {
+                    readTexts(daoContext, missing, texts);
+                    missing.clear();
+                }
+            }
+        }
+        finally
+        {
+            results.close();
+        }
+
+        readTexts(daoContext, missing, texts);
+    }
+
+    /*
+     * Load the entities with the specified IDs, none of which is in the session, read their text
+     * and evict them again.
+     */
+    private void readTexts(DataAccessContext daoContext,
+                           List<Serializable> ids,
+                           Map<Serializable, String> texts)
+    {
+        if (ids.isEmpty())
+        {
+            return;
+        }
+
+        Criteria criteria = buildCriteria(daoContext, Restrictions.in("id", ids));
+        criteria.setComment(getClass().getSimpleName() + ".readAllTexts()");
+        criteria.setCacheMode(CacheMode.IGNORE);
+
+        for (PERSISTENTCLASS entity : listDistinct(criteria))
+        {
+            texts.put(daoContext.getIdentifier(entity), getFullText(entity));
+            daoContext.evict(entity);
+        }
+    }
+
+    /*
+     * The changes made to the table in one transaction. When the transaction completes (whether
+     * it commits or rolls back) the count and any cached entities are invalidated again, since a
+     * concurrent reader may have remembered the state from before the transaction's changes were
+     * visible. Entities that were loaded for update, and that have changed by the time the
+     * transaction completes, are invalidated as well.
+     * 
+     * If there is a FullTextIndex, the text of the entities that were changed is read just before
+     * the transaction commits, and the index is updated once it has. Nothing is indexed if the
+     * transaction rolls back.
+     * 
+     * IDs are only remembered when there is a cache or an index to use them, and at most
+     * MAX_TRACKED_IDS of them. Beyond that (after a bulk operation, say) the whole cache is
+     * invalidated, and the whole index rebuilt by streaming the table, instead.
+     */
+    private final class TableChanges implements Synchronization
+    {
+        private final DataAccessContext               daoContext;
+        private final Set<Serializable>               ids    = new HashSet<Serializable>();
+        private final Map<Serializable, Serializable[]> loaded = new HashMap<Serializable, Serializable[]>();
+        private final Map<Serializable, Boolean>      indexed = new LinkedHashMap<Serializable, Boolean>();
+        private final Map<Serializable, String>       texts   = new LinkedHashMap<Serializable, String>();
+        private boolean                               written;
+        private boolean                               all;
+        private boolean                               indexCleared;
+        private boolean                               reindexAll;
+        private boolean                               completed;
+
+        public TableChanges(DataAccessContext daoContext)
+        {
+            this.daoContext = daoContext;
+        }
+
+        public boolean isWritten()
+        {
+            return written;
+        }
+
+        public boolean isCompleted()
+        {
+            return completed;
+        }
+
+        public void changed(Serializable id)
+        {
+            written = true;
+
+            if (id == null)
+            {
+                invalidateAll();
+            }
+            else
+            {
+                remember(id);
+            }
+        }
+
+        private void remember(Serializable id)
+        {
+            if (entityCache != null && !all)
+            {
+                ids.add(id);
+                if (ids.size() > MAX_TRACKED_IDS)
+                {
+                    invalidateAll();
+                }
+            }
+        }
+
+        private void invalidateAll()
+        {
+            all = true;
+            ids.clear();
+        }
+
+        public void loaded(Serializable id, Serializable[] snapshot)
+        {
+            if (!loaded.containsKey(id))
+            {
+                loaded.put(id, snapshot);
+            }
+        }
+
+        public void indexChanged(Serializable id, boolean removed)
+        {
+            if (reindexAll)
+            {
+                return;
+            }
+
+            indexed.put(id, Boolean.valueOf(removed));
+            if (indexed.size() > MAX_TRACKED_IDS)
+            {
+                reindexAll = true;
+                indexed.clear();
+            }
+        }
+
+        public void indexCleared()
+        {
+            indexCleared = true;
+            reindexAll = false;
+            indexed.clear();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void beforeCompletion()
+        {
+            for (Map.Entry<Serializable, Serializable[]> entry : loaded.entrySet())
+            {
+                Object entity = daoContext.getFromSession(getPersistentClass(), entry.getKey());
+                if (entity == null
+                    || !Arrays.equals(entry.getValue(), daoContext.getEntitySnapshot(entity)))
+                {
+                    remember(entry.getKey());
+                    if (fullTextIndex != null && !indexed.containsKey(entry.getKey()))
+                    {
+                        indexChanged(entry.getKey(), false);
+                    }
+                }
+            }
+
+            if (fullTextIndex == null)
+            {
+                return;
+            }
+
+            if (reindexAll)
+            {
+                indexCleared = true;
+                readAllTexts(daoContext, texts);
+                return;
+            }
+
+            for (Map.Entry<Serializable, Boolean> entry : indexed.entrySet())
+            {
+                Object entity = null;
+                if (!entry.getValue().booleanValue())
+                {
+                    entity = daoContext.getFromSession(getPersistentClass(), entry.getKey());
+                    if (entity == null)
+                    {
+                        // read it without leaving it in the session
+                        entity = daoContext.get(getPersistentClass(), entry.getKey());
+                        if (entity != null)
+                        {
+                            daoContext.evict(entity);
+                        }
+                    }
+                }
+                texts.put(entry.getKey(),
+                          entity == null ? null : getFullText((PERSISTENTCLASS) entity));
+            }
+        }
+
+        @Override
+        public void afterCompletion(int status)
+        {
+            completed = true;
+
+            if (written)
+            {
+                countChanged();
+            }
+
+            FullTextIndex index = fullTextIndex;
+            if (index != null && status == Status.STATUS_COMMITTED)
+            {
+                if (indexCleared)
+                {
+                    index.clear();
+                }
+
+                for (Map.Entry<Serializable, String> text : texts.entrySet())
+                {
+                    if (text.getValue() == null)
+                    {
+                        index.remove(text.getKey());
+                    }
+                    else
+                    {
+                        index.update(text.getKey(), text.getValue());
+                    }
+                }
+            }
+
+            EntityCache cache = entityCache;
+            if (cache == null)
+            {
+                return;
+            }
+
+            if (all)
+            {
+                cache.invalidateAll();
+            }
+            else
+            {
+                for (Serializable id : ids)
+                {
+                    cache.invalidate(id);
+                }
+            }
+        }
+    }
+
+    /*
+     * Return an entity from the session or the cache, without going to the database.
+     */
+    @SuppressWarnings("unchecked")
+    private PERSISTENTCLASS getCached(DataAccessContext daoContext, EntityCache cache, Object id)
+    {
+        Object entity = daoContext.getFromSession(getPersistentClass(), (Serializable) id);
+        if (entity == null)
+        {
+            Serializable[] snapshot = (Serializable[]) cache.getEntity(id);
+            if (snapshot != null)
+            {
+                entity = daoContext.createFromSnapshot(getPersistentClass(),
+                                                       (Serializable) id,
+                                                       snapshot);
+            }
+        }
+        return (PERSISTENTCLASS) entity;
+    }
+
+    /**
+     * Return a <code>List</code> of all the entities in the table.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param order
+     *            <code>Order</code> in which the data should be returned.
+     *            (Optional - may be <code>null</code>.)
+     * @return <code>List</code> of all the entities. The returned <code>List</code> will not be
+     *         <code>null</code>, but may be
+     *         empty.
+     */
+    public List<PERSISTENTCLASS> listAll(DataAccessContext daoContext, Order order)
+    {
+        Criteria criteria = buildCriteria(daoContext).setComment(".listAll()");
+        if (order != null)
+        {
+            criteria.addOrder(order);
+        }
+        List<PERSISTENTCLASS> result = list(criteria);
+        for (PERSISTENTCLASS entity : result)
+        {
+            watchLoaded(daoContext, entity);
+        }
+        return result;
+    }
+
+    /**
+     * Return a <code>List</code> of all the entities in the table, for reading only. If an
+     * {@link EntityCache} has been installed on this DAO, the list is taken from the cache where
+     * possible. As with {@link #getByIdReadOnly(DataAccessContext, Serializable)}, the entities
+     * must not be modified.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param order
+     *            <code>Order</code> in which the data should be returned.
+     *            (Optional - may be <code>null</code>.)
+     * @return <code>List</code> of all the entities. The returned <code>List</code> will not be
+     *         <code>null</code>, but may be empty.
+     */
+    public List<PERSISTENTCLASS> listAllReadOnly(DataAccessContext daoContext, Order order)
+    {
+        EntityCache cache = entityCache;
+        if (cache == null)
+        {
+            return listAll(daoContext, order);
+        }
+
+        String cacheKey = order != null ? "listAll:" + order : "listAll";
+        List<PERSISTENTCLASS> cached = listCached(daoContext, cache, cacheKey);
+        if (cached != null)
+        {
+            return cached;
+        }
+        long generation = cache.getGeneration();
+
+        Criteria criteria = buildCriteria(daoContext).setComment(".listAll()");
+        if (order != null)
+        {
+            criteria.addOrder(order);
+        }
+        criteria.setReadOnly(true);
+        List<PERSISTENTCLASS> result = list(criteria);
+
+        // only the entities this query loaded are read-only; the others were already in the
+        // session, and are left there
+        boolean remember = !isChangedInTransaction(daoContext);
+        boolean defaultReadOnly = daoContext.isDefaultReadOnly();
+        List<Serializable> ids = new ArrayList<Serializable>(result.size());
+        for (PERSISTENTCLASS entity : result)
+        {
+            Serializable id = daoContext.getIdentifier(entity);
+            if (remember)
+            {
+                cache.putEntity(id, daoContext.getEntitySnapshot(entity), generation);
+                ids.add(id);
+            }
+            if (!defaultReadOnly && daoContext.isReadOnly(entity))
+            {
+                daoContext.evict(entity);
+            }
+        }
+        if (remember)
+        {
+            cache.putQuery(cacheKey, ids, generation);
+        }
+
+        return result;
+    }
+
+    /*
+     * Return a list of entities from the session or the cache, or null if the list (or any of
+     * its entities) is no longer in the cache.
+     */
+    private List<PERSISTENTCLASS> listCached(DataAccessContext daoContext,
+                                             EntityCache cache,
+                                             Object cacheKey)
+    {
+        List<?> ids = (List<?>) cache.getQuery(cacheKey);
+        if (ids == null)
+        {
+            return null;
+        }
+
+        List<PERSISTENTCLASS> result = new ArrayList<PERSISTENTCLASS>(ids.size());
+        for (Object id : ids)
+        {
+            PERSISTENTCLASS entity = getCached(daoContext, cache, id);
+            if (entity == null)
+            {
+                return null;
+            }
+            result.add(entity);
+        }
+        return result;
+    }
+
+    /**
+     * Return a <code>List</code> of all the entities in the table. Similar to
+     * {@link #listAll(DataAccessContext, Order)}, except that it handles issues
+     * with duplicate root elements due to embedded collections.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param order
+     *            <code>Order</code> in which the data should be returned.
+     *            (Optional - may be <code>null</code>.)
+     * @return <code>List</code> of all the entities. The returned <code>List</code> will not be
+     *         <code>null</code>, but may be
+     *         empty.
+     */
+    public List<PERSISTENTCLASS> listAllDistinct(DataAccessContext daoContext, Order order)
+    {
+        Criteria criteria = buildCriteria(daoContext).setComment(".listAll()");
+        if (order != null)
+        {
+            criteria.addOrder(order);
+        }
+        return listDistinct(criteria);
+    }
+
+    /**
+     * Return a <code>List</code> of entities in the table that meet the
+     * specified criteria.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param comment
+     *            Comment to be added to the query for debugging purposes.
+     *            (Optional - may be <code>null</code>).
+     * @param order
+     *            <code>Order</code> object indicating order in which to return
+     *            objects. (Optional - may be <code>null</code>).
+     * @param criterions
+     *            One or more <code>Criterion</code> objects describing the
+     *            objects to be selected.
+     * @return <code>List</code> of all the entities. The returned <code>List</code> will not be
+     *         <code>null</code>, but may be
+     *         empty.
+     */
+    public List<PERSISTENTCLASS> listByCriteria(DataAccessContext daoContext,
+                                                String comment,
+                                                Order order,
+                                                Criterion... criterions)
+    {
+        Criteria criteria = buildCriteria(daoContext, criterions);
+
+        if (comment != null)
+        {
+            criteria.setComment(comment);
+        }
+
+        if (order != null)
+        {
+            criteria.addOrder(order);
+        }
+
+        return list(criteria);
+    }
+
+    /**
+     * Return a <code>List</code> of entities in the table that meet the
+     * specified criteria.Similar to
+     * {@link #listByCriteria(DataAccessContext, String, Order, Criterion...)},
+     * except that it handles issues
+     * with duplicate root elements due to embedded collections.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param comment
+     *            Comment to be added to the query for debugging purposes.
+     *            (Optional - may be <code>null</code>).
+     * @param order
+     *            <code>Order</code> object indicating order in which to return
+     *            objects. (Optional - may be <code>null</code>).
+     * @param criterions
+     *            One or more <code>Criterion</code> objects describing the
+     *            objects to be selected.
+     * @return <code>List</code> of all the entities. The returned <code>List</code> will not be
+     *         <code>null</code>, but may be
+     *         empty.
+     */
+    public List<PERSISTENTCLASS> listDistinctByCriteria(DataAccessContext daoContext,
+                                                        String comment,
+                                                        Order order,
+                                                        Criterion... criterions)
+    {
+        Criteria criteria = buildCriteria(daoContext, criterions);
+
+        if (comment != null)
+        {
+            criteria.setComment(comment);
+        }
+
+        if (order != null)
+        {
+            criteria.addOrder(order);
+        }
+
+        return listDistinct(criteria);
+    }
+
+    /**
+     * Return one page of the entities in the table that meet the specified criteria, using
+     * keyset (or "seek") pagination rather than an offset.
+     * <p>
+     * The entities are ordered by <code>keyProperty</code>, and the page begins with the first
+     * entity whose key comes after <code>lastKey</code>. Since the database can seek directly to
+     * that key (assuming the column is indexed), the cost of retrieving a page does not depend on
+     * how deep into the results it is, unlike <code>setFirstResult</code>, which requires the
+     * database to scan and discard all the preceding rows.
+     * </p>
+     * <p>
+     * <code>keyProperty</code> must be unique and not null for the ordering to be stable (the
+     * <code>id</code> is usually a good choice). To find out whether there is a following page,
+     * ask for one more entity than the page size.
+     * </p>
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param comment
+     *            Comment to be added to the query for debugging purposes.
+     *            (Optional - may be <code>null</code>).
+     * @param keyProperty
+     *            Name of the unique property on which the entities are ordered.
+     * @param ascending
+     *            <code>true</code> to page in ascending key order, <code>false</code> for
+     *            descending.
+     * @param lastKey
+     *            Key of the last entity on the previous page, or <code>null</code> to retrieve
+     *            the first page.
+     * @param maxResults
+     *            Maximum number of entities to return.
+     * @param criterions
+     *            Zero or more <code>Criterion</code> objects describing the
+     *            objects to be selected.
+     * @return <code>List</code> of at most <code>maxResults</code> entities. The returned
+     *         <code>List</code> will not be <code>null</code>, but may be empty.
+     */
+    public List<PERSISTENTCLASS> listKeysetPage(DataAccessContext daoContext,
+                                                String comment,
+                                                String keyProperty,
+                                                boolean ascending,
+                                                Object lastKey,
+                                                int maxResults,
+                                                Criterion... criterions)
+    {
+        Criteria criteria = buildCriteria(daoContext, criterions);
+
+        if (comment != null)
+        {
+            criteria.setComment(comment);
+        }
+
+        if (lastKey != null)
+        {
+            criteria.add(ascending
+                ? Restrictions.gt(keyProperty, lastKey)
+                : Restrictions.lt(keyProperty, lastKey));
+        }
+
+        criteria.addOrder(ascending ? Order.asc(keyProperty) : Order.desc(keyProperty));
+        criteria.setMaxResults(maxResults);
+
+        return list(criteria);
+    }
+
+    /**
+     * Stream all the entities in the table to an {@link EntityProcessor}. Unlike
+     * {@link #listAll(DataAccessContext, Order)}, the result is not loaded into a
+     * <code>List</code>. Instead, the rows are read through a forward-only
+     * <code>ScrollableResults</code>, and each entity is evicted from the session as soon as the
+     * processor has handled it, so memory use stays constant regardless of the size of the table.
+     * <p>
+     * Eviction only cascades to associations mapped with <tt>cascade="evict"</tt>, so processors
+     * that navigate other lazy associations should evict those objects themselves.
+     * </p>
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param order
+     *            <code>Order</code> in which the data should be returned.
+     *            (Optional - may be <code>null</code>.)
+     * @param fetchSize
+     *            JDBC fetch size (number of rows retrieved per round trip). If zero or negative,
+     *            the driver default is used.
+     * @param processor
+     *            <code>EntityProcessor</code> to be handed each entity.
+     * @return Number of entities processed.
+     */
+    public long scrollAll(DataAccessContext daoContext,
+                          Order order,
+                          int fetchSize,
+                          EntityProcessor<? super PERSISTENTCLASS> processor)
+    {
+        Criteria criteria = buildCriteria(daoContext);
+        criteria.setComment(getClass().getSimpleName() + ".scrollAll()");
+        if (order != null)
+        {
+            criteria.addOrder(order);
+        }
+        return scroll(daoContext, criteria, fetchSize, processor);
+    }
+
+    /**
+     * Stream the entities in the table that meet the specified criteria to an
+     * {@link EntityProcessor}. This is the streaming equivalent of
+     * {@link #listByCriteria(DataAccessContext, String, Order, Criterion...)}.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param comment
+     *            Comment to be added to the query for debugging purposes.
+     *            (Optional - may be <code>null</code>).
+     * @param order
+     *            <code>Order</code> object indicating order in which to return
+     *            objects. (Optional - may be <code>null</code>).
+     * @param fetchSize
+     *            JDBC fetch size (number of rows retrieved per round trip). If zero or negative,
+     *            the driver default is used.
+     * @param processor
+     *            <code>EntityProcessor</code> to be handed each entity.
+     * @param criterions
+     *            One or more <code>Criterion</code> objects describing the
+     *            objects to be selected.
+     * @return Number of entities processed.
+     * @see #scrollAll(DataAccessContext, Order, int, EntityProcessor)
+     */
+    public long scrollByCriteria(DataAccessContext daoContext,
+                                 String comment,
+                                 Order order,
+                                 int fetchSize,
+                                 EntityProcessor<? super PERSISTENTCLASS> processor,
+                                 Criterion... criterions)
+    {
+        Criteria criteria = buildCriteria(daoContext, criterions);
+
+        if (comment != null)
+        {
+            criteria.setComment(comment);
+        }
+
+        if (order != null)
+        {
+            criteria.addOrder(order);
+        }
+
+        return scroll(daoContext, criteria, fetchSize, processor);
+    }
+
+    /**
+     * Utility function that applies the <code>DISTINCT_ROOT_ENTITY</code>
+     * <code>ResultTransformer</code>. This is useful if you have an entity with
      * one or more <code>&#x40;ElementCollection</code>s, since some of the
      * normal Hibernate retrieval processes will generate duplicate root
      * entities in this case.
@@ -549,6 +1955,98 @@ public abstract class BaseDAO<PERSISTENTCLASS, IDTYPE extends Serializable>
         return query.list();
     }
 
+    /**
+     * Stream the objects that satisfy the specified <code>Criteria</code> to an
+     * {@link EntityProcessor}, evicting each one from the session after it has been processed.
+     * <p>
+     * Note that the <code>DISTINCT_ROOT_ENTITY</code> transformer cannot be applied to scrolled
+     * results, so this should not be used with joins that produce duplicate root entities.
+     * </p>
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param criteria
+     *            <code>Criteria</code> object specifying the selection
+     *            criteria.
+     * @param fetchSize
+     *            JDBC fetch size. If zero or negative, the driver default is used.
+     * @param processor
+     *            <code>EntityProcessor</code> to be handed each entity.
+     * @return Number of entities processed.
+     */
+    protected long scroll(DataAccessContext daoContext,
+                          Criteria criteria,
+                          int fetchSize,
+                          EntityProcessor<? super PERSISTENTCLASS> processor)
+    {
+        if (fetchSize > 0)
+        {
+            criteria.setFetchSize(fetchSize);
+        }
+        criteria.setCacheMode(CacheMode.IGNORE);
+
+        return process(daoContext, criteria.scroll(ScrollMode.FORWARD_ONLY), processor);
+    }
+
+    /**
+     * Stream the objects that satisfy the specified <code>Query</code> to an
+     * {@link EntityProcessor}, evicting each one from the session after it has been processed.
+     * The query must return instances of <code>PERSISTENTCLASS</code> as its first (or only)
+     * column.
+     * 
+     * @param daoContext
+     *            {@link DataAccessContext} object for the database.
+     * @param query
+     *            <code>Query</code> object specifying retrieval.
+     * @param fetchSize
+     *            JDBC fetch size. If zero or negative, the driver default is used.
+     * @param processor
+     *            <code>EntityProcessor</code> to be handed each entity.
+     * @return Number of entities processed.
+     */
+    protected long scroll(DataAccessContext daoContext,
+                          Query query,
+                          int fetchSize,
+                          EntityProcessor<? super PERSISTENTCLASS> processor)
+    {
+        if (fetchSize > 0)
+        {
+            query.setFetchSize(fetchSize);
+        }
+        query.setCacheMode(CacheMode.IGNORE);
+
+        return process(daoContext, query.scroll(ScrollMode.FORWARD_ONLY), processor);
+    }
+
+    /*
+     * Hand each row of the results to the processor, evicting it afterwards, and make sure the
+     * results are closed no matter how we leave.
+     */
+    @SuppressWarnings("unchecked")
+    private long process(DataAccessContext daoContext,
+                         ScrollableResults results,
+                         EntityProcessor<? super PERSISTENTCLASS> processor)
+    {
+        long count = 0;
+
+        try
+        {
+            while (results.next())
+            {
+                PERSISTENTCLASS entity = (PERSISTENTCLASS) results.get(0);
+                processor.process(entity);
+                daoContext.evict(entity);
+                count++;
+            }
+        }
+        finally
+        {
+            results.close();
+        }
+
+        return count;
+    }
+
     /**
      * Utility method to return the unique entity that satisfies the specified <code>Criteria</code>
      * specification.
@@ -16,6 +16,14 @@
 
 package net.sourceforge.wsup.hibernate4.database;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
 import net.sourceforge.wsup.core.Assert;
 
 import org.hibernate.HibernateException;
@@ -23,6 +31,7 @@ import org.hibernate.Interceptor;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.jdbc.Work;
 import org.hibernate.service.ServiceRegistry;
 import org.hibernate.service.ServiceRegistryBuilder;
 import org.slf4j.Logger;
@@ -38,6 +47,12 @@ import org.slf4j.LoggerFactory;
  * used.
  * </p>
  * <p>
+ * Derived classes may also provide configurations for one or more read replicas by overriding
+ * {@link #createReplicaConfigurations()}. <code>Session</code>s obtained through
+ * {@link #createReadOnlyHibernateSession(boolean)} are then routed to a replica, falling back to
+ * the primary database if no replica is available.
+ * </p>
+ * <p>
  * Most of the methods on this class are threadsafe - they are marked. Those which are are
  * synchronized on the <code>BaseDatabase</code> object.
  * </p>
@@ -49,6 +64,20 @@ public abstract class BaseDatabase implements DatabaseContextProvider
 {
     private static final Logger              log = LoggerFactory.getLogger(BaseDatabase.class);
 
+    /**
+     * Work that makes a replica Session obtain its connection, which Hibernate otherwise defers
+     * until the first statement.
+     */
+    private static final Work                CONNECT = new Work()
+                                                     {
+                                                         @Override
+                                                         public void execute(Connection connection)
+                                                             throws SQLException
+                                                         {
+                                                             connection.getAutoCommit();
+                                                         }
+                                                     };
+
     /*
      * Hibernate SessionFactory. Accesses to this variable must be thread-safe,
      * and synchronized on "this".
@@ -74,6 +103,43 @@ public abstract class BaseDatabase implements DatabaseContextProvider
      */
     private volatile DatabaseTestInterceptor databaseTestInterceptor;
 
+    /*
+     * Statistics for operations made through DataAccessContexts, or null if
+     * they are not being collected.
+     */
+    private volatile QueryStatistics         queryStatistics;
+
+    /*
+     * Statistics for the session and transaction lifecycle of
+     * DatabaseContexts, or null if they are not being collected.
+     */
+    private volatile LifecycleStatistics     lifecycleStatistics;
+
+    /*
+     * Replica SessionFactories, in the order in which their Configurations
+     * were returned by createReplicaConfigurations. Accesses to this variable
+     * must be thread-safe, and synchronized on "this".
+     */
+    private volatile List<Replica>           replicas        = Collections.emptyList();
+
+    /*
+     * Replica from which each outstanding replica Session was obtained.
+     * Accesses to this variable must be synchronized on "this".
+     */
+    private final Map<Session, Replica>      replicaSessions = new IdentityHashMap<Session, Replica>();
+
+    /*
+     * How replicas are chosen. Accesses to this variable must be thread-safe,
+     * and synchronized on "this".
+     */
+    private volatile ReplicaSelection        replicaSelection = ReplicaSelection.ROUND_ROBIN;
+
+    /*
+     * Next replica to be tried for round-robin selection. Accesses to this
+     * variable must be synchronized on "this".
+     */
+    private int                              nextReplica;
+
     /**
      * Base constructor for derived classes
      */
@@ -102,6 +168,83 @@ public abstract class BaseDatabase implements DatabaseContextProvider
         return databaseTestInterceptor;
     }
 
+    /**
+     * Install a <code>QueryStatistics</code> in which the timings of all operations made through
+     * <code>DataAccessContext</code>s subsequently created for this database are recorded.
+     * <p>
+     * This method is thread-safe.
+     * </p>
+     * 
+     * @param queryStatistics
+     *            <code>QueryStatistics</code> instance, or <code>null</code> to stop collecting
+     *            statistics.
+     * @see InstrumentedDataAccessContext
+     */
+    public void setQueryStatistics(QueryStatistics queryStatistics)
+    {
+        this.queryStatistics = queryStatistics;
+    }
+
+    /**
+     * Get the current <code>QueryStatistics</code>.
+     * <p>
+     * This method is thread-safe.
+     * </p>
+     * 
+     * @return <code>QueryStatistics</code> instance or <code>null</code>.
+     */
+    public QueryStatistics getQueryStatistics()
+    {
+        return queryStatistics;
+    }
+
+    /**
+     * Install a <code>LifecycleStatistics</code> in which the session and transaction lifecycle of
+     * all the <code>DatabaseContextImpl</code>s for this database, and the attempts made by
+     * <code>DatabaseCommandRunnerImpl</code>s, are recorded. Sessions that are already open when
+     * this is called are not recorded.
+     * <p>
+     * This method is thread-safe.
+     * </p>
+     * 
+     * @param lifecycleStatistics
+     *            <code>LifecycleStatistics</code> instance, or <code>null</code> to stop
+     *            collecting statistics.
+     */
+    public void setLifecycleStatistics(LifecycleStatistics lifecycleStatistics)
+    {
+        this.lifecycleStatistics = lifecycleStatistics;
+    }
+
+    /**
+     * Get the current <code>LifecycleStatistics</code>.
+     * <p>
+     * This method is thread-safe.
+     * </p>
+     * 
+     * @return <code>LifecycleStatistics</code> instance or <code>null</code>.
+     */
+    public LifecycleStatistics getLifecycleStatistics()
+    {
+        return lifecycleStatistics;
+    }
+
+    /**
+     * Get a snapshot of the current <code>LifecycleStatistics</code>.
+     * <p>
+     * This method is thread-safe.
+     * </p>
+     * 
+     * @return <code>LifecycleStatistics.Snapshot</code>, or <code>null</code> if no
+     *         <code>LifecycleStatistics</code> is installed.
+     * @see #setLifecycleStatistics(LifecycleStatistics)
+     */
+    public LifecycleStatistics.Snapshot getLifecycleSnapshot()
+    {
+        LifecycleStatistics statistics = lifecycleStatistics;
+        return statistics == null ? null : statistics.getSnapshot();
+    }
+
     /**
      * "Open" the database, making it possible to create <code>Session</code>s.
      * Opening a database that is already open is benign, although an
@@ -136,7 +279,34 @@ public abstract class BaseDatabase implements DatabaseContextProvider
         }
         ServiceRegistry serviceRegistry = createServiceRegistry(configuration);
         outstandingSessions = 0;
-        sessionFactory = configuration.buildSessionFactory(serviceRegistry);
+        SessionFactory primary = configuration.buildSessionFactory(serviceRegistry);
+
+        List<Replica> newReplicas = new ArrayList<Replica>();
+        try
+        {
+            for (Configuration replicaConfiguration : createReplicaConfigurations())
+            {
+                if (sessionInterceptor != null)
+                {
+                    replicaConfiguration.setInterceptor(sessionInterceptor);
+                }
+                ServiceRegistry replicaRegistry = createServiceRegistry(replicaConfiguration);
+                newReplicas.add(new Replica(newReplicas.size(), replicaConfiguration
+                    .buildSessionFactory(replicaRegistry)));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // don't leak the connection pools of what has been built so far
+            closeReplicas(newReplicas);
+            closeQuietly(primary);
+            configuration = null;
+            throw e;
+        }
+
+        sessionFactory = primary;
+        replicas = newReplicas;
+        nextReplica = 0;
     }
 
     /**
@@ -170,12 +340,15 @@ public abstract class BaseDatabase implements DatabaseContextProvider
 
         try
         {
+            closeReplicas(replicas);
             sessionFactory.close();
         }
         finally
         {
             sessionFactory = null;
             configuration = null;
+            replicas = Collections.emptyList();
+            replicaSessions.clear();
         }
     }
 
@@ -256,6 +429,80 @@ public abstract class BaseDatabase implements DatabaseContextProvider
         return session;
     }
 
+    /**
+     * Create and return a Hibernate <code>Session</code> object for read-only use. If any replicas
+     * are configured, the <code>Session</code> is opened on one of them, chosen according to the
+     * current {@link ReplicaSelection}. A replica to which no connection can be made, or whose
+     * <code>Session</code> fails verification, is ejected for {@link #getReplicaRetryInterval()}
+     * milliseconds, after which it is tried again.
+     * If no replica is available, the <code>Session</code> is opened on the primary database as
+     * if by {@link #createHibernateSession(boolean)}.
+     * <p>
+     * <code>Session</code>s created through this call should be closed by passing them to
+     * {@link #closeHibernateSession(Session)}.
+     * </p>
+     * <p>
+     * This method is thread-safe.
+     * </p>
+     * 
+     * @param verify
+     *            If <code>true</code>, the <code>Session</code> is verified before being returned.
+     *            A replica returning from ejection is always verified.
+     * @return Hibernate <code>Session</code> object
+     * @throws HibernateException
+     * @see #createReplicaConfigurations()
+     * @see #closeHibernateSession(Session)
+     */
+    public Session createReadOnlyHibernateSession(boolean verify) throws HibernateException
+    {
+        String verificationSQL = getVerificationSQL();
+
+        for (int i = 0; i < replicas.size(); i++)
+        {
+            Replica replica = selectReplica();
+            if (replica == null)
+            {
+                break;
+            }
+
+            boolean verifying = verificationSQL != null && (verify || isReplicaEjected(replica));
+            Session session = null;
+            try
+            {
+                session = getRawReplicaSession(replica);
+                if (verifying)
+                {
+                    session.createSQLQuery(verificationSQL).list();
+                }
+                else
+                {
+                    // Obtain the connection now, so an unreachable replica is ejected here
+                    session.doWork(CONNECT);
+                }
+            }
+            catch (HibernateException e)
+            {
+                if (session != null)
+                {
+                    closeHibernateSession(session);
+                }
+                ejectReplica(replica, verifying ? "failed verification" : "failed connection", e);
+                continue;
+            }
+
+            restoreReplica(replica);
+
+            if (databaseTestInterceptor != null)
+            {
+                session = databaseTestInterceptor.interceptCreateSession(session);
+            }
+
+            return session;
+        }
+
+        return createHibernateSession(verify);
+    }
+
     /**
      * Close a <code>Session</code> previously retrieved from <code>createHibernateSession</code>.
      * Closing a session this way keeps the
@@ -276,7 +523,16 @@ public abstract class BaseDatabase implements DatabaseContextProvider
             session = databaseTestInterceptor.interceptCloseSession(session);
         }
 
-        outstandingSessions--;
+        Replica replica = replicaSessions.remove(session);
+        if (replica != null)
+        {
+            replica.sessionClosed();
+        }
+        else
+        {
+            outstandingSessions--;
+        }
+
         try
         {
             session.close();
@@ -287,6 +543,8 @@ public abstract class BaseDatabase implements DatabaseContextProvider
         }
 
         Assert.isTrue(outstandingSessions >= 0, "session count corrupted");
+        Assert.isTrue(replica == null || replica.getOutstandingSessions() >= 0,
+                      "replica session count corrupted");
     }
 
     /**
@@ -302,6 +560,82 @@ public abstract class BaseDatabase implements DatabaseContextProvider
         return outstandingSessions;
     }
 
+    /**
+     * Return the number of replicas configured for the database. This is zero if the database is
+     * not open.
+     * <p>
+     * This method is thread-safe.
+     * </p>
+     * 
+     * @return Number of replicas.
+     * @see #createReplicaConfigurations()
+     */
+    public synchronized int getReplicaCount()
+    {
+        return replicas.size();
+    }
+
+    /**
+     * Return the number of outstanding sessions on a replica.
+     * <p>
+     * This method is thread-safe.
+     * </p>
+     * 
+     * @param index
+     *            Index of the replica, in the order returned from
+     *            <code>createReplicaConfigurations</code>.
+     * @return Outstanding number of Hibernate <code>Session</code>s on that replica.
+     */
+    public synchronized int getReplicaOutstandingSessionCount(int index)
+    {
+        return replicas.get(index).getOutstandingSessions();
+    }
+
+    /**
+     * Is a replica currently ejected following a failed connection or verification?
+     * <p>
+     * This method is thread-safe.
+     * </p>
+     * 
+     * @param index
+     *            Index of the replica, in the order returned from
+     *            <code>createReplicaConfigurations</code>.
+     * @return <code>true</code> if it is ejected, <code>false</code> if it is in use.
+     */
+    public synchronized boolean isReplicaEjected(int index)
+    {
+        return replicas.get(index).isEjected();
+    }
+
+    /**
+     * Set how replicas are chosen by <code>createReadOnlyHibernateSession</code>. The default is
+     * {@link ReplicaSelection#ROUND_ROBIN}.
+     * <p>
+     * This method is thread-safe.
+     * </p>
+     * 
+     * @param replicaSelection
+     *            Selection strategy.
+     */
+    public synchronized void setReplicaSelection(ReplicaSelection replicaSelection)
+    {
+        Assert.isNotNull(replicaSelection);
+        this.replicaSelection = replicaSelection;
+    }
+
+    /**
+     * Get how replicas are chosen by <code>createReadOnlyHibernateSession</code>.
+     * <p>
+     * This method is thread-safe.
+     * </p>
+     * 
+     * @return Selection strategy.
+     */
+    public synchronized ReplicaSelection getReplicaSelection()
+    {
+        return replicaSelection;
+    }
+
     /**
      * Derived classes may override this method to provide the base
      * implementation with a <code>Configuration</code> object. This method is
@@ -334,6 +668,42 @@ public abstract class BaseDatabase implements DatabaseContextProvider
         return configuration;
     }
 
+    /**
+     * Derived classes may override this method to provide <code>Configuration</code> objects for
+     * read replicas of the database. Each is typically a copy of the primary configuration with
+     * different connection properties. A separate <code>SessionFactory</code> is built from each,
+     * using <code>createServiceRegistry</code> and the <code>Interceptor</code> from
+     * <code>getHibernateSessionInterceptor</code>.
+     * <p>
+     * The default implementation returns an empty list, meaning that all <code>Session</code>s are
+     * opened on the primary database.
+     * </p>
+     * <p>
+     * This method is called from <code>open</code>, which is synchronized. Thus, overrides of this
+     * method are not required to implement their own thread safety.
+     * </p>
+     * 
+     * @return List of Hibernate <code>Configuration</code> objects.
+     * @throws HibernateException
+     * @see #createReadOnlyHibernateSession(boolean)
+     */
+    protected List<Configuration> createReplicaConfigurations() throws HibernateException
+    {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Overrideable method that returns the amount of time for which a replica that fails
+     * connection or verification is ejected before being tried again. The default implementation
+     * returns 30000, meaning 30 seconds.
+     * 
+     * @return Retry interval (in milliseconds).
+     */
+    protected long getReplicaRetryInterval()
+    {
+        return 30L * 1000L;
+    }
+
     /**
      * Derived classes may override this function to alter the way the <code>ServiceRegistry</code>
      * is built. The default implementation:
@@ -534,4 +904,121 @@ public abstract class BaseDatabase implements DatabaseContextProvider
 
         return session;
     }
+
+    /**
+     * Choose a usable replica according to the current selection strategy.
+     * 
+     * @return <code>Replica</code>, or <code>null</code> if none is usable.
+     */
+    private synchronized Replica selectReplica()
+    {
+        long now = System.currentTimeMillis();
+        int count = replicas.size();
+        Replica selected = null;
+
+        for (int i = 0; i < count; i++)
+        {
+            Replica replica = replicas.get((nextReplica + i) % count);
+            if (!replica.isUsable(now))
+            {
+                continue;
+            }
+
+            if (replicaSelection == ReplicaSelection.ROUND_ROBIN)
+            {
+                selected = replica;
+                break;
+            }
+
+            if (selected == null
+                || replica.getOutstandingSessions() < selected.getOutstandingSessions())
+            {
+                selected = replica;
+            }
+        }
+
+        if (selected != null)
+        {
+            nextReplica = (selected.getIndex() + 1) % count;
+        }
+
+        return selected;
+    }
+
+    /**
+     * Open a <code>Session</code> on a replica, and track it against that
+     * replica.
+     */
+    private synchronized Session getRawReplicaSession(Replica replica) throws HibernateException
+    {
+        Assert.isTrue(sessionFactory != null, "createHibernateSession on database that isn't open");
+
+        Session session = replica.getSessionFactory().openSession();
+
+        replica.sessionOpened();
+        replicaSessions.put(session, replica);
+
+        return session;
+    }
+
+    private synchronized boolean isReplicaEjected(Replica replica)
+    {
+        return replica.isEjected();
+    }
+
+    private synchronized void ejectReplica(Replica replica, String reason, HibernateException e)
+    {
+        if (!replica.isEjected())
+        {
+            log.warn("Ejecting replica " + replica.getIndex() + " after " + reason, e);
+        }
+
+        replica.eject(System.currentTimeMillis() + getReplicaRetryInterval());
+    }
+
+    private synchronized void restoreReplica(Replica replica)
+    {
+        if (replica.isEjected())
+        {
+            log.info("Replica {} restored", replica.getIndex());
+            replica.restore();
+        }
+    }
+
+    /**
+     * Close the replica SessionFactories during <code>close</code>.
+     */
+    private void closeReplicas(List<Replica> closing)
+    {
+        for (Replica replica : closing)
+        {
+            if (replica.getOutstandingSessions() != 0)
+            {
+                log.warn("Closing replica {} with {} outstanding sessions",
+                         replica.getIndex(),
+                         replica.getOutstandingSessions());
+            }
+
+            try
+            {
+                replica.getSessionFactory().close();
+            }
+            catch (HibernateException e)
+            {
+                log.warn("Exception while closing replica " + replica.getIndex(), e);
+            }
+        }
+    }
+
+    private void closeQuietly(SessionFactory factory)
+    {
+        try
+        {
+            factory.close();
+        }
+        catch (HibernateException e)
+        {
+            log.warn("Exception while closing session factory", e);
+        }
+    }
 }
@@ -22,6 +22,8 @@ import java.io.Serializable;
 import java.sql.Blob;
 import java.sql.Clob;
 
+import javax.transaction.Synchronization;
+
 import org.hibernate.CacheMode;
 import org.hibernate.Criteria;
 import org.hibernate.Filter;
@@ -35,6 +37,7 @@ import org.hibernate.SQLQuery;
 import org.hibernate.Session.LockRequest;
 import org.hibernate.TransientObjectException;
 import org.hibernate.UnknownProfileException;
+import org.hibernate.dialect.Dialect;
 import org.hibernate.jdbc.Work;
 import org.hibernate.stat.SessionStatistics;
 
@@ -195,6 +198,13 @@ public interface DataAccessContext
      */
     public void evict(Object object) throws HibernateException;
 
+    /**
+     * Completely clear the session. Evict all loaded instances and cancel all
+     * pending saves, updates and deletions. Do not close open iterators or
+     * instances of <tt>ScrollableResults</tt>.
+     */
+    public void clear();
+
     /**
      * Return the persistent instance of the given entity class with the given
      * identifier, obtaining the specified lock mode, assuming the instance
@@ -687,6 +697,101 @@ public interface DataAccessContext
      */
     public String getEntityName(Object object) throws HibernateException;
 
+    /**
+     * Return the persistent instance of the given entity class with the given
+     * identifier if it is already associated with the session, without going
+     * to the database. Instances that have been deleted in the session are
+     * not returned.
+     * 
+     * @param clazz
+     *            a persistent class
+     * @param id
+     *            an identifier
+     * @return a persistent instance or null
+     * @throws HibernateException
+     */
+    public Object getFromSession(Class<?> clazz, Serializable id) throws HibernateException;
+
+    /**
+     * Return a snapshot of the state of a persistent instance that can be held independently of
+     * any session. This is the "disassembled" form used by Hibernate's second-level cache: values
+     * are deep copied and references to other entities are replaced by their identifiers.
+     * Collection-valued properties are not included.
+     * 
+     * @param entity
+     *            a persistent instance associated with the session
+     * @return snapshot of the instance's properties
+     * @throws HibernateException
+     * @see #createFromSnapshot(Class, Serializable, Serializable[])
+     */
+    public Serializable[] getEntitySnapshot(Object entity) throws HibernateException;
+
+    /**
+     * Create a new, detached instance of the given entity class from a snapshot returned by
+     * {@link #getEntitySnapshot(Object)}. References to other entities are resolved through the
+     * session (typically as proxies). Collection-valued properties are left <code>null</code>.
+     * 
+     * @param clazz
+     *            a persistent class
+     * @param id
+     *            the identifier of the instance
+     * @param snapshot
+     *            snapshot of the instance's properties
+     * @return a new, detached instance
+     * @throws HibernateException
+     */
+    public Object createFromSnapshot(Class<?> clazz, Serializable id, Serializable[] snapshot)
+        throws HibernateException;
+
+    /**
+     * Return the identifier value of an instance of a persistent class, read from the instance
+     * itself through the class metadata. Unlike {@link #getIdentifier(Object)}, this works for
+     * detached instances as well as for those associated with the session.
+     * 
+     * @param entity
+     *            an instance of a persistent class
+     * @return the identifier, or <code>null</code> if the instance has none yet
+     * @throws HibernateException
+     */
+    public Serializable getEntityIdentifier(Object entity) throws HibernateException;
+
+    /**
+     * Register a callback for the completion (commit or rollback) of the current transaction.
+     * If no transaction is active there is nothing to wait for, so the callback is completed (as
+     * if committed) at once.
+     * 
+     * @param synchronization
+     *            the callback
+     * @throws HibernateException
+     */
+    public void registerSynchronization(Synchronization synchronization) throws HibernateException;
+
+    /**
+     * Register a callback for the completion of the current transaction under a key, so that
+     * later calls in the same transaction can find it with {@link #getSynchronization(Object)}
+     * and add to it rather than register another. If no transaction is active there is nothing
+     * to wait for, so the callback is completed (as if committed) at once.
+     * 
+     * @param key
+     *            key under which the callback is registered
+     * @param synchronization
+     *            the callback
+     * @throws HibernateException
+     */
+    public void registerSynchronization(Object key, Synchronization synchronization)
+        throws HibernateException;
+
+    /**
+     * Return the callback registered under a key by
+     * {@link #registerSynchronization(Object, Synchronization)} for the current transaction.
+     * 
+     * @param key
+     *            key under which the callback was registered
+     * @return the callback, or <code>null</code> if none has been registered under the key since
+     *         the current transaction began (or no transaction is active)
+     */
+    public Synchronization getSynchronization(Object key);
+
     /**
      * Enable the named filter for this current session.
      * 
@@ -815,6 +920,23 @@ public interface DataAccessContext
      */
     public String getTableNameForClass(Class<?> persistentClass) throws HibernateException;
 
+    /**
+     * Return the JDBC batch size configured for the database via the
+     * <code>hibernate.jdbc.batch_size</code> property.
+     * 
+     * @return Configured batch size, or zero if JDBC batching has not been
+     *         configured.
+     */
+    public int getJdbcBatchSize();
+
+    /**
+     * Return the SQL <code>Dialect</code> in use for the database.
+     * 
+     * @return <code>Dialect</code> object.
+     * @throws HibernateException
+     */
+    public Dialect getDialect() throws HibernateException;
+
     /**
      * Create a <code>Blob</code> associated with the current session. If called
      * before <code>beginSession</code>, this method will automatically begin a
@@ -22,6 +22,8 @@ import java.io.Serializable;
 import java.sql.Blob;
 import java.sql.Clob;
 
+import javax.transaction.Synchronization;
+
 import org.hibernate.CacheMode;
 import org.hibernate.Criteria;
 import org.hibernate.Filter;
@@ -35,8 +37,18 @@ import org.hibernate.SQLQuery;
 import org.hibernate.Session;
 import org.hibernate.Session.LockRequest;
 import org.hibernate.UnknownProfileException;
+import org.hibernate.cfg.Environment;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.Status;
+import org.hibernate.internal.util.config.ConfigurationHelper;
 import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.stat.SessionStatistics;
+import org.hibernate.type.Type;
 
 /**
  * Implementation of the <code>DataAccessContext</code> interface that is
@@ -82,6 +94,15 @@ public class DataAccessContextImpl implements DataAccessContext
         databaseContext.getSafeSession().cancelQuery();
     }
 
+    /**
+     * @see DataAccessContext#clear()
+     */
+    @Override
+    public void clear()
+    {
+        databaseContext.getSafeSession().clear();
+    }
+
     /**
      * @see DataAccessContext#contains(java.lang.Object)
      */
@@ -318,6 +339,121 @@ public class DataAccessContextImpl implements DataAccessContext
         return databaseContext.getSafeSession().getEntityName(object);
     }
 
+    /**
+     * @see DataAccessContext#getFromSession(java.lang.Class, java.io.Serializable)
+     */
+    @Override
+    public Object getFromSession(Class<?> clazz, Serializable id) throws HibernateException
+    {
+        SessionImplementor session = (SessionImplementor) databaseContext.getSafeSession();
+        EntityPersister persister = session.getFactory().getEntityPersister(clazz.getName());
+        PersistenceContext persistenceContext = session.getPersistenceContext();
+
+        Object entity = persistenceContext.getEntity(session.generateEntityKey(id, persister));
+        if (entity == null)
+        {
+            return null;
+        }
+
+        EntityEntry entry = persistenceContext.getEntry(entity);
+        Status status = entry != null ? entry.getStatus() : null;
+        if (status == Status.DELETED || status == Status.GONE)
+        {
+            return null;
+        }
+
+        return entity;
+    }
+
+    /**
+     * @see DataAccessContext#getEntitySnapshot(java.lang.Object)
+     */
+    @Override
+    public Serializable[] getEntitySnapshot(Object entity) throws HibernateException
+    {
+        SessionImplementor session = (SessionImplementor) databaseContext.getSafeSession();
+        EntityPersister persister = session.getEntityPersister(null, entity);
+        Type[] types = persister.getPropertyTypes();
+        Object[] values = persister.getPropertyValues(entity);
+
+        Serializable[] snapshot = new Serializable[types.length];
+        for (int i = 0; i < types.length; i++)
+        {
+            if (!types[i].isCollectionType())
+            {
+                snapshot[i] = types[i].disassemble(values[i], session, entity);
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * @see DataAccessContext#createFromSnapshot(java.lang.Class, java.io.Serializable,
+     *      java.io.Serializable[])
+     */
+    @Override
+    public Object createFromSnapshot(Class<?> clazz, Serializable id, Serializable[] snapshot)
+        throws HibernateException
+    {
+        SessionImplementor session = (SessionImplementor) databaseContext.getSafeSession();
+        EntityPersister persister = session.getFactory().getEntityPersister(clazz.getName());
+        Type[] types = persister.getPropertyTypes();
+
+        Object entity = persister.instantiate(id, session);
+        Object[] values = new Object[types.length];
+        for (int i = 0; i < types.length; i++)
+        {
+            if (!types[i].isCollectionType())
+            {
+                values[i] = types[i].assemble(snapshot[i], session, entity);
+            }
+        }
+        persister.setPropertyValues(entity, values);
+
+        return entity;
+    }
+
+    /**
+     * @see DataAccessContext#getEntityIdentifier(java.lang.Object)
+     */
+    @Override
+    public Serializable getEntityIdentifier(Object entity) throws HibernateException
+    {
+        SessionImplementor session = (SessionImplementor) databaseContext.getSafeSession();
+        return session.getEntityPersister(null, entity).getIdentifier(entity, session);
+    }
+
+    /**
+     * @see DataAccessContext#registerSynchronization(javax.transaction.Synchronization)
+     */
+    @Override
+    public void registerSynchronization(Synchronization synchronization)
+        throws HibernateException
+    {
+        databaseContext.registerSynchronization(null, synchronization);
+    }
+
+    /**
+     * @see DataAccessContext#registerSynchronization(java.lang.Object,
+     *      javax.transaction.Synchronization)
+     */
+    @Override
+    public void registerSynchronization(Object key, Synchronization synchronization)
+        throws HibernateException
+    {
+        databaseContext.registerSynchronization(key, synchronization);
+    }
+
+    /**
+     * @see DataAccessContext#getSynchronization(java.lang.Object)
+     */
+    @Override
+    public Synchronization getSynchronization(Object key)
+    {
+        return databaseContext.getSynchronization(key);
+    }
+
     /**
      * @see DataAccessContext#getFlushMode()
      */
@@ -621,6 +757,26 @@ public class DataAccessContextImpl implements DataAccessContext
             .getTable().getName();
     }
 
+    /**
+     * @see DataAccessContext#getJdbcBatchSize()
+     */
+    @Override
+    public int getJdbcBatchSize()
+    {
+        return ConfigurationHelper.getInt(Environment.STATEMENT_BATCH_SIZE, getDatabase()
+            .getConfiguration().getProperties(), 0);
+    }
+
+    /**
+     * @see DataAccessContext#getDialect()
+     */
+    @Override
+    public Dialect getDialect() throws HibernateException
+    {
+        return ((SessionFactoryImplementor) databaseContext.getSafeSession().getSessionFactory())
+            .getDialect();
+    }
+
     /**
      * @see DataAccessContext#createBlob(byte[])
      */
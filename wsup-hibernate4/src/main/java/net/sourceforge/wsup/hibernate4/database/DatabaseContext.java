@@ -121,6 +121,18 @@ public interface DatabaseContext
      */
     public void destroySession();
 
+    /**
+     * Rollback any outstanding transaction and close the current session, following a failure.
+     * This behaves exactly as {@link #destroySession()}, except that if a transaction is rolled
+     * back, the failure is recorded as the reason in any {@link LifecycleStatistics} installed on
+     * the database.
+     * 
+     * @param cause
+     *            The failure that caused the session to be destroyed, or <code>null</code> if not
+     *            known.
+     */
+    public void destroySession(Throwable cause);
+
     /**
      * Is there currently a session open?
      * 
@@ -141,6 +153,34 @@ public interface DatabaseContext
      */
     public boolean isInTransaction();
 
+    /**
+     * Set whether or not this context operates in read-only mode. In read-only mode, the
+     * <code>Session</code> loads entities read-only, so that no snapshots are retained for dirty
+     * checking, and is never flushed.
+     * <p>
+     * The setting applies immediately to an open <code>Session</code>, and to any
+     * <code>Session</code> subsequently begun. Leaving read-only mode restores the flush mode and
+     * default read-only setting that an open <code>Session</code> had before it was entered.
+     * <code>Session</code>s begun in read-only mode are obtained from
+     * {@link BaseDatabase#createReadOnlyHibernateSession(boolean)}, and so may be routed to a read
+     * replica. The JDBC connection itself is not marked read-only, since it may be returned to a
+     * connection pool as soon as the transaction ends.
+     * </p>
+     * 
+     * @param readOnly
+     *            <code>true</code> for read-only mode, <code>false</code> for the normal
+     *            read-write mode.
+     */
+    public void setReadOnly(boolean readOnly);
+
+    /**
+     * Is this context operating in read-only mode?
+     * 
+     * @return <code>true</code> if so, <code>false</code> if not.
+     * @see #setReadOnly(boolean)
+     */
+    public boolean isReadOnly();
+
     /**
      * Create a <code>DataAccessContext</code> object associated with the
      * current session. If called before <code>beginSession</code>, this method
@@ -20,9 +20,15 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.sql.Blob;
 import java.sql.Clob;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
 
 import net.sourceforge.wsup.core.Assert;
 
+import org.hibernate.FlushMode;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
@@ -46,6 +52,33 @@ public class DatabaseContextImpl implements DatabaseContext
 
     private Transaction         transaction;
 
+    private boolean             readOnly;
+
+    /*
+     * Whether read-only mode has been applied to the open session, and if so the session's
+     * settings from before it was, so that they can be put back.
+     */
+    private boolean             sessionReadOnly;
+
+    private FlushMode           savedFlushMode;
+
+    private boolean             savedDefaultReadOnly;
+
+    /*
+     * Statistics in which the current session's lifecycle is recorded, as
+     * installed on the database when the session was opened, or null.
+     */
+    private LifecycleStatistics statistics;
+
+    private long                sessionStart;
+
+    private long                transactionStart;
+
+    /*
+     * Callbacks registered under a key for the current transaction.
+     */
+    private final Map<Object, Synchronization> synchronizations = new HashMap<Object, Synchronization>();
+
     /**
      * Constructor.
      * 
@@ -66,7 +99,26 @@ public class DatabaseContextImpl implements DatabaseContext
     {
         if (session == null)
         {
-            session = database.createHibernateSession(preverify);
+            if (readOnly)
+            {
+                session = database.createReadOnlyHibernateSession(preverify);
+            }
+            else
+            {
+                session = database.createHibernateSession(preverify);
+            }
+
+            statistics = database.getLifecycleStatistics();
+            if (statistics != null)
+            {
+                sessionStart = System.nanoTime();
+                statistics.sessionOpened();
+            }
+
+            if (readOnly)
+            {
+                applyReadOnly();
+            }
         }
     }
 
@@ -81,6 +133,7 @@ public class DatabaseContextImpl implements DatabaseContext
             beginSession(false);
 
             transaction = session.beginTransaction();
+            transactionStart = System.nanoTime();
         }
     }
 
@@ -103,18 +156,28 @@ public class DatabaseContextImpl implements DatabaseContext
     {
         Assert.isNotNull(transaction);
 
+        long commitStart = System.nanoTime();
+
         try
         {
             transaction.commit();
+
+            if (statistics != null)
+            {
+                long now = System.nanoTime();
+                statistics.transactionCommitted(now - transactionStart, now - commitStart);
+            }
         }
         catch (HibernateException e)
         {
+            recordRollback(e.getClass().getName());
             doCloseSession();
             throw e;
         }
         finally
         {
             transaction = null;
+            synchronizations.clear();
         }
     }
 
@@ -132,7 +195,9 @@ public class DatabaseContextImpl implements DatabaseContext
         }
         finally
         {
+            recordRollback(LifecycleStatistics.REASON_REQUESTED);
             transaction = null;
+            synchronizations.clear();
             doCloseSession();
         }
     }
@@ -142,6 +207,15 @@ public class DatabaseContextImpl implements DatabaseContext
      */
     @Override
     public void destroySession()
+    {
+        destroySession(null);
+    }
+
+    /**
+     * @see DatabaseContext#destroySession(Throwable)
+     */
+    @Override
+    public void destroySession(Throwable cause)
     {
         if (transaction != null)
         {
@@ -152,11 +226,20 @@ public class DatabaseContextImpl implements DatabaseContext
             catch (HibernateException e)
             {
                 log.info("Exception eaten during destroySession/rollback", e);
+                if (statistics != null)
+                {
+                    statistics.exceptionSuppressed();
+                }
             }
 
+            recordRollback(cause == null ? LifecycleStatistics.REASON_DESTROYED
+                                         : cause.getClass().getName());
             transaction = null;
+            synchronizations.clear();
         }
 
+        LifecycleStatistics sessionStatistics = statistics;
+
         try
         {
             doCloseSession();
@@ -164,6 +247,10 @@ public class DatabaseContextImpl implements DatabaseContext
         catch (HibernateException e)
         {
             log.info("Exception eaten during destroySession/close", e);
+            if (sessionStatistics != null)
+            {
+                sessionStatistics.exceptionSuppressed();
+            }
         }
     }
 
@@ -185,6 +272,29 @@ public class DatabaseContextImpl implements DatabaseContext
         return session != null;
     }
 
+    /**
+     * @see DatabaseContext#setReadOnly(boolean)
+     */
+    @Override
+    public void setReadOnly(boolean readOnly)
+    {
+        this.readOnly = readOnly;
+
+        if (session != null)
+        {
+            applyReadOnly();
+        }
+    }
+
+    /**
+     * @see DatabaseContext#isReadOnly()
+     */
+    @Override
+    public boolean isReadOnly()
+    {
+        return readOnly;
+    }
+
     /**
      * @see DatabaseContext#createDataAccessContext()
      */
@@ -193,7 +303,15 @@ public class DatabaseContextImpl implements DatabaseContext
     {
         beginSession(false);
 
-        return new DataAccessContextImpl(this);
+        DataAccessContext daoContext = new DataAccessContextImpl(this);
+
+        QueryStatistics queryStatistics = database.getQueryStatistics();
+        if (queryStatistics != null)
+        {
+            daoContext = InstrumentedDataAccessContext.instrument(daoContext, queryStatistics);
+        }
+
+        return daoContext;
     }
 
     /**
@@ -278,6 +396,100 @@ public class DatabaseContextImpl implements DatabaseContext
         return transaction;
     }
 
+    /**
+     * Register a callback for the completion of the current transaction, optionally under a key,
+     * or complete it at once if no transaction is active.
+     * 
+     * @param key
+     *            key under which the callback is registered, or <code>null</code>
+     * @param synchronization
+     *            the callback
+     * @see DataAccessContext#registerSynchronization(Object, Synchronization)
+     */
+    void registerSynchronization(final Object key, Synchronization synchronization)
+    {
+        Transaction current = getSafeSession().getTransaction();
+        if (current == null || !current.isActive())
+        {
+            synchronization.beforeCompletion();
+            synchronization.afterCompletion(Status.STATUS_COMMITTED);
+            return;
+        }
+
+        current.registerSynchronization(synchronization);
+        if (key == null)
+        {
+            return;
+        }
+
+        current.registerSynchronization(new Synchronization()
+        {
+            @Override
+            public void beforeCompletion()
+            {
+            }
+
+            @Override
+            public void afterCompletion(int status)
+            {
+                synchronizations.remove(key);
+            }
+        });
+        synchronizations.put(key, synchronization);
+    }
+
+    /**
+     * Return the callback registered under a key for the current transaction.
+     * 
+     * @param key
+     *            key under which the callback was registered
+     * @return the callback, or <code>null</code> if there is none
+     * @see DataAccessContext#getSynchronization(Object)
+     */
+    Synchronization getSynchronization(Object key)
+    {
+        return synchronizations.get(key);
+    }
+
+    /**
+     * Apply the current read-only setting to the open session, if it has changed. The session's
+     * own settings are saved on entering read-only mode, and restored on leaving it.
+     */
+    private void applyReadOnly()
+    {
+        if (readOnly == sessionReadOnly)
+        {
+            return;
+        }
+
+        if (readOnly)
+        {
+            savedFlushMode = session.getFlushMode();
+            savedDefaultReadOnly = session.isDefaultReadOnly();
+            session.setDefaultReadOnly(true);
+            session.setFlushMode(FlushMode.MANUAL);
+        }
+        else
+        {
+            session.setDefaultReadOnly(savedDefaultReadOnly);
+            session.setFlushMode(savedFlushMode);
+        }
+
+        sessionReadOnly = readOnly;
+    }
+
+    /**
+     * Record the rollback of the current transaction, if statistics are being
+     * collected.
+     */
+    private void recordRollback(String reason)
+    {
+        if (statistics != null)
+        {
+            statistics.transactionRolledBack(System.nanoTime() - transactionStart, reason);
+        }
+    }
+
     /**
      * Do the actual work of closing a session, if required, ensuring that the
      * session object is cleaned up even if an exception is thrown.
@@ -293,6 +505,13 @@ public class DatabaseContextImpl implements DatabaseContext
             finally
             {
                 session = null;
+                sessionReadOnly = false;
+
+                if (statistics != null)
+                {
+                    statistics.sessionClosed(System.nanoTime() - sessionStart);
+                    statistics = null;
+                }
             }
         }
     }
@@ -0,0 +1,391 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.hibernate4.database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Bounded, time-limited cache used by a <code>BaseDAO</code> to avoid going to the database for
+ * entities that are read much more often than they are written, such as lookup tables. See
+ * {@link BaseDAO#setEntityCache(EntityCache)}.
+ * <p>
+ * The cache holds two kinds of entries, each limited to the configured maximum number of entries
+ * and each evicted in least-recently-used order:
+ * </p>
+ * <ul>
+ * <li>entity snapshots, keyed by ID, and</li>
+ * <li>query results (lists of IDs), keyed by a description of the query.</li>
+ * </ul>
+ * <p>
+ * Entries expire once they are older than the configured time to live. Invalidating an entity
+ * discards its snapshot and all query results, since any of them may include the entity.
+ * </p>
+ * <p>
+ * Each invalidation advances a generation number. Values computed from the database are only
+ * stored if no invalidation happened while they were being computed (see
+ * {@link #getGeneration()}), so a reader that races with a writer cannot put stale data back into
+ * the cache.
+ * </p>
+ * <p>
+ * This class is thread-safe. It does not depend on any external cache provider.
+ * </p>
+ */
+@ThreadSafe
+public class EntityCache
+{
+    private final long               timeToLive;
+
+    private final int                maxEntries;
+
+    @GuardedBy("this")
+    private final Map<Object, Entry> entities;
+
+    @GuardedBy("this")
+    private final Map<Object, Entry> queries;
+
+    @GuardedBy("this")
+    private long                     generation;
+
+    private final AtomicLong         hits          = new AtomicLong();
+
+    private final AtomicLong         misses        = new AtomicLong();
+
+    private final AtomicLong         evictions     = new AtomicLong();
+
+    private final AtomicLong         expirations   = new AtomicLong();
+
+    private final AtomicLong         invalidations = new AtomicLong();
+
+    /**
+     * Constructor.
+     * 
+     * @param maxEntries
+     *            Maximum number of entity snapshots (and, separately, of query results) held.
+     * @param timeToLive
+     *            Time (in milliseconds) for which an entry is held.
+     */
+    public EntityCache(int maxEntries, long timeToLive)
+    {
+        if (maxEntries < 1)
+        {
+            throw new IllegalArgumentException("maxEntries must be greater then 0");
+        }
+        if (timeToLive < 1)
+        {
+            throw new IllegalArgumentException("timeToLive must be greater then 0");
+        }
+
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.entities = new LruMap(maxEntries);
+        this.queries = new LruMap(maxEntries);
+    }
+
+    /**
+     * Return the maximum number of entity snapshots (and, separately, of query results) held.
+     * 
+     * @return Maximum number of entries.
+     */
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    /**
+     * Return the time for which an entry is held.
+     * 
+     * @return Time to live, in milliseconds.
+     */
+    public long getTimeToLive()
+    {
+        return timeToLive;
+    }
+
+    /**
+     * Return the current generation. This should be obtained before reading a value from the
+     * database, and passed to {@link #putEntity(Object, Object, long)} or
+     * {@link #putQuery(Object, Object, long)} when storing it.
+     * 
+     * @return Generation number.
+     */
+    public synchronized long getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * Return the snapshot of an entity.
+     * 
+     * @param id
+     *            ID of the entity.
+     * @return Snapshot, or <code>null</code> if there is none (or it has expired).
+     */
+    public Object getEntity(Object id)
+    {
+        return get(entities, id);
+    }
+
+    /**
+     * Store the snapshot of an entity.
+     * 
+     * @param id
+     *            ID of the entity.
+     * @param snapshot
+     *            Snapshot of the entity.
+     * @param generation
+     *            Generation obtained from {@link #getGeneration()} before the entity was read.
+     * @return <code>true</code> if the snapshot was stored, <code>false</code> if the cache was
+     *         invalidated in the meantime.
+     */
+    public boolean putEntity(Object id, Object snapshot, long generation)
+    {
+        return put(entities, id, snapshot, generation);
+    }
+
+    /**
+     * Return the result of a query.
+     * 
+     * @param key
+     *            Description of the query.
+     * @return Result, or <code>null</code> if there is none (or it has expired).
+     */
+    public Object getQuery(Object key)
+    {
+        return get(queries, key);
+    }
+
+    /**
+     * Store the result of a query.
+     * 
+     * @param key
+     *            Description of the query.
+     * @param result
+     *            Result of the query.
+     * @param generation
+     *            Generation obtained from {@link #getGeneration()} before the query was run.
+     * @return <code>true</code> if the result was stored, <code>false</code> if the cache was
+     *         invalidated in the meantime.
+     */
+    public boolean putQuery(Object key, Object result, long generation)
+    {
+        return put(queries, key, result, generation);
+    }
+
+    /**
+     * Discard the snapshot of an entity, along with all query results.
+     * 
+     * @param id
+     *            ID of the entity, or <code>null</code> to discard everything.
+     */
+    public synchronized void invalidate(Object id)
+    {
+        if (id == null)
+        {
+            invalidateAll();
+            return;
+        }
+
+        generation++;
+        invalidations.incrementAndGet();
+        entities.remove(id);
+        queries.clear();
+    }
+
+    /**
+     * Discard all entries.
+     */
+    public synchronized void invalidateAll()
+    {
+        generation++;
+        invalidations.incrementAndGet();
+        entities.clear();
+        queries.clear();
+    }
+
+    /**
+     * Return the number of entity snapshots currently held.
+     * 
+     * @return Number of entries.
+     */
+    public synchronized int getEntityCount()
+    {
+        return entities.size();
+    }
+
+    /**
+     * Return the number of query results currently held.
+     * 
+     * @return Number of entries.
+     */
+    public synchronized int getQueryCount()
+    {
+        return queries.size();
+    }
+
+    /**
+     * Return the number of lookups that found an entry.
+     * 
+     * @return Hit count.
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of lookups that did not find an entry (including those whose entry had
+     * expired).
+     * 
+     * @return Miss count.
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Return the proportion of lookups that found an entry.
+     * 
+     * @return Hit ratio, between 0 and 1, or 0 if there have been no lookups.
+     */
+    public double getHitRatio()
+    {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0.0 : (double) hitCount / (double) total;
+    }
+
+    /**
+     * Return the number of entries discarded to keep the cache within its maximum size.
+     * 
+     * @return Eviction count.
+     */
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * Return the number of entries discarded because they had expired.
+     * 
+     * @return Expiration count.
+     */
+    public long getExpirationCount()
+    {
+        return expirations.get();
+    }
+
+    /**
+     * Return the number of invalidations.
+     * 
+     * @return Invalidation count.
+     */
+    public long getInvalidationCount()
+    {
+        return invalidations.get();
+    }
+
+    /**
+     * Return the current time, in milliseconds. Only <code>protected</code> so that unit tests
+     * can control the passage of time.
+     * 
+     * @return Current time.
+     */
+    protected long getCurrentTime()
+    {
+        return System.currentTimeMillis();
+    }
+
+    private synchronized Object get(Map<Object, Entry> map, Object key)
+    {
+        Entry entry = map.get(key);
+
+        if (entry != null && entry.expires <= getCurrentTime())
+        {
+            map.remove(key);
+            expirations.incrementAndGet();
+            entry = null;
+        }
+
+        if (entry == null)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    private synchronized boolean put(Map<Object, Entry> map,
+                                     Object key,
+                                     Object value,
+                                     long expectedGeneration)
+    {
+        if (expectedGeneration != generation)
+        {
+            return false;
+        }
+
+        map.put(key, new Entry(value, getCurrentTime() + timeToLive));
+        return true;
+    }
+
+    @Immutable
+    private static final class Entry
+    {
+        private final Object value;
+        private final long   expires;
+
+        private Entry(Object value, long expires)
+        {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /*
+     * Access-ordered map that discards its least recently used entry when it grows too large.
+     * Only accessed while holding the EntityCache lock.
+     */
+    private final class LruMap extends LinkedHashMap<Object, Entry>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int         limit;
+
+        private LruMap(int limit)
+        {
+            super(16, 0.75f, true);
+            this.limit = limit;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest)
+        {
+            if (size() > limit)
+            {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
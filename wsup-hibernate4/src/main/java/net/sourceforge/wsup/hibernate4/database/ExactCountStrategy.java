@@ -0,0 +1,58 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+package net.sourceforge.wsup.hibernate4.database;
+
+import net.jcip.annotations.Immutable;
+
+import org.hibernate.HibernateException;
+
+/**
+ * <code>CountStrategy</code> that always asks the database for the exact count, via
+ * {@link BaseDAO#getExactCount(DataAccessContext)}. This is the default strategy.
+ */
+@Immutable
+public class ExactCountStrategy implements CountStrategy
+{
+    /**
+     * Shared instance. Since the class has no state, there is no need for more than one.
+     */
+    public static final ExactCountStrategy INSTANCE = new ExactCountStrategy();
+
+    /**
+     * Constructor.
+     */
+    public ExactCountStrategy()
+    {
+    }
+
+    /**
+     * @see CountStrategy#getCount(DataAccessContext, BaseDAO)
+     */
+    @Override
+    public long getCount(DataAccessContext daoContext, BaseDAO<?, ?> dao)
+        throws HibernateException
+    {
+        return dao.getExactCount(daoContext);
+    }
+
+    /**
+     * Does nothing, since nothing is remembered.
+     * 
+     * @see CountStrategy#invalidate(BaseDAO)
+     */
+    @Override
+    public void invalidate(BaseDAO<?, ?> dao)
+    {
+    }
+}
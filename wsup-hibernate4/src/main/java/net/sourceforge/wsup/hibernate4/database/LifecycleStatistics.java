@@ -0,0 +1,472 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.hibernate4.database;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+import net.sourceforge.wsup.core.stat.BasicStatisticSeries;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects statistics on the lifecycle of the sessions and transactions of the
+ * {@link DatabaseContextImpl}s of a database: how long sessions are held open, how long
+ * transactions last, how long commits take, how many transactions are rolled back (and why), and
+ * how many attempts command executions need. Timings (in milliseconds) are kept in
+ * {@link BasicStatisticSeries}; counts are kept as running totals.
+ * <p>
+ * Rollbacks are counted by reason. The reason is the class name of the exception that caused the
+ * rollback where one is known, {@link #REASON_REQUESTED} for an explicit
+ * <code>rollbackTransaction</code>, and {@link #REASON_DESTROYED} for a transaction abandoned by
+ * <code>destroySession</code>. The number of distinct reasons is limited; once the limit has been
+ * reached, new reasons are counted under {@link #OTHER_REASON}.
+ * </p>
+ * <p>
+ * Sessions held open for longer than the long session threshold are logged at <code>WARN</code>
+ * level when they are closed.
+ * </p>
+ * <p>
+ * A single <code>LifecycleStatistics</code> is normally installed on the database via
+ * {@link BaseDatabase#setLifecycleStatistics(LifecycleStatistics)}, and read via
+ * {@link BaseDatabase#getLifecycleSnapshot()}. This class is thread-safe.
+ * </p>
+ */
+@ThreadSafe
+public class LifecycleStatistics
+{
+    /**
+     * Default period (in minutes) of each statistic in a series.
+     */
+    public static final int                           DEFAULT_PERIOD      = 1;
+
+    /**
+     * Default length of each series, in periods.
+     */
+    public static final int                           DEFAULT_LENGTH      = 60;
+
+    /**
+     * Default maximum number of distinct rollback reasons.
+     */
+    public static final int                           DEFAULT_MAX_REASONS = 50;
+
+    /**
+     * Rollback reason for an explicit call to <code>rollbackTransaction</code>.
+     */
+    public static final String                        REASON_REQUESTED    = "(requested)";
+
+    /**
+     * Rollback reason for a transaction abandoned by <code>destroySession</code> with no known
+     * cause.
+     */
+    public static final String                        REASON_DESTROYED    = "(destroyed)";
+
+    /**
+     * Reason under which rollbacks are counted once the maximum number of reasons has been
+     * reached.
+     */
+    public static final String                        OTHER_REASON        = "(other)";
+
+    private static final Logger                       log                 = LoggerFactory
+                                                                              .getLogger(LifecycleStatistics.class);
+
+    private final int                                 maxReasons;
+
+    private final BasicStatisticSeries                sessionHold;
+
+    private final BasicStatisticSeries                transactionDuration;
+
+    private final BasicStatisticSeries                commitLatency;
+
+    private final BasicStatisticSeries                attemptsPerExecution;
+
+    private final AtomicInteger                       openSessions        = new AtomicInteger();
+
+    private final AtomicInteger                       peakOpenSessions    = new AtomicInteger();
+
+    private final AtomicLong                          rollbackCount       = new AtomicLong();
+
+    private final AtomicLong                          suppressedCount     = new AtomicLong();
+
+    private final ConcurrentMap<String, AtomicLong>   rollbackReasons     = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final ConcurrentMap<Integer, AtomicLong>  attemptCounts       = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    private volatile long                             longSessionThreshold;
+
+    /**
+     * Constructor, using the default period, length and maximum number of reasons. Long session
+     * logging is initially disabled.
+     */
+    public LifecycleStatistics()
+    {
+        this(DEFAULT_PERIOD, DEFAULT_LENGTH, DEFAULT_MAX_REASONS);
+    }
+
+    /**
+     * Constructor. Long session logging is initially disabled.
+     * 
+     * @param period
+     *            Period (in minutes) of each statistic in a series.
+     * @param length
+     *            Length of each series, in periods.
+     * @param maxReasons
+     *            Maximum number of distinct rollback reasons.
+     * @see BasicStatisticSeries#BasicStatisticSeries(int, int)
+     */
+    public LifecycleStatistics(int period, int length, int maxReasons)
+    {
+        if (period < 1)
+        {
+            throw new IllegalArgumentException("period must be greater then 0");
+        }
+        if (length < 2)
+        {
+            throw new IllegalArgumentException("length must be greater then 1");
+        }
+        if (maxReasons < 1)
+        {
+            throw new IllegalArgumentException("maxReasons must be greater then 0");
+        }
+
+        this.maxReasons = maxReasons;
+        this.sessionHold = new BasicStatisticSeries(period, length);
+        this.transactionDuration = new BasicStatisticSeries(period, length);
+        this.commitLatency = new BasicStatisticSeries(period, length);
+        this.attemptsPerExecution = new BasicStatisticSeries(period, length);
+    }
+
+    /**
+     * Return the threshold above which sessions are logged as long-held.
+     * 
+     * @return Threshold in milliseconds, or zero if long session logging is disabled.
+     */
+    public long getLongSessionThreshold()
+    {
+        return longSessionThreshold;
+    }
+
+    /**
+     * Set the threshold above which sessions are logged as long-held.
+     * 
+     * @param longSessionThreshold
+     *            Threshold in milliseconds. Zero (or a negative value) disables long session
+     *            logging.
+     */
+    public void setLongSessionThreshold(long longSessionThreshold)
+    {
+        this.longSessionThreshold = Math.max(0, longSessionThreshold);
+    }
+
+    /**
+     * Record that a session has been opened.
+     */
+    public void sessionOpened()
+    {
+        int open = openSessions.incrementAndGet();
+
+        int peak = peakOpenSessions.get();
+        while (open > peak && !peakOpenSessions.compareAndSet(peak, open))
+        {
+            peak = peakOpenSessions.get();
+        }
+    }
+
+    /**
+     * Record that a session has been closed.
+     * 
+     * @param elapsedNanos
+     *            Time for which the session was open, in nanoseconds (as from
+     *            <code>System.nanoTime()</code>).
+     */
+    public void sessionClosed(long elapsedNanos)
+    {
+        openSessions.decrementAndGet();
+
+        double elapsedMillis = elapsedNanos / 1000000.0;
+        sessionHold.increment(elapsedMillis);
+
+        long threshold = longSessionThreshold;
+        if (threshold > 0 && elapsedMillis > threshold && log.isWarnEnabled())
+        {
+            log.warn(String.format("Long-held session (%.1f ms) closed by %s",
+                                   elapsedMillis,
+                                   Thread.currentThread().getName()));
+        }
+    }
+
+    /**
+     * Record the successful commit of a transaction.
+     * 
+     * @param durationNanos
+     *            Time from the start of the transaction to the end of the commit, in nanoseconds.
+     * @param commitNanos
+     *            Time taken by the commit itself, in nanoseconds.
+     */
+    public void transactionCommitted(long durationNanos, long commitNanos)
+    {
+        transactionDuration.increment(durationNanos / 1000000.0);
+        commitLatency.increment(commitNanos / 1000000.0);
+    }
+
+    /**
+     * Record the rollback of a transaction.
+     * 
+     * @param durationNanos
+     *            Time from the start of the transaction to the end of the rollback, in
+     *            nanoseconds.
+     * @param reason
+     *            Reason for the rollback.
+     */
+    public void transactionRolledBack(long durationNanos, String reason)
+    {
+        transactionDuration.increment(durationNanos / 1000000.0);
+        rollbackCount.incrementAndGet();
+        getCounter(rollbackReasons, reasonKey(reason)).incrementAndGet();
+    }
+
+    /**
+     * Record that an exception was eaten while a session was being destroyed.
+     */
+    public void exceptionSuppressed()
+    {
+        suppressedCount.incrementAndGet();
+    }
+
+    /**
+     * Record the start of an attempt to execute a set of commands.
+     * 
+     * @param attemptNumber
+     *            Attempt number, as from
+     *            {@link net.sourceforge.wsup.hibernate4.command.DatabaseCommandContext#getAttemptNumber()}
+     *            (zero for the first attempt).
+     */
+    public void attemptStarted(int attemptNumber)
+    {
+        getCounter(attemptCounts, Integer.valueOf(attemptNumber)).incrementAndGet();
+    }
+
+    /**
+     * Record the end of the execution of a set of commands, whether or not it succeeded.
+     * 
+     * @param attempts
+     *            Number of attempts made.
+     */
+    public void executionFinished(int attempts)
+    {
+        attemptsPerExecution.increment(attempts);
+    }
+
+    /**
+     * Return a snapshot of the statistics.
+     * 
+     * @return <code>Snapshot</code> object.
+     */
+    public Snapshot getSnapshot()
+    {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Discard the counts of rollbacks, suppressed exceptions and attempts. (The series are
+     * rolling, and so age out by themselves, and the open session count reflects sessions that
+     * are still open.)
+     */
+    public void clear()
+    {
+        rollbackCount.set(0);
+        suppressedCount.set(0);
+        rollbackReasons.clear();
+        attemptCounts.clear();
+        peakOpenSessions.set(openSessions.get());
+    }
+
+    private String reasonKey(String reason)
+    {
+        if (reason == null)
+        {
+            reason = REASON_DESTROYED;
+        }
+
+        if (!rollbackReasons.containsKey(reason) && rollbackReasons.size() >= maxReasons)
+        {
+            return OTHER_REASON;
+        }
+
+        return reason;
+    }
+
+    private static <K> AtomicLong getCounter(ConcurrentMap<K, AtomicLong> counters, K key)
+    {
+        AtomicLong result = counters.get(key);
+        if (result != null)
+        {
+            return result;
+        }
+
+        AtomicLong created = new AtomicLong();
+        result = counters.putIfAbsent(key, created);
+        return result != null ? result : created;
+    }
+
+    private static <K> SortedMap<K, Long> copy(Map<K, AtomicLong> counters)
+    {
+        SortedMap<K, Long> result = new TreeMap<K, Long>();
+        for (Map.Entry<K, AtomicLong> entry : counters.entrySet())
+        {
+            result.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+        }
+        return Collections.unmodifiableSortedMap(result);
+    }
+
+    /**
+     * A point-in-time copy of a <code>LifecycleStatistics</code>. The counts are copied; the
+     * series results are taken as of the time of the snapshot.
+     */
+    @Immutable
+    public static final class Snapshot
+    {
+        private final int                           openSessionCount;
+        private final int                           peakOpenSessionCount;
+        private final long                          rollbackCount;
+        private final long                          suppressedExceptionCount;
+        private final SortedMap<String, Long>       rollbackReasons;
+        private final SortedMap<Integer, Long>      attemptCounts;
+        private final BasicStatisticSeries.Result[] sessionHold;
+        private final BasicStatisticSeries.Result[] transactionDuration;
+        private final BasicStatisticSeries.Result[] commitLatency;
+        private final BasicStatisticSeries.Result[] attemptsPerExecution;
+
+        private Snapshot(LifecycleStatistics statistics)
+        {
+            openSessionCount = statistics.openSessions.get();
+            peakOpenSessionCount = statistics.peakOpenSessions.get();
+            rollbackCount = statistics.rollbackCount.get();
+            suppressedExceptionCount = statistics.suppressedCount.get();
+            rollbackReasons = copy(statistics.rollbackReasons);
+            attemptCounts = copy(statistics.attemptCounts);
+            sessionHold = statistics.sessionHold.getResults();
+            transactionDuration = statistics.transactionDuration.getResults();
+            commitLatency = statistics.commitLatency.getResults();
+            attemptsPerExecution = statistics.attemptsPerExecution.getResults();
+        }
+
+        /**
+         * @return Number of sessions open at the time of the snapshot.
+         */
+        public int getOpenSessionCount()
+        {
+            return openSessionCount;
+        }
+
+        /**
+         * @return Largest number of sessions open at once since the statistics were created or
+         *         cleared.
+         */
+        public int getPeakOpenSessionCount()
+        {
+            return peakOpenSessionCount;
+        }
+
+        /**
+         * @return Total number of transactions rolled back.
+         */
+        public long getRollbackCount()
+        {
+            return rollbackCount;
+        }
+
+        /**
+         * @return Number of rollbacks for each reason.
+         */
+        public SortedMap<String, Long> getRollbackReasons()
+        {
+            return rollbackReasons;
+        }
+
+        /**
+         * @return Number of exceptions eaten while sessions were being destroyed.
+         */
+        public long getSuppressedExceptionCount()
+        {
+            return suppressedExceptionCount;
+        }
+
+        /**
+         * @return Number of attempts started, by attempt number. The entry for zero is the number
+         *         of first attempts; the other entries are retries.
+         */
+        public SortedMap<Integer, Long> getAttemptCounts()
+        {
+            return attemptCounts;
+        }
+
+        /**
+         * @return Total number of retries (attempts other than the first).
+         */
+        public long getRetryCount()
+        {
+            long retries = 0;
+            for (Map.Entry<Integer, Long> entry : attemptCounts.entrySet())
+            {
+                if (entry.getKey().intValue() > 0)
+                {
+                    retries += entry.getValue().longValue();
+                }
+            }
+            return retries;
+        }
+
+        /**
+         * @return Time (ms) for which sessions were held open.
+         */
+        public BasicStatisticSeries.Result[] getSessionHold()
+        {
+            return sessionHold.clone();
+        }
+
+        /**
+         * @return Time (ms) from the start of each transaction to its commit or rollback.
+         */
+        public BasicStatisticSeries.Result[] getTransactionDuration()
+        {
+            return transactionDuration.clone();
+        }
+
+        /**
+         * @return Time (ms) taken by each commit.
+         */
+        public BasicStatisticSeries.Result[] getCommitLatency()
+        {
+            return commitLatency.clone();
+        }
+
+        /**
+         * @return Number of attempts made by each execution of a set of commands.
+         */
+        public BasicStatisticSeries.Result[] getAttemptsPerExecution()
+        {
+            return attemptsPerExecution.clone();
+        }
+    }
+}
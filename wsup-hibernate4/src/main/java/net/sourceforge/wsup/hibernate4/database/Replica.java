@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.wsup.hibernate4.database;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import org.hibernate.SessionFactory;
+
+/**
+ * Bookkeeping for a single replica <code>SessionFactory</code> managed by {@link BaseDatabase}.
+ * All access is synchronized on the owning <code>BaseDatabase</code>.
+ */
+@NotThreadSafe
+final class Replica
+{
+    private final int            index;
+    private final SessionFactory sessionFactory;
+    private int                  outstandingSessions;
+    private long                 ejectedUntil;
+    private boolean              ejected;
+
+    Replica(int index, SessionFactory sessionFactory)
+    {
+        this.index = index;
+        this.sessionFactory = sessionFactory;
+    }
+
+    int getIndex()
+    {
+        return index;
+    }
+
+    SessionFactory getSessionFactory()
+    {
+        return sessionFactory;
+    }
+
+    int getOutstandingSessions()
+    {
+        return outstandingSessions;
+    }
+
+    void sessionOpened()
+    {
+        outstandingSessions++;
+    }
+
+    void sessionClosed()
+    {
+        outstandingSessions--;
+    }
+
+    /**
+     * Is this replica currently ejected?
+     */
+    boolean isEjected()
+    {
+        return ejected;
+    }
+
+    /**
+     * May a session be opened on this replica at time <code>now</code>? An
+     * ejected replica becomes usable again, on probation, once its retry time
+     * has passed.
+     */
+    boolean isUsable(long now)
+    {
+        return !ejected || now >= ejectedUntil;
+    }
+
+    void eject(long until)
+    {
+        ejected = true;
+        ejectedUntil = until;
+    }
+
+    void restore()
+    {
+        ejected = false;
+        ejectedUntil = 0;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.wsup.hibernate4.database;
+
+/**
+ * Strategies by which {@link BaseDatabase} chooses the replica on which to open a read-only
+ * <code>Session</code>.
+ * 
+ * @see BaseDatabase#setReplicaSelection(ReplicaSelection)
+ */
+public enum ReplicaSelection
+{
+    /**
+     * Use each available replica in turn.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Use the available replica with the fewest outstanding <code>Session</code>s.
+     */
+    LEAST_OUTSTANDING_SESSIONS
+}
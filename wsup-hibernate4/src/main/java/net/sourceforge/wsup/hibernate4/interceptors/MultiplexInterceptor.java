@@ -17,6 +17,7 @@
 package net.sourceforge.wsup.hibernate4.interceptors;
 
 import java.io.Serializable;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -24,6 +25,7 @@ import java.util.List;
 import net.jcip.annotations.ThreadSafe;
 
 import org.hibernate.CallbackException;
+import org.hibernate.EmptyInterceptor;
 import org.hibernate.EntityMode;
 import org.hibernate.Interceptor;
 import org.hibernate.Transaction;
@@ -38,11 +40,35 @@ import org.hibernate.type.Type;
  * This interceptor is thread-safe, so a single instance of it can be used across multiple
  * <code>Session</code>s, providing that all of the interceptors that it holds are also thread-safe.
  * </p>
+ * <p>
+ * When it is constructed, the multiplexer determines which of its interceptors actually override
+ * each callback, as opposed to inheriting the no-op implementation from
+ * <code>EmptyInterceptor</code>. Each callback is then dispatched only to those interceptors, so
+ * that, for example, a flush over many entities does not call interceptors that ignore
+ * <code>onFlushDirty</code>.
+ * </p>
  */
 @ThreadSafe
 public class MultiplexInterceptor implements Interceptor
 {
-    private final Interceptor[] interceptors;
+    private final Interceptor[] afterTransactionBeginInterceptors;
+    private final Interceptor[] afterTransactionCompletionInterceptors;
+    private final Interceptor[] beforeTransactionCompletionInterceptors;
+    private final Interceptor[] findDirtyInterceptors;
+    private final Interceptor[] getEntityInterceptors;
+    private final Interceptor[] getEntityNameInterceptors;
+    private final Interceptor[] instantiateInterceptors;
+    private final Interceptor[] isTransientInterceptors;
+    private final Interceptor[] onCollectionRecreateInterceptors;
+    private final Interceptor[] onCollectionRemoveInterceptors;
+    private final Interceptor[] onCollectionUpdateInterceptors;
+    private final Interceptor[] onDeleteInterceptors;
+    private final Interceptor[] onFlushDirtyInterceptors;
+    private final Interceptor[] onLoadInterceptors;
+    private final Interceptor[] onPrepareStatementInterceptors;
+    private final Interceptor[] onSaveInterceptors;
+    private final Interceptor[] postFlushInterceptors;
+    private final Interceptor[] preFlushInterceptors;
 
     /**
      * Constructs a <code>MultiplexInterceptor</code> that will
@@ -53,7 +79,80 @@ public class MultiplexInterceptor implements Interceptor
     public MultiplexInterceptor(Interceptor... interceptors)
     {
         super();
-        this.interceptors = interceptors;
+        afterTransactionBeginInterceptors = overriding(interceptors,
+                                                       "afterTransactionBegin",
+                                                       Transaction.class);
+        afterTransactionCompletionInterceptors = overriding(interceptors,
+                                                            "afterTransactionCompletion",
+                                                            Transaction.class);
+        beforeTransactionCompletionInterceptors = overriding(interceptors,
+                                                             "beforeTransactionCompletion",
+                                                             Transaction.class);
+        findDirtyInterceptors = overriding(interceptors,
+                                           "findDirty",
+                                           Object.class,
+                                           Serializable.class,
+                                           Object[].class,
+                                           Object[].class,
+                                           String[].class,
+                                           Type[].class);
+        getEntityInterceptors = overriding(interceptors,
+                                           "getEntity",
+                                           String.class,
+                                           Serializable.class);
+        getEntityNameInterceptors = overriding(interceptors, "getEntityName", Object.class);
+        instantiateInterceptors = overriding(interceptors,
+                                             "instantiate",
+                                             String.class,
+                                             EntityMode.class,
+                                             Serializable.class);
+        isTransientInterceptors = overriding(interceptors, "isTransient", Object.class);
+        onCollectionRecreateInterceptors = overriding(interceptors,
+                                                      "onCollectionRecreate",
+                                                      Object.class,
+                                                      Serializable.class);
+        onCollectionRemoveInterceptors = overriding(interceptors,
+                                                    "onCollectionRemove",
+                                                    Object.class,
+                                                    Serializable.class);
+        onCollectionUpdateInterceptors = overriding(interceptors,
+                                                    "onCollectionUpdate",
+                                                    Object.class,
+                                                    Serializable.class);
+        onDeleteInterceptors = overriding(interceptors,
+                                          "onDelete",
+                                          Object.class,
+                                          Serializable.class,
+                                          Object[].class,
+                                          String[].class,
+                                          Type[].class);
+        onFlushDirtyInterceptors = overriding(interceptors,
+                                              "onFlushDirty",
+                                              Object.class,
+                                              Serializable.class,
+                                              Object[].class,
+                                              Object[].class,
+                                              String[].class,
+                                              Type[].class);
+        onLoadInterceptors = overriding(interceptors,
+                                        "onLoad",
+                                        Object.class,
+                                        Serializable.class,
+                                        Object[].class,
+                                        String[].class,
+                                        Type[].class);
+        onPrepareStatementInterceptors = overriding(interceptors,
+                                                    "onPrepareStatement",
+                                                    String.class);
+        onSaveInterceptors = overriding(interceptors,
+                                        "onSave",
+                                        Object.class,
+                                        Serializable.class,
+                                        Object[].class,
+                                        String[].class,
+                                        Type[].class);
+        postFlushInterceptors = overriding(interceptors, "postFlush", Iterator.class);
+        preFlushInterceptors = overriding(interceptors, "preFlush", Iterator.class);
     }
 
     /**
@@ -62,7 +161,7 @@ public class MultiplexInterceptor implements Interceptor
     @Override
     public void afterTransactionBegin(Transaction tx)
     {
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : afterTransactionBeginInterceptors)
         {
             interceptor.afterTransactionBegin(tx);
         }
@@ -74,7 +173,7 @@ public class MultiplexInterceptor implements Interceptor
     @Override
     public void afterTransactionCompletion(Transaction tx)
     {
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : afterTransactionCompletionInterceptors)
         {
             interceptor.afterTransactionCompletion(tx);
         }
@@ -86,7 +185,7 @@ public class MultiplexInterceptor implements Interceptor
     @Override
     public void beforeTransactionCompletion(Transaction tx)
     {
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : beforeTransactionCompletionInterceptors)
         {
             interceptor.beforeTransactionCompletion(tx);
         }
@@ -105,7 +204,7 @@ public class MultiplexInterceptor implements Interceptor
                            Type[] types)
     {
 
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : findDirtyInterceptors)
         {
             int[] result = interceptor.findDirty(entity,
                                                  id,
@@ -129,7 +228,7 @@ public class MultiplexInterceptor implements Interceptor
     @Override
     public Object getEntity(String entityName, Serializable id) throws CallbackException
     {
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : getEntityInterceptors)
         {
             Object result = interceptor.getEntity(entityName, id);
 
@@ -149,7 +248,7 @@ public class MultiplexInterceptor implements Interceptor
     @Override
     public String getEntityName(Object object) throws CallbackException
     {
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : getEntityNameInterceptors)
         {
             String result = interceptor.getEntityName(object);
 
@@ -171,7 +270,7 @@ public class MultiplexInterceptor implements Interceptor
     public Object instantiate(String entityName, EntityMode entityMode, Serializable id)
         throws CallbackException
     {
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : instantiateInterceptors)
         {
             Object result = interceptor.instantiate(entityName, entityMode, id);
 
@@ -191,7 +290,7 @@ public class MultiplexInterceptor implements Interceptor
     @Override
     public Boolean isTransient(Object entity)
     {
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : isTransientInterceptors)
         {
             Boolean result = interceptor.isTransient(entity);
 
@@ -211,7 +310,7 @@ public class MultiplexInterceptor implements Interceptor
     @Override
     public void onCollectionRecreate(Object collection, Serializable key) throws CallbackException
     {
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : onCollectionRecreateInterceptors)
         {
             interceptor.onCollectionRecreate(collection, key);
         }
@@ -223,7 +322,7 @@ public class MultiplexInterceptor implements Interceptor
     @Override
     public void onCollectionRemove(Object collection, Serializable key) throws CallbackException
     {
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : onCollectionRemoveInterceptors)
         {
             interceptor.onCollectionRemove(collection, key);
         }
@@ -235,7 +334,7 @@ public class MultiplexInterceptor implements Interceptor
     @Override
     public void onCollectionUpdate(Object collection, Serializable key) throws CallbackException
     {
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : onCollectionUpdateInterceptors)
         {
             interceptor.onCollectionUpdate(collection, key);
         }
@@ -252,7 +351,7 @@ public class MultiplexInterceptor implements Interceptor
                          String[] propertyNames,
                          Type[] types) throws CallbackException
     {
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : onDeleteInterceptors)
         {
             interceptor.onDelete(entity, id, state, propertyNames, types);
         }
@@ -271,7 +370,7 @@ public class MultiplexInterceptor implements Interceptor
                                 Type[] types) throws CallbackException
     {
         boolean result = false;
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : onFlushDirtyInterceptors)
         {
             // return true if any of the interceptors modified the state
             result |= interceptor.onFlushDirty(entity,
@@ -297,7 +396,7 @@ public class MultiplexInterceptor implements Interceptor
                           Type[] types) throws CallbackException
     {
         boolean result = false;
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : onLoadInterceptors)
         {
             // return true if any of the interceptors modified the state
             result |= interceptor.onLoad(entity, id, state, propertyNames, types);
@@ -313,7 +412,7 @@ public class MultiplexInterceptor implements Interceptor
     public String onPrepareStatement(String sql)
     {
         String result = sql;
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : onPrepareStatementInterceptors)
         {
             // give each interceptor a chance to modify the sql
             result = interceptor.onPrepareStatement(result);
@@ -334,7 +433,7 @@ public class MultiplexInterceptor implements Interceptor
                           Type[] types) throws CallbackException
     {
         boolean result = false;
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : onSaveInterceptors)
         {
             // return true if any of the interceptors modified the state
             result |= interceptor.onSave(entity, id, state, propertyNames, types);
@@ -350,8 +449,19 @@ public class MultiplexInterceptor implements Interceptor
     @Override
     public void postFlush(Iterator entities) throws CallbackException
     {
+        if (postFlushInterceptors.length == 0)
+        {
+            return;
+        }
+
+        if (postFlushInterceptors.length == 1)
+        {
+            postFlushInterceptors[0].postFlush(entities);
+            return;
+        }
+
         List<Object> entityList = createList(entities);
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : postFlushInterceptors)
         {
             interceptor.postFlush(entityList.iterator());
         }
@@ -364,8 +474,19 @@ public class MultiplexInterceptor implements Interceptor
     @Override
     public void preFlush(Iterator entities) throws CallbackException
     {
+        if (preFlushInterceptors.length == 0)
+        {
+            return;
+        }
+
+        if (preFlushInterceptors.length == 1)
+        {
+            preFlushInterceptors[0].preFlush(entities);
+            return;
+        }
+
         List<Object> entityList = createList(entities);
-        for (Interceptor interceptor : interceptors)
+        for (Interceptor interceptor : preFlushInterceptors)
         {
             interceptor.preFlush(entityList.iterator());
         }
@@ -388,4 +509,40 @@ public class MultiplexInterceptor implements Interceptor
 
         return list;
     }
+
+    /**
+     * Returns those of the interceptors that provide their own implementation
+     * of a callback, rather than inheriting the no-op implementation in
+     * <code>EmptyInterceptor</code>.
+     * 
+     * @param interceptors All the interceptors.
+     * @param name Name of the callback method.
+     * @param parameterTypes Parameter types of the callback method.
+     * @return The interceptors to which the callback should be dispatched.
+     */
+    private static Interceptor[] overriding(Interceptor[] interceptors,
+                                            String name,
+                                            Class<?>... parameterTypes)
+    {
+        List<Interceptor> result = new ArrayList<Interceptor>();
+        for (Interceptor interceptor : interceptors)
+        {
+            try
+            {
+                Method method = interceptor.getClass().getMethod(name, parameterTypes);
+                if (method.getDeclaringClass() == EmptyInterceptor.class)
+                {
+                    continue;
+                }
+            }
+            catch (NoSuchMethodException e)
+            {
+                // can't happen for an Interceptor; dispatch to be safe
+            }
+
+            result.add(interceptor);
+        }
+
+        return result.toArray(new Interceptor[result.size()]);
+    }
 }
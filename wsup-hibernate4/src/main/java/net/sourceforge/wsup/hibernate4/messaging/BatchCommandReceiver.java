@@ -0,0 +1,542 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+package net.sourceforge.wsup.hibernate4.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommand;
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommandRunner;
+import net.sourceforge.wsup.messaging.jms.BaseMessageReceiver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This is a base class for JMS message receivers whose processing consists of executing
+ * <code>DatabaseCommand</code>s. Rather than running one database transaction per message, it
+ * receives messages in batches of up to <code>batchSize</code>, maps each one to a
+ * <code>DatabaseCommand</code> using {@link #createCommand(Message)}, and executes the commands
+ * for a batch together in a single database transaction using a
+ * <code>DatabaseCommandRunner</code>. Once the database transaction has been committed, the
+ * (transacted) JMS <code>Session</code> is committed, acknowledging the batch. If execution
+ * fails, the JMS <code>Session</code> is rolled back, so the messages are redelivered.
+ * <p>
+ * A batch is complete when <code>batchSize</code> messages have been received, or when no further
+ * message arrives within the batch timeout (see {@link #setBatchTimeout(long)}), so a lightly
+ * loaded receiver does not delay messages waiting for a batch to fill.
+ * </p>
+ * <p>
+ * If the process stops after the database transaction has been committed but before the JMS
+ * <code>Session</code> has been, the batch will be delivered again. To guard against this, a
+ * {@link ProcessedMessageTable} can be set, in which case the identifier of each message (see
+ * {@link #getMessageKey(Message)}) is recorded in the same database transaction as its commands,
+ * and messages already recorded, or repeated within the batch, are skipped. Messages without an
+ * identifier are always executed. The table also allows a failing batch to be broken
+ * up: if the batch transaction fails, each message is executed in its own transaction, so that
+ * one bad message does not hold up the others. (The good messages are then skipped when the
+ * batch is redelivered.) Without a table, the whole batch is retried.
+ * </p>
+ * <p>
+ * The messages are received, and the commands executed, on a single thread owned by this object.
+ * Message delivery starts when {@link #start()} is called and the <code>Connection</code> has
+ * been started.
+ * </p>
+ * 
+ * @see ProcessedMessageTable
+ */
+public abstract class BatchCommandReceiver extends BaseMessageReceiver
+{
+    /**
+     * Default time (in milliseconds) to wait for further messages before executing a partial
+     * batch.
+     */
+    public static final long               DEFAULT_BATCH_TIMEOUT = 50L;
+
+    /*
+     * How long (in milliseconds) to wait for the first message of a batch before checking whether
+     * the receiver has been closed.
+     */
+    private static final long              POLL_INTERVAL         = 100L;
+
+    private static final Logger            log                   = LoggerFactory
+                                                                     .getLogger(BatchCommandReceiver.class);
+
+    private final Destination              destination;
+    private final DatabaseCommandRunner    runner;
+    private final int                      batchSize;
+
+    private final AtomicLong               batchCount            = new AtomicLong();
+    private final AtomicLong               messageCount          = new AtomicLong();
+    private final AtomicLong               duplicateCount        = new AtomicLong();
+    private final AtomicLong               failureCount          = new AtomicLong();
+
+    private volatile long                  batchTimeout          = DEFAULT_BATCH_TIMEOUT;
+    private volatile ProcessedMessageTable processedMessages;
+    private volatile boolean               running;
+
+    /*
+     * Guarded by "this".
+     */
+    private Thread                         receiver;
+
+    /**
+     * Constructor.
+     * 
+     * @param connection
+     *            <code>Connection</code> to use.
+     * @param destination
+     *            <code>Destination</code> to use.
+     * @param runner
+     *            <code>DatabaseCommandRunner</code> with which to execute the commands.
+     * @param batchSize
+     *            Maximum number of messages executed in a single transaction. Must be at least 1.
+     * @throws IllegalArgumentException
+     *             If <code>batchSize</code> is not valid.
+     */
+    protected BatchCommandReceiver(Connection connection,
+                                   Destination destination,
+                                   DatabaseCommandRunner runner,
+                                   int batchSize)
+    {
+        super(connection, destination, Session.SESSION_TRANSACTED);
+
+        if (batchSize < 1)
+        {
+            throw new IllegalArgumentException("batchSize must be greater than 0");
+        }
+
+        this.destination = destination;
+        this.runner = runner;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return Maximum number of messages executed in a single transaction.
+     */
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    /**
+     * @return Time (in milliseconds) to wait for further messages before executing a partial
+     *         batch.
+     */
+    public long getBatchTimeout()
+    {
+        return batchTimeout;
+    }
+
+    /**
+     * Set the time to wait for further messages before executing a partial batch. Larger values
+     * give larger batches under moderate load, at the expense of latency.
+     * 
+     * @param batchTimeout
+     *            Time in milliseconds.
+     */
+    public void setBatchTimeout(long batchTimeout)
+    {
+        this.batchTimeout = Math.max(0, batchTimeout);
+    }
+
+    /**
+     * @return <code>ProcessedMessageTable</code> used to detect duplicate messages, or
+     *         <code>null</code> if none has been set.
+     */
+    public ProcessedMessageTable getProcessedMessages()
+    {
+        return processedMessages;
+    }
+
+    /**
+     * Set the table in which processed messages are recorded, enabling the detection of
+     * duplicate messages. This should be set before the object is started.
+     * 
+     * @param processedMessages
+     *            <code>ProcessedMessageTable</code>, or <code>null</code> to disable duplicate
+     *            detection.
+     */
+    public void setProcessedMessages(ProcessedMessageTable processedMessages)
+    {
+        this.processedMessages = processedMessages;
+    }
+
+    /**
+     * Start the operation of this object. Message delivery may begin before this method returns.
+     * <p>
+     * Calling this method on an object that has already been started is benign.
+     * </p>
+     * 
+     * @throws JMSException
+     *             If the JMS <code>Session</code> or <code>MessageConsumer</code> cannot be
+     *             created.
+     */
+    @Override
+    public synchronized void start() throws JMSException
+    {
+        if (isStarted())
+        {
+            return;
+        }
+
+        super.start();
+
+        running = true;
+        receiver = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                receive();
+            }
+        }, "BatchCommandReceiver-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Shut down the receiver. Any batch being executed is completed (and committed or rolled
+     * back) before the JMS <code>Session</code> is closed.
+     * <p>
+     * Calling this method on an object that has not been started or has already been closed is
+     * benign.
+     * </p>
+     */
+    @Override
+    public synchronized void close() throws JMSException
+    {
+        if (!isStarted())
+        {
+            return;
+        }
+
+        running = false;
+
+        try
+        {
+            receiver.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            receiver = null;
+            super.close();
+        }
+    }
+
+    /**
+     * @return Number of batches committed.
+     */
+    public long getBatchCount()
+    {
+        return batchCount.get();
+    }
+
+    /**
+     * @return Number of messages whose commands have been committed.
+     */
+    public long getMessageCount()
+    {
+        return messageCount.get();
+    }
+
+    /**
+     * @return Number of messages skipped because they had already been processed.
+     */
+    public long getDuplicateCount()
+    {
+        return duplicateCount.get();
+    }
+
+    /**
+     * @return Number of batches rolled back because execution failed.
+     */
+    public long getFailureCount()
+    {
+        return failureCount.get();
+    }
+
+    /**
+     * Map a message to the command that processes it. This is called on the receiving thread.
+     * 
+     * @param message
+     *            JMS <code>Message</code> being processed. Messages compressed by
+     *            <code>MessageCompression</code> have been decompressed.
+     * @return <code>DatabaseCommand</code>, or <code>null</code> if the message requires no
+     *         database work.
+     * @throws JMSException
+     *             If the message cannot be read, in which case the batch is rolled back.
+     */
+    protected abstract DatabaseCommand createCommand(Message message) throws JMSException;
+
+    /**
+     * Overrideable method that returns the key under which a message is recorded in the
+     * <code>ProcessedMessageTable</code>. The default implementation returns the JMS message ID,
+     * which the provider keeps when it redelivers a message. An application whose producers may
+     * send the same logical message twice can return a business key instead.
+     * 
+     * @param message
+     *            JMS <code>Message</code>
+     * @return Key of at most 255 characters, or <code>null</code> if the message cannot be
+     *         recognized when redelivered, in which case it is always executed.
+     * @throws JMSException
+     */
+    protected String getMessageKey(Message message) throws JMSException
+    {
+        return message.getJMSMessageID();
+    }
+
+    /*
+     * The body of the receiving thread, which is the only thread to use the Session.
+     */
+    private void receive()
+    {
+        Session session = getSession();
+
+        while (running)
+        {
+            List<Message> batch;
+
+            try
+            {
+                batch = receiveBatch();
+            }
+            catch (JMSException e)
+            {
+                log.warn("Receiving stopped for " + destination, e);
+                running = false;
+                return;
+            }
+
+            if (batch.isEmpty())
+            {
+                continue;
+            }
+
+            try
+            {
+                process(batch);
+                session.commit();
+                batchCount.incrementAndGet();
+            }
+            catch (JMSException e)
+            {
+                rollback(session, batch, e);
+            }
+            catch (RuntimeException e)
+            {
+                rollback(session, batch, e);
+            }
+        }
+    }
+
+    private List<Message> receiveBatch() throws JMSException
+    {
+        List<Message> batch = new ArrayList<Message>(batchSize);
+
+        Message message = getConsumer().receive(POLL_INTERVAL);
+        if (message == null)
+        {
+            return batch;
+        }
+        batch.add(message);
+
+        long deadline = System.currentTimeMillis() + batchTimeout;
+
+        while (batch.size() < batchSize)
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            message = remaining > 0 ? getConsumer().receive(remaining) : getConsumer()
+                .receiveNoWait();
+            if (message == null)
+            {
+                break;
+            }
+            batch.add(message);
+        }
+
+        return batch;
+    }
+
+    private void rollback(Session session, List<Message> batch, Exception cause)
+    {
+        failureCount.incrementAndGet();
+        log.warn("Batch of " + batch.size() + " messages from " + destination
+            + " failed, and will be redelivered", cause);
+
+        try
+        {
+            session.rollback();
+        }
+        catch (JMSException e)
+        {
+            log.warn("Unable to roll back session for " + destination, e);
+        }
+    }
+
+    private void process(List<Message> batch) throws JMSException
+    {
+        ProcessedMessageTable table = processedMessages;
+
+        if (table == null)
+        {
+            execute(null, batch, Collections.<String> emptyList());
+            return;
+        }
+
+        /*
+         * Messages without a key can't be recognized, so they are always executed. Of the others,
+         * only the first with each key is executed, and only if it hasn't been recorded already.
+         */
+        List<Message> pending = new ArrayList<Message>(batch.size());
+        List<String> keys = new ArrayList<String>(batch.size());
+        Set<String> seen = new HashSet<String>();
+
+        for (Message message : batch)
+        {
+            String key = getMessageKey(message);
+            if (key == null || seen.add(key))
+            {
+                pending.add(message);
+                keys.add(key);
+            }
+        }
+
+        if (!seen.isEmpty())
+        {
+            ProcessedMessageTable.FindCommand find = table.createFindCommand(seen);
+            runner.execute(find);
+            Set<String> processed = find.getProcessed();
+
+            for (int i = pending.size() - 1; i >= 0; i--)
+            {
+                if (keys.get(i) != null && processed.contains(keys.get(i)))
+                {
+                    pending.remove(i);
+                    keys.remove(i);
+                }
+            }
+        }
+
+        duplicateCount.addAndGet(batch.size() - pending.size());
+
+        if (pending.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            execute(table, pending, recordedKeys(keys));
+        }
+        catch (RuntimeException e)
+        {
+            if (pending.size() == 1)
+            {
+                throw e;
+            }
+
+            log.info("Batch of " + pending.size() + " messages from " + destination
+                + " failed, executing them individually", e);
+
+            executeIndividually(table, pending, keys);
+        }
+    }
+
+    /*
+     * Execute each message in its own transaction, throwing the first failure once they have all
+     * been tried.
+     */
+    private void executeIndividually(ProcessedMessageTable table,
+                                     List<Message> pending,
+                                     List<String> keys) throws JMSException
+    {
+        RuntimeException failure = null;
+
+        for (int i = 0; i < pending.size(); i++)
+        {
+            try
+            {
+                execute(table,
+                        Collections.singletonList(pending.get(i)),
+                        recordedKeys(Collections.singletonList(keys.get(i))));
+            }
+            catch (RuntimeException e)
+            {
+                if (failure == null)
+                {
+                    failure = e;
+                }
+            }
+        }
+
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /*
+     * The keys to record, leaving out those of messages that have none.
+     */
+    private static List<String> recordedKeys(List<String> keys)
+    {
+        List<String> result = new ArrayList<String>(keys.size());
+        for (String key : keys)
+        {
+            if (key != null)
+            {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    private void execute(ProcessedMessageTable table, List<Message> messages, List<String> keys)
+        throws JMSException
+    {
+        List<DatabaseCommand> commands = new ArrayList<DatabaseCommand>(messages.size() + 1);
+
+        if (table != null && !keys.isEmpty())
+        {
+            commands.add(table.createRecordCommand(keys));
+        }
+
+        for (Message message : messages)
+        {
+            DatabaseCommand command = createCommand(decompress(message));
+            if (command != null)
+            {
+                commands.add(command);
+            }
+        }
+
+        runner.execute(commands.toArray(new DatabaseCommand[commands.size()]));
+        messageCount.addAndGet(messages.size());
+    }
+}
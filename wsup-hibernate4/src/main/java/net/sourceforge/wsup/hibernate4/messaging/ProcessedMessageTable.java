@@ -0,0 +1,250 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+package net.sourceforge.wsup.hibernate4.messaging;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.sourceforge.wsup.hibernate4.command.AbstractDatabaseCommand;
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommandContext;
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommandResult;
+import net.sourceforge.wsup.hibernate4.database.DataAccessContext;
+
+/**
+ * Describes the database table in which {@link BatchCommandReceiver} records the messages it has
+ * processed, so that a message delivered again (for example, because the process stopped between
+ * committing the database transaction and committing the JMS session) is recognized and skipped.
+ * <p>
+ * The table has two columns: <code>messageId</code>, a <code>varchar(255)</code> primary key, and
+ * <code>processedDate</code>, a <code>timestamp</code>. The table must be created by the
+ * application; {@link #getCreateTableSQL()} returns suitable DDL. Rows are never removed
+ * automatically, so the application should periodically run the command returned by
+ * {@link #createPurgeCommand(Date)}, keeping rows for longer than a message could plausibly be
+ * redelivered.
+ * </p>
+ * 
+ * @see BatchCommandReceiver#setProcessedMessages(ProcessedMessageTable)
+ */
+public class ProcessedMessageTable
+{
+    /**
+     * Default name of the table.
+     */
+    public static final String DEFAULT_TABLE_NAME = "wsupProcessedMessage";
+
+    /*
+     * Maximum number of identifiers in a single "in" clause. (Some databases limit this to 1000.)
+     */
+    private static final int   MAX_IN_CLAUSE      = 500;
+
+    private final String       tableName;
+
+    public ProcessedMessageTable()
+    {
+        this(DEFAULT_TABLE_NAME);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param tableName
+     *            Name of the table.
+     */
+    public ProcessedMessageTable(String tableName)
+    {
+        this.tableName = tableName;
+    }
+
+    /**
+     * @return Name of the table.
+     */
+    public String getTableName()
+    {
+        return tableName;
+    }
+
+    /**
+     * Returns SQL to create the table. This uses only standard types, but may need adjustment for
+     * a particular database.
+     * 
+     * @return <code>create table</code> statement.
+     */
+    public String getCreateTableSQL()
+    {
+        return "create table " + tableName
+            + " (messageId varchar(255) not null primary key, processedDate timestamp not null)";
+    }
+
+    /**
+     * Create a command that finds which of a set of messages have already been processed.
+     * 
+     * @param messageIds
+     *            Identifiers of the messages.
+     * @return <code>FindCommand</code>, from which the result can be retrieved once it has been
+     *         executed.
+     */
+    public FindCommand createFindCommand(Collection<String> messageIds)
+    {
+        return new FindCommand(messageIds);
+    }
+
+    /**
+     * Create a command that records a set of messages as processed. This should be executed in
+     * the same transaction as the commands that process the messages. If another process has
+     * recorded one of the messages in the meantime, the command fails with a constraint
+     * violation, rolling back the transaction.
+     * 
+     * @param messageIds
+     *            Identifiers of the messages.
+     * @return <code>DatabaseCommand</code>
+     */
+    public AbstractDatabaseCommand createRecordCommand(Collection<String> messageIds)
+    {
+        return new RecordCommand(messageIds);
+    }
+
+    /**
+     * Create a command that removes the records of messages processed before a given time.
+     * 
+     * @param before
+     *            Records older than this are removed.
+     * @return <code>PurgeCommand</code>, from which the number of records removed can be
+     *         retrieved once it has been executed.
+     */
+    public PurgeCommand createPurgeCommand(Date before)
+    {
+        return new PurgeCommand(before);
+    }
+
+    /**
+     * Command that finds which of a set of messages have been processed.
+     * <p>
+     * This deliberately does not implement <code>ReadOnly</code>: a replica may lag behind the
+     * primary database, and would then miss messages that have just been recorded.
+     * </p>
+     */
+    public class FindCommand extends AbstractDatabaseCommand
+    {
+        private final List<String> messageIds;
+        private final Set<String>  processed = new HashSet<String>();
+
+        private FindCommand(Collection<String> messageIds)
+        {
+            this.messageIds = new ArrayList<String>(messageIds);
+        }
+
+        @Override
+        public void preTransaction(DatabaseCommandContext context)
+        {
+            super.preTransaction(context);
+            processed.clear();
+        }
+
+        @Override
+        public void execute(DatabaseCommandContext commandContext,
+                            DataAccessContext dataAccessContext)
+        {
+            String sql = "select messageId from " + tableName + " where messageId in (:ids)";
+
+            for (int start = 0; start < messageIds.size(); start += MAX_IN_CLAUSE)
+            {
+                List<String> chunk = messageIds.subList(start,
+                                                        Math.min(messageIds.size(), start
+                                                            + MAX_IN_CLAUSE));
+                for (Object id : dataAccessContext.createSQLQuery(sql)
+                    .setParameterList("ids", chunk).list())
+                {
+                    processed.add((String) id);
+                }
+            }
+
+            setResult(DatabaseCommandResult.OK);
+        }
+
+        /**
+         * @return Identifiers of the messages that have already been processed.
+         */
+        public Set<String> getProcessed()
+        {
+            return processed;
+        }
+    }
+
+    /*
+     * Command that records a set of messages as processed.
+     */
+    private class RecordCommand extends AbstractDatabaseCommand
+    {
+        private final List<String> messageIds;
+
+        private RecordCommand(Collection<String> messageIds)
+        {
+            this.messageIds = new ArrayList<String>(messageIds);
+        }
+
+        @Override
+        public void execute(DatabaseCommandContext commandContext,
+                            DataAccessContext dataAccessContext)
+        {
+            String sql = "insert into " + tableName
+                + " (messageId, processedDate) values (:id, :date)";
+            Date now = new Date();
+
+            for (String id : messageIds)
+            {
+                dataAccessContext.createSQLQuery(sql).setString("id", id)
+                    .setTimestamp("date", now).executeUpdate();
+            }
+
+            setResult(DatabaseCommandResult.OK);
+        }
+    }
+
+    /**
+     * Command that removes the records of messages processed before a given time.
+     */
+    public class PurgeCommand extends AbstractDatabaseCommand
+    {
+        private final Date before;
+        private int        removed;
+
+        private PurgeCommand(Date before)
+        {
+            this.before = before;
+        }
+
+        @Override
+        public void execute(DatabaseCommandContext commandContext,
+                            DataAccessContext dataAccessContext)
+        {
+            removed = dataAccessContext
+                .createSQLQuery("delete from " + tableName + " where processedDate < :before")
+                .setTimestamp("before", before).executeUpdate();
+
+            setResult(DatabaseCommandResult.OK);
+        }
+
+        /**
+         * @return Number of records removed.
+         */
+        public int getRemoved()
+        {
+            return removed;
+        }
+    }
+}
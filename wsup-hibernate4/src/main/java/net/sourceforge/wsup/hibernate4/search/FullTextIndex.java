@@ -0,0 +1,484 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.hibernate4.search;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A simple embedded inverted index, mapping the words in a text field of each entity to the
+ * entity's ID. It allows text searches that would otherwise need a
+ * <code>lower(field) like '%term%'</code> scan of the table to be answered from memory, after
+ * which the matching entities can be fetched by ID.
+ * <p>
+ * Text is split into words at every character that is not a letter or digit, and words are
+ * compared case-insensitively. A search matches the entities that contain every word in the
+ * search text; a search word ending in '*' matches any word with that prefix.
+ * </p>
+ * <p>
+ * The index is held in memory. If it is constructed with a directory, {@link #save()} writes it
+ * to that directory and the constructor reloads it from there, so that the index need not be
+ * rebuilt each time the application starts. Changes made to the database other than through an
+ * indexing DAO are not seen by the index; applications that make them should rebuild the index
+ * (see {@link net.sourceforge.wsup.hibernate4.database.BaseDAO#rebuildFullTextIndex}), or at
+ * least re-index the entities concerned.
+ * </p>
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ * 
+ * @see net.sourceforge.wsup.hibernate4.database.BaseDAO#setFullTextIndex(FullTextIndex, String...)
+ */
+@ThreadSafe
+public class FullTextIndex
+{
+    /**
+     * Name of the file, within the index directory, in which the index is saved.
+     */
+    public static final String                       FILE_NAME = "fulltext.idx";
+
+    /**
+     * Suffix on a search word requesting a prefix match.
+     */
+    public static final char                         PREFIX    = '*';
+
+    private final File                               directory;
+
+    private final ReadWriteLock                      lock      = new ReentrantReadWriteLock();
+
+    @GuardedBy("lock")
+    private final SortedMap<String, Set<Serializable>> postings  = new TreeMap<String, Set<Serializable>>();
+
+    @GuardedBy("lock")
+    private final Map<Serializable, String[]>        documents = new HashMap<Serializable, String[]>();
+
+    /**
+     * Construct an index held only in memory.
+     */
+    public FullTextIndex()
+    {
+        this.directory = null;
+    }
+
+    /**
+     * Construct an index that is saved in a local directory. If the directory contains a
+     * previously saved index, it is loaded.
+     * 
+     * @param directory
+     *            Directory in which the index is kept. It is created if it does not exist.
+     * @throws IOException
+     *             If the directory cannot be created, or a saved index cannot be read.
+     */
+    public FullTextIndex(File directory) throws IOException
+    {
+        if (directory == null)
+        {
+            throw new IllegalArgumentException("directory must not be null");
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Unable to create index directory " + directory);
+        }
+
+        this.directory = directory;
+
+        load();
+    }
+
+    /**
+     * Return the directory in which the index is saved.
+     * 
+     * @return Directory, or <code>null</code> if the index is held only in memory.
+     */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Add an entity to the index, or replace the text indexed for it.
+     * 
+     * @param id
+     *            ID of the entity.
+     * @param text
+     *            Text to be indexed. If <code>null</code>, or if it contains no words, the
+     *            entity is removed from the index.
+     */
+    public void update(Serializable id, String text)
+    {
+        List<String> words = tokenize(text);
+
+        lock.writeLock().lock();
+        try
+        {
+            doRemove(id);
+
+            if (!words.isEmpty())
+            {
+                String[] terms = new LinkedHashSet<String>(words).toArray(new String[0]);
+                documents.put(id, terms);
+                addPostings(id, terms);
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove an entity from the index.
+     * 
+     * @param id
+     *            ID of the entity.
+     */
+    public void remove(Serializable id)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            doRemove(id);
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all entities from the index.
+     */
+    public void clear()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            postings.clear();
+            documents.clear();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Return the IDs of the entities that contain every word in the search text. If the IDs are
+     * <code>Comparable</code>, they are returned in ascending order.
+     * 
+     * @param text
+     *            Search text.
+     * @return <code>List</code> of IDs. Empty if the text contains no words.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public List<Serializable> search(String text)
+    {
+        List<String> words = tokenize(text);
+        if (words.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+
+        boolean[] prefix = new boolean[words.size()];
+        String trimmed = text == null ? "" : text.trim();
+        if (trimmed.length() > 0 && trimmed.charAt(trimmed.length() - 1) == PREFIX)
+        {
+            prefix[words.size() - 1] = true;
+        }
+
+        Set<Serializable> result = null;
+
+        lock.readLock().lock();
+        try
+        {
+            for (int i = 0; i < words.size(); i++)
+            {
+                Set<Serializable> matches = prefix[i] ? prefixMatches(words.get(i))
+                                                      : postings.get(words.get(i));
+                if (matches == null || matches.isEmpty())
+                {
+                    return Collections.emptyList();
+                }
+
+                if (result == null)
+                {
+                    result = new HashSet<Serializable>(matches);
+                }
+                else
+                {
+                    result.retainAll(matches);
+                    if (result.isEmpty())
+                    {
+                        return Collections.emptyList();
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        List<Serializable> ids = new ArrayList<Serializable>(result);
+        if (isComparable(ids))
+        {
+            Collections.sort((List) ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Return the number of entities in the index.
+     * 
+     * @return Number of entities.
+     */
+    public int size()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return documents.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the number of distinct words in the index.
+     * 
+     * @return Number of words.
+     */
+    public int getTermCount()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return postings.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Save the index to its directory. The index is written to a temporary file that then
+     * replaces any previously saved index, so a failure part way through leaves the previous
+     * index intact.
+     * 
+     * @throws IOException
+     *             If the index cannot be written.
+     * @throws IllegalStateException
+     *             If the index is held only in memory.
+     */
+    public void save() throws IOException
+    {
+        if (directory == null)
+        {
+            throw new IllegalStateException("Index has no directory");
+        }
+
+        File file = new File(directory, FILE_NAME);
+        File temp = new File(directory, FILE_NAME + ".tmp");
+
+        HashMap<Serializable, String[]> copy;
+
+        lock.readLock().lock();
+        try
+        {
+            copy = new HashMap<Serializable, String[]>(documents);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(temp));
+        try
+        {
+            out.writeObject(copy);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        // readers see either the old index or the new one, never neither
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Split text into lower-case words at every character that is not a letter or digit.
+     * 
+     * @param text
+     *            Text to be split (<code>null</code> safe).
+     * @return <code>List</code> of words, in the order they appear in the text.
+     */
+    public static List<String> tokenize(String text)
+    {
+        List<String> words = new ArrayList<String>();
+        if (text == null)
+        {
+            return words;
+        }
+
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++)
+        {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+
+            if (wordChar && start < 0)
+            {
+                start = i;
+            }
+            else if (!wordChar && start >= 0)
+            {
+                words.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+
+        return words;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() throws IOException
+    {
+        File file = new File(directory, FILE_NAME);
+        if (!file.exists())
+        {
+            return;
+        }
+
+        Map<Serializable, String[]> saved;
+
+        ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+        try
+        {
+            saved = (Map<Serializable, String[]>) in.readObject();
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IOException("Unable to read " + file, e);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        lock.writeLock().lock();
+        try
+        {
+            postings.clear();
+            documents.clear();
+
+            for (Map.Entry<Serializable, String[]> entry : saved.entrySet())
+            {
+                documents.put(entry.getKey(), entry.getValue());
+                addPostings(entry.getKey(), entry.getValue());
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void addPostings(Serializable id, String[] terms)
+    {
+        for (String term : terms)
+        {
+            Set<Serializable> ids = postings.get(term);
+            if (ids == null)
+            {
+                ids = new HashSet<Serializable>();
+                postings.put(term, ids);
+            }
+            ids.add(id);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void doRemove(Serializable id)
+    {
+        String[] terms = documents.remove(id);
+        if (terms == null)
+        {
+            return;
+        }
+
+        for (String term : terms)
+        {
+            Set<Serializable> ids = postings.get(term);
+            if (ids != null)
+            {
+                ids.remove(id);
+                if (ids.isEmpty())
+                {
+                    postings.remove(term);
+                }
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private Set<Serializable> prefixMatches(String prefix)
+    {
+        Set<Serializable> matches = new HashSet<Serializable>();
+        for (Set<Serializable> ids : postings.subMap(prefix, prefix + Character.MAX_VALUE).values())
+        {
+            matches.addAll(ids);
+        }
+        return matches;
+    }
+
+    private static boolean isComparable(List<Serializable> ids)
+    {
+        for (Serializable id : ids)
+        {
+            if (!(id instanceof Comparable))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -23,11 +23,58 @@ public class EscapedLikeExpression extends LikeExpression
     private static final long serialVersionUID = 1911257340154968368L;
     private static final char ESCAPE           = '!';
 
+    private final String      propertyName;
+    private final String      pattern;
+
+    /**
+     * Construct a case-insensitive expression that matches the value anywhere in the field.
+     * 
+     * @param propertyName the name of the field.
+     * @param value the un-escaped value.
+     */
     public EscapedLikeExpression(String propertyName, String value)
     {
-        super(propertyName,
-              "%" + LikeClauseHelper.escapeLikeValue(value, ESCAPE) + "%",
-              new Character(ESCAPE),
-              true);
+        this(propertyName, "%" + LikeClauseHelper.escapeLikeValue(value, ESCAPE) + "%", ESCAPE);
+    }
+
+    private EscapedLikeExpression(String propertyName, String pattern, char escape)
+    {
+        super(propertyName, pattern, new Character(escape), true);
+        this.propertyName = propertyName;
+        this.pattern = pattern;
+    }
+
+    /**
+     * Create a case-insensitive expression that matches the start of the field. Unlike a match
+     * anywhere in the field, this can make use of an index on the (lower-cased) field.
+     * 
+     * @param propertyName the name of the field.
+     * @param value the un-escaped prefix.
+     * @return the expression.
+     */
+    public static EscapedLikeExpression startsWith(String propertyName, String value)
+    {
+        return new EscapedLikeExpression(propertyName,
+                                         LikeClauseHelper.escapeLikeValue(value, ESCAPE) + "%",
+                                         ESCAPE);
+    }
+
+    /**
+     * Create a case-insensitive expression from a LIKE pattern that has already been escaped
+     * using '!' as the escape character.
+     * 
+     * @param propertyName the name of the field.
+     * @param pattern the escaped LIKE pattern.
+     * @return the expression.
+     */
+    public static EscapedLikeExpression matching(String propertyName, String pattern)
+    {
+        return new EscapedLikeExpression(propertyName, pattern, ESCAPE);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "lower(" + propertyName + ") like " + pattern;
     }
 }
@@ -17,15 +17,33 @@
 package net.sourceforge.wsup.hibernate4.command;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.wsup.core.stat.BasicStatisticSeries;
 import net.sourceforge.wsup.hibernate4.database.TestDatabase;
 import net.sourceforge.wsup.hibernate4.database.TestDatabaseManager;
+import net.sourceforge.wsup.hibernate4.database.DatabaseContext;
+import net.sourceforge.wsup.hibernate4.database.LifecycleStatistics;
+import net.sourceforge.wsup.hibernate4.testClasses.MockIndependentCommand;
 import net.sourceforge.wsup.hibernate4.testClasses.MockMonitoringCommand;
+import net.sourceforge.wsup.hibernate4.testClasses.MockReadOnlyCommand;
 import net.sourceforge.wsup.hibernate4.testClasses.MockSimpleCommand;
 import net.sourceforge.wsup.hibernate4.testClasses.MockThrowingCommand;
 import net.sourceforge.wsup.hibernate4.testClasses.MockThrowingCommandWithRetryable;
 
+import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
 import org.hibernate.exception.ConstraintViolationException;
 import org.hibernate.exception.LockAcquisitionException;
 import org.junit.BeforeClass;
@@ -90,6 +108,41 @@ public class DatabaseCommandRunnerImplTest
         assertEquals(2, command.wasExecuted());
     }
 
+    @Test
+    public void recordsAttemptStatistics()
+    {
+        LifecycleStatistics statistics = new LifecycleStatistics();
+        database.setLifecycleStatistics(statistics);
+        try
+        {
+            RuntimeException[] exceptions = { new LockAcquisitionException(null, null) };
+            createObject(3).execute(new MockThrowingCommand(exceptions));
+            createObject(3).execute(new MockSimpleCommand());
+
+            LifecycleStatistics.Snapshot snapshot = database.getLifecycleSnapshot();
+            assertEquals(Long.valueOf(2), snapshot.getAttemptCounts().get(0));
+            assertEquals(Long.valueOf(1), snapshot.getAttemptCounts().get(1));
+            assertEquals(1, snapshot.getRetryCount());
+            assertEquals(Long.valueOf(1),
+                         snapshot.getRollbackReasons()
+                             .get(LockAcquisitionException.class.getName()));
+
+            long executions = 0;
+            double mostAttempts = 0.0;
+            for (BasicStatisticSeries.Result result : snapshot.getAttemptsPerExecution())
+            {
+                executions += result.getValues().getCount();
+                mostAttempts = Math.max(mostAttempts, result.getValues().getHigh());
+            }
+            assertEquals(2, executions);
+            assertEquals(2.0, mostAttempts, 0.0);
+        }
+        finally
+        {
+            database.setLifecycleStatistics(null);
+        }
+    }
+
     @Test
     public void willThrowWhenGlobalRetriesExhausted()
     {
@@ -184,4 +237,223 @@ public class DatabaseCommandRunnerImplTest
 
         assertEquals(1, command.wasExecuted());
     }
+
+    @Test
+    public void executesReadOnlyCommandsReadOnly()
+    {
+        MockReadOnlyCommand command = new MockReadOnlyCommand();
+        DatabaseCommandRunnerImpl object = createObject(1);
+        object.execute(command, new MockReadOnlyCommand());
+
+        assertEquals(FlushMode.MANUAL, command.getFlushMode());
+        assertTrue(command.wasDefaultReadOnly());
+        assertFalse(command.wasConnectionReadOnly());
+    }
+
+    @Test
+    public void executesMixedCommandsReadWrite()
+    {
+        DatabaseCommandRunnerImpl object = createObject(1);
+        object.execute(new MockReadOnlyCommand());
+
+        MockReadOnlyCommand command = new MockReadOnlyCommand();
+        object.execute(command, new MockSimpleCommand());
+
+        assertEquals(FlushMode.AUTO, command.getFlushMode());
+        assertFalse(command.wasDefaultReadOnly());
+        assertFalse(command.wasConnectionReadOnly());
+    }
+
+    @Test
+    public void restoresContextReadOnlySetting()
+    {
+        DatabaseContext databaseContext = database.createDatabaseContext();
+        DatabaseCommandRunnerImpl object = createObject(1);
+
+        try
+        {
+            object.execute(databaseContext, new MockReadOnlyCommand());
+            assertFalse(databaseContext.isReadOnly());
+
+            databaseContext.setReadOnly(true);
+            object.execute(databaseContext, new MockSimpleCommand());
+            assertTrue(databaseContext.isReadOnly());
+        }
+        finally
+        {
+            databaseContext.closeSession();
+        }
+    }
+
+    @Test
+    public void executesIndependentCommandsInParallel()
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            CountDownLatch latch = new CountDownLatch(2);
+            MockIndependentCommand first = new MockIndependentCommand(latch, null);
+            MockIndependentCommand second = new MockIndependentCommand(latch, null);
+            DatabaseCommandRunnerImpl object = new DatabaseCommandRunnerImpl(database, 1, executor);
+            object.execute(first, second);
+
+            assertTrue(first.wasConcurrent());
+            assertTrue(second.wasConcurrent());
+            assertNotSame(first.getThread(), second.getThread());
+            assertNotSame(Thread.currentThread(), first.getThread());
+            assertEquals(1, first.getContextCommands());
+
+            assertEquals(1, first.wasPreExecuted());
+            assertEquals(1, first.wasPreTransactioned());
+            assertEquals(1, first.wasPostTransactioned());
+            assertEquals(1, first.wasPostExecuted());
+            assertTrue(first.wasExecuteSuccessful());
+            assertEquals(1, second.wasPostExecuted());
+            assertEquals(0, database.getOutstandingSessionCount());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelFailureIsJoined()
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            CountDownLatch latch = new CountDownLatch(2);
+            ConstraintViolationException exception = new ConstraintViolationException(null,
+                                                                                      null,
+                                                                                      null);
+            MockIndependentCommand first = new MockIndependentCommand(latch, null);
+            MockIndependentCommand second = new MockIndependentCommand(latch, exception);
+            DatabaseCommandRunnerImpl object = new DatabaseCommandRunnerImpl(database, 1, executor);
+            try
+            {
+                object.execute(first, second);
+                fail("Didn't throw");
+            }
+            catch (ConstraintViolationException e)
+            {
+                assertTrue(e == exception);
+            }
+
+            assertTrue(first.wasTransactionSuccessful());
+            assertFalse(second.wasTransactionSuccessful());
+            assertEquals(1, first.wasPostExecuted());
+            assertFalse(first.wasExecuteSuccessful());
+            assertEquals(0, database.getOutstandingSessionCount());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void interruptedParallelExecutionWaitsForRunningCommands() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try
+        {
+            final CountDownLatch latch = new CountDownLatch(3);
+            MockIndependentCommand first = new MockIndependentCommand(latch, null);
+            MockIndependentCommand second = new MockIndependentCommand(latch, null);
+            DatabaseCommandRunnerImpl object = new DatabaseCommandRunnerImpl(database, 1, executor);
+
+            final Thread caller = Thread.currentThread();
+            Thread interrupter = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    while (latch.getCount() == 3)
+                    {
+                        Thread.yield();
+                    }
+                    caller.interrupt();
+                }
+            };
+            interrupter.start();
+
+            try
+            {
+                object.execute(first, second);
+                fail("Didn't throw");
+            }
+            catch (HibernateException e)
+            {
+                assertTrue(e.getCause() instanceof InterruptedException);
+            }
+            assertTrue(Thread.interrupted());
+            interrupter.join();
+
+            assertEquals(1, first.wasPostTransactioned());
+            assertEquals(0, second.wasPreTransactioned());
+            assertEquals(1, first.wasPostExecuted());
+            assertFalse(first.wasExecuteSuccessful());
+            assertEquals(0, database.getOutstandingSessionCount());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectedParallelExecutionCancelsSubmittedCommands()
+    {
+        ExecutorService executor = new ThreadPoolExecutor(1,
+                                                          1,
+                                                          0L,
+                                                          TimeUnit.MILLISECONDS,
+                                                          new SynchronousQueue<Runnable>());
+        try
+        {
+            CountDownLatch latch = new CountDownLatch(3);
+            MockIndependentCommand first = new MockIndependentCommand(latch, null);
+            MockIndependentCommand second = new MockIndependentCommand(latch, null);
+            DatabaseCommandRunnerImpl object = new DatabaseCommandRunnerImpl(database, 1, executor);
+            try
+            {
+                object.execute(first, second);
+                fail("Didn't throw");
+            }
+            catch (RejectedExecutionException e)
+            {
+            }
+
+            assertFalse(first.wasConcurrent());
+            assertEquals(0, second.wasPreTransactioned());
+            assertEquals(1, first.wasPostExecuted());
+            assertFalse(first.wasExecuteSuccessful());
+            assertEquals(0, database.getOutstandingSessionCount());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void dependentCommandsAreNotParallel()
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            CountDownLatch latch = new CountDownLatch(1);
+            MockIndependentCommand command = new MockIndependentCommand(latch, null);
+            DatabaseCommandRunnerImpl object = new DatabaseCommandRunnerImpl(database, 1, executor);
+            object.execute(command, new MockSimpleCommand());
+
+            assertTrue(Thread.currentThread() == command.getThread());
+            assertEquals(2, command.getContextCommands());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
 }
@@ -25,8 +25,11 @@ import static org.junit.Assert.assertTrue;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
+import net.sourceforge.wsup.hibernate4.search.FullTextIndex;
 import net.sourceforge.wsup.hibernate4.utils.EscapedLikeExpression;
+import net.sourceforge.wsup.hibernate4.utils.LikeClauseHelper;
 
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
@@ -421,6 +424,478 @@ public class BaseDAOTest
         commit();
     }
 
+    /*
+     * Delete all leaves other entities in the session attached, so changes to
+     * them are still saved
+     */
+    @Test
+    public void testDeleteAllLeavesOtherEntitiesAttached()
+    {
+        createTestBean("1");
+        TestDateBean other = createTestDateBean("before");
+
+        newSession();
+
+        beginTransaction();
+
+        TestDateBean loaded = testDateBeanDAO.getById(daoContext, other.getId());
+        loaded.setContents("after");
+        testBeanDAO.deleteAll(daoContext);
+        assertTrue(daoContext.contains(loaded));
+
+        commit();
+
+        newSession();
+
+        beginTransaction();
+
+        assertEquals(0, testBeanDAO.getCount(daoContext));
+        assertEquals("after", testDateBeanDAO.getById(daoContext, other.getId()).getContents());
+
+        commit();
+    }
+
+    /*
+     * Bulk insert and update process more entities than the batch size
+     */
+    @Test
+    public void testInsertAllAndUpdateAll()
+    {
+        List<TestBean> beans = new ArrayList<TestBean>();
+        for (int i = 0; i < 12; i++)
+        {
+            beans.add(new TestBean("bean" + i));
+        }
+
+        beginTransaction();
+
+        testBeanDAO.insertAll(daoContext, beans);
+
+        commit();
+
+        for (TestBean bean : beans)
+        {
+            assertNotNull(bean.getId());
+            assertFalse(daoContext.contains(bean));
+            bean.setContents("updated");
+        }
+
+        beginTransaction();
+
+        testBeanDAO.updateAll(daoContext, beans);
+
+        commit();
+
+        newSession();
+
+        beginTransaction();
+
+        assertEquals(12, testBeanDAO.getCount(daoContext));
+        assertEquals(12, testBeanDAO.listByCriteria(daoContext,
+                                                    null,
+                                                    null,
+                                                    Restrictions.eq("contents", "updated")).size());
+
+        commit();
+    }
+
+    /*
+     * Delete by IDs deletes only the specified beans, ignoring missing IDs
+     */
+    @Test
+    public void testDeleteByIds()
+    {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 12; i++)
+        {
+            ids.add(createTestBean("bean" + i).getId());
+        }
+        Long keptId = ids.remove(0);
+        ids.add(new Long(-1));
+
+        beginTransaction();
+
+        assertEquals(11, testBeanDAO.deleteByIds(daoContext, ids));
+
+        commit();
+
+        beginTransaction();
+
+        List<TestBean> beans = testBeanDAO.listAll(daoContext, null);
+        assertEquals(1, beans.size());
+        assertEquals(keptId, beans.get(0).getId());
+
+        assertEquals(0, testBeanDAO.deleteByIds(daoContext, new ArrayList<Long>()));
+
+        commit();
+    }
+
+    /*
+     * Get by IDs returns the beans in request order, skipping missing IDs and
+     * reusing instances already in the session
+     */
+    @Test
+    public void testGetByIds()
+    {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 12; i++)
+        {
+            ids.add(createTestBean("bean" + i).getId());
+        }
+
+        TestBeanDAO smallFetchDAO = new TestBeanDAO()
+        {
+            @Override
+            protected int getIdFetchSize(DataAccessContext context)
+            {
+                return 5;
+            }
+        };
+
+        newSession();
+
+        TestBean inSession = testBeanDAO.getById(daoContext, ids.get(3));
+
+        List<Long> request = new ArrayList<Long>();
+        request.add(new Long(-1));
+        for (int i = ids.size() - 1; i >= 0; i--)
+        {
+            request.add(ids.get(i));
+        }
+        request.add(ids.get(0));
+        request.add(null);
+
+        List<TestBean> beans = smallFetchDAO.getByIds(daoContext, request);
+        assertEquals(12, beans.size());
+        for (int i = 0; i < 12; i++)
+        {
+            assertEquals("bean" + (11 - i), beans.get(i).getContents());
+        }
+        assertTrue(beans.contains(inSession));
+        assertTrue(inSession == beans.get(8));
+
+        Map<Long, TestBean> map = testBeanDAO.getMapByIds(daoContext, request);
+        assertEquals(12, map.size());
+        assertEquals(ids.get(11), map.keySet().iterator().next());
+        assertFalse(map.containsKey(new Long(-1)));
+        assertTrue(inSession == map.get(ids.get(3)));
+
+        assertTrue(testBeanDAO.getByIds(daoContext, new ArrayList<Long>()).isEmpty());
+    }
+
+    /*
+     * With an entity cache, reads are answered from the cache until a change
+     * through the DAO invalidates it
+     */
+    @Test
+    public void testEntityCache()
+    {
+        EntityCache cache = new EntityCache(100, 60000L);
+        testBeanDAO.setEntityCache(cache);
+        assertTrue(cache == testBeanDAO.getEntityCache());
+
+        TestBean a = createTestBean("a");
+        createTestBean("b");
+
+        newSession();
+        assertEquals("a", testBeanDAO.getByIdReadOnly(daoContext, a.getId()).getContents());
+        assertEquals(2, testBeanDAO.listAllReadOnly(daoContext, Order.asc("contents")).size());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+
+        // change the database behind the DAO's back
+        beginTransaction();
+        daoContext.createQuery("update TestBean set contents = 'changed'").executeUpdate();
+        commit();
+
+        newSession();
+        TestBean cached = testBeanDAO.getByIdReadOnly(daoContext, a.getId());
+        assertEquals("a", cached.getContents());
+        assertFalse(daoContext.contains(cached));
+        assertEquals(1, cache.getHitCount());
+
+        List<TestBean> list = testBeanDAO.listAllReadOnly(daoContext, Order.asc("contents"));
+        assertEquals("a", list.get(0).getContents());
+        assertEquals("b", list.get(1).getContents());
+        assertEquals(4, cache.getHitCount());
+
+        // a change through the DAO invalidates the cache
+        beginTransaction();
+        TestBean managed = testBeanDAO.getById(daoContext, a.getId());
+        assertTrue(daoContext.contains(managed));
+        managed.setContents("updated");
+        testBeanDAO.update(daoContext, managed);
+        commit();
+
+        newSession();
+        assertEquals("updated", testBeanDAO.getByIdReadOnly(daoContext, a.getId()).getContents());
+        list = testBeanDAO.listAllReadOnly(daoContext, Order.asc("contents"));
+        assertEquals("changed", list.get(0).getContents());
+        assertEquals("updated", list.get(1).getContents());
+
+        // so does a change saved by dirty checking
+        newSession();
+        beginTransaction();
+        testBeanDAO.getById(daoContext, a.getId()).setContents("dirty");
+        commit();
+
+        newSession();
+        assertEquals("dirty", testBeanDAO.getByIdReadOnly(daoContext, a.getId()).getContents());
+
+        // but merely loading an entity for update does not
+        long invalidations = cache.getInvalidationCount();
+        newSession();
+        beginTransaction();
+        testBeanDAO.getById(daoContext, a.getId());
+        commit();
+        assertEquals(invalidations, cache.getInvalidationCount());
+
+        beginTransaction();
+        testBeanDAO.clearTable(daoContext);
+        commit();
+
+        newSession();
+        assertNull(testBeanDAO.getByIdReadOnly(daoContext, a.getId()));
+        assertTrue(testBeanDAO.listAllReadOnly(daoContext, null).isEmpty());
+
+        testBeanDAO.setEntityCache(null);
+    }
+
+    /*
+     * Cached entities with dates are copied, not shared
+     */
+    @Test
+    public void testEntityCacheSnapshots()
+    {
+        EntityCache cache = new EntityCache(100, 60000L);
+        testDateBeanDAO.setEntityCache(cache);
+
+        TestDateBean bean = createTestDateBean("a");
+
+        newSession();
+        TestDateBean loaded = testDateBeanDAO.getByIdReadOnly(daoContext, bean.getId());
+        Date created = new Date(loaded.getCreated().getTime());
+
+        newSession();
+        TestDateBean first = testDateBeanDAO.getByIdReadOnly(daoContext, bean.getId());
+        first.getCreated().setTime(0L);
+
+        newSession();
+        TestDateBean second = testDateBeanDAO.getByIdReadOnly(daoContext, bean.getId());
+        assertTrue(first != second);
+        assertEquals(created, second.getCreated());
+        assertEquals("a", second.getContents());
+        assertEquals(bean.getVersion(), second.getVersion());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    /*
+     * Reading an entity for reading only does not stop a later read of the
+     * same entity from being updated in the same session
+     */
+    @Test
+    public void testEntityCacheReadOnlyThenUpdate()
+    {
+        EntityCache cache = new EntityCache(100, 60000L);
+        testBeanDAO.setEntityCache(cache);
+
+        TestBean a = createTestBean("a");
+        TestBean b = createTestBean("b");
+
+        newSession();
+        TestBean readOnly = testBeanDAO.getByIdReadOnly(daoContext, a.getId());
+        assertFalse(daoContext.contains(readOnly));
+        testBeanDAO.listAllReadOnly(daoContext, null);
+
+        beginTransaction();
+        TestBean managed = testBeanDAO.getById(daoContext, a.getId());
+        assertTrue(managed != readOnly);
+        managed.setContents("updated");
+        testBeanDAO.getById(daoContext, b.getId()).setContents("dirty");
+        commit();
+
+        newSession();
+        assertEquals("updated", testBeanDAO.getById(daoContext, a.getId()).getContents());
+        assertEquals("dirty", testBeanDAO.getById(daoContext, b.getId()).getContents());
+
+        testBeanDAO.setEntityCache(null);
+    }
+
+    /*
+     * With a full-text index, changes are indexed when they are committed,
+     * and not at all if they are rolled back
+     */
+    @Test
+    public void testFullTextSearch()
+    {
+        FullTextIndex index = new FullTextIndex();
+        testDateBeanDAO.setFullTextIndex(index, "contents", "other");
+        assertTrue(index == testDateBeanDAO.getFullTextIndex());
+
+        TestDateBean fox = createTestDateBean("The quick brown fox", "jumps");
+        TestDateBean dog = createTestDateBean("The lazy dog", "sleeps");
+        assertEquals(2, index.size());
+
+        beginTransaction();
+        testDateBeanDAO.insert(daoContext, new TestDateBean("A brown dog", "barks"));
+        assertTrue(testDateBeanDAO.searchIds("barks").isEmpty());
+        databaseContext.rollbackTransaction();
+        assertTrue(testDateBeanDAO.searchIds("barks").isEmpty());
+
+        newSession();
+        List<TestDateBean> found = testDateBeanDAO.search(daoContext, "the");
+        assertEquals(2, found.size());
+        assertEquals(fox.getId(), found.get(0).getId());
+        assertEquals(dog.getId(), found.get(1).getId());
+        assertEquals(fox.getId(), testDateBeanDAO.searchIds("Quick JUMPS").get(0));
+        assertEquals(dog.getId(), testDateBeanDAO.searchIds("sl*").get(0));
+        assertTrue(testDateBeanDAO.searchIds("quick sleeps").isEmpty());
+
+        beginTransaction();
+        TestDateBean loaded = testDateBeanDAO.getById(daoContext, dog.getId());
+        loaded.setContents("The energetic dog");
+        testDateBeanDAO.update(daoContext, loaded);
+        commit();
+
+        assertTrue(testDateBeanDAO.searchIds("lazy").isEmpty());
+        assertEquals(dog.getId(), testDateBeanDAO.searchIds("energetic").get(0));
+
+        beginTransaction();
+        assertTrue(testDateBeanDAO.deleteById(daoContext, fox.getId()));
+        commit();
+
+        assertTrue(testDateBeanDAO.searchIds("fox").isEmpty());
+        assertEquals(1, index.size());
+
+        beginTransaction();
+        testDateBeanDAO.deleteAll(daoContext);
+        commit();
+
+        assertEquals(0, index.size());
+
+        // the text is read as the transaction commits
+        beginTransaction();
+        TestDateBean cat = testDateBeanDAO.insert(daoContext, new TestDateBean("A cat", "naps"));
+        cat.setContents("A grumpy cat");
+        commit();
+        assertEquals(cat.getId(), testDateBeanDAO.searchIds("grumpy").get(0));
+
+        // changes saved by dirty checking are indexed too
+        newSession();
+        beginTransaction();
+        testDateBeanDAO.getById(daoContext, cat.getId()).setContents("A sleepy cat");
+        commit();
+        assertTrue(testDateBeanDAO.searchIds("grumpy").isEmpty());
+        assertEquals(cat.getId(), testDateBeanDAO.searchIds("sleepy").get(0));
+
+        // with no transaction, changes are indexed at once
+        newSession();
+        TestDateBean owl = testDateBeanDAO.insert(daoContext, new TestDateBean("An owl", "hoots"));
+        assertEquals(owl.getId(), testDateBeanDAO.searchIds("hoots").get(0));
+
+        testDateBeanDAO.setFullTextIndex(null);
+    }
+
+    /*
+     * A transaction that changes more entities than are tracked one by one
+     * re-reads the whole table into the index, without evicting the objects
+     * already in the session
+     */
+    @Test
+    public void testFullTextSearchBulkInsert()
+    {
+        FullTextIndex index = new FullTextIndex();
+        testDateBeanDAO.setFullTextIndex(index, "contents");
+
+        TestDateBean first = createTestDateBean("An early bird", "sings");
+
+        List<TestDateBean> beans = new ArrayList<TestDateBean>();
+        for (int i = 0; i < 1100; i++)
+        {
+            beans.add(new TestDateBean("Bulk bean " + i, "other"));
+        }
+
+        newSession();
+        beginTransaction();
+        TestDateBean loaded = testDateBeanDAO.getById(daoContext, first.getId());
+        testDateBeanDAO.insertAll(daoContext, beans);
+        commit();
+
+        assertTrue(daoContext.contains(loaded));
+        assertEquals(1101, index.size());
+        assertEquals(first.getId(), testDateBeanDAO.searchIds("early").get(0));
+        assertEquals(1100, testDateBeanDAO.searchIds("bulk").size());
+
+        testDateBeanDAO.setFullTextIndex(null);
+    }
+
+    /*
+     * Rebuilding the index picks up the entities already in the table, and
+     * deleting a detached entity removes it from the index
+     */
+    @Test
+    public void testRebuildFullTextIndex()
+    {
+        TestDateBean fox = createTestDateBean("The quick brown fox", "jumps");
+        TestDateBean dog = createTestDateBean("The lazy dog", "sleeps");
+
+        FullTextIndex index = new FullTextIndex();
+        testDateBeanDAO.setFullTextIndex(index, "contents");
+        index.update(Long.valueOf(-1L), "stale");
+
+        newSession();
+        assertEquals(2L, testDateBeanDAO.rebuildFullTextIndex(daoContext));
+        assertEquals(2, index.size());
+        assertTrue(testDateBeanDAO.searchIds("stale").isEmpty());
+        assertEquals(dog.getId(), testDateBeanDAO.searchIds("lazy").get(0));
+
+        newSession();
+        beginTransaction();
+        assertFalse(daoContext.contains(fox));
+        testDateBeanDAO.delete(daoContext, fox);
+        commit();
+
+        assertTrue(testDateBeanDAO.searchIds("fox").isEmpty());
+        assertEquals(1, index.size());
+
+        testDateBeanDAO.setFullTextIndex(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFullTextIndexBadProperty()
+    {
+        testDateBeanDAO.setFullTextIndex(new FullTextIndex(), "missing");
+    }
+
+    /*
+     * Delete by criteria deletes only the matching beans
+     */
+    @Test
+    public void testDeleteByCriteria()
+    {
+        for (int i = 0; i < 7; i++)
+        {
+            createTestDateBean("a", "other" + i);
+            createTestDateBean("b", "other" + i);
+        }
+
+        beginTransaction();
+
+        assertEquals(7, testDateBeanDAO.deleteByCriteria(daoContext, Restrictions.eq("contents", "a")));
+
+        commit();
+
+        beginTransaction();
+
+        assertEquals(7, testDateBeanDAO.getCount(daoContext));
+        assertEquals(0, testDateBeanDAO.listByCriteria(daoContext,
+                                                       null,
+                                                       null,
+                                                       Restrictions.eq("contents", "a")).size());
+
+        commit();
+    }
+
     @Test
     public void testListAll()
     {
@@ -459,6 +934,53 @@ public class BaseDAOTest
         assertEquals(id1, list.get(2).getId());
     }
 
+    /*
+     * Scrolling hands each entity to the processor in order, and evicts it
+     */
+    @Test
+    public void testScrollAll()
+    {
+        Long id1 = createTestBean("a").getId();
+        Long id2 = createTestBean("b").getId();
+        Long id3 = createTestBean("c").getId();
+
+        beginTransaction();
+
+        final List<TestBean> seen = new ArrayList<TestBean>();
+        EntityProcessor<TestBean> processor = new EntityProcessor<TestBean>()
+        {
+            public void process(TestBean entity)
+            {
+                assertTrue(daoContext.contains(entity));
+                seen.add(entity);
+            }
+        };
+
+        assertEquals(3, testBeanDAO.scrollAll(daoContext, Order.desc("contents"), 2, processor));
+
+        assertEquals(3, seen.size());
+        assertEquals(id3, seen.get(0).getId());
+        assertEquals(id2, seen.get(1).getId());
+        assertEquals(id1, seen.get(2).getId());
+        for (TestBean bean : seen)
+        {
+            assertFalse(daoContext.contains(bean));
+        }
+
+        seen.clear();
+
+        assertEquals(1, testBeanDAO.scrollByCriteria(daoContext,
+                                                     "scroll b",
+                                                     null,
+                                                     0,
+                                                     processor,
+                                                     Restrictions.eq("contents", "b")));
+        assertEquals(1, seen.size());
+        assertEquals(id2, seen.get(0).getId());
+
+        commit();
+    }
+
     /*
      * Test variants on getByCriteria
      */
@@ -607,6 +1129,47 @@ public class BaseDAOTest
         commit();
     }
 
+    /*
+     * Keyset paging walks the table in key order, one page at a time
+     */
+    @Test
+    public void testListKeysetPage()
+    {
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 5; i++)
+        {
+            ids.add(createTestBean("bean" + i).getId());
+        }
+
+        beginTransaction();
+
+        List<TestBean> page = testBeanDAO.listKeysetPage(daoContext, null, "id", true, null, 3);
+        assertEquals(3, page.size());
+        assertEquals(ids.get(0), page.get(0).getId());
+        assertEquals(ids.get(2), page.get(2).getId());
+
+        page = testBeanDAO.listKeysetPage(daoContext, "page 2", "id", true, ids.get(1), 3);
+        assertEquals(3, page.size());
+        assertEquals(ids.get(2), page.get(0).getId());
+        assertEquals(ids.get(4), page.get(2).getId());
+
+        page = testBeanDAO.listKeysetPage(daoContext, null, "id", true, ids.get(4), 3);
+        assertEquals(0, page.size());
+
+        page = testBeanDAO.listKeysetPage(daoContext,
+                                          null,
+                                          "id",
+                                          false,
+                                          ids.get(3),
+                                          2,
+                                          Restrictions.ne("contents", "bean1"));
+        assertEquals(2, page.size());
+        assertEquals(ids.get(2), page.get(0).getId());
+        assertEquals(ids.get(0), page.get(1).getId());
+
+        commit();
+    }
+
     @Test
     public void testNullSafeContents()
     {
@@ -674,4 +1237,42 @@ public class BaseDAOTest
         commit();
     }
 
+    @Test
+    public void testSearchCriterion()
+    {
+        List<TestBean> beans = new ArrayList<TestBean>();
+        beans.add(createTestBean("Abe made %50 profit"));
+        beans.add(createTestBean("Bob had %55 gain"));
+        beans.add(createTestBean("Carl swam %40 better"));
+
+        beginTransaction();
+
+        assertEquals(1, search("abe MADE %50 profit").size());
+        assertEquals(0, search("abe").size());
+
+        List<TestBean> results = search("BOB*");
+        assertEquals(1, results.size());
+        assertEquals(beans.get(1).getContents(), results.get(0).getContents());
+
+        results = search("*%5*");
+        assertEquals(2, results.size());
+        assertEquals(beans.get(0).getContents(), results.get(0).getContents());
+        assertEquals(beans.get(1).getContents(), results.get(1).getContents());
+
+        results = search("c**%40*");
+        assertEquals(1, results.size());
+        assertEquals(beans.get(2).getContents(), results.get(0).getContents());
+
+        commit();
+    }
+
+    private List<TestBean> search(String value)
+    {
+        return testBeanDAO.listDistinctByCriteria(daoContext,
+                                                  "comment",
+                                                  Order.asc("contents"),
+                                                  LikeClauseHelper.createSearchCriterion("contents",
+                                                                                         value));
+    }
+
 }
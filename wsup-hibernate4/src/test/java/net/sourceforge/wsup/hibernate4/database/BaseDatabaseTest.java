@@ -23,6 +23,9 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.cfg.Configuration;
@@ -269,6 +272,12 @@ public class BaseDatabaseTest
         Session session = database.createHibernateSession(true);
         assertTrue(session.isOpen());
         database.closeHibernateSession(session);
+
+        /*
+         * The pool may still hold dead connections, so don't leave this
+         * database around for other tests.
+         */
+        TestDatabaseManager.shutdownTestDatabase();
     }
 
     /*
@@ -317,6 +326,179 @@ public class BaseDatabaseTest
         database.close();
     }
 
+    @Test
+    public void readOnlySessionsUsePrimaryWithoutReplicas() throws Exception
+    {
+        TestDatabase database = TestDatabaseManager.openTestDatabaseIfRequired();
+        assertEquals(0, database.getReplicaCount());
+
+        Session session = database.createReadOnlyHibernateSession(true);
+        assertEquals(1, database.getOutstandingSessionCount());
+        database.closeHibernateSession(session);
+        assertEquals(0, database.getOutstandingSessionCount());
+    }
+
+    @Test
+    public void readOnlySessionsAreRoutedToReplicas() throws Exception
+    {
+        TestDatabaseManager.bootTestDatabaseIfRequired();
+
+        ReplicatedTestDatabase database = new ReplicatedTestDatabase(REPLICA_URL, REPLICA_URL);
+        database.open();
+        try
+        {
+            assertEquals(2, database.getReplicaCount());
+            assertEquals(ReplicaSelection.ROUND_ROBIN, database.getReplicaSelection());
+
+            Session first = database.createReadOnlyHibernateSession(true);
+            Session second = database.createReadOnlyHibernateSession(false);
+            assertEquals(0, database.getOutstandingSessionCount());
+            assertEquals(1, database.getReplicaOutstandingSessionCount(0));
+            assertEquals(1, database.getReplicaOutstandingSessionCount(1));
+
+            database.closeHibernateSession(first);
+            assertEquals(0, database.getReplicaOutstandingSessionCount(0));
+
+            database.setReplicaSelection(ReplicaSelection.LEAST_OUTSTANDING_SESSIONS);
+            first = database.createReadOnlyHibernateSession(false);
+            assertEquals(1, database.getReplicaOutstandingSessionCount(0));
+            assertEquals(1, database.getReplicaOutstandingSessionCount(1));
+
+            database.closeHibernateSession(first);
+            database.closeHibernateSession(second);
+            assertEquals(0, database.getReplicaOutstandingSessionCount(0));
+            assertEquals(0, database.getReplicaOutstandingSessionCount(1));
+
+            DatabaseContext databaseContext = database.createDatabaseContext();
+            databaseContext.setReadOnly(true);
+            databaseContext.beginTransaction();
+            assertEquals(1, database.getReplicaOutstandingSessionCount(0)
+                            + database.getReplicaOutstandingSessionCount(1));
+            new TestBeanDAO().getCount(databaseContext.createDataAccessContext());
+            databaseContext.commitTransaction();
+            databaseContext.closeSession();
+            assertEquals(0, database.getOutstandingSessionCount());
+        }
+        finally
+        {
+            database.close();
+        }
+        assertEquals(0, database.getReplicaCount());
+    }
+
+    @Test
+    public void failedReplicaIsEjectedAndPrimaryUsed() throws Exception
+    {
+        TestDatabaseManager.bootTestDatabaseIfRequired();
+
+        MockLogger.get(BaseDatabase.class).setWarn();
+
+        ReplicatedTestDatabase database = new ReplicatedTestDatabase("jdbc:hsqldb:mem:emptyreplica");
+        database.open();
+        try
+        {
+            Session session = database.createReadOnlyHibernateSession(true);
+            assertTrue(database.isReplicaEjected(0));
+            assertEquals(0, database.getReplicaOutstandingSessionCount(0));
+            assertEquals(1, database.getOutstandingSessionCount());
+            database.closeHibernateSession(session);
+
+            assertEquals("Ejecting replica 0 after failed verification",
+                         MockLogger.getFilteredLogEntries(BaseDatabase.class).get(0).getMessage());
+
+            session = database.createReadOnlyHibernateSession(false);
+            assertEquals(1, database.getOutstandingSessionCount());
+            database.closeHibernateSession(session);
+            assertEquals(0, database.getOutstandingSessionCount());
+        }
+        finally
+        {
+            database.close();
+        }
+    }
+
+    @Test
+    public void failedReplicaLeavesDatabaseClosed() throws Exception
+    {
+        TestDatabaseManager.bootTestDatabaseIfRequired();
+
+        ReplicatedTestDatabase database = new ReplicatedTestDatabase(REPLICA_URL, null);
+        try
+        {
+            database.open();
+            fail("Didn't throw");
+        }
+        catch (HibernateException e)
+        {
+        }
+        assertFalse(database.isOpen());
+
+        database = new ReplicatedTestDatabase(REPLICA_URL);
+        database.open();
+        assertEquals(1, database.getReplicaCount());
+        database.close();
+    }
+
+    @Test
+    public void unreachableReplicaIsEjectedWithoutVerification() throws Exception
+    {
+        TestDatabaseManager.bootTestDatabaseIfRequired();
+
+        MockLogger.get(BaseDatabase.class).setWarn();
+
+        ReplicatedTestDatabase database = new ReplicatedTestDatabase("jdbc:hsqldb:hsql://localhost:1/none");
+        database.open();
+        try
+        {
+            Session session = database.createReadOnlyHibernateSession(false);
+            assertTrue(database.isReplicaEjected(0));
+            assertEquals(0, database.getReplicaOutstandingSessionCount(0));
+            assertEquals(1, database.getOutstandingSessionCount());
+            database.closeHibernateSession(session);
+
+            assertEquals("Ejecting replica 0 after failed connection",
+                         MockLogger.getFilteredLogEntries(BaseDatabase.class).get(0).getMessage());
+        }
+        finally
+        {
+            database.close();
+        }
+    }
+
+    @Test
+    public void ejectedReplicaIsRetried() throws Exception
+    {
+        TestDatabaseManager.bootTestDatabaseIfRequired();
+
+        ReplicatedTestDatabase database = new ReplicatedTestDatabase(REPLICA_URL);
+        database.setReplicaRetryInterval(0);
+        database.open();
+        try
+        {
+            database.setVerificationSQL("select 1 from NoSuchTable");
+            try
+            {
+                database.createReadOnlyHibernateSession(true);
+                fail("Didn't throw");
+            }
+            catch (HibernateException e)
+            {
+            }
+            assertTrue(database.isReplicaEjected(0));
+            assertEquals(0, database.getOutstandingSessionCount());
+
+            database.setVerificationSQL("select 1 from TestTable");
+            Session session = database.createReadOnlyHibernateSession(false);
+            assertFalse(database.isReplicaEjected(0));
+            assertEquals(1, database.getReplicaOutstandingSessionCount(0));
+            database.closeHibernateSession(session);
+        }
+        finally
+        {
+            database.close();
+        }
+    }
+
     /**
      * Version of TestDatabase that will always throw an exception in
      * getRawSession, and which has a short verification timeout. Used to test
@@ -367,4 +549,59 @@ public class BaseDatabaseTest
             return super.getVerificationSQL();
         }
     }
+
+    private static final String REPLICA_URL = "jdbc:hsqldb:mem:testdb";
+
+    /**
+     * Version of TestDatabase with replicas at the specified URLs, and a
+     * short verification timeout.
+     */
+    private static class ReplicatedTestDatabase extends TestDatabase
+    {
+        private final String[] urls;
+        private long           replicaRetryInterval = 60L * 1000L;
+
+        public ReplicatedTestDatabase(String... urls)
+        {
+            this.urls = urls;
+        }
+
+        @Override
+        protected List<Configuration> createReplicaConfigurations() throws HibernateException
+        {
+            List<Configuration> configurations = new ArrayList<Configuration>();
+            for (String url : urls)
+            {
+                Configuration configuration = createConfiguration();
+                if (url == null)
+                {
+                    // a replica whose SessionFactory cannot be built
+                    configuration.setProperty("hibernate.dialect", "NoSuchDialect");
+                    url = REPLICA_URL;
+                }
+                configuration.setProperty("hibernate.connection.url", url);
+                configuration.setProperty("hibernate.connection.provider_class",
+                                          "org.hibernate.service.jdbc.connections.internal.DriverManagerConnectionProviderImpl");
+                configurations.add(configuration);
+            }
+            return configurations;
+        }
+
+        @Override
+        protected long getReplicaRetryInterval()
+        {
+            return replicaRetryInterval;
+        }
+
+        public void setReplicaRetryInterval(long replicaRetryInterval)
+        {
+            this.replicaRetryInterval = replicaRetryInterval;
+        }
+
+        @Override
+        protected long getSessionVerificationTimeout()
+        {
+            return 0L;
+        }
+    }
 }
@@ -28,8 +28,12 @@ import java.io.StringReader;
 import java.sql.Blob;
 import java.sql.Clob;
 
+import javax.transaction.Synchronization;
+
+import net.sourceforge.wsup.core.stat.BasicStatisticSeries;
 import net.sourceforge.wsup.hibernate4.testSupport.MockingDatabaseInterceptor;
 
+import org.hibernate.FlushMode;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
@@ -70,6 +74,7 @@ public class DatabaseContextImplTest
     {
         // clean up any interceptor
         database.setDatabaseTestInterceptor(null);
+        database.setLifecycleStatistics(null);
 
         // just in case
         context.destroySession();
@@ -139,6 +144,78 @@ public class DatabaseContextImplTest
         assertFalse(transaction.isActive());
     }
 
+    /*
+     * Completion callbacks run with the transaction, or at once if there is none
+     */
+    @Test
+    public void testSynchronizations()
+    {
+        DataAccessContext daoContext = context.createDataAccessContext();
+        CountingSynchronization plain = new CountingSynchronization();
+        CountingSynchronization keyed = new CountingSynchronization();
+
+        // with no transaction, the callbacks complete at once
+        daoContext.registerSynchronization(plain);
+        daoContext.registerSynchronization("key", keyed);
+        assertEquals(1, plain.completions);
+        assertEquals(1, keyed.completions);
+        assertNull(daoContext.getSynchronization("key"));
+
+        // with a transaction, they complete with the transaction
+        context.beginTransaction();
+        daoContext.registerSynchronization(plain);
+        daoContext.registerSynchronization("key", keyed);
+        assertTrue(keyed == daoContext.getSynchronization("key"));
+        assertEquals(1, plain.completions);
+        assertEquals(1, keyed.completions);
+        context.commitTransaction();
+        assertEquals(2, plain.completions);
+        assertEquals(2, keyed.completions);
+        assertNull(daoContext.getSynchronization("key"));
+    }
+
+    private static class CountingSynchronization implements Synchronization
+    {
+        private int completions;
+
+        @Override
+        public void beforeCompletion()
+        {
+        }
+
+        @Override
+        public void afterCompletion(int status)
+        {
+            completions++;
+        }
+    }
+
+    /*
+     * Read-only mode is applied to an open session, and leaving it restores
+     * the session's own settings
+     */
+    @Test
+    public void testReadOnlyRestoresSessionSettings()
+    {
+        context.beginSession(false);
+        Session session = context.getSession();
+        session.setFlushMode(FlushMode.COMMIT);
+
+        context.setReadOnly(true);
+        assertTrue(session.isDefaultReadOnly());
+        assertEquals(FlushMode.MANUAL, session.getFlushMode());
+
+        context.setReadOnly(true);
+        context.setReadOnly(false);
+        assertFalse(session.isDefaultReadOnly());
+        assertEquals(FlushMode.COMMIT, session.getFlushMode());
+
+        // nothing is touched if the mode does not change
+        session.setFlushMode(FlushMode.ALWAYS);
+        context.setReadOnly(false);
+        assertEquals(FlushMode.ALWAYS, session.getFlushMode());
+    }
+
     /*
      * Beginning a transaction will automatically open a session
      */
@@ -317,6 +394,9 @@ public class DatabaseContextImplTest
         interceptor.setCloseSessionException(new HibernateException("Close"));
         database.setDatabaseTestInterceptor(interceptor);
 
+        LifecycleStatistics statistics = new LifecycleStatistics();
+        database.setLifecycleStatistics(statistics);
+
         context.beginSession(false);
         assertTrue(context.isSessionOpen());
         Session session = ((DatabaseContextImpl) context).getSession();
@@ -328,12 +408,80 @@ public class DatabaseContextImplTest
 
         assertFalse(context.isInTransaction());
         assertFalse(context.isSessionOpen());
+        assertEquals(2, statistics.getSnapshot().getSuppressedExceptionCount());
 
         // clean up session count behind us
         database.setDatabaseTestInterceptor(null);
         database.closeHibernateSession(session);
     }
 
+    /*
+     * Lifecycle statistics record sessions, commits and rollbacks, with
+     * the reason for each rollback
+     */
+    @Test
+    public void testLifecycleStatistics()
+    {
+        assertNull(database.getLifecycleSnapshot());
+
+        LifecycleStatistics statistics = new LifecycleStatistics();
+        database.setLifecycleStatistics(statistics);
+        assertTrue(statistics == database.getLifecycleStatistics());
+
+        context.beginTransaction();
+        assertEquals(1, database.getLifecycleSnapshot().getOpenSessionCount());
+        context.commitTransaction();
+        context.beginTransaction();
+        context.rollbackTransaction();
+
+        context.beginTransaction();
+        context.destroySession(new IllegalStateException("failed"));
+        context.beginTransaction();
+        context.destroySession();
+        context.destroySession();
+
+        MockingDatabaseInterceptor interceptor = new MockingDatabaseInterceptor();
+        interceptor.setCommitTransactionException(new HibernateException("Commit"));
+        database.setDatabaseTestInterceptor(interceptor);
+        context.beginTransaction();
+        try
+        {
+            context.commitTransaction();
+            fail("Didn't throw");
+        }
+        catch (HibernateException e)
+        {
+        }
+
+        LifecycleStatistics.Snapshot snapshot = database.getLifecycleSnapshot();
+        assertEquals(0, snapshot.getOpenSessionCount());
+        assertEquals(1, snapshot.getPeakOpenSessionCount());
+        assertEquals(4, snapshot.getRollbackCount());
+        assertEquals(Long.valueOf(1),
+                     snapshot.getRollbackReasons().get(LifecycleStatistics.REASON_REQUESTED));
+        assertEquals(Long.valueOf(1),
+                     snapshot.getRollbackReasons().get(LifecycleStatistics.REASON_DESTROYED));
+        assertEquals(Long.valueOf(1),
+                     snapshot.getRollbackReasons().get(IllegalStateException.class.getName()));
+        assertEquals(Long.valueOf(1),
+                     snapshot.getRollbackReasons().get(HibernateException.class.getName()));
+        assertEquals(0, snapshot.getSuppressedExceptionCount());
+
+        assertEquals(4, count(snapshot.getSessionHold()));
+        assertEquals(5, count(snapshot.getTransactionDuration()));
+        assertEquals(1, count(snapshot.getCommitLatency()));
+    }
+
+    private static long count(BasicStatisticSeries.Result[] results)
+    {
+        long count = 0;
+        for (BasicStatisticSeries.Result result : results)
+        {
+            count += result.getValues().getCount();
+        }
+        return count;
+    }
+
     @Test
     public void testBlobs() throws Exception
     {
@@ -0,0 +1,139 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sourceforge.wsup.hibernate4.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for <code>EntityCache</code>.
+ */
+public class EntityCacheTest
+{
+    private long        now;
+
+    private EntityCache cache;
+
+    @Before
+    public void setup()
+    {
+        now = 1000L;
+        cache = new EntityCache(3, 100L)
+        {
+            @Override
+            protected long getCurrentTime()
+            {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testGetPut()
+    {
+        assertEquals(3, cache.getMaxEntries());
+        assertEquals(100L, cache.getTimeToLive());
+        assertEquals(0.0, cache.getHitRatio(), 0.0);
+
+        assertNull(cache.getEntity("a"));
+        assertTrue(cache.putEntity("a", "A", cache.getGeneration()));
+        assertEquals("A", cache.getEntity("a"));
+        assertNull(cache.getQuery("a"));
+        assertTrue(cache.putQuery("q", "Q", cache.getGeneration()));
+        assertEquals("Q", cache.getQuery("q"));
+
+        assertEquals(1, cache.getEntityCount());
+        assertEquals(1, cache.getQueryCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0.5, cache.getHitRatio(), 0.0001);
+    }
+
+    @Test
+    public void testExpiry()
+    {
+        cache.putEntity("a", "A", cache.getGeneration());
+        now += 99L;
+        assertEquals("A", cache.getEntity("a"));
+        now += 1L;
+        assertNull(cache.getEntity("a"));
+        assertEquals(1, cache.getExpirationCount());
+        assertEquals(0, cache.getEntityCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction()
+    {
+        long generation = cache.getGeneration();
+        cache.putEntity("a", "A", generation);
+        cache.putEntity("b", "B", generation);
+        cache.putEntity("c", "C", generation);
+
+        // touch "a" so that "b" is the eldest
+        cache.getEntity("a");
+        cache.putEntity("d", "D", generation);
+
+        assertEquals(3, cache.getEntityCount());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals("A", cache.getEntity("a"));
+        assertNull(cache.getEntity("b"));
+        assertEquals("C", cache.getEntity("c"));
+        assertEquals("D", cache.getEntity("d"));
+    }
+
+    @Test
+    public void testInvalidation()
+    {
+        long generation = cache.getGeneration();
+        cache.putEntity("a", "A", generation);
+        cache.putEntity("b", "B", generation);
+        cache.putQuery("q", "Q", generation);
+
+        cache.invalidate("a");
+        assertNull(cache.getEntity("a"));
+        assertEquals("B", cache.getEntity("b"));
+        assertNull(cache.getQuery("q"));
+
+        // stale values are not stored
+        assertFalse(cache.putEntity("a", "A", generation));
+        assertFalse(cache.putQuery("q", "Q", generation));
+        assertNull(cache.getEntity("a"));
+
+        cache.invalidate(null);
+        assertNull(cache.getEntity("b"));
+
+        cache.putEntity("b", "B", cache.getGeneration());
+        cache.invalidateAll();
+        assertNull(cache.getEntity("b"));
+
+        assertEquals(3, cache.getInvalidationCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadMaxEntries()
+    {
+        new EntityCache(0, 1L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadTimeToLive()
+    {
+        new EntityCache(1, 0L);
+    }
+}
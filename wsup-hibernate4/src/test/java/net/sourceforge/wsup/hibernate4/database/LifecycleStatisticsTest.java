@@ -0,0 +1,188 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sourceforge.wsup.hibernate4.database;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import net.sourceforge.wsup.core.stat.BasicStatisticSeries;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.impl.MockLogger;
+import org.slf4j.impl.MockLogger.LogEntry;
+
+/**
+ * Unit test for <code>LifecycleStatistics</code>.
+ */
+public class LifecycleStatisticsTest
+{
+    @After
+    public void cleanup()
+    {
+        MockLogger.clear();
+    }
+
+    @Test
+    public void testSessions()
+    {
+        LifecycleStatistics statistics = new LifecycleStatistics();
+
+        statistics.sessionOpened();
+        statistics.sessionOpened();
+        statistics.sessionClosed(1000000L);
+        statistics.sessionOpened();
+
+        LifecycleStatistics.Snapshot snapshot = statistics.getSnapshot();
+        assertEquals(2, snapshot.getOpenSessionCount());
+        assertEquals(2, snapshot.getPeakOpenSessionCount());
+
+        statistics.sessionClosed(1000000L);
+        statistics.sessionClosed(1000000L);
+
+        // snapshots don't change
+        assertEquals(2, snapshot.getOpenSessionCount());
+
+        snapshot = statistics.getSnapshot();
+        assertEquals(0, snapshot.getOpenSessionCount());
+        assertEquals(2, snapshot.getPeakOpenSessionCount());
+        BasicStatisticSeriesResults hold = new BasicStatisticSeriesResults(snapshot.getSessionHold());
+        assertEquals(3, hold.count);
+        assertEquals(1.0, hold.high, 0.0);
+
+        statistics.clear();
+        assertEquals(0, statistics.getSnapshot().getPeakOpenSessionCount());
+    }
+
+    @Test
+    public void testRollbackReasons()
+    {
+        LifecycleStatistics statistics = new LifecycleStatistics(1, 2, 2);
+
+        statistics.transactionRolledBack(0L, "a");
+        statistics.transactionRolledBack(0L, "a");
+        statistics.transactionRolledBack(0L, null);
+        statistics.transactionRolledBack(0L, "b");
+        statistics.transactionRolledBack(0L, "c");
+
+        LifecycleStatistics.Snapshot snapshot = statistics.getSnapshot();
+        assertEquals(5, snapshot.getRollbackCount());
+        assertEquals(3, snapshot.getRollbackReasons().size());
+        assertEquals(Long.valueOf(2), snapshot.getRollbackReasons().get("a"));
+        assertEquals(Long.valueOf(1),
+                     snapshot.getRollbackReasons().get(LifecycleStatistics.REASON_DESTROYED));
+        assertEquals(Long.valueOf(2),
+                     snapshot.getRollbackReasons().get(LifecycleStatistics.OTHER_REASON));
+        assertNull(snapshot.getRollbackReasons().get("b"));
+
+        statistics.clear();
+        snapshot = statistics.getSnapshot();
+        assertEquals(0, snapshot.getRollbackCount());
+        assertTrue(snapshot.getRollbackReasons().isEmpty());
+    }
+
+    @Test
+    public void testCommitsAndAttempts()
+    {
+        LifecycleStatistics statistics = new LifecycleStatistics();
+
+        statistics.transactionCommitted(4000000L, 1000000L);
+        statistics.attemptStarted(0);
+        statistics.attemptStarted(1);
+        statistics.attemptStarted(2);
+        statistics.attemptStarted(0);
+        statistics.executionFinished(3);
+        statistics.executionFinished(1);
+        statistics.exceptionSuppressed();
+
+        LifecycleStatistics.Snapshot snapshot = statistics.getSnapshot();
+        assertEquals(1, new BasicStatisticSeriesResults(snapshot.getCommitLatency()).count);
+        assertEquals(4.0,
+                     new BasicStatisticSeriesResults(snapshot.getTransactionDuration()).high,
+                     0.0);
+        assertEquals(2, new BasicStatisticSeriesResults(snapshot.getAttemptsPerExecution()).count);
+        assertEquals(Long.valueOf(2), snapshot.getAttemptCounts().get(0));
+        assertEquals(2, snapshot.getRetryCount());
+        assertEquals(1, snapshot.getSuppressedExceptionCount());
+    }
+
+    @Test
+    public void testLongSessionLogging()
+    {
+        MockLogger.get(LifecycleStatistics.class).setPrinting(false);
+
+        LifecycleStatistics statistics = new LifecycleStatistics();
+        assertEquals(0, statistics.getLongSessionThreshold());
+
+        statistics.sessionOpened();
+        statistics.sessionClosed(50000000L);
+        assertTrue(MockLogger.getFilteredLogEntries(LifecycleStatistics.class).isEmpty());
+
+        statistics.setLongSessionThreshold(10);
+        statistics.sessionOpened();
+        statistics.sessionClosed(5000000L);
+        statistics.sessionOpened();
+        statistics.sessionClosed(50000000L);
+
+        List<LogEntry> entries = MockLogger.getFilteredLogEntries(LifecycleStatistics.class);
+        assertEquals(1, entries.size());
+        assertEquals(MockLogger.Level.WARN, entries.get(0).getLevel());
+        assertTrue(entries.get(0).getMessage().startsWith("Long-held session (50.0 ms)"));
+
+        statistics.setLongSessionThreshold(-1);
+        assertEquals(0, statistics.getLongSessionThreshold());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadPeriod()
+    {
+        new LifecycleStatistics(0, 2, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadLength()
+    {
+        new LifecycleStatistics(1, 1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadMaxReasons()
+    {
+        new LifecycleStatistics(1, 2, 0);
+    }
+
+    /*
+     * Totals over all the results in a series, so that the tests don't depend
+     * on not crossing a period boundary.
+     */
+    private static class BasicStatisticSeriesResults
+    {
+        private long   count;
+        private double high;
+
+        public BasicStatisticSeriesResults(BasicStatisticSeries.Result[] results)
+        {
+            for (BasicStatisticSeries.Result result : results)
+            {
+                count += result.getValues().getCount();
+                if (result.getValues().getCount() > 0)
+                {
+                    high = Math.max(high, result.getValues().getHigh());
+                }
+            }
+        }
+    }
+}
@@ -171,6 +171,7 @@ public class TestDatabaseWithoutVerificationSql extends BaseDatabase
                                                          + "hibernate.connection.password=\n"
                                                          + "hibernate.connection.provider_class=org.hibernate.service.jdbc.connections.internal.C3P0ConnectionProvider\n"
                                                          + "hibernate.query.substitutions true 1, false 0, yes 'Y', no 'N'\n"
+                                                         + "hibernate.jdbc.batch_size=5\n"
                                                          + "c3p0.minPoolSize=2\n"
                                                          + "c3p0.maxPoolSize=10\n"
                                                          + "c3p0.acquireIncrement=2\n"
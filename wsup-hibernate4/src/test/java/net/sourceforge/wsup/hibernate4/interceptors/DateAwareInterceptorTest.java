@@ -19,8 +19,12 @@ package net.sourceforge.wsup.hibernate4.interceptors;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Date;
 
 import net.sourceforge.wsup.hibernate4.database.TestBean;
@@ -146,4 +150,79 @@ public class DateAwareInterceptorTest
                                              badPropertyNames,
                                              types));
     }
+
+    @Test
+    public void testFlushSharesDate()
+    {
+        Object[] first = new Object[propertyNames.length];
+        Object[] second = new Object[propertyNames.length];
+        Object[] after = new Object[propertyNames.length];
+
+        interceptor.preFlush(new ArrayList<Object>().iterator());
+        assertTrue(interceptor.onFlushDirty(new TestDateBean(),
+                                            new Long(1),
+                                            first,
+                                            first,
+                                            propertyNames,
+                                            types));
+        assertTrue(interceptor.onFlushDirty(new TestDateBean(),
+                                            new Long(2),
+                                            second,
+                                            second,
+                                            propertyNames,
+                                            types));
+        interceptor.postFlush(new ArrayList<Object>().iterator());
+        assertTrue(interceptor.onFlushDirty(new TestDateBean(),
+                                            new Long(3),
+                                            after,
+                                            after,
+                                            propertyNames,
+                                            types));
+
+        assertNotNull(first[UPDATED_INDEX]);
+        assertSame(first[UPDATED_INDEX], second[UPDATED_INDEX]);
+        assertNotSame(first[UPDATED_INDEX], after[UPDATED_INDEX]);
+    }
+
+    @Test
+    public void testFailedFlushDateClearedAtCompletion()
+    {
+        Object[] during = new Object[propertyNames.length];
+        Object[] after = new Object[propertyNames.length];
+
+        interceptor.preFlush(new ArrayList<Object>().iterator());
+        assertTrue(interceptor.onFlushDirty(new TestDateBean(),
+                                            new Long(1),
+                                            during,
+                                            during,
+                                            propertyNames,
+                                            types));
+        interceptor.afterTransactionCompletion(null);
+        assertTrue(interceptor.onFlushDirty(new TestDateBean(),
+                                            new Long(2),
+                                            after,
+                                            after,
+                                            propertyNames,
+                                            types));
+
+        assertNotNull(during[UPDATED_INDEX]);
+        assertNotSame(during[UPDATED_INDEX], after[UPDATED_INDEX]);
+    }
+
+    @Test
+    public void testPropertyOrderChange()
+    {
+        TestDateBean bean = new TestDateBean();
+
+        Object[] state = new Object[propertyNames.length];
+        assertTrue(interceptor.onSave(bean, new Long(1), state, propertyNames, types));
+
+        String[] reordered = { "contents", "other", "updated", "created" };
+        state = new Object[reordered.length];
+        assertTrue(interceptor.onSave(bean, new Long(1), state, reordered, types));
+        assertNull(state[0]);
+        assertNull(state[1]);
+        assertNotNull(state[2]);
+        assertNotNull(state[3]);
+    }
 }
@@ -0,0 +1,504 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+package net.sourceforge.wsup.hibernate4.messaging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import net.sourceforge.wsup.hibernate4.command.AbstractDatabaseCommand;
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommand;
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommandContext;
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommandResult;
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommandRunner;
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommandRunnerImpl;
+import net.sourceforge.wsup.hibernate4.command.ReadOnly;
+import net.sourceforge.wsup.hibernate4.database.DataAccessContext;
+import net.sourceforge.wsup.hibernate4.database.TestBean;
+import net.sourceforge.wsup.hibernate4.database.TestDatabase;
+import net.sourceforge.wsup.hibernate4.database.TestDatabaseManager;
+import net.sourceforge.wsup.messaging.activemq.VMMessageBroker;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.impl.MockLogger;
+
+public class BatchCommandReceiverTest
+{
+    private static TestDatabase          database;
+    private static DatabaseCommandRunner runner;
+    private static ProcessedMessageTable table;
+    private static VMMessageBroker       broker;
+    private static int                   queueNumber;
+
+    private ActiveMQQueue                destination;
+    private Connection                   connection;
+
+    public BatchCommandReceiverTest()
+    {
+    }
+
+    @BeforeClass
+    public static void oneTimeSetup() throws Exception
+    {
+        MockLogger.get("org.hibernate").setWarn();
+        MockLogger.get("com.mchange.v2.c3p0").setWarn();
+        MockLogger.get("com.mchange.v2.log").setWarn();
+        MockLogger.get("org.apache.activemq").setWarn();
+
+        database = TestDatabaseManager.openTestDatabaseIfRequired();
+        runner = new DatabaseCommandRunnerImpl(database, 1);
+
+        table = new ProcessedMessageTable("batchTestProcessed");
+        runner.execute(new SqlCommand(table.getCreateTableSQL()));
+
+        broker = new VMMessageBroker("batchCommandTest");
+        broker.startBroker(true);
+    }
+
+    @AfterClass
+    public static void oneTimeTearDown() throws Exception
+    {
+        broker.stopBroker(true);
+        runner.execute(new SqlCommand("drop table " + table.getTableName()));
+    }
+
+    @Before
+    public void setup() throws Exception
+    {
+        destination = new ActiveMQQueue("batchQueue" + (++queueNumber));
+        connection = broker.createConnection();
+        connection.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        connection.close();
+    }
+
+    private void send(String... texts) throws JMSException
+    {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(destination);
+        for (String text : texts)
+        {
+            TextMessage message = session.createTextMessage(text);
+            message.setStringProperty("key", text);
+            producer.send(message);
+        }
+        session.close();
+    }
+
+    private String[] texts(String prefix, int count)
+    {
+        String[] result = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            result[i] = prefix + i;
+        }
+        return result;
+    }
+
+    private int drain() throws JMSException
+    {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(destination);
+        int count = 0;
+        while (consumer.receive(500) != null)
+        {
+            count++;
+        }
+        session.close();
+        return count;
+    }
+
+    private static long countSaved(String prefix)
+    {
+        CountCommand command = new CountCommand(prefix);
+        runner.execute(command);
+        return command.getCount();
+    }
+
+    private static void waitFor(String what, Condition condition) throws Exception
+    {
+        long start = System.currentTimeMillis();
+        while (!condition.isTrue())
+        {
+            if (System.currentTimeMillis() - start > 10000L)
+            {
+                fail(what + " didn't happen in 10 seconds");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testExecutesInBatches() throws Exception
+    {
+        send(texts("batch", 25));
+
+        final TestReceiver test = new TestReceiver(connection, destination, 10);
+        assertEquals(10, test.getBatchSize());
+        assertEquals(BatchCommandReceiver.DEFAULT_BATCH_TIMEOUT, test.getBatchTimeout());
+        assertNull(test.getProcessedMessages());
+        assertEquals(Session.SESSION_TRANSACTED, test.getAcknowledgeMode());
+        test.setBatchTimeout(500);
+        assertFalse(test.isStarted());
+        test.start();
+        assertTrue(test.isStarted());
+
+        waitFor("Execution", new Condition()
+        {
+            @Override
+            public boolean isTrue()
+            {
+                return test.getMessageCount() == 25;
+            }
+        });
+
+        test.close();
+        assertFalse(test.isStarted());
+        test.close();
+
+        assertEquals(25, countSaved("batch"));
+        assertEquals(3, test.getBatchCount());
+        assertEquals(0, test.getFailureCount());
+        assertEquals(0, drain());
+    }
+
+    @Test
+    public void testSkipsDuplicates() throws Exception
+    {
+        final TestReceiver test = new TestReceiver(connection, destination, 5);
+        test.setProcessedMessages(table);
+        test.setUseKeyProperty(true);
+        test.start();
+
+        send("dup0", "dup1");
+
+        waitFor("Execution", new Condition()
+        {
+            @Override
+            public boolean isTrue()
+            {
+                return test.getMessageCount() == 2;
+            }
+        });
+
+        // the same logical messages again, plus a new one
+        send("dup0", "dup1", "dup2");
+
+        waitFor("Execution", new Condition()
+        {
+            @Override
+            public boolean isTrue()
+            {
+                return test.getMessageCount() == 3 && test.getDuplicateCount() == 2;
+            }
+        });
+
+        test.close();
+
+        assertEquals(3, countSaved("dup"));
+        assertEquals(0, drain());
+    }
+
+    @Test
+    public void testKeepsMessagesWithSameKeyWithoutTable() throws Exception
+    {
+        send("same0", "same0", "same0");
+
+        final TestReceiver test = new TestReceiver(connection, destination, 10);
+        test.setUseKeyProperty(true);
+        test.setBatchTimeout(500);
+        test.start();
+
+        waitFor("Execution", new Condition()
+        {
+            @Override
+            public boolean isTrue()
+            {
+                return test.getMessageCount() == 3;
+            }
+        });
+
+        test.close();
+
+        assertEquals(3, countSaved("same"));
+        assertEquals(0, test.getDuplicateCount());
+        assertEquals(0, drain());
+    }
+
+    @Test
+    public void testSkipsRepeatsWithinBatchAndKeepsMessagesWithoutKey() throws Exception
+    {
+        send("repeat0", "repeat0", "repeat1");
+
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageProducer producer = session.createProducer(destination);
+        producer.send(session.createTextMessage("nokey0"));
+        producer.send(session.createTextMessage("nokey1"));
+        session.close();
+
+        final TestReceiver test = new TestReceiver(connection, destination, 10);
+        test.setProcessedMessages(table);
+        test.setUseKeyProperty(true);
+        test.setBatchTimeout(500);
+        test.start();
+
+        waitFor("Execution", new Condition()
+        {
+            @Override
+            public boolean isTrue()
+            {
+                return test.getMessageCount() == 4;
+            }
+        });
+
+        test.close();
+
+        assertEquals(2, countSaved("repeat"));
+        assertEquals(2, countSaved("nokey"));
+        assertEquals(1, test.getDuplicateCount());
+        assertEquals(0, drain());
+    }
+
+    @Test
+    public void testIsolatesFailingMessage() throws Exception
+    {
+        send("good0", "good1", "poison", "good2", "good3");
+
+        final TestReceiver test = new TestReceiver(connection, destination, 10);
+        test.setProcessedMessages(table);
+        test.setBatchTimeout(500);
+        test.setFailures("poison", 2);
+        test.start();
+
+        waitFor("Redelivery", new Condition()
+        {
+            @Override
+            public boolean isTrue()
+            {
+                return test.getMessageCount() == 5;
+            }
+        });
+
+        test.close();
+
+        /*
+         * The batch failed, then the good messages succeeded individually, but the poison message
+         * failed again, so the batch was rolled back. When it was redelivered, the good messages
+         * were skipped.
+         */
+        assertEquals(4, countSaved("good"));
+        assertEquals(1, countSaved("poison"));
+        assertEquals(1, test.getFailureCount());
+        assertEquals(4, test.getDuplicateCount());
+        assertEquals(0, drain());
+    }
+
+    @Test
+    public void testRetriesWholeBatchWithoutTable() throws Exception
+    {
+        send("whole0", "whole1", "whole2");
+
+        final TestReceiver test = new TestReceiver(connection, destination, 10);
+        test.setBatchTimeout(500);
+        test.setFailures("whole1", 1);
+        test.start();
+
+        waitFor("Redelivery", new Condition()
+        {
+            @Override
+            public boolean isTrue()
+            {
+                return test.getMessageCount() == 3;
+            }
+        });
+
+        test.close();
+
+        assertEquals(3, countSaved("whole"));
+        assertEquals(1, test.getFailureCount());
+        assertEquals(0, test.getDuplicateCount());
+        assertEquals(0, drain());
+    }
+
+    @Test
+    public void testPurge() throws Exception
+    {
+        runner.execute(table.createRecordCommand(Arrays.asList("purge0", "purge1")));
+
+        ProcessedMessageTable.FindCommand find = table.createFindCommand(Arrays
+            .asList("purge0", "purge1", "purge2"));
+        runner.execute(find);
+        assertEquals(2, find.getProcessed().size());
+        assertTrue(find.getProcessed().contains("purge0"));
+
+        ProcessedMessageTable.PurgeCommand purge = table.createPurgeCommand(new Date(System
+            .currentTimeMillis() + 1000L));
+        runner.execute(purge);
+        assertTrue(purge.getRemoved() >= 2);
+
+        find = table.createFindCommand(Arrays.asList("purge0", "purge1"));
+        runner.execute(find);
+        assertTrue(find.getProcessed().isEmpty());
+    }
+
+    @Test
+    public void testDefaultTableName()
+    {
+        assertEquals(ProcessedMessageTable.DEFAULT_TABLE_NAME,
+                     new ProcessedMessageTable().getTableName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsBadBatchSize()
+    {
+        new TestReceiver(connection, destination, 0);
+    }
+
+    private interface Condition
+    {
+        boolean isTrue();
+    }
+
+    private static class TestReceiver extends BatchCommandReceiver
+    {
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile String     failText;
+        private volatile boolean    useKeyProperty;
+
+        public TestReceiver(Connection connection, Destination destination, int batchSize)
+        {
+            super(connection, destination, runner, batchSize);
+        }
+
+        public void setFailures(String text, int count)
+        {
+            failText = text;
+            failures.set(count);
+        }
+
+        public void setUseKeyProperty(boolean useKeyProperty)
+        {
+            this.useKeyProperty = useKeyProperty;
+        }
+
+        @Override
+        protected String getMessageKey(Message message) throws JMSException
+        {
+            return useKeyProperty ? message.getStringProperty("key") : super
+                .getMessageKey(message);
+        }
+
+        @Override
+        protected DatabaseCommand createCommand(Message message) throws JMSException
+        {
+            String text = ((TextMessage) message).getText();
+            boolean fail = text.equals(failText) && failures.getAndDecrement() > 0;
+            return new SaveCommand(text, fail);
+        }
+    }
+
+    private static class SaveCommand extends AbstractDatabaseCommand
+    {
+        private final String  text;
+        private final boolean fail;
+
+        public SaveCommand(String text, boolean fail)
+        {
+            this.text = text;
+            this.fail = fail;
+        }
+
+        @Override
+        public void execute(DatabaseCommandContext commandContext,
+                            DataAccessContext dataAccessContext)
+        {
+            dataAccessContext.save(new TestBean(text));
+
+            if (fail)
+            {
+                throw new IllegalStateException("boom");
+            }
+
+            setResult(DatabaseCommandResult.OK);
+        }
+    }
+
+    private static class CountCommand extends AbstractDatabaseCommand implements ReadOnly
+    {
+        private final String prefix;
+        private long         count;
+
+        public CountCommand(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public void execute(DatabaseCommandContext commandContext,
+                            DataAccessContext dataAccessContext)
+        {
+            count = ((Number) dataAccessContext
+                .createQuery("select count(*) from TestBean where contents like :prefix")
+                .setString("prefix", prefix + "%").uniqueResult()).longValue();
+            setResult(DatabaseCommandResult.OK);
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+    }
+
+    private static class SqlCommand extends AbstractDatabaseCommand
+    {
+        private final String sql;
+
+        public SqlCommand(String sql)
+        {
+            this.sql = sql;
+        }
+
+        @Override
+        public void execute(DatabaseCommandContext commandContext,
+                            DataAccessContext dataAccessContext)
+        {
+            dataAccessContext.createSQLQuery(sql).executeUpdate();
+            setResult(DatabaseCommandResult.OK);
+        }
+    }
+}
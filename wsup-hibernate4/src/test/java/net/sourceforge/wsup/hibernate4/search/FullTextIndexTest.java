@@ -0,0 +1,132 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package net.sourceforge.wsup.hibernate4.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for <code>FullTextIndex</code>.
+ */
+public class FullTextIndexTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FullTextIndex  index;
+
+    @Before
+    public void setup()
+    {
+        index = new FullTextIndex();
+        index.update(3L, "The quick brown fox");
+        index.update(1L, "The lazy dog");
+        index.update(2L, "Brown dogs, brown cats");
+    }
+
+    private static List<Serializable> ids(long... values)
+    {
+        Serializable[] ids = new Serializable[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+            ids[i] = values[i];
+        }
+        return Arrays.asList(ids);
+    }
+
+    @Test
+    public void testTokenize()
+    {
+        assertEquals(Arrays.asList("it", "s", "a", "b2b", "café"),
+                     FullTextIndex.tokenize("  It's a B2B--CAFÉ! "));
+        assertTrue(FullTextIndex.tokenize(null).isEmpty());
+        assertTrue(FullTextIndex.tokenize(" ,. ").isEmpty());
+    }
+
+    @Test
+    public void testSearch()
+    {
+        assertEquals(3, index.size());
+        assertEquals(8, index.getTermCount());
+        assertNull(index.getDirectory());
+
+        assertEquals(ids(1L, 3L), index.search("the"));
+        assertEquals(ids(2L, 3L), index.search("BROWN"));
+        assertEquals(ids(2L), index.search("brown cats"));
+        assertEquals(ids(1L, 2L), index.search("dog*"));
+        assertTrue(index.search("*").isEmpty());
+        assertTrue(index.search("brown lazy").isEmpty());
+        assertTrue(index.search("wolf").isEmpty());
+        assertTrue(index.search("").isEmpty());
+        assertTrue(index.search(null).isEmpty());
+    }
+
+    @Test
+    public void testUpdateRemove()
+    {
+        index.update(1L, "The energetic dog");
+        assertTrue(index.search("lazy").isEmpty());
+        assertEquals(ids(1L), index.search("energetic"));
+
+        index.remove(3L);
+        index.remove(99L);
+        assertEquals(ids(1L), index.search("the"));
+        assertTrue(index.search("quick").isEmpty());
+        assertEquals(2, index.size());
+
+        index.update(2L, null);
+        assertEquals(1, index.size());
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(0, index.getTermCount());
+    }
+
+    @Test
+    public void testSaveLoad() throws IOException
+    {
+        File directory = new File(folder.getRoot(), "index");
+
+        FullTextIndex saved = new FullTextIndex(directory);
+        assertEquals(directory, saved.getDirectory());
+        assertEquals(0, saved.size());
+        saved.update(1L, "hello world");
+        saved.update(2L, "goodbye world");
+        saved.save();
+        saved.save();
+
+        FullTextIndex loaded = new FullTextIndex(directory);
+        assertEquals(2, loaded.size());
+        assertEquals(ids(1L, 2L), loaded.search("world"));
+        assertEquals(ids(2L), loaded.search("goodbye"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSaveWithoutDirectory() throws IOException
+    {
+        index.save();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+
+package net.sourceforge.wsup.hibernate4.testClasses;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommandContext;
+import net.sourceforge.wsup.hibernate4.command.Independent;
+import net.sourceforge.wsup.hibernate4.command.ReadOnly;
+import net.sourceforge.wsup.hibernate4.database.DataAccessContext;
+
+public class MockIndependentCommand extends MockMonitoringCommand implements Independent, ReadOnly
+{
+    private final CountDownLatch   latch;
+    private final RuntimeException exception;
+    private Thread                 thread;
+    private int                    contextCommands;
+    private boolean                concurrent;
+
+    public MockIndependentCommand(CountDownLatch latch, RuntimeException exception)
+    {
+        this.latch = latch;
+        this.exception = exception;
+    }
+
+    @Override
+    public void execute(DatabaseCommandContext commandContext, DataAccessContext dataAccessContext)
+    {
+        super.execute(commandContext, dataAccessContext);
+
+        thread = Thread.currentThread();
+        contextCommands = commandContext.getCommands().size();
+
+        latch.countDown();
+        try
+        {
+            concurrent = latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (exception != null)
+        {
+            throw exception;
+        }
+    }
+
+    public Thread getThread()
+    {
+        return thread;
+    }
+
+    public int getContextCommands()
+    {
+        return contextCommands;
+    }
+
+    public boolean wasConcurrent()
+    {
+        return concurrent;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+
+package net.sourceforge.wsup.hibernate4.testClasses;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommand;
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommandContext;
+import net.sourceforge.wsup.hibernate4.command.DatabaseCommandResult;
+import net.sourceforge.wsup.hibernate4.command.ReadOnly;
+import net.sourceforge.wsup.hibernate4.database.DataAccessContext;
+
+import org.hibernate.FlushMode;
+import org.hibernate.jdbc.Work;
+
+public class MockReadOnlyCommand implements DatabaseCommand, ReadOnly
+{
+    private FlushMode flushMode;
+    private boolean   defaultReadOnly;
+    private boolean   connectionReadOnly;
+
+    public MockReadOnlyCommand()
+    {
+    }
+
+    @Override
+    public void execute(DatabaseCommandContext commandContext, DataAccessContext dataAccessContext)
+    {
+        flushMode = dataAccessContext.getFlushMode();
+        defaultReadOnly = dataAccessContext.isDefaultReadOnly();
+        dataAccessContext.doWork(new Work()
+        {
+            @Override
+            public void execute(Connection connection) throws SQLException
+            {
+                connectionReadOnly = connection.isReadOnly();
+            }
+        });
+    }
+
+    public int getResult()
+    {
+        return DatabaseCommandResult.OK;
+    }
+
+    public FlushMode getFlushMode()
+    {
+        return flushMode;
+    }
+
+    public boolean wasDefaultReadOnly()
+    {
+        return defaultReadOnly;
+    }
+
+    public boolean wasConnectionReadOnly()
+    {
+        return connectionReadOnly;
+    }
+}
@@ -17,6 +17,7 @@
 package net.sourceforge.wsup.hibernate4.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 import net.sourceforge.wsup.hibernate4.testClasses.MockHibernateQuery;
 
@@ -81,4 +82,37 @@ public class LikeClauseHelperTest
         assertEquals("field", query.getFieldName());
         assertEquals("value%", query.getValue());
     }
+
+    @Test
+    public void testEscapeLikeValueWithoutWildcards()
+    {
+        String value = "No wildcards here";
+        assertSame(value, LikeClauseHelper.escapeLikeValue(value, '!'));
+        assertEquals("a!%b!_c![d!!e", LikeClauseHelper.escapeLikeValue("a%b_c[d!e", '!'));
+    }
+
+    @Test
+    public void testCreateSearchCriterion()
+    {
+        assertEquals("name=Abc", LikeClauseHelper.createSearchCriterion("name", "Abc").toString());
+        assertEquals("lower(name) like Abc%",
+                     LikeClauseHelper.createSearchCriterion("name", "Abc**").toString());
+        assertEquals("lower(name) like !%50!_%",
+                     LikeClauseHelper.createSearchCriterion("name", "%50_*").toString());
+        assertEquals("lower(name) like %50!%",
+                     LikeClauseHelper.createSearchCriterion("name", "*50%").toString());
+        assertEquals("lower(name) like A%c!!%",
+                     LikeClauseHelper.createSearchCriterion("name", "A**c!*").toString());
+        assertEquals("lower(name) like %",
+                     LikeClauseHelper.createSearchCriterion("name", "*").toString());
+
+        try
+        {
+            LikeClauseHelper.createSearchCriterion("name", null);
+            fail();
+        }
+        catch (IllegalArgumentException success)
+        {
+        }
+    }
 }
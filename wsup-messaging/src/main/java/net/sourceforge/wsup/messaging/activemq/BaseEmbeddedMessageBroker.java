@@ -31,6 +31,8 @@ public abstract class BaseEmbeddedMessageBroker
 
 	private transient BrokerService brokerService;
 
+	private BrokerProfile profile;
+
 	/**
 	 * Create the broker instance.
 	 * 
@@ -52,6 +54,32 @@ public abstract class BaseEmbeddedMessageBroker
 		return brokerName;
 	}
 
+	/**
+	 * Returns the performance profile applied to the broker.
+	 * 
+	 * @return {@link BrokerProfile}, or <code>null</code> if none has been
+	 *         set.
+	 */
+	public BrokerProfile getProfile()
+	{
+		return profile;
+	}
+
+	/**
+	 * Sets the performance profile applied to the broker, and to its
+	 * persistence adapter, when it is started. The profile is applied before
+	 * {@link #preStart(BrokerService)} is called, so derived classes can
+	 * override its settings. It must be set before the broker is started.
+	 * 
+	 * @param profile
+	 *            {@link BrokerProfile}, or <code>null</code> to use the
+	 *            ActiveMQ defaults.
+	 */
+	public void setProfile(BrokerProfile profile)
+	{
+		this.profile = profile;
+	}
+
 	/**
 	 * Starts the broker service. This method is benign if called on a broker
 	 * that has already been started.
@@ -87,6 +115,10 @@ public abstract class BaseEmbeddedMessageBroker
 			}
 			else
 			{
+				if (profile != null)
+				{
+					profile.configure(adapter);
+				}
 				adapter.setBrokerName(brokerName);
 				brokerService.setPersistent(true);
 				brokerService.setPersistenceAdapter(adapter);
@@ -98,6 +130,11 @@ public abstract class BaseEmbeddedMessageBroker
 				brokerService.addConnector(connector);
 			}
 
+			if (profile != null)
+			{
+				profile.configure(brokerService);
+			}
+
 			preStart(brokerService);
 
 			brokerService.start();
@@ -0,0 +1,498 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.messaging.activemq;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQPrefetchPolicy;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.PolicyMap;
+import org.apache.activemq.store.PersistenceAdapter;
+import org.apache.activemq.store.amq.AMQPersistenceAdapter;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+
+/**
+ * A set of performance settings for an embedded broker, its persistence
+ * adapter and the connections made to it. Each setting is <code>null</code>
+ * until it is set, and a <code>null</code> setting leaves the ActiveMQ default
+ * (or, for client settings, any value given in the broker URI parameters)
+ * unchanged, so an empty profile changes nothing.
+ * <p>
+ * A profile set by
+ * {@link BaseEmbeddedMessageBroker#setProfile(BrokerProfile)} is applied when
+ * the broker is started. Changes made to the profile afterwards have no effect
+ * until the broker is restarted. {@link #highThroughput()} returns a starting
+ * point for brokers whose throughput matters more than the durability of
+ * every message; {@code BrokerThroughputBenchmark}, in the test tree,
+ * measures the effect of a profile on each persistence adapter.
+ * </p>
+ * <p>
+ * The settings are grouped as follows:
+ * </p>
+ * <ul>
+ * <li>Client: <code>dispatchAsync</code>, <code>optimizeAcknowledge</code>,
+ * <code>useAsyncSend</code>, <code>queuePrefetch</code> and
+ * <code>topicPrefetch</code>. These are applied to the
+ * <code>ActiveMQConnectionFactory</code> of a {@link VMMessageBroker}.</li>
+ * <li>Broker: <code>producerFlowControl</code>, <code>memoryLimit</code>,
+ * <code>destinationMemoryLimit</code> and <code>dedicatedTaskRunner</code>.</li>
+ * <li>Store: <code>journalDiskSyncs</code> (Kaha and AMQ),
+ * <code>journalMaxWriteBatchSize</code>, <code>indexWriteBatchSize</code> and
+ * <code>indexWriteAsync</code> (Kaha only).</li>
+ * </ul>
+ */
+public class BrokerProfile
+{
+	private Boolean dispatchAsync;
+
+	private Boolean optimizeAcknowledge;
+
+	private Boolean useAsyncSend;
+
+	private Integer queuePrefetch;
+
+	private Integer topicPrefetch;
+
+	private Boolean producerFlowControl;
+
+	private Long memoryLimit;
+
+	private Long destinationMemoryLimit;
+
+	private Boolean dedicatedTaskRunner;
+
+	private Boolean journalDiskSyncs;
+
+	private Integer journalMaxWriteBatchSize;
+
+	private Integer indexWriteBatchSize;
+
+	private Boolean indexWriteAsync;
+
+	/**
+	 * Constructs an empty profile.
+	 */
+	public BrokerProfile()
+	{
+	}
+
+	/**
+	 * Returns a profile for high throughput over the VM transport:
+	 * <ul>
+	 * <li>messages are dispatched to consumers on the broker's thread, which
+	 * avoids a thread hand-off that gains nothing over the VM transport;</li>
+	 * <li>persistent messages are sent asynchronously, without waiting for the
+	 * store;</li>
+	 * <li>consumers prefetch up to 1000 messages;</li>
+	 * <li>producer flow control is off, with 256MB of broker memory;</li>
+	 * <li>destinations share a thread pool rather than each having its own
+	 * thread;</li>
+	 * <li>the Kaha journal writes in batches of up to 4MB, and the index in
+	 * batches of 10000 pages, asynchronously;</li>
+	 * <li>the journal is not synced to disk on each write.</li>
+	 * </ul>
+	 * Note that the last setting, and asynchronous sends, mean that messages
+	 * accepted shortly before the process or machine fails may be lost.
+	 * <p>
+	 * <code>optimizeAcknowledge</code> is deliberately left unset: with
+	 * persistent messages and a Kaha store it reduced throughput twentyfold in
+	 * {@code BrokerThroughputBenchmark}.
+	 * </p>
+	 * 
+	 * @return New <code>BrokerProfile</code>, which may be adjusted.
+	 */
+	public static BrokerProfile highThroughput()
+	{
+		BrokerProfile profile = new BrokerProfile();
+		profile.setDispatchAsync(Boolean.FALSE);
+		profile.setUseAsyncSend(Boolean.TRUE);
+		profile.setQueuePrefetch(Integer.valueOf(1000));
+		profile.setTopicPrefetch(Integer.valueOf(1000));
+		profile.setProducerFlowControl(Boolean.FALSE);
+		profile.setMemoryLimit(Long.valueOf(256L * 1024 * 1024));
+		profile.setDedicatedTaskRunner(Boolean.FALSE);
+		profile.setJournalDiskSyncs(Boolean.FALSE);
+		profile.setJournalMaxWriteBatchSize(Integer.valueOf(4 * 1024 * 1024));
+		profile.setIndexWriteBatchSize(Integer.valueOf(10000));
+		profile.setIndexWriteAsync(Boolean.TRUE);
+		return profile;
+	}
+
+	/**
+	 * Apply the client settings to a connection factory.
+	 * 
+	 * @param factory
+	 *            <code>ActiveMQConnectionFactory</code> to be configured.
+	 */
+	public void configure(ActiveMQConnectionFactory factory)
+	{
+		if (dispatchAsync != null)
+		{
+			factory.setDispatchAsync(dispatchAsync.booleanValue());
+		}
+		if (optimizeAcknowledge != null)
+		{
+			factory.setOptimizeAcknowledge(optimizeAcknowledge.booleanValue());
+		}
+		if (useAsyncSend != null)
+		{
+			factory.setUseAsyncSend(useAsyncSend.booleanValue());
+		}
+		if (queuePrefetch != null || topicPrefetch != null)
+		{
+			ActiveMQPrefetchPolicy policy = factory.getPrefetchPolicy();
+			if (queuePrefetch != null)
+			{
+				policy.setQueuePrefetch(queuePrefetch.intValue());
+			}
+			if (topicPrefetch != null)
+			{
+				policy.setTopicPrefetch(topicPrefetch.intValue());
+			}
+		}
+	}
+
+	/**
+	 * Apply the broker settings to a broker service that has not been
+	 * started.
+	 * 
+	 * @param service
+	 *            <code>BrokerService</code> to be configured.
+	 */
+	public void configure(BrokerService service)
+	{
+		if (memoryLimit != null)
+		{
+			service.getSystemUsage().getMemoryUsage().setLimit(
+					memoryLimit.longValue());
+		}
+		if (dedicatedTaskRunner != null)
+		{
+			service.setDedicatedTaskRunner(dedicatedTaskRunner.booleanValue());
+		}
+		if (producerFlowControl != null || destinationMemoryLimit != null)
+		{
+			PolicyMap policyMap = service.getDestinationPolicy();
+			if (policyMap == null)
+			{
+				policyMap = new PolicyMap();
+				service.setDestinationPolicy(policyMap);
+			}
+
+			// keep any other settings of an existing default entry
+			PolicyEntry entry = policyMap.getDefaultEntry();
+			if (entry == null)
+			{
+				entry = new PolicyEntry();
+				policyMap.setDefaultEntry(entry);
+			}
+
+			if (producerFlowControl != null)
+			{
+				entry.setProducerFlowControl(producerFlowControl
+						.booleanValue());
+			}
+			if (destinationMemoryLimit != null)
+			{
+				entry.setMemoryLimit(destinationMemoryLimit.longValue());
+			}
+		}
+	}
+
+	/**
+	 * Apply the store settings to a persistence adapter. Settings that do not
+	 * apply to the adapter are ignored.
+	 * 
+	 * @param adapter
+	 *            <code>PersistenceAdapter</code> to be configured.
+	 */
+	public void configure(PersistenceAdapter adapter)
+	{
+		if (adapter instanceof KahaDBPersistenceAdapter)
+		{
+			KahaDBPersistenceAdapter kaha = (KahaDBPersistenceAdapter) adapter;
+			if (journalDiskSyncs != null)
+			{
+				kaha.setEnableJournalDiskSyncs(journalDiskSyncs.booleanValue());
+			}
+			if (journalMaxWriteBatchSize != null)
+			{
+				kaha.setJournalMaxWriteBatchSize(journalMaxWriteBatchSize
+						.intValue());
+			}
+			if (indexWriteBatchSize != null)
+			{
+				kaha.setIndexWriteBatchSize(indexWriteBatchSize.intValue());
+			}
+			if (indexWriteAsync != null)
+			{
+				kaha.setEnableIndexWriteAsync(indexWriteAsync.booleanValue());
+			}
+		}
+		else if (adapter instanceof AMQPersistenceAdapter)
+		{
+			if (journalDiskSyncs != null)
+			{
+				((AMQPersistenceAdapter) adapter).setSyncOnWrite(journalDiskSyncs
+						.booleanValue());
+			}
+		}
+	}
+
+	/**
+	 * @return Whether the broker dispatches messages to consumers on a
+	 *         separate thread, or <code>null</code> if not set.
+	 */
+	public Boolean getDispatchAsync()
+	{
+		return dispatchAsync;
+	}
+
+	/**
+	 * @param dispatchAsync
+	 *            Whether the broker dispatches messages to consumers on a
+	 *            separate thread. <code>true</code> (the ActiveMQ default)
+	 *            stops slow consumers holding up the producers' threads;
+	 *            <code>false</code> saves a thread hand-off per message.
+	 */
+	public void setDispatchAsync(Boolean dispatchAsync)
+	{
+		this.dispatchAsync = dispatchAsync;
+	}
+
+	/**
+	 * @return Whether consumers acknowledge messages in batches, or
+	 *         <code>null</code> if not set.
+	 */
+	public Boolean getOptimizeAcknowledge()
+	{
+		return optimizeAcknowledge;
+	}
+
+	/**
+	 * @param optimizeAcknowledge
+	 *            Whether <code>AUTO_ACKNOWLEDGE</code> consumers acknowledge
+	 *            messages in batches rather than one at a time.
+	 */
+	public void setOptimizeAcknowledge(Boolean optimizeAcknowledge)
+	{
+		this.optimizeAcknowledge = optimizeAcknowledge;
+	}
+
+	/**
+	 * @return Whether persistent messages are sent without waiting for the
+	 *         broker, or <code>null</code> if not set.
+	 */
+	public Boolean getUseAsyncSend()
+	{
+		return useAsyncSend;
+	}
+
+	/**
+	 * @param useAsyncSend
+	 *            Whether persistent messages are sent without waiting for the
+	 *            broker to store them.
+	 */
+	public void setUseAsyncSend(Boolean useAsyncSend)
+	{
+		this.useAsyncSend = useAsyncSend;
+	}
+
+	/**
+	 * @return Number of messages each queue consumer may prefetch, or
+	 *         <code>null</code> if not set.
+	 */
+	public Integer getQueuePrefetch()
+	{
+		return queuePrefetch;
+	}
+
+	/**
+	 * @param queuePrefetch
+	 *            Number of messages each queue consumer may prefetch.
+	 */
+	public void setQueuePrefetch(Integer queuePrefetch)
+	{
+		this.queuePrefetch = queuePrefetch;
+	}
+
+	/**
+	 * @return Number of messages each topic subscriber may prefetch, or
+	 *         <code>null</code> if not set.
+	 */
+	public Integer getTopicPrefetch()
+	{
+		return topicPrefetch;
+	}
+
+	/**
+	 * @param topicPrefetch
+	 *            Number of messages each topic subscriber may prefetch.
+	 */
+	public void setTopicPrefetch(Integer topicPrefetch)
+	{
+		this.topicPrefetch = topicPrefetch;
+	}
+
+	/**
+	 * @return Whether producers are slowed when a destination's memory is
+	 *         full, or <code>null</code> if not set.
+	 */
+	public Boolean getProducerFlowControl()
+	{
+		return producerFlowControl;
+	}
+
+	/**
+	 * @param producerFlowControl
+	 *            Whether producers are slowed when a destination's memory
+	 *            limit is reached. If <code>false</code>, messages are
+	 *            spooled to temporary storage instead.
+	 */
+	public void setProducerFlowControl(Boolean producerFlowControl)
+	{
+		this.producerFlowControl = producerFlowControl;
+	}
+
+	/**
+	 * @return Memory, in bytes, the broker may use for messages, or
+	 *         <code>null</code> if not set.
+	 */
+	public Long getMemoryLimit()
+	{
+		return memoryLimit;
+	}
+
+	/**
+	 * @param memoryLimit
+	 *            Memory, in bytes, the broker may use for messages.
+	 */
+	public void setMemoryLimit(Long memoryLimit)
+	{
+		this.memoryLimit = memoryLimit;
+	}
+
+	/**
+	 * @return Memory, in bytes, each destination may use, or
+	 *         <code>null</code> if not set.
+	 */
+	public Long getDestinationMemoryLimit()
+	{
+		return destinationMemoryLimit;
+	}
+
+	/**
+	 * @param destinationMemoryLimit
+	 *            Memory, in bytes, each destination may use before producer
+	 *            flow control (if enabled) applies.
+	 */
+	public void setDestinationMemoryLimit(Long destinationMemoryLimit)
+	{
+		this.destinationMemoryLimit = destinationMemoryLimit;
+	}
+
+	/**
+	 * @return Whether each destination has its own dispatch thread, or
+	 *         <code>null</code> if not set.
+	 */
+	public Boolean getDedicatedTaskRunner()
+	{
+		return dedicatedTaskRunner;
+	}
+
+	/**
+	 * @param dedicatedTaskRunner
+	 *            Whether each destination has its own dispatch thread, rather
+	 *            than sharing a pool. Dedicated threads suit a few busy
+	 *            destinations; a pool suits many.
+	 */
+	public void setDedicatedTaskRunner(Boolean dedicatedTaskRunner)
+	{
+		this.dedicatedTaskRunner = dedicatedTaskRunner;
+	}
+
+	/**
+	 * @return Whether the journal is synced to disk on each write, or
+	 *         <code>null</code> if not set.
+	 */
+	public Boolean getJournalDiskSyncs()
+	{
+		return journalDiskSyncs;
+	}
+
+	/**
+	 * @param journalDiskSyncs
+	 *            Whether the store's journal is synced to disk on each write.
+	 *            <code>false</code> is much faster, but messages may be lost
+	 *            if the machine fails.
+	 */
+	public void setJournalDiskSyncs(Boolean journalDiskSyncs)
+	{
+		this.journalDiskSyncs = journalDiskSyncs;
+	}
+
+	/**
+	 * @return Maximum size, in bytes, of a batch of Kaha journal writes, or
+	 *         <code>null</code> if not set.
+	 */
+	public Integer getJournalMaxWriteBatchSize()
+	{
+		return journalMaxWriteBatchSize;
+	}
+
+	/**
+	 * @param journalMaxWriteBatchSize
+	 *            Maximum size, in bytes, of a batch of Kaha journal writes.
+	 */
+	public void setJournalMaxWriteBatchSize(Integer journalMaxWriteBatchSize)
+	{
+		this.journalMaxWriteBatchSize = journalMaxWriteBatchSize;
+	}
+
+	/**
+	 * @return Number of Kaha index pages written in a batch, or
+	 *         <code>null</code> if not set.
+	 */
+	public Integer getIndexWriteBatchSize()
+	{
+		return indexWriteBatchSize;
+	}
+
+	/**
+	 * @param indexWriteBatchSize
+	 *            Number of dirty Kaha index pages that triggers a write.
+	 */
+	public void setIndexWriteBatchSize(Integer indexWriteBatchSize)
+	{
+		this.indexWriteBatchSize = indexWriteBatchSize;
+	}
+
+	/**
+	 * @return Whether the Kaha index is written asynchronously, or
+	 *         <code>null</code> if not set.
+	 */
+	public Boolean getIndexWriteAsync()
+	{
+		return indexWriteAsync;
+	}
+
+	/**
+	 * @param indexWriteAsync
+	 *            Whether the Kaha index is written asynchronously.
+	 */
+	public void setIndexWriteAsync(Boolean indexWriteAsync)
+	{
+		this.indexWriteAsync = indexWriteAsync;
+	}
+}
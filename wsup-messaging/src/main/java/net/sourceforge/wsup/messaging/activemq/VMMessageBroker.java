@@ -45,7 +45,11 @@ public class VMMessageBroker extends BaseEmbeddedMessageBroker implements Connec
 
 	private final String brokerURI;
 
-	private final ActiveMQConnectionFactory connectionFactory;
+	/*
+	 * Replaced each time the broker starts, so that it reflects the profile
+	 * at that time.
+	 */
+	private volatile ActiveMQConnectionFactory connectionFactory;
 
     /**
      * Create the broker instance.
@@ -86,6 +90,33 @@ public class VMMessageBroker extends BaseEmbeddedMessageBroker implements Connec
 		connectionFactory = new ActiveMQConnectionFactory(brokerURI);
 	}
 
+	/**
+	 * Starts the broker service. In addition to the broker settings, the
+	 * client settings of the profile, if any, are applied to the connections
+	 * that this object creates from then on; with no profile, they have the
+	 * ActiveMQ defaults (or the values given in the constructor's parameters).
+	 * 
+	 * @see BaseEmbeddedMessageBroker#startBroker(boolean)
+	 * @see BaseEmbeddedMessageBroker#setProfile(BrokerProfile)
+	 */
+	@Override
+	public synchronized void startBroker(boolean wait) throws Exception
+	{
+		if (!isRunning())
+		{
+			ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(
+					brokerURI);
+			BrokerProfile profile = getProfile();
+			if (profile != null)
+			{
+				profile.configure(factory);
+			}
+			connectionFactory = factory;
+		}
+
+		super.startBroker(wait);
+	}
+
 	/**
 	 * Return the URI that <code>ActiveMQConnectionFactory</code> instances
 	 * should use to connect to this broker.
@@ -62,9 +62,16 @@ import javax.jms.Session;
  * before <code>onStart</code> returns. Message delivery <u>may</u> start before
  * <code>start</code> returns, however.</li>
  * </ul>
+ * <p>
+ * If {@link #setPayloadCodecs(PayloadCodecs)} has been called, messages
+ * containing a payload encoded by one of the codecs are decoded and delivered
+ * to {@link #handlePayload(Session, Message, Object)} instead.
+ * </p>
  */
 public abstract class BaseAsyncMessageReceiver extends BaseMessageReceiver
 {
+	private volatile PayloadCodecs payloadCodecs;
+
 	/**
 	 * Create an BaseAsyncMessageReceiver.
 	 * 
@@ -124,6 +131,7 @@ public abstract class BaseAsyncMessageReceiver extends BaseMessageReceiver
 		{
 			onStart(getSession());
 			getConsumer().setMessageListener(new ListenerHelper(getSession()));
+			untrackSession();
 		}
 		catch (JMSException e)
 		{
@@ -204,6 +212,51 @@ public abstract class BaseAsyncMessageReceiver extends BaseMessageReceiver
 	 */
 	protected abstract void handleMessage(Session session, Message message);
 
+	/**
+	 * This method will be called for each delivered message whose payload was
+	 * decoded by the codecs set by {@link #setPayloadCodecs(PayloadCodecs)}.
+	 * The default implementation passes the message to
+	 * {@link #handleMessage(Session, Message)}.
+	 * 
+	 * @param session
+	 *            JMS <code>Session</code> object.
+	 * @param message
+	 *            JMS <code>Message</code> being delivered.
+	 * @param payload
+	 *            The decoded payload.
+	 */
+	protected void handlePayload(Session session, Message message,
+			Object payload)
+	{
+		handleMessage(session, message);
+	}
+
+	/**
+	 * Set the codecs used to decode message payloads. Messages that were not
+	 * encoded by one of these codecs are still passed to
+	 * {@link #handleMessage(Session, Message)}. If a message cannot be decoded
+	 * (or decompressed), a <code>RuntimeException</code> is thrown to the JMS
+	 * provider, which will normally redeliver the message.
+	 * 
+	 * @param payloadCodecs
+	 *            {@link PayloadCodecs} instance. May be <code>null</code>.
+	 */
+	public void setPayloadCodecs(PayloadCodecs payloadCodecs)
+	{
+		this.payloadCodecs = payloadCodecs;
+	}
+
+	/**
+	 * Returns the codecs used to decode message payloads.
+	 * 
+	 * @return {@link PayloadCodecs} instance, or <code>null</code> if none has
+	 *         been set.
+	 */
+	public PayloadCodecs getPayloadCodecs()
+	{
+		return payloadCodecs;
+	}
+
 	/*
 	 * Internal "helper" class. This is the actual <code>MessageListener</code>
 	 * that is installed into the <code>MessageConsumer</code>. (Having this in
@@ -222,7 +275,27 @@ public abstract class BaseAsyncMessageReceiver extends BaseMessageReceiver
 		@Override
 		public void onMessage(Message message)
 		{
-			BaseAsyncMessageReceiver.this.handleMessage(session, message);
+			BaseAsyncMessageReceiver owner = BaseAsyncMessageReceiver.this;
+			PayloadCodecs codecs = owner.payloadCodecs;
+			Object payload;
+
+			try
+			{
+				if (codecs == null || !codecs.isEncoded(message))
+				{
+					message = owner.decompress(message);
+					owner.handleMessage(session, message);
+					return;
+				}
+
+				payload = codecs.decode(message);
+			}
+			catch (JMSException e)
+			{
+				throw new RuntimeException("Unable to decode message", e);
+			}
+
+			owner.handlePayload(session, message, payload);
 		}
 	}
 }
@@ -19,14 +19,21 @@ package net.sourceforge.wsup.messaging.jms;
 import javax.jms.Connection;
 import javax.jms.Destination;
 import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.Session;
 
 /**
  * This is a base class for JMS message receivers. This class manages a
  * {@link Session} and a {@link MessageConsumer}.
+ * <p>
+ * Messages compressed by {@link MessageCompression} are decompressed before
+ * they are passed to the application.
+ * </p>
  */
+@SuppressWarnings("deprecation")
 public abstract class BaseMessageReceiver extends CloseOnFinalize
+		implements AutoCloseable
 {
 	private final Connection connection;
 
@@ -40,6 +47,8 @@ public abstract class BaseMessageReceiver extends CloseOnFinalize
 
 	private transient MessageConsumer consumer;
 
+	private transient SessionTracker.Handle tracking;
+
 	/**
 	 * Create an BaseMessageSender.
 	 * 
@@ -127,6 +136,7 @@ public abstract class BaseMessageReceiver extends CloseOnFinalize
 		{
 			session = connection.createSession(transacted, acknowledgeMode);
 			consumer = session.createConsumer(destination);
+			tracking = SessionTracker.track(this, session);
 		}
 		catch (JMSException e)
 		{
@@ -142,6 +152,18 @@ public abstract class BaseMessageReceiver extends CloseOnFinalize
 		}
 	}
 
+	/**
+	 * Does nothing. This class still extends the deprecated
+	 * {@link CloseOnFinalize} for compatibility, but its <code>Session</code>s
+	 * are closed by {@link SessionTracker} if it is collected without being
+	 * closed. Overriding <code>finalize</code> with an empty method means that
+	 * instances are not registered for finalization at all.
+	 */
+	@Override
+	protected void finalize()
+	{
+	}
+
 	/**
 	 * Shut down the handler. Message delivery will cease before the completion
 	 * of this method. This method will not return until any message being
@@ -158,6 +180,10 @@ public abstract class BaseMessageReceiver extends CloseOnFinalize
 		{
 			if (session != null)
 			{
+				if (tracking != null)
+				{
+					tracking.release();
+				}
 				session.close();
 			}
 		}
@@ -165,6 +191,21 @@ public abstract class BaseMessageReceiver extends CloseOnFinalize
 		{
 			consumer = null;
 			session = null;
+			tracking = null;
+		}
+	}
+
+	/*
+	 * Stop tracking the Session. Called once a MessageListener that refers to
+	 * this object has been installed on the consumer: this object is then in
+	 * use for as long as the Session is, and cannot be leaked.
+	 */
+	synchronized void untrackSession()
+	{
+		if (tracking != null)
+		{
+			tracking.release();
+			tracking = null;
 		}
 	}
 
@@ -188,4 +229,20 @@ public abstract class BaseMessageReceiver extends CloseOnFinalize
 	{
 		return session;
 	}
+
+	/**
+	 * Returns a received message as the application should see it: if it was
+	 * compressed by {@link MessageCompression}, a decompressed view of it,
+	 * otherwise the message itself.
+	 * 
+	 * @param message
+	 *            JMS <code>Message</code> received. May be <code>null</code>.
+	 * @return The message to be passed to the application.
+	 * @throws JMSException
+	 *             If the message cannot be decompressed.
+	 */
+	protected Message decompress(Message message) throws JMSException
+	{
+		return MessageCompression.decompress(message);
+	}
 }
@@ -25,7 +25,16 @@ import javax.jms.JMSException;
  * objects aren't closed manually. It is not wise to trust this, since there is
  * no way to tell how long it may take for the JVM to get around to finalizing
  * objects.
+ * 
+ * @deprecated Finalizable objects are slower to allocate and collect, and are
+ *             reclaimed late. The classes in this package track their
+ *             <code>Session</code>s with {@link SessionTracker} instead.
+ *             {@link SimpleMessageSender} and {@link BaseMessageReceiver}
+ *             still extend this class for compatibility, but override
+ *             <code>finalize</code> to do nothing, and will stop extending it
+ *             in the next release.
  */
+@Deprecated
 public abstract class CloseOnFinalize
 {
 	protected CloseOnFinalize()
@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * <code>ByteArrayOutputStream</code> that exposes its buffer, so that callers
+ * can avoid the copy made by <code>toByteArray</code>. Used for the reusable
+ * per-thread buffers in this package.
+ */
+class ExposedByteArrayOutputStream extends ByteArrayOutputStream
+{
+	/**
+	 * Constructor.
+	 * 
+	 * @param size
+	 *            Initial size of the buffer.
+	 */
+	public ExposedByteArrayOutputStream(int size)
+	{
+		super(size);
+	}
+
+	/**
+	 * Returns the buffer. Only the first {@link #size()} bytes are valid.
+	 * 
+	 * @return The buffer.
+	 */
+	public byte[] array()
+	{
+		return buf;
+	}
+}
@@ -0,0 +1,665 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageNotWriteableException;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+/**
+ * Compresses large text and object messages.
+ * <p>
+ * {@link #createTextMessage(Session, String)} and
+ * {@link #createObjectMessage(Session, Serializable)} create an ordinary
+ * <code>TextMessage</code> or <code>ObjectMessage</code> if the body is
+ * smaller than the threshold, or if compressing it would not make it smaller.
+ * Otherwise they create a <code>BytesMessage</code> containing the body,
+ * deflated, and record the compression in the {@link #COMPRESSION_PROPERTY},
+ * {@link #BODY_TYPE_PROPERTY} and {@link #LENGTH_PROPERTY} properties.
+ * </p>
+ * <p>
+ * {@link #decompress(Message)} reverses the process, returning a read-only
+ * <code>TextMessage</code> or <code>ObjectMessage</code> that delegates
+ * everything except its body to the <code>BytesMessage</code> that was
+ * received, so that acknowledging it acknowledges the received message. The
+ * receivers in this package call it on every message they receive, so
+ * decompression needs no configuration.
+ * </p>
+ * <p>
+ * <code>Deflater</code>s and <code>Inflater</code>s are pooled, and the
+ * buffers used are held per thread and reused. Note that an object body
+ * must be serialized to determine its size, so an object below the threshold
+ * is serialized twice: once here, and once by the <code>ObjectMessage</code>.
+ * </p>
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ * 
+ * @see SimpleMessageSender#setCompression(MessageCompression)
+ * @see PooledMessageSender#setCompression(MessageCompression)
+ */
+public class MessageCompression
+{
+	/**
+	 * Name of the <code>String</code> message property holding the compression
+	 * algorithm. The only value used is {@link #DEFLATE}.
+	 */
+	public static final String COMPRESSION_PROPERTY = "wsupCompression";
+
+	/**
+	 * Value of {@link #COMPRESSION_PROPERTY} for a body compressed with
+	 * <code>java.util.zip.Deflater</code>.
+	 */
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * Name of the <code>String</code> message property holding the type of
+	 * the original body: {@link #TEXT_BODY} or {@link #OBJECT_BODY}.
+	 */
+	public static final String BODY_TYPE_PROPERTY = "wsupCompressedBody";
+
+	/**
+	 * Value of {@link #BODY_TYPE_PROPERTY} for a UTF-8 encoded
+	 * <code>String</code>.
+	 */
+	public static final String TEXT_BODY = "text";
+
+	/**
+	 * Value of {@link #BODY_TYPE_PROPERTY} for a serialized object.
+	 */
+	public static final String OBJECT_BODY = "object";
+
+	/**
+	 * Name of the <code>int</code> message property holding the length of the
+	 * body before compression.
+	 */
+	public static final String LENGTH_PROPERTY = "wsupUncompressedLength";
+
+	/**
+	 * Default threshold, in bytes.
+	 */
+	public static final int DEFAULT_THRESHOLD = 8 * 1024;
+
+	/**
+	 * Largest body, in bytes before compression, that
+	 * {@link #decompress(Message)} will inflate. The buffer is sized from the
+	 * {@link #LENGTH_PROPERTY}, which comes from the sender, so it is not
+	 * trusted beyond this.
+	 */
+	public static final int MAX_UNCOMPRESSED_LENGTH = 64 * 1024 * 1024;
+
+	/*
+	 * Deflate cannot compress by more than about 1032:1, so a larger claimed
+	 * length cannot be genuine.
+	 */
+	private static final int MAX_RATIO = 1032;
+
+	/*
+	 * Buffers larger than this are not retained between uses.
+	 */
+	private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+
+	/*
+	 * Number of idle Deflaters or Inflaters retained by each pool.
+	 */
+	private static final int MAX_POOLED = 16;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>()
+	{
+		@Override
+		protected Buffers initialValue()
+		{
+			return new Buffers();
+		}
+	};
+
+	private static final Pool<Inflater> inflaters = new Pool<Inflater>()
+	{
+		@Override
+		protected Inflater create()
+		{
+			return new Inflater();
+		}
+
+		@Override
+		protected void reset(Inflater inflater)
+		{
+			inflater.reset();
+		}
+
+		@Override
+		protected void destroy(Inflater inflater)
+		{
+			inflater.end();
+		}
+	};
+
+	private final int threshold;
+
+	private final Pool<Deflater> deflaters;
+
+	/**
+	 * Constructor that uses the {@link #DEFAULT_THRESHOLD} and the default
+	 * compression level.
+	 */
+	public MessageCompression()
+	{
+		this(DEFAULT_THRESHOLD, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param threshold
+	 *            Size, in bytes, below which bodies are not compressed. For
+	 *            text, the number of characters is compared.
+	 * @param level
+	 *            <code>Deflater</code> compression level, from 0 to 9, or
+	 *            <code>Deflater.DEFAULT_COMPRESSION</code>.
+	 */
+	public MessageCompression(int threshold, final int level)
+	{
+		if (threshold < 0)
+		{
+			throw new IllegalArgumentException("threshold must not be negative");
+		}
+		if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION)
+		{
+			throw new IllegalArgumentException("Invalid compression level "
+					+ level);
+		}
+
+		this.threshold = threshold;
+		this.deflaters = new Pool<Deflater>()
+		{
+			@Override
+			protected Deflater create()
+			{
+				return new Deflater(level);
+			}
+
+			@Override
+			protected void reset(Deflater deflater)
+			{
+				deflater.reset();
+			}
+
+			@Override
+			protected void destroy(Deflater deflater)
+			{
+				deflater.end();
+			}
+		};
+	}
+
+	/**
+	 * Returns the size below which bodies are not compressed.
+	 * 
+	 * @return Threshold in bytes.
+	 */
+	public int getThreshold()
+	{
+		return threshold;
+	}
+
+	/**
+	 * Create a message containing a <code>String</code>, compressed if it is
+	 * at least as long as the threshold.
+	 * 
+	 * @param session
+	 *            JMS <code>Session</code> with which to create the message.
+	 * @param text
+	 *            <code>String</code> to be sent.
+	 * @return A <code>TextMessage</code>, or a compressed
+	 *         <code>BytesMessage</code>.
+	 * @throws JMSException
+	 */
+	public Message createTextMessage(Session session, String text)
+			throws JMSException
+	{
+		if (text == null || text.length() < threshold)
+		{
+			return session.createTextMessage(text);
+		}
+
+		byte[] bytes = text.getBytes(UTF8);
+		BytesMessage message = compress(session, bytes, bytes.length, TEXT_BODY);
+		return message != null ? message : session.createTextMessage(text);
+	}
+
+	/**
+	 * Create a message containing a <code>Serializable</code> object,
+	 * compressed if its serialized form is at least as long as the threshold.
+	 * 
+	 * @param session
+	 *            JMS <code>Session</code> with which to create the message.
+	 * @param object
+	 *            Object to be sent.
+	 * @return An <code>ObjectMessage</code>, or a compressed
+	 *         <code>BytesMessage</code>.
+	 * @throws JMSException
+	 */
+	public Message createObjectMessage(Session session, Serializable object)
+			throws JMSException
+	{
+		if (object == null)
+		{
+			return session.createObjectMessage(object);
+		}
+
+		Buffers buffer = buffers.get();
+
+		try
+		{
+			buffer.serialized.reset();
+			ObjectOutputStream out = new ObjectOutputStream(buffer.serialized);
+			out.writeObject(object);
+			out.close();
+
+			BytesMessage message = null;
+			if (buffer.serialized.size() >= threshold)
+			{
+				message = compress(session, buffer.serialized.array(),
+						buffer.serialized.size(), OBJECT_BODY);
+			}
+			return message != null ? message : session
+					.createObjectMessage(object);
+		}
+		catch (IOException e)
+		{
+			JMSException jmse = new MessageFormatException("Unable to serialize "
+					+ object.getClass().getName());
+			jmse.setLinkedException(e);
+			throw jmse;
+		}
+		finally
+		{
+			buffer.trim();
+		}
+	}
+
+	/**
+	 * Indicates whether a message was compressed by this class.
+	 * 
+	 * @param message
+	 *            JMS <code>Message</code> to be checked.
+	 * @return <code>true</code> if the message is compressed.
+	 * @throws JMSException
+	 */
+	public static boolean isCompressed(Message message) throws JMSException
+	{
+		return message instanceof BytesMessage
+				&& message.propertyExists(COMPRESSION_PROPERTY);
+	}
+
+	/**
+	 * Decompress a message compressed by this class.
+	 * 
+	 * @param message
+	 *            JMS <code>Message</code> to be decompressed. May be
+	 *            <code>null</code>.
+	 * @return A read-only <code>TextMessage</code> or
+	 *         <code>ObjectMessage</code> if the message was compressed,
+	 *         otherwise the message itself.
+	 * @throws MessageFormatException
+	 *             If the message uses an unknown algorithm or body type,
+	 *             claims a length greater than
+	 *             {@link #MAX_UNCOMPRESSED_LENGTH} or than its compressed body
+	 *             could hold, or cannot be decompressed.
+	 * @throws JMSException
+	 */
+	public static Message decompress(Message message) throws JMSException
+	{
+		if (!isCompressed(message))
+		{
+			return message;
+		}
+
+		if (!DEFLATE.equals(message.getStringProperty(COMPRESSION_PROPERTY)))
+		{
+			throw new MessageFormatException("Unknown compression "
+					+ message.getStringProperty(COMPRESSION_PROPERTY));
+		}
+
+		String bodyType = message.getStringProperty(BODY_TYPE_PROPERTY);
+		if (!TEXT_BODY.equals(bodyType) && !OBJECT_BODY.equals(bodyType))
+		{
+			throw new MessageFormatException("Unknown body type " + bodyType);
+		}
+
+		BytesMessage bytesMessage = (BytesMessage) message;
+		int length = message.getIntProperty(LENGTH_PROPERTY);
+		long compressedLength = bytesMessage.getBodyLength();
+		if (length < 0 || compressedLength > Integer.MAX_VALUE)
+		{
+			throw new MessageFormatException("Invalid message length");
+		}
+		if (length > MAX_UNCOMPRESSED_LENGTH
+				|| length > (compressedLength + 1) * MAX_RATIO)
+		{
+			throw new MessageFormatException("Uncompressed length " + length
+					+ " is too large");
+		}
+
+		Buffers buffer = buffers.get();
+		Inflater inflater = inflaters.lease();
+
+		try
+		{
+			byte[] compressed = buffer.compressed((int) compressedLength);
+			bytesMessage.reset();
+			bytesMessage.readBytes(compressed, (int) compressedLength);
+
+			byte[] body = buffer.inflated(length);
+			inflater.setInput(compressed, 0, (int) compressedLength);
+			if (inflater.inflate(body, 0, length) != length
+					|| !inflater.finished())
+			{
+				throw new MessageFormatException(
+						"Compressed body does not match its length");
+			}
+
+			if (TEXT_BODY.equals(bodyType))
+			{
+				return view(TextMessage.class, bytesMessage, new String(body,
+						0, length, UTF8));
+			}
+
+			ObjectInputStream in = new ContextObjectInputStream(
+					new ByteArrayInputStream(body, 0, length));
+			return view(ObjectMessage.class, bytesMessage, in.readObject());
+		}
+		catch (DataFormatException e)
+		{
+			throw formatException(e);
+		}
+		catch (IOException e)
+		{
+			throw formatException(e);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw formatException(e);
+		}
+		finally
+		{
+			inflaters.release(inflater);
+			buffer.trim();
+		}
+	}
+
+	/*
+	 * Deflate the body into a BytesMessage, or return null if compressing it
+	 * does not make it smaller.
+	 */
+	private BytesMessage compress(Session session, byte[] body, int length,
+			String bodyType) throws JMSException
+	{
+		Buffers buffer = buffers.get();
+		Deflater deflater = deflaters.lease();
+
+		try
+		{
+			ExposedByteArrayOutputStream out = buffer.deflated;
+			out.reset();
+
+			deflater.setInput(body, 0, length);
+			deflater.finish();
+			while (!deflater.finished())
+			{
+				int count = deflater.deflate(buffer.chunk);
+				out.write(buffer.chunk, 0, count);
+				if (out.size() >= length)
+				{
+					return null;
+				}
+			}
+
+			BytesMessage message = session.createBytesMessage();
+			message.setStringProperty(COMPRESSION_PROPERTY, DEFLATE);
+			message.setStringProperty(BODY_TYPE_PROPERTY, bodyType);
+			message.setIntProperty(LENGTH_PROPERTY, length);
+			message.writeBytes(out.array(), 0, out.size());
+			return message;
+		}
+		finally
+		{
+			deflaters.release(deflater);
+			buffer.trim();
+		}
+	}
+
+	private static MessageFormatException formatException(Exception e)
+	{
+		MessageFormatException mfe = new MessageFormatException(
+				"Unable to decompress message: " + e.getMessage());
+		mfe.setLinkedException(e);
+		return mfe;
+	}
+
+	private static Message view(Class<? extends Message> type,
+			BytesMessage message, Object body)
+	{
+		return (Message) Proxy.newProxyInstance(MessageCompression.class
+				.getClassLoader(), new Class<?>[] { type },
+				new DecompressedMessage(message, body));
+	}
+
+	/*
+	 * InvocationHandler for the TextMessage or ObjectMessage returned by
+	 * decompress. The body accessors return the decompressed body; everything
+	 * else is delegated to the received message.
+	 */
+	private static class DecompressedMessage implements InvocationHandler
+	{
+		private final BytesMessage message;
+
+		private final Object body;
+
+		public DecompressedMessage(BytesMessage message, Object body)
+		{
+			this.message = message;
+			this.body = body;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable
+		{
+			String name = method.getName();
+
+			if (name.equals("getText") || name.equals("getObject"))
+			{
+				return body;
+			}
+			if (name.equals("setText") || name.equals("setObject")
+					|| name.equals("clearBody"))
+			{
+				throw new MessageNotWriteableException(
+						"Decompressed message is read-only");
+			}
+			if (name.equals("toString"))
+			{
+				return "Decompressed " + message;
+			}
+
+			try
+			{
+				return method.invoke(message, args);
+			}
+			catch (InvocationTargetException e)
+			{
+				throw e.getCause();
+			}
+		}
+	}
+
+	/*
+	 * ObjectInputStream that resolves classes through the thread's context
+	 * ClassLoader, falling back to the default behaviour.
+	 */
+	private static class ContextObjectInputStream extends ObjectInputStream
+	{
+		public ContextObjectInputStream(InputStream in) throws IOException
+		{
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc)
+				throws IOException, ClassNotFoundException
+		{
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			if (loader != null)
+			{
+				try
+				{
+					return Class.forName(desc.getName(), false, loader);
+				}
+				catch (ClassNotFoundException e)
+				{
+					// fall through
+				}
+			}
+			return super.resolveClass(desc);
+		}
+	}
+
+	/*
+	 * A bounded pool of objects holding native resources.
+	 */
+	private abstract static class Pool<T>
+	{
+		private final Queue<T> idle = new ConcurrentLinkedQueue<T>();
+
+		private final AtomicInteger idleCount = new AtomicInteger();
+
+		public T lease()
+		{
+			T item = idle.poll();
+			if (item == null)
+			{
+				return create();
+			}
+			idleCount.decrementAndGet();
+			return item;
+		}
+
+		public void release(T item)
+		{
+			reset(item);
+			if (idleCount.incrementAndGet() <= MAX_POOLED)
+			{
+				idle.offer(item);
+			}
+			else
+			{
+				idleCount.decrementAndGet();
+				destroy(item);
+			}
+		}
+
+		protected abstract T create();
+
+		protected abstract void reset(T item);
+
+		protected abstract void destroy(T item);
+	}
+
+	/*
+	 * The per-thread buffers.
+	 */
+	private static class Buffers
+	{
+		private final byte[] chunk = new byte[4096];
+
+		private ExposedByteArrayOutputStream serialized = new ExposedByteArrayOutputStream(
+				4096);
+
+		private ExposedByteArrayOutputStream deflated = new ExposedByteArrayOutputStream(
+				4096);
+
+		private byte[] compressed = new byte[4096];
+
+		private byte[] inflated = new byte[4096];
+
+		public byte[] compressed(int length)
+		{
+			if (compressed.length < length)
+			{
+				compressed = new byte[Math.max(length, compressed.length * 2)];
+			}
+			return compressed;
+		}
+
+		public byte[] inflated(int length)
+		{
+			if (inflated.length < length)
+			{
+				inflated = new byte[Math.max(length, inflated.length * 2)];
+			}
+			return inflated;
+		}
+
+		/*
+		 * Drop buffers that have grown unusually large, rather than keeping
+		 * them for the life of the thread.
+		 */
+		public void trim()
+		{
+			if (serialized.array().length > MAX_RETAINED_BUFFER)
+			{
+				serialized = new ExposedByteArrayOutputStream(4096);
+			}
+			if (deflated.array().length > MAX_RETAINED_BUFFER)
+			{
+				deflated = new ExposedByteArrayOutputStream(4096);
+			}
+			if (compressed.length > MAX_RETAINED_BUFFER)
+			{
+				compressed = new byte[4096];
+			}
+			if (inflated.length > MAX_RETAINED_BUFFER)
+			{
+				inflated = new byte[4096];
+			}
+		}
+	}
+}
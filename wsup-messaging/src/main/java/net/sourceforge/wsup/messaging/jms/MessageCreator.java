@@ -0,0 +1,38 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * Interface used by {@link PooledMessageSender} to have the application create
+ * a message using the JMS <code>Session</code> through which it will be sent.
+ */
+public interface MessageCreator
+{
+	/**
+	 * Create the message to be sent. This is called with a
+	 * <code>Session</code> leased for the exclusive use of the calling thread.
+	 * The <code>Session</code> should not be retained after this method
+	 * returns.
+	 * 
+	 * @param session
+	 *            JMS <code>Session</code>
+	 * @return <code>Message</code> to be sent.
+	 * @throws JMSException
+	 */
+	public Message createMessage(Session session) throws JMSException;
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Interface for encoding objects of a single class to, and decoding them from,
+ * the body of a <code>BytesMessage</code>. A codec is, in effect, the schema
+ * for its class: it writes the fields of the object in a fixed order, without
+ * the class descriptors and field names that Java serialization (and so
+ * <code>ObjectMessage</code>) includes in every message. The sender and
+ * receiver must therefore use matching codecs.
+ * <p>
+ * Codecs are registered with a {@link PayloadCodecs}, which provides helpers
+ * for compact variable-length integers. Implementations must be thread-safe;
+ * normally they are stateless.
+ * </p>
+ * 
+ * @param <T>
+ *            Class of object encoded.
+ */
+public interface PayloadCodec<T>
+{
+	/**
+	 * Returns the class of object that this codec encodes.
+	 * 
+	 * @return <code>Class</code> object.
+	 */
+	public Class<T> getPayloadClass();
+
+	/**
+	 * Writes the fields of an object.
+	 * 
+	 * @param payload
+	 *            Object to be encoded.
+	 * @param out
+	 *            Output to which the fields are written.
+	 * @throws IOException
+	 */
+	public void encode(T payload, DataOutput out) throws IOException;
+
+	/**
+	 * Reads the fields written by {@link #encode(Object, DataOutput)} and
+	 * constructs a new object from them.
+	 * 
+	 * @param in
+	 *            Input from which the fields are read.
+	 * @return Decoded object.
+	 * @throws IOException
+	 */
+	public T decode(DataInput in) throws IOException;
+}
@@ -0,0 +1,422 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+import javax.jms.Session;
+
+/**
+ * A set of {@link PayloadCodec}s, each identified by a small integer type ID,
+ * used to send objects in <code>BytesMessage</code>s rather than
+ * <code>ObjectMessage</code>s.
+ * <p>
+ * {@link #createMessage(Session, Object)} encodes an object using the codec
+ * registered for its class, and records the codec's type ID in the
+ * {@link #TYPE_PROPERTY} property of the message. {@link #decode(Message)}
+ * reverses the process. Senders and receivers must register the same codecs
+ * under the same type IDs. The buffers used for encoding and decoding are
+ * held per thread and reused, so encoding and decoding do not allocate beyond
+ * the message and the decoded object.
+ * </p>
+ * <p>
+ * Codecs should be registered before the object is used to send or receive
+ * messages. This class is thread-safe.
+ * </p>
+ * 
+ * @see SimpleMessageSender#setPayloadCodecs(PayloadCodecs)
+ * @see PooledMessageSender#setPayloadCodecs(PayloadCodecs)
+ * @see BaseAsyncMessageReceiver#setPayloadCodecs(PayloadCodecs)
+ */
+public class PayloadCodecs
+{
+	/**
+	 * Name of the <code>int</code> message property holding the type ID of the
+	 * codec used to encode the message body.
+	 */
+	public static final String TYPE_PROPERTY = "wsupPayloadType";
+
+	/*
+	 * Buffers larger than this are not retained between uses.
+	 */
+	private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>()
+	{
+		@Override
+		protected Buffers initialValue()
+		{
+			return new Buffers();
+		}
+	};
+
+	private final ConcurrentMap<Integer, PayloadCodec<?>> codecsByType = new ConcurrentHashMap<Integer, PayloadCodec<?>>();
+
+	private final ConcurrentMap<Class<?>, Integer> typesByClass = new ConcurrentHashMap<Class<?>, Integer>();
+
+	/**
+	 * Constructor.
+	 */
+	public PayloadCodecs()
+	{
+	}
+
+	/**
+	 * Register a codec.
+	 * 
+	 * @param typeId
+	 *            Type ID identifying the codec in messages.
+	 * @param codec
+	 *            The codec.
+	 * @throws IllegalArgumentException
+	 *             If a codec has already been registered with the same type
+	 *             ID or for the same class.
+	 */
+	public synchronized void register(int typeId, PayloadCodec<?> codec)
+	{
+		Integer type = Integer.valueOf(typeId);
+		Class<?> payloadClass = codec.getPayloadClass();
+
+		if (codecsByType.containsKey(type))
+		{
+			throw new IllegalArgumentException("Type " + typeId
+					+ " is already registered");
+		}
+		if (typesByClass.containsKey(payloadClass))
+		{
+			throw new IllegalArgumentException("A codec for "
+					+ payloadClass.getName() + " is already registered");
+		}
+
+		codecsByType.put(type, codec);
+		typesByClass.put(payloadClass, type);
+	}
+
+	/**
+	 * Indicates whether a codec is registered for the class of an object.
+	 * 
+	 * @param payload
+	 *            Object to be checked.
+	 * @return <code>true</code> if the object can be encoded.
+	 */
+	public boolean canEncode(Object payload)
+	{
+		return payload != null && typesByClass.containsKey(payload.getClass());
+	}
+
+	/**
+	 * Indicates whether a message was created by
+	 * {@link #createMessage(Session, Object)} with a codec registered here.
+	 * 
+	 * @param message
+	 *            JMS <code>Message</code> to be checked.
+	 * @return <code>true</code> if the message can be decoded.
+	 * @throws JMSException
+	 */
+	public boolean isEncoded(Message message) throws JMSException
+	{
+		return message instanceof BytesMessage
+				&& message.propertyExists(TYPE_PROPERTY)
+				&& codecsByType.containsKey(Integer.valueOf(message
+						.getIntProperty(TYPE_PROPERTY)));
+	}
+
+	/**
+	 * Create a <code>BytesMessage</code> containing an encoded object.
+	 * 
+	 * @param session
+	 *            JMS <code>Session</code> with which to create the message.
+	 * @param payload
+	 *            Object to be encoded.
+	 * @return <code>BytesMessage</code> instance.
+	 * @throws JMSException
+	 *             If the message cannot be created, or the object cannot be
+	 *             encoded.
+	 * @throws IllegalArgumentException
+	 *             If no codec is registered for the object's class.
+	 */
+	@SuppressWarnings("unchecked")
+	public BytesMessage createMessage(Session session, Object payload)
+			throws JMSException
+	{
+		Integer type = payload == null ? null : typesByClass.get(payload
+				.getClass());
+		if (type == null)
+		{
+			throw new IllegalArgumentException("No codec registered for "
+					+ (payload == null ? "null" : payload.getClass().getName()));
+		}
+
+		PayloadCodec<Object> codec = (PayloadCodec<Object>) codecsByType
+				.get(type);
+		Buffers buffer = buffers.get();
+
+		try
+		{
+			buffer.output.reset();
+			codec.encode(payload, buffer.data);
+
+			BytesMessage message = session.createBytesMessage();
+			message.setIntProperty(TYPE_PROPERTY, type.intValue());
+			message.writeBytes(buffer.output.array(), 0, buffer.output.size());
+			return message;
+		}
+		catch (IOException e)
+		{
+			JMSException jmse = new MessageFormatException("Unable to encode "
+					+ payload.getClass().getName());
+			jmse.setLinkedException(e);
+			throw jmse;
+		}
+		finally
+		{
+			buffer.trim();
+		}
+	}
+
+	/**
+	 * Decode the object in a message created by
+	 * {@link #createMessage(Session, Object)}.
+	 * 
+	 * @param message
+	 *            JMS <code>Message</code> to be decoded.
+	 * @return Decoded object.
+	 * @throws MessageFormatException
+	 *             If the message is not a <code>BytesMessage</code>, has no
+	 *             registered type ID, or cannot be decoded.
+	 * @throws JMSException
+	 */
+	public Object decode(Message message) throws JMSException
+	{
+		if (!isEncoded(message))
+		{
+			throw new MessageFormatException("Message is not an encoded payload");
+		}
+
+		PayloadCodec<?> codec = codecsByType.get(Integer.valueOf(message
+				.getIntProperty(TYPE_PROPERTY)));
+		BytesMessage bytesMessage = (BytesMessage) message;
+		Buffers buffer = buffers.get();
+
+		try
+		{
+			long length = bytesMessage.getBodyLength();
+			if (length > Integer.MAX_VALUE)
+			{
+				throw new MessageFormatException("Message body is too long");
+			}
+
+			byte[] body = buffer.input((int) length);
+			bytesMessage.reset();
+			bytesMessage.readBytes(body, (int) length);
+
+			return codec.decode(new DataInputStream(new ByteArrayInputStream(
+					body, 0, (int) length)));
+		}
+		catch (IOException e)
+		{
+			JMSException jmse = new MessageFormatException("Unable to decode "
+					+ codec.getPayloadClass().getName());
+			jmse.setLinkedException(e);
+			throw jmse;
+		}
+		finally
+		{
+			buffer.trim();
+		}
+	}
+
+	/**
+	 * Write an <code>int</code> using a variable number of bytes: 1 for
+	 * values from -64 to 63, 2 for -8192 to 8191, and so on.
+	 * 
+	 * @param out
+	 *            Output to which the value is written.
+	 * @param value
+	 *            Value to be written.
+	 * @throws IOException
+	 */
+	public static void writeVarInt(DataOutput out, int value)
+			throws IOException
+	{
+		writeVarLong(out, value);
+	}
+
+	/**
+	 * Read an <code>int</code> written by {@link #writeVarInt(DataOutput, int)}.
+	 * 
+	 * @param in
+	 *            Input from which the value is read.
+	 * @return Value read.
+	 * @throws IOException
+	 */
+	public static int readVarInt(DataInput in) throws IOException
+	{
+		long value = readVarLong(in);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+		{
+			throw new IOException("Value out of range for an int");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Write a <code>long</code> using a variable number of bytes (from 1 to
+	 * 10), small magnitudes using the fewest.
+	 * 
+	 * @param out
+	 *            Output to which the value is written.
+	 * @param value
+	 *            Value to be written.
+	 * @throws IOException
+	 */
+	public static void writeVarLong(DataOutput out, long value)
+			throws IOException
+	{
+		// "zig-zag" encoding, so that small negative values are short too
+		long bits = (value << 1) ^ (value >> 63);
+
+		while ((bits & ~0x7FL) != 0)
+		{
+			out.writeByte((int) ((bits & 0x7F) | 0x80));
+			bits >>>= 7;
+		}
+		out.writeByte((int) bits);
+	}
+
+	/**
+	 * Read a <code>long</code> written by
+	 * {@link #writeVarLong(DataOutput, long)}.
+	 * 
+	 * @param in
+	 *            Input from which the value is read.
+	 * @return Value read.
+	 * @throws IOException
+	 */
+	public static long readVarLong(DataInput in) throws IOException
+	{
+		long bits = 0;
+
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			bits |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return (bits >>> 1) ^ -(bits & 1);
+			}
+		}
+
+		throw new IOException("Malformed variable-length value");
+	}
+
+	/**
+	 * Write a <code>String</code>, which may be <code>null</code>, as a
+	 * variable-length byte count followed by its UTF-8 encoding. Unlike
+	 * <code>DataOutput.writeUTF</code>, this has no length limit.
+	 * 
+	 * @param out
+	 *            Output to which the value is written.
+	 * @param value
+	 *            Value to be written.
+	 * @throws IOException
+	 */
+	public static void writeString(DataOutput out, String value)
+			throws IOException
+	{
+		if (value == null)
+		{
+			writeVarInt(out, -1);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(UTF8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read a <code>String</code> written by
+	 * {@link #writeString(DataOutput, String)}.
+	 * 
+	 * @param in
+	 *            Input from which the value is read.
+	 * @return Value read, which may be <code>null</code>.
+	 * @throws IOException
+	 */
+	public static String readString(DataInput in) throws IOException
+	{
+		int length = readVarInt(in);
+		if (length < 0)
+		{
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/*
+	 * The per-thread encoding and decoding buffers.
+	 */
+	private static class Buffers
+	{
+		private ExposedByteArrayOutputStream output = new ExposedByteArrayOutputStream(256);
+
+		private DataOutputStream data = new DataOutputStream(output);
+
+		private byte[] input = new byte[256];
+
+		public byte[] input(int length)
+		{
+			if (input.length < length)
+			{
+				input = new byte[Math.max(length, input.length * 2)];
+			}
+			return input;
+		}
+
+		/*
+		 * Drop buffers that have grown unusually large, rather than keeping
+		 * them for the life of the thread.
+		 */
+		public void trim()
+		{
+			if (output.array().length > MAX_RETAINED_BUFFER)
+			{
+				output = new ExposedByteArrayOutputStream(256);
+				data = new DataOutputStream(output);
+			}
+			if (input.length > MAX_RETAINED_BUFFER)
+			{
+				input = new byte[256];
+			}
+		}
+	}
+}
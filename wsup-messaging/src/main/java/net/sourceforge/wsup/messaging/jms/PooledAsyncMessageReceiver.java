@@ -0,0 +1,824 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.sourceforge.wsup.messaging.jms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This is a base class for asynchronous JMS message receivers that process
+ * messages from a queue concurrently. Where a {@link BaseAsyncMessageReceiver}
+ * has a single JMS {@link Session} and so processes one message at a time, each
+ * instance of this class manages a pool of between <code>minConsumers</code>
+ * and <code>maxConsumers</code> sessions, each with its own consumer on the
+ * same queue. Messages are delivered to {@link #handleMessage(Session, Message)}
+ * concurrently, one at a time per session.
+ * <p>
+ * The number of consumers can be set explicitly using
+ * {@link #setConcurrency(int)}. Unless automatic scaling is disabled (by
+ * setting the scale interval to zero), the pool is also resized periodically
+ * according to the backlog on the queue: a consumer is added if every
+ * consumer is busy and there are messages waiting, and one is removed if there
+ * are no messages waiting and at least one consumer is idle.
+ * </p>
+ * <p>
+ * Note that a JMS provider may deliver messages to a consumer ahead of their
+ * being processed. (ActiveMQ's "prefetch" does this.) Messages held in this
+ * way by one consumer cannot be processed by another, so the connection should
+ * be configured to prefetch few messages (e.g. by setting the
+ * <code>jms.prefetchPolicy.queuePrefetch</code> broker URI parameter to 1) for
+ * the pool to be effective.
+ * </p>
+ * <p>
+ * With respect to thread safety:
+ * </p>
+ * <ul>
+ * <li>
+ * <code>handleMessage</code> will be called concurrently, from threads internal
+ * to the messaging system, but never concurrently for the same
+ * <code>Session</code>.</li>
+ * <li>
+ * All the public methods may be called from any thread. However, since
+ * {@link #close()} waits for messages being processed to complete,
+ * <code>handleMessage</code> must not call it.</li>
+ * <li>
+ * {@link #onStart(Session)} and {@link #onClose()} are called for each
+ * consumer, as for <code>BaseAsyncMessageReceiver</code>, from whichever
+ * thread starts or stops it.</li>
+ * </ul>
+ */
+public abstract class PooledAsyncMessageReceiver implements AutoCloseable
+{
+	/**
+	 * Default interval (in milliseconds) between automatic scaling checks.
+	 */
+	public static final long DEFAULT_SCALE_INTERVAL = 1000L;
+
+	private static final Logger log = LoggerFactory
+			.getLogger(PooledAsyncMessageReceiver.class);
+
+	private final Connection connection;
+
+	private final Queue destination;
+
+	private final int acknowledgeMode;
+
+	private final int minConsumers;
+
+	private final int maxConsumers;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicLong messageCount = new AtomicLong();
+
+	/*
+	 * The following are guarded by "this".
+	 */
+	private final List<PooledConsumer> consumers = new ArrayList<PooledConsumer>();
+
+	private long scaleInterval = DEFAULT_SCALE_INTERVAL;
+
+	private ScheduledExecutorService scaler;
+
+	private Session monitorSession;
+
+	private SessionTracker.Handle monitorTracking;
+
+	private boolean started;
+
+	private int nextConsumerId;
+
+	/**
+	 * Create a PooledAsyncMessageReceiver.
+	 * 
+	 * @param connection
+	 *            <code>Connection</code> to use.
+	 * @param destination
+	 *            <code>Destination</code> to use. This must be a
+	 *            <code>Queue</code>, since every consumer on a topic would
+	 *            receive every message.
+	 * @param acknowledgeMode
+	 *            Acknowledgement mode that will be used for each consumer's
+	 *            <code>Session</code>. See
+	 *            {@link BaseAsyncMessageReceiver#BaseAsyncMessageReceiver(Connection, Destination, int)}
+	 *            .
+	 * @param minConsumers
+	 *            Minimum number of consumers. Must be at least 1.
+	 * @param maxConsumers
+	 *            Maximum number of consumers. Must be at least
+	 *            <code>minConsumers</code>.
+	 * @throws IllegalArgumentException
+	 *             If the destination is not a <code>Queue</code>, or the
+	 *             consumer limits are not valid.
+	 */
+	protected PooledAsyncMessageReceiver(Connection connection,
+			Destination destination, int acknowledgeMode, int minConsumers,
+			int maxConsumers)
+	{
+		if (!(destination instanceof Queue))
+		{
+			throw new IllegalArgumentException("destination must be a Queue");
+		}
+		if (minConsumers < 1)
+		{
+			throw new IllegalArgumentException("minConsumers must be greater than 0");
+		}
+		if (maxConsumers < minConsumers)
+		{
+			throw new IllegalArgumentException(
+					"maxConsumers must not be less than minConsumers");
+		}
+
+		this.connection = connection;
+		this.destination = (Queue) destination;
+		this.acknowledgeMode = acknowledgeMode;
+		this.minConsumers = minConsumers;
+		this.maxConsumers = maxConsumers;
+	}
+
+	/**
+	 * Returns the minimum number of consumers.
+	 * 
+	 * @return Minimum number of consumers.
+	 */
+	public int getMinConsumers()
+	{
+		return minConsumers;
+	}
+
+	/**
+	 * Returns the maximum number of consumers.
+	 * 
+	 * @return Maximum number of consumers.
+	 */
+	public int getMaxConsumers()
+	{
+		return maxConsumers;
+	}
+
+	/**
+	 * Returns the acknowledgement mode with which this object was created.
+	 * 
+	 * @return Acknowledgement mode
+	 */
+	public int getAcknowledgeMode()
+	{
+		return acknowledgeMode;
+	}
+
+	/**
+	 * Returns the interval between automatic scaling checks.
+	 * 
+	 * @return Interval in milliseconds, or zero if automatic scaling is
+	 *         disabled.
+	 */
+	public synchronized long getScaleInterval()
+	{
+		return scaleInterval;
+	}
+
+	/**
+	 * Sets the interval between automatic scaling checks. This takes effect
+	 * the next time the object is started.
+	 * 
+	 * @param scaleInterval
+	 *            Interval in milliseconds. Zero (or a negative value) disables
+	 *            automatic scaling.
+	 */
+	public synchronized void setScaleInterval(long scaleInterval)
+	{
+		this.scaleInterval = Math.max(0, scaleInterval);
+	}
+
+	/**
+	 * Start the operation of this object, with <code>minConsumers</code>
+	 * consumers. Message delivery may begin before this method returns.
+	 * <p>
+	 * Calling this method on an object that has already been started is benign.
+	 * </p>
+	 * 
+	 * @throws JMSException
+	 *             If a JMS <code>Session</code> or <code>MessageConsumer</code>
+	 *             cannot be created.
+	 */
+	public void start() throws JMSException
+	{
+		synchronized (this)
+		{
+			if (started)
+			{
+				return;
+			}
+
+			started = true;
+
+			try
+			{
+				while (consumers.size() < minConsumers)
+				{
+					addConsumer();
+				}
+
+				if (scaleInterval > 0)
+				{
+					scaler = Executors
+							.newSingleThreadScheduledExecutor(new ScalerThreadFactory());
+					scaler.scheduleWithFixedDelay(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							scale();
+						}
+					}, scaleInterval, scaleInterval, TimeUnit.MILLISECONDS);
+				}
+			}
+			catch (JMSException e)
+			{
+				closeQuietly();
+				throw e;
+			}
+			catch (RuntimeException e)
+			{
+				closeQuietly();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Shut down the receiver. Message delivery to every consumer is stopped
+	 * first, so that messages not yet delivered are returned to the queue, and
+	 * then this method waits for the messages already being processed by
+	 * <code>handleMessage</code> to complete before closing the sessions.
+	 * <p>
+	 * Calling this method on an object that has not been started or has already
+	 * been closed is benign.
+	 * </p>
+	 */
+	@Override
+	public void close() throws JMSException
+	{
+		List<PooledConsumer> closing;
+		ScheduledExecutorService stopping;
+
+		synchronized (this)
+		{
+			if (!started)
+			{
+				return;
+			}
+
+			started = false;
+			closing = new ArrayList<PooledConsumer>(consumers);
+			consumers.clear();
+			stopping = scaler;
+			scaler = null;
+		}
+
+		if (stopping != null)
+		{
+			stopping.shutdown();
+			awaitTermination(stopping);
+		}
+
+		JMSException failure = null;
+
+		for (PooledConsumer consumer : closing)
+		{
+			try
+			{
+				consumer.stopDelivery();
+			}
+			catch (JMSException e)
+			{
+				failure = failure == null ? e : failure;
+			}
+		}
+
+		for (PooledConsumer consumer : closing)
+		{
+			try
+			{
+				consumer.close();
+			}
+			catch (JMSException e)
+			{
+				failure = failure == null ? e : failure;
+			}
+		}
+
+		try
+		{
+			closeMonitorSession();
+		}
+		catch (JMSException e)
+		{
+			failure = failure == null ? e : failure;
+		}
+
+		if (failure != null)
+		{
+			throw failure;
+		}
+	}
+
+	/**
+	 * Indicates whether or not this object has been started.
+	 * 
+	 * @return <code>true</code> after <code>start</code> returns and before
+	 *         <code>close</code> is called.
+	 */
+	public synchronized boolean isStarted()
+	{
+		return started;
+	}
+
+	/**
+	 * Returns the current number of consumers.
+	 * 
+	 * @return Number of consumers, or zero if the object is not started.
+	 */
+	public synchronized int getConsumerCount()
+	{
+		return consumers.size();
+	}
+
+	/**
+	 * Returns the number of messages currently being processed by
+	 * <code>handleMessage</code>.
+	 * 
+	 * @return Number of messages in flight.
+	 */
+	public int getInFlightCount()
+	{
+		return inFlight.get();
+	}
+
+	/**
+	 * Returns the total number of messages processed by
+	 * <code>handleMessage</code>, including those processed by consumers that
+	 * have since been removed.
+	 * 
+	 * @return Number of messages processed.
+	 */
+	public long getMessageCount()
+	{
+		return messageCount.get();
+	}
+
+	/**
+	 * Set the number of consumers. Consumers being removed finish processing
+	 * any message that they are handling before this method returns.
+	 * Automatic scaling, if enabled, continues from the new number.
+	 * 
+	 * @param concurrency
+	 *            Number of consumers. Values outside the range
+	 *            <code>minConsumers</code> to <code>maxConsumers</code> are
+	 *            adjusted to the nearest limit.
+	 * @throws JMSException
+	 *             If a consumer cannot be created or closed.
+	 * @throws IllegalStateException
+	 *             If the object is not started.
+	 */
+	public void setConcurrency(int concurrency) throws JMSException
+	{
+		int target = Math.max(minConsumers, Math.min(maxConsumers, concurrency));
+		List<PooledConsumer> removed = new ArrayList<PooledConsumer>();
+
+		synchronized (this)
+		{
+			if (!started)
+			{
+				throw new IllegalStateException("Not started");
+			}
+
+			while (consumers.size() < target)
+			{
+				addConsumer();
+			}
+
+			while (consumers.size() > target)
+			{
+				removed.add(consumers.remove(consumers.size() - 1));
+			}
+		}
+
+		for (PooledConsumer consumer : removed)
+		{
+			consumer.close();
+		}
+	}
+
+	/**
+	 * Returns the metrics for each of the current consumers, in the order in
+	 * which they were added.
+	 * 
+	 * @return <code>List</code> of <code>ConsumerMetrics</code> snapshots.
+	 */
+	public synchronized List<ConsumerMetrics> getConsumerMetrics()
+	{
+		List<ConsumerMetrics> result = new ArrayList<ConsumerMetrics>(
+				consumers.size());
+		long now = System.currentTimeMillis();
+
+		for (PooledConsumer consumer : consumers)
+		{
+			result.add(new ConsumerMetrics(consumer, now));
+		}
+
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * This is an overridable method that is called by the automatic scaling
+	 * check to estimate the number of messages waiting on the queue. The
+	 * default implementation browses the queue, counting at most
+	 * <code>maxConsumers</code> messages. Derived classes may override this to
+	 * use a cheaper source, such as a broker statistic.
+	 * 
+	 * @param session
+	 *            A JMS <code>Session</code> reserved for the scaling check.
+	 * @return Estimated number of messages waiting.
+	 * @throws JMSException
+	 */
+	protected int getBacklog(Session session) throws JMSException
+	{
+		QueueBrowser browser = session.createBrowser(destination);
+		try
+		{
+			Enumeration<?> messages = browser.getEnumeration();
+			int count = 0;
+			while (count < maxConsumers && messages.hasMoreElements())
+			{
+				messages.nextElement();
+				count++;
+			}
+			return count;
+		}
+		finally
+		{
+			browser.close();
+		}
+	}
+
+	/**
+	 * This is an overridable method that is called as each consumer is
+	 * started, after its JMS <code>Session</code> has been created but before
+	 * message delivery to it begins.
+	 * 
+	 * @param session
+	 *            The consumer's JMS <code>Session</code>
+	 * @see BaseAsyncMessageReceiver#onStart(Session)
+	 */
+	protected void onStart(Session session) throws JMSException
+	{
+	}
+
+	/**
+	 * This is an overridable method that is called as each consumer is closed,
+	 * after its JMS <code>Session</code> has been closed.
+	 * 
+	 * @see BaseAsyncMessageReceiver#onClose()
+	 */
+	protected void onClose()
+	{
+	}
+
+	/**
+	 * This method will be called for each delivered message. It will be called
+	 * concurrently for messages delivered to different consumers. Note that
+	 * even though some of the <code>Session</code> and <code>Message</code>
+	 * methods can throw a <code>JMSException</code>, it is considered a
+	 * programming error for this method to throw such an exception.
+	 * 
+	 * @param session
+	 *            JMS <code>Session</code> of the consumer to which the message
+	 *            was delivered.
+	 * @param message
+	 *            JMS <code>Message</code> being delivered.
+	 */
+	protected abstract void handleMessage(Session session, Message message);
+
+	/*
+	 * Perform an automatic scaling check, adding or removing at most one
+	 * consumer.
+	 */
+	private void scale()
+	{
+		PooledConsumer removed = null;
+
+		try
+		{
+			Session session;
+
+			synchronized (this)
+			{
+				if (!started)
+				{
+					return;
+				}
+
+				if (monitorSession == null)
+				{
+					monitorSession = connection.createSession(false,
+							Session.AUTO_ACKNOWLEDGE);
+					monitorTracking = SessionTracker.track(this,
+							monitorSession);
+				}
+
+				session = monitorSession;
+			}
+
+			/*
+			 * Browsing may take a while, so don't hold the lock. (close waits
+			 * for this task to finish before closing the monitor session.)
+			 */
+			int backlog = getBacklog(session);
+
+			synchronized (this)
+			{
+				if (!started)
+				{
+					return;
+				}
+
+				int count = consumers.size();
+				int busy = inFlight.get();
+
+				if (backlog > 0 && busy >= count && count < maxConsumers)
+				{
+					addConsumer();
+				}
+				else if (backlog == 0 && busy < count && count > minConsumers)
+				{
+					removed = consumers.remove(count - 1);
+				}
+			}
+
+			if (removed != null)
+			{
+				removed.close();
+			}
+		}
+		catch (JMSException e)
+		{
+			log.warn("Unable to scale consumers for " + destination, e);
+		}
+		catch (RuntimeException e)
+		{
+			log.warn("Unable to scale consumers for " + destination, e);
+		}
+	}
+
+	/*
+	 * Must be called holding the lock on "this".
+	 */
+	private void addConsumer() throws JMSException
+	{
+		PooledConsumer consumer = new PooledConsumer(nextConsumerId++);
+		consumer.start();
+		consumers.add(consumer);
+	}
+
+	private void closeMonitorSession() throws JMSException
+	{
+		Session session;
+		SessionTracker.Handle tracking;
+
+		synchronized (this)
+		{
+			session = monitorSession;
+			tracking = monitorTracking;
+			monitorSession = null;
+			monitorTracking = null;
+		}
+
+		if (session != null)
+		{
+			tracking.release();
+			session.close();
+		}
+	}
+
+	private void closeQuietly()
+	{
+		try
+		{
+			close();
+		}
+		catch (JMSException e)
+		{
+			log.info("Exception eaten during close", e);
+		}
+	}
+
+	private static void awaitTermination(ScheduledExecutorService executor)
+	{
+		try
+		{
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Point-in-time metrics for a single consumer in the pool.
+	 */
+	public static final class ConsumerMetrics
+	{
+		private final int consumerId;
+
+		private final long startTime;
+
+		private final long snapshotTime;
+
+		private final long messageCount;
+
+		private final long failureCount;
+
+		private final long handlingNanos;
+
+		private ConsumerMetrics(PooledConsumer consumer, long snapshotTime)
+		{
+			this.consumerId = consumer.id;
+			this.startTime = consumer.startTime;
+			this.snapshotTime = snapshotTime;
+			this.messageCount = consumer.messageCount.get();
+			this.failureCount = consumer.failureCount.get();
+			this.handlingNanos = consumer.handlingNanos.get();
+		}
+
+		/**
+		 * @return Identifier of the consumer, unique within the pool.
+		 */
+		public int getConsumerId()
+		{
+			return consumerId;
+		}
+
+		/**
+		 * @return Time (as from <code>System.currentTimeMillis()</code>) at
+		 *         which the consumer was started.
+		 */
+		public long getStartTime()
+		{
+			return startTime;
+		}
+
+		/**
+		 * @return Number of messages processed by the consumer.
+		 */
+		public long getMessageCount()
+		{
+			return messageCount;
+		}
+
+		/**
+		 * @return Number of messages for which <code>handleMessage</code>
+		 *         threw an exception.
+		 */
+		public long getFailureCount()
+		{
+			return failureCount;
+		}
+
+		/**
+		 * @return Mean time (in milliseconds) taken by
+		 *         <code>handleMessage</code>, or zero if no messages have been
+		 *         processed.
+		 */
+		public double getMeanHandlingTime()
+		{
+			return messageCount == 0 ? 0.0 : handlingNanos / 1000000.0
+					/ messageCount;
+		}
+
+		/**
+		 * @return Messages processed per second since the consumer was
+		 *         started.
+		 */
+		public double getThroughput()
+		{
+			long elapsed = Math.max(1L, snapshotTime - startTime);
+			return messageCount * 1000.0 / elapsed;
+		}
+	}
+
+	/*
+	 * A single consumer in the pool. This reuses BaseAsyncMessageReceiver for
+	 * the management of the Session and MessageConsumer, and counts the
+	 * messages it handles.
+	 */
+	private class PooledConsumer extends BaseAsyncMessageReceiver
+	{
+		private final int id;
+
+		private final long startTime = System.currentTimeMillis();
+
+		private final AtomicLong messageCount = new AtomicLong();
+
+		private final AtomicLong failureCount = new AtomicLong();
+
+		private final AtomicLong handlingNanos = new AtomicLong();
+
+		public PooledConsumer(int id)
+		{
+			super(connection, destination, acknowledgeMode);
+			this.id = id;
+		}
+
+		/*
+		 * Stop delivery to this consumer, waiting for any message being
+		 * processed to complete, but leave the Session open.
+		 */
+		public synchronized void stopDelivery() throws JMSException
+		{
+			if (getConsumer() != null)
+			{
+				getConsumer().close();
+			}
+		}
+
+		@Override
+		protected void onStart(Session session) throws JMSException
+		{
+			PooledAsyncMessageReceiver.this.onStart(session);
+		}
+
+		@Override
+		protected void onClose()
+		{
+			PooledAsyncMessageReceiver.this.onClose();
+		}
+
+		@Override
+		protected void handleMessage(Session session, Message message)
+		{
+			inFlight.incrementAndGet();
+			long start = System.nanoTime();
+
+			try
+			{
+				PooledAsyncMessageReceiver.this.handleMessage(session, message);
+			}
+			catch (RuntimeException e)
+			{
+				failureCount.incrementAndGet();
+				throw e;
+			}
+			finally
+			{
+				handlingNanos.addAndGet(System.nanoTime() - start);
+				messageCount.incrementAndGet();
+				PooledAsyncMessageReceiver.this.messageCount.incrementAndGet();
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	private static class ScalerThreadFactory implements ThreadFactory
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "PooledAsyncMessageReceiver-scaler");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
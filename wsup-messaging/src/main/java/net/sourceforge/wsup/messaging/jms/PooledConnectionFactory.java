@@ -0,0 +1,1599 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.QueueBrowser;
+import javax.jms.ResourceAllocationException;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A <code>ConnectionFactory</code> that pools the <code>Connection</code>s,
+ * <code>Session</code>s and <code>MessageProducer</code>s of another
+ * <code>ConnectionFactory</code>, such as a
+ * {@link net.sourceforge.wsup.messaging.activemq.VMMessageBroker}. Code that
+ * opens a connection and session for each use, such as a request-scoped
+ * {@link SimpleMessageSender}, can use it unchanged.
+ * <p>
+ * The <code>Connection</code>s returned share up to
+ * <code>maxConnections</code> physical connections (per user name). Closing
+ * one closes its sessions but leaves the physical connection open. Closing a
+ * <code>Session</code> rolls back any uncommitted transaction, closes the
+ * consumers and browsers created from it, and returns the physical session
+ * to an idle pool for the same acknowledgement mode; a
+ * <code>CLIENT_ACKNOWLEDGE</code> session is recovered first, so that its
+ * unacknowledged messages are redelivered. Each physical session
+ * holds one anonymous <code>MessageProducer</code>, shared by every producer
+ * created from it.
+ * </p>
+ * <p>
+ * At most <code>maxSessionsPerConnection</code> physical sessions, active or
+ * idle, are created on each physical connection; when they are all active,
+ * <code>createSession</code> waits up to <code>sessionWaitTimeout</code> for
+ * one to be returned, then throws <code>ResourceAllocationException</code>.
+ * Idle sessions, and physical connections that are not in use, are closed
+ * once they have been idle for <code>idleTimeout</code>.
+ * </p>
+ * <p>
+ * Health checks: a physical connection whose <code>ExceptionListener</code> is
+ * notified is no longer used, and is closed when it is no longer in use; an
+ * idle session is checked before it is reused; and a session on which an
+ * operation has failed is closed rather than returned to the pool.
+ * </p>
+ * <p>
+ * The pooled <code>Connection</code>s differ from ordinary ones in that
+ * <code>setClientID</code> is not supported, and <code>stop</code> has no
+ * effect, since the physical connection is shared. The configuration
+ * methods should be called before the first connection is created. All the
+ * other methods of this class may be called concurrently.
+ * </p>
+ */
+public class PooledConnectionFactory implements ConnectionFactory,
+		AutoCloseable
+{
+	/**
+	 * Default maximum number of physical connections per user name.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 1;
+
+	/**
+	 * Default maximum number of physical sessions per physical connection.
+	 */
+	public static final int DEFAULT_MAX_SESSIONS = 100;
+
+	/**
+	 * Default time, in milliseconds, after which idle sessions and
+	 * connections are closed.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000L;
+
+	/**
+	 * Default time, in milliseconds, to wait for a session when all are in
+	 * use.
+	 */
+	public static final long DEFAULT_SESSION_WAIT_TIMEOUT = 30000L;
+
+	private static final Logger log = LoggerFactory
+			.getLogger(PooledConnectionFactory.class);
+
+	private final ConnectionFactory target;
+
+	/*
+	 * All the fields below are guarded by "this".
+	 */
+	private final Map<String, List<PhysicalConnection>> connections = new HashMap<String, List<PhysicalConnection>>();
+
+	/*
+	 * Physical connections being created, per key, which count against
+	 * maxConnections.
+	 */
+	private final Map<String, Integer> connecting = new HashMap<String, Integer>();
+
+	private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+	private int maxSessionsPerConnection = DEFAULT_MAX_SESSIONS;
+
+	private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	private long sessionWaitTimeout = DEFAULT_SESSION_WAIT_TIMEOUT;
+
+	private int nextConnection;
+
+	private boolean closed;
+
+	private ScheduledExecutorService evictor;
+
+	private long connectionsCreated;
+
+	private long sessionsCreated;
+
+	private long sessionsBorrowed;
+
+	private long sessionsReused;
+
+	private long sessionsEvicted;
+
+	private long failures;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param target
+	 *            <code>ConnectionFactory</code> that creates the physical
+	 *            connections.
+	 */
+	public PooledConnectionFactory(ConnectionFactory target)
+	{
+		if (target == null)
+		{
+			throw new IllegalArgumentException("target must not be null");
+		}
+
+		this.target = target;
+	}
+
+	/**
+	 * Set the maximum number of physical connections per user name.
+	 * 
+	 * @param maxConnections
+	 *            Maximum number of connections. Must be at least 1.
+	 */
+	public synchronized void setMaxConnections(int maxConnections)
+	{
+		if (maxConnections < 1)
+		{
+			throw new IllegalArgumentException("maxConnections must be greater than 0");
+		}
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @return Maximum number of physical connections per user name.
+	 */
+	public synchronized int getMaxConnections()
+	{
+		return maxConnections;
+	}
+
+	/**
+	 * Set the maximum number of physical sessions, active or idle, per
+	 * physical connection.
+	 * 
+	 * @param maxSessionsPerConnection
+	 *            Maximum number of sessions. Must be at least 1.
+	 */
+	public synchronized void setMaxSessionsPerConnection(
+			int maxSessionsPerConnection)
+	{
+		if (maxSessionsPerConnection < 1)
+		{
+			throw new IllegalArgumentException("maxSessionsPerConnection must be greater than 0");
+		}
+		this.maxSessionsPerConnection = maxSessionsPerConnection;
+	}
+
+	/**
+	 * @return Maximum number of physical sessions per physical connection.
+	 */
+	public synchronized int getMaxSessionsPerConnection()
+	{
+		return maxSessionsPerConnection;
+	}
+
+	/**
+	 * Set the time after which idle sessions, and physical connections that
+	 * are not in use, are closed. Idle objects are checked every half of this
+	 * time.
+	 * 
+	 * @param idleTimeout
+	 *            Timeout in milliseconds. Zero means never to close idle
+	 *            objects.
+	 */
+	public synchronized void setIdleTimeout(long idleTimeout)
+	{
+		if (idleTimeout < 0)
+		{
+			throw new IllegalArgumentException("idleTimeout must not be negative");
+		}
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return Time in milliseconds after which idle objects are closed.
+	 */
+	public synchronized long getIdleTimeout()
+	{
+		return idleTimeout;
+	}
+
+	/**
+	 * Set the time that <code>createSession</code> waits for a session when
+	 * all the sessions of a physical connection are in use.
+	 * 
+	 * @param sessionWaitTimeout
+	 *            Timeout in milliseconds. Zero means not to wait.
+	 */
+	public synchronized void setSessionWaitTimeout(long sessionWaitTimeout)
+	{
+		if (sessionWaitTimeout < 0)
+		{
+			throw new IllegalArgumentException("sessionWaitTimeout must not be negative");
+		}
+		this.sessionWaitTimeout = sessionWaitTimeout;
+	}
+
+	/**
+	 * @return Time in milliseconds to wait for a session.
+	 */
+	public synchronized long getSessionWaitTimeout()
+	{
+		return sessionWaitTimeout;
+	}
+
+	/**
+	 * Returns a pooled <code>Connection</code> using the default user
+	 * identity.
+	 * 
+	 * @return <code>Connection</code> instance.
+	 * @throws JMSException
+	 *             If a physical connection cannot be created, or this factory
+	 *             has been closed.
+	 */
+	@Override
+	public Connection createConnection() throws JMSException
+	{
+		return createConnection(null, null);
+	}
+
+	/**
+	 * Returns a pooled <code>Connection</code> using the specified user
+	 * identity. Physical connections are only shared by the same identity.
+	 * 
+	 * @param userName
+	 *            The caller's user name.
+	 * @param password
+	 *            The caller's password.
+	 * @return <code>Connection</code> instance.
+	 * @throws JMSException
+	 *             If a physical connection cannot be created, or this factory
+	 *             has been closed.
+	 */
+	@Override
+	public Connection createConnection(String userName, String password)
+			throws JMSException
+	{
+		PhysicalConnection physical = leaseConnection(userName, password);
+		return (Connection) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { Connection.class },
+				new PooledConnection(physical));
+	}
+
+	/**
+	 * Close idle sessions, and physical connections that are not in use, that
+	 * have been idle for longer than the idle timeout. This is called
+	 * periodically, but may also be called directly.
+	 */
+	public void evictIdle()
+	{
+		List<Session> idleSessions = new ArrayList<Session>();
+		List<Connection> idleConnections = new ArrayList<Connection>();
+
+		synchronized (this)
+		{
+			long cutoff = System.currentTimeMillis() - idleTimeout;
+
+			for (List<PhysicalConnection> list : connections.values())
+			{
+				for (Iterator<PhysicalConnection> i = list.iterator(); i
+						.hasNext();)
+				{
+					PhysicalConnection physical = i.next();
+					physical.evictSessions(cutoff, idleSessions);
+
+					if (physical.references == 0 && physical.activeSessions == 0
+							&& (physical.broken || physical.lastUsed <= cutoff))
+					{
+						i.remove();
+						physical.evictSessions(Long.MAX_VALUE, idleSessions);
+						idleConnections.add(physical.connection);
+					}
+				}
+			}
+
+			for (Iterator<List<PhysicalConnection>> i = connections.values()
+					.iterator(); i.hasNext();)
+			{
+				if (i.next().isEmpty())
+				{
+					i.remove();
+				}
+			}
+
+			sessionsEvicted += idleSessions.size();
+		}
+
+		for (Session session : idleSessions)
+		{
+			closeQuietly(session);
+		}
+		for (Connection connection : idleConnections)
+		{
+			closeQuietly(connection);
+		}
+	}
+
+	/**
+	 * Close every physical connection, whether or not it is in use, and stop
+	 * evicting idle objects. Connections cannot be created afterwards.
+	 * Calling this method more than once is benign.
+	 */
+	@Override
+	public void close()
+	{
+		List<Connection> closing = new ArrayList<Connection>();
+		ScheduledExecutorService stopping;
+
+		synchronized (this)
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+
+			for (List<PhysicalConnection> list : connections.values())
+			{
+				for (PhysicalConnection physical : list)
+				{
+					physical.broken = true;
+					closing.add(physical.connection);
+				}
+			}
+			connections.clear();
+
+			stopping = evictor;
+			evictor = null;
+			notifyAll();
+		}
+
+		if (stopping != null)
+		{
+			stopping.shutdownNow();
+		}
+		for (Connection connection : closing)
+		{
+			closeQuietly(connection);
+		}
+	}
+
+	/**
+	 * Returns the current state and cumulative activity of the pool.
+	 * 
+	 * @return {@link Statistics} instance.
+	 */
+	public synchronized Statistics getStatistics()
+	{
+		int connectionCount = 0;
+		int activeSessions = 0;
+		int idleSessions = 0;
+
+		for (List<PhysicalConnection> list : connections.values())
+		{
+			for (PhysicalConnection physical : list)
+			{
+				connectionCount++;
+				activeSessions += physical.activeSessions;
+				idleSessions += physical.idleSessions;
+			}
+		}
+
+		return new Statistics(connectionCount, activeSessions, idleSessions,
+				connectionsCreated, sessionsCreated, sessionsBorrowed,
+				sessionsReused, sessionsEvicted, failures);
+	}
+
+	private PhysicalConnection leaseConnection(String userName,
+			String password) throws JMSException
+	{
+		String key = userName == null ? "" : userName + '\u0000' + password;
+		List<Connection> broken = new ArrayList<Connection>();
+
+		try
+		{
+			PhysicalConnection physical = reuseConnection(key, broken);
+			if (physical != null)
+			{
+				return physical;
+			}
+		}
+		finally
+		{
+			for (Connection connection : broken)
+			{
+				closeQuietly(connection);
+			}
+		}
+
+		// a slot has been reserved for the new connection
+		PhysicalConnection physical = null;
+		try
+		{
+			physical = openConnection(userName, password);
+		}
+		finally
+		{
+			physical = connected(key, physical);
+		}
+		return physical;
+	}
+
+	private PhysicalConnection openConnection(String userName,
+			String password) throws JMSException
+	{
+		Connection connection = userName == null ? target.createConnection()
+				: target.createConnection(userName, password);
+		PhysicalConnection physical = new PhysicalConnection(connection);
+
+		try
+		{
+			connection.setExceptionListener(physical);
+		}
+		catch (JMSException e)
+		{
+			closeQuietly(connection);
+			throw e;
+		}
+
+		return physical;
+	}
+
+	/*
+	 * Release the slot reserved for a new connection, and add the connection
+	 * (if it was created) to the pool.
+	 */
+	private synchronized PhysicalConnection connected(String key,
+			PhysicalConnection physical) throws JMSException
+	{
+		int pending = connecting(key) - 1;
+		if (pending > 0)
+		{
+			connecting.put(key, Integer.valueOf(pending));
+		}
+		else
+		{
+			connecting.remove(key);
+		}
+		notifyAll();
+
+		if (physical == null)
+		{
+			return null;
+		}
+		if (closed)
+		{
+			closeQuietly(physical.connection);
+			checkOpen();
+		}
+
+		List<PhysicalConnection> list = connections.get(key);
+		if (list == null)
+		{
+			list = new ArrayList<PhysicalConnection>();
+			connections.put(key, list);
+		}
+		list.add(physical);
+		connectionsCreated++;
+		physical.references++;
+		return physical;
+	}
+
+	/*
+	 * Return an existing physical connection if there are already as many as
+	 * allowed (counting those being created), otherwise reserve a slot for a
+	 * new one and return null. Waits if the only connections are still being
+	 * created. Moves broken connections no longer in use to the list, to be
+	 * closed.
+	 */
+	private synchronized PhysicalConnection reuseConnection(String key,
+			List<Connection> broken) throws JMSException
+	{
+		for (;;)
+		{
+			checkOpen();
+			startEvictor();
+
+			PhysicalConnection physical = reuseHealthy(key, broken);
+			if (physical != null)
+			{
+				return physical;
+			}
+
+			int pending = connecting(key);
+			if (pending == 0
+					|| connections.get(key).size() + pending < maxConnections)
+			{
+				connecting.put(key, Integer.valueOf(pending + 1));
+				return null;
+			}
+
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new ResourceAllocationException(
+						"Interrupted waiting for a connection");
+			}
+		}
+	}
+
+	private int connecting(String key)
+	{
+		Integer pending = connecting.get(key);
+		return pending == null ? 0 : pending.intValue();
+	}
+
+	private PhysicalConnection reuseHealthy(String key,
+			List<Connection> broken)
+	{
+		List<PhysicalConnection> list = connections.get(key);
+		if (list == null)
+		{
+			list = new ArrayList<PhysicalConnection>();
+			connections.put(key, list);
+		}
+
+		for (Iterator<PhysicalConnection> i = list.iterator(); i.hasNext();)
+		{
+			PhysicalConnection physical = i.next();
+			if (physical.broken && physical.references == 0
+					&& physical.activeSessions == 0)
+			{
+				i.remove();
+				broken.add(physical.connection);
+			}
+		}
+
+		if (list.size() + connecting(key) >= maxConnections)
+		{
+			List<PhysicalConnection> healthy = new ArrayList<PhysicalConnection>();
+			for (PhysicalConnection physical : list)
+			{
+				if (!physical.broken)
+				{
+					healthy.add(physical);
+				}
+			}
+
+			if (!healthy.isEmpty())
+			{
+				PhysicalConnection physical = healthy
+						.get((nextConnection++ & Integer.MAX_VALUE)
+								% healthy.size());
+				physical.references++;
+				return physical;
+			}
+		}
+
+		return null;
+	}
+
+	private void checkOpen() throws IllegalStateException
+	{
+		if (closed)
+		{
+			throw new IllegalStateException("Connection factory is closed");
+		}
+	}
+
+	private void startEvictor()
+	{
+		if (evictor != null || idleTimeout == 0)
+		{
+			return;
+		}
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "wsup-connection-pool-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		long interval = Math.max(idleTimeout / 2, 1);
+		evictor.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					evictIdle();
+				}
+				catch (RuntimeException e)
+				{
+					log.error("Exception evicting idle objects", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	private static void closeQuietly(Session session)
+	{
+		try
+		{
+			session.close();
+		}
+		catch (JMSException e)
+		{
+			log.info("Exception eaten closing Session", e);
+		}
+	}
+
+	private static void closeQuietly(Connection connection)
+	{
+		try
+		{
+			connection.close();
+		}
+		catch (JMSException e)
+		{
+			log.info("Exception eaten closing Connection", e);
+		}
+	}
+
+	private static Object delegate(Object target, Method method, Object[] args)
+			throws Throwable
+	{
+		try
+		{
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	/*
+	 * Proxy methods that every InvocationHandler here implements the same
+	 * way: identity equality, and a descriptive toString.
+	 */
+	private static Object objectMethod(Object proxy, Method method,
+			Object[] args, Object target)
+	{
+		String name = method.getName();
+		if (name.equals("equals") && method.getParameterTypes().length == 1)
+		{
+			return Boolean.valueOf(proxy == args[0]);
+		}
+		if (name.equals("hashCode") && method.getParameterTypes().length == 0)
+		{
+			return Integer.valueOf(System.identityHashCode(proxy));
+		}
+		if (name.equals("toString") && method.getParameterTypes().length == 0)
+		{
+			return "Pooled " + target;
+		}
+		return null;
+	}
+
+	/**
+	 * Point-in-time statistics for a {@link PooledConnectionFactory}.
+	 */
+	public static final class Statistics
+	{
+		private final int connectionCount;
+
+		private final int activeSessions;
+
+		private final int idleSessions;
+
+		private final long connectionsCreated;
+
+		private final long sessionsCreated;
+
+		private final long sessionsBorrowed;
+
+		private final long sessionsReused;
+
+		private final long sessionsEvicted;
+
+		private final long failures;
+
+		private Statistics(int connectionCount, int activeSessions,
+				int idleSessions, long connectionsCreated,
+				long sessionsCreated, long sessionsBorrowed,
+				long sessionsReused, long sessionsEvicted, long failures)
+		{
+			this.connectionCount = connectionCount;
+			this.activeSessions = activeSessions;
+			this.idleSessions = idleSessions;
+			this.connectionsCreated = connectionsCreated;
+			this.sessionsCreated = sessionsCreated;
+			this.sessionsBorrowed = sessionsBorrowed;
+			this.sessionsReused = sessionsReused;
+			this.sessionsEvicted = sessionsEvicted;
+			this.failures = failures;
+		}
+
+		/**
+		 * @return Number of open physical connections.
+		 */
+		public int getConnectionCount()
+		{
+			return connectionCount;
+		}
+
+		/**
+		 * @return Number of physical sessions currently in use.
+		 */
+		public int getActiveSessions()
+		{
+			return activeSessions;
+		}
+
+		/**
+		 * @return Number of physical sessions idle in the pool.
+		 */
+		public int getIdleSessions()
+		{
+			return idleSessions;
+		}
+
+		/**
+		 * @return Number of physical connections created.
+		 */
+		public long getConnectionsCreated()
+		{
+			return connectionsCreated;
+		}
+
+		/**
+		 * @return Number of physical sessions created.
+		 */
+		public long getSessionsCreated()
+		{
+			return sessionsCreated;
+		}
+
+		/**
+		 * @return Number of calls to <code>createSession</code> that
+		 *         succeeded.
+		 */
+		public long getSessionsBorrowed()
+		{
+			return sessionsBorrowed;
+		}
+
+		/**
+		 * @return Number of calls to <code>createSession</code> satisfied by
+		 *         an idle session.
+		 */
+		public long getSessionsReused()
+		{
+			return sessionsReused;
+		}
+
+		/**
+		 * @return Number of idle sessions closed by eviction.
+		 */
+		public long getSessionsEvicted()
+		{
+			return sessionsEvicted;
+		}
+
+		/**
+		 * @return Number of physical connections and sessions discarded
+		 *         because they failed a health check, or could not otherwise
+		 *         be reused.
+		 */
+		public long getFailures()
+		{
+			return failures;
+		}
+
+		/**
+		 * @return Fraction of borrowed sessions satisfied by an idle session,
+		 *         or zero if none have been borrowed.
+		 */
+		public double getReuseRatio()
+		{
+			return sessionsBorrowed == 0 ? 0.0 : (double) sessionsReused
+					/ sessionsBorrowed;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "connections=" + connectionCount + ", activeSessions="
+					+ activeSessions + ", idleSessions=" + idleSessions
+					+ ", connectionsCreated=" + connectionsCreated
+					+ ", sessionsCreated=" + sessionsCreated
+					+ ", sessionsBorrowed=" + sessionsBorrowed
+					+ ", sessionsReused=" + sessionsReused
+					+ ", sessionsEvicted=" + sessionsEvicted + ", failures="
+					+ failures;
+		}
+	}
+
+	/*
+	 * A physical connection and its idle sessions. Except where noted, the
+	 * fields are guarded by the factory.
+	 */
+	private final class PhysicalConnection implements ExceptionListener
+	{
+		private final Connection connection;
+
+		private final Map<Integer, Deque<PhysicalSession>> idle = new HashMap<Integer, Deque<PhysicalSession>>();
+
+		private final List<ExceptionListener> listeners = new CopyOnWriteArrayList<ExceptionListener>();
+
+		private volatile boolean broken;
+
+		private boolean started;
+
+		private int references;
+
+		private int activeSessions;
+
+		private int idleSessions;
+
+		private long lastUsed = System.currentTimeMillis();
+
+		public PhysicalConnection(Connection connection)
+		{
+			this.connection = connection;
+		}
+
+		/*
+		 * Not guarded; called by the JMS provider.
+		 */
+		@Override
+		public void onException(JMSException exception)
+		{
+			log.warn("Pooled connection failed; it will not be reused",
+					exception);
+
+			synchronized (PooledConnectionFactory.this)
+			{
+				if (!broken)
+				{
+					broken = true;
+					failures++;
+				}
+			}
+
+			for (ExceptionListener listener : listeners)
+			{
+				listener.onException(exception);
+			}
+		}
+
+		public synchronized void start() throws JMSException
+		{
+			if (!started)
+			{
+				connection.start();
+				started = true;
+			}
+		}
+
+		public void release()
+		{
+			synchronized (PooledConnectionFactory.this)
+			{
+				references--;
+				lastUsed = System.currentTimeMillis();
+			}
+		}
+
+		public PhysicalSession borrowSession(boolean transacted,
+				int acknowledgeMode) throws JMSException
+		{
+			Integer key = Integer.valueOf(transacted ? Session.SESSION_TRANSACTED
+					: acknowledgeMode);
+
+			synchronized (PooledConnectionFactory.this)
+			{
+				long deadline = System.currentTimeMillis() + sessionWaitTimeout;
+
+				for (;;)
+				{
+					checkOpen();
+					if (broken)
+					{
+						throw new IllegalStateException(
+								"Pooled connection has failed");
+					}
+
+					Deque<PhysicalSession> sessions = idle.get(key);
+					PhysicalSession session = sessions == null ? null
+							: sessions.pollFirst();
+
+					if (session != null)
+					{
+						idleSessions--;
+						if (session.isHealthy())
+						{
+							activeSessions++;
+							sessionsBorrowed++;
+							sessionsReused++;
+							return session;
+						}
+
+						failures++;
+						closeQuietly(session.session);
+						continue;
+					}
+
+					if (activeSessions + idleSessions < maxSessionsPerConnection)
+					{
+						activeSessions++;
+						break;
+					}
+
+					if (idleSessions > 0)
+					{
+						// make room by closing an idle session of another mode
+						evictOneIdle();
+						continue;
+					}
+
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+					{
+						throw new ResourceAllocationException("All "
+								+ maxSessionsPerConnection
+								+ " sessions of the pooled connection are in use");
+					}
+
+					try
+					{
+						PooledConnectionFactory.this.wait(remaining);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new ResourceAllocationException(
+								"Interrupted waiting for a session");
+					}
+				}
+			}
+
+			PhysicalSession session = null;
+			try
+			{
+				Session created = connection.createSession(transacted,
+						acknowledgeMode);
+				session = new PhysicalSession(key, created);
+				return session;
+			}
+			finally
+			{
+				synchronized (PooledConnectionFactory.this)
+				{
+					if (session == null)
+					{
+						activeSessions--;
+						PooledConnectionFactory.this.notifyAll();
+					}
+					else
+					{
+						sessionsCreated++;
+						sessionsBorrowed++;
+					}
+				}
+			}
+		}
+
+		public void returnSession(PhysicalSession session)
+		{
+			boolean healthy = session.healthy;
+
+			if (healthy && session.key.intValue() == Session.SESSION_TRANSACTED)
+			{
+				try
+				{
+					session.session.rollback();
+				}
+				catch (JMSException e)
+				{
+					healthy = false;
+				}
+			}
+			else if (healthy
+					&& session.key.intValue() == Session.CLIENT_ACKNOWLEDGE)
+			{
+				// redeliver what the last user left unacknowledged
+				try
+				{
+					session.session.recover();
+				}
+				catch (JMSException e)
+				{
+					healthy = false;
+				}
+			}
+
+			synchronized (PooledConnectionFactory.this)
+			{
+				activeSessions--;
+				PooledConnectionFactory.this.notifyAll();
+
+				if (healthy && !broken && !closed)
+				{
+					Deque<PhysicalSession> sessions = idle.get(session.key);
+					if (sessions == null)
+					{
+						sessions = new ArrayDeque<PhysicalSession>();
+						idle.put(session.key, sessions);
+					}
+					session.lastUsed = System.currentTimeMillis();
+					sessions.addFirst(session);
+					idleSessions++;
+					return;
+				}
+
+				if (!session.healthy)
+				{
+					failures++;
+				}
+			}
+
+			closeQuietly(session.session);
+		}
+
+		/*
+		 * Move idle sessions last used at or before the cutoff to the list.
+		 */
+		public void evictSessions(long cutoff, List<Session> evicted)
+		{
+			for (Deque<PhysicalSession> sessions : idle.values())
+			{
+				// the least recently used sessions are at the end
+				while (!sessions.isEmpty() && sessions.peekLast().lastUsed <= cutoff)
+				{
+					evicted.add(sessions.pollLast().session);
+					idleSessions--;
+				}
+			}
+		}
+
+		private void evictOneIdle()
+		{
+			for (Deque<PhysicalSession> sessions : idle.values())
+			{
+				if (!sessions.isEmpty())
+				{
+					closeQuietly(sessions.pollLast().session);
+					idleSessions--;
+					sessionsEvicted++;
+					return;
+				}
+			}
+		}
+	}
+
+	/*
+	 * A physical session and its anonymous producer.
+	 */
+	private static final class PhysicalSession
+	{
+		private final Integer key;
+
+		private final Session session;
+
+		private MessageProducer producer;
+
+		private volatile boolean healthy = true;
+
+		private long lastUsed;
+
+		public PhysicalSession(Integer key, Session session)
+		{
+			this.key = key;
+			this.session = session;
+		}
+
+		public MessageProducer getProducer() throws JMSException
+		{
+			if (producer == null)
+			{
+				producer = session.createProducer(null);
+			}
+			return producer;
+		}
+
+		public boolean isHealthy()
+		{
+			try
+			{
+				session.getTransacted();
+				return true;
+			}
+			catch (JMSException e)
+			{
+				return false;
+			}
+			catch (RuntimeException e)
+			{
+				return false;
+			}
+		}
+	}
+
+	/*
+	 * The Connection handed to the application.
+	 */
+	private final class PooledConnection implements InvocationHandler
+	{
+		private final PhysicalConnection physical;
+
+		private final List<PooledSession> sessions = new ArrayList<PooledSession>();
+
+		private ExceptionListener exceptionListener;
+
+		private boolean closed;
+
+		public PooledConnection(PhysicalConnection physical)
+		{
+			this.physical = physical;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable
+		{
+			Object result = objectMethod(proxy, method, args,
+					physical.connection);
+			if (result != null)
+			{
+				return result;
+			}
+
+			String name = method.getName();
+			if (name.equals("close"))
+			{
+				close();
+				return null;
+			}
+
+			synchronized (this)
+			{
+				if (closed)
+				{
+					throw new IllegalStateException("Connection is closed");
+				}
+			}
+
+			if (name.equals("createSession"))
+			{
+				return createSession(((Boolean) args[0]).booleanValue(),
+						((Integer) args[1]).intValue());
+			}
+			if (name.equals("start"))
+			{
+				physical.start();
+				return null;
+			}
+			if (name.equals("stop"))
+			{
+				return null;
+			}
+			if (name.equals("setClientID"))
+			{
+				throw new IllegalStateException(
+						"The client ID of a pooled connection cannot be set");
+			}
+			if (name.equals("setExceptionListener"))
+			{
+				setExceptionListener((ExceptionListener) args[0]);
+				return null;
+			}
+			if (name.equals("getExceptionListener"))
+			{
+				synchronized (this)
+				{
+					return exceptionListener;
+				}
+			}
+
+			return delegate(physical.connection, method, args);
+		}
+
+		private Session createSession(boolean transacted, int acknowledgeMode)
+				throws JMSException
+		{
+			PooledSession pooled = new PooledSession(this, physical
+					.borrowSession(transacted, acknowledgeMode));
+
+			synchronized (this)
+			{
+				if (closed)
+				{
+					pooled.close();
+					throw new IllegalStateException("Connection is closed");
+				}
+				sessions.add(pooled);
+			}
+
+			return (Session) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { Session.class },
+					pooled);
+		}
+
+		private synchronized void setExceptionListener(
+				ExceptionListener listener)
+		{
+			if (exceptionListener != null)
+			{
+				physical.listeners.remove(exceptionListener);
+			}
+			exceptionListener = listener;
+			if (listener != null)
+			{
+				physical.listeners.add(listener);
+			}
+		}
+
+		private void close()
+		{
+			List<PooledSession> closing;
+
+			synchronized (this)
+			{
+				if (closed)
+				{
+					return;
+				}
+				closed = true;
+				closing = new ArrayList<PooledSession>(sessions);
+				sessions.clear();
+			}
+
+			setExceptionListener(null);
+			for (PooledSession session : closing)
+			{
+				session.close();
+			}
+			physical.release();
+		}
+
+		private synchronized void removed(PooledSession session)
+		{
+			sessions.remove(session);
+		}
+	}
+
+	/*
+	 * The Session handed to the application.
+	 */
+	private final class PooledSession implements InvocationHandler
+	{
+		private final PooledConnection connection;
+
+		private final PhysicalSession physical;
+
+		private final List<Object> consumers = new ArrayList<Object>();
+
+		private boolean closed;
+
+		public PooledSession(PooledConnection connection,
+				PhysicalSession physical)
+		{
+			this.connection = connection;
+			this.physical = physical;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable
+		{
+			Object result = objectMethod(proxy, method, args,
+					physical.session);
+			if (result != null)
+			{
+				return result;
+			}
+
+			String name = method.getName();
+			if (name.equals("close"))
+			{
+				close();
+				connection.removed(this);
+				return null;
+			}
+
+			synchronized (this)
+			{
+				if (closed)
+				{
+					throw new IllegalStateException("Session is closed");
+				}
+			}
+
+			if (name.equals("createProducer"))
+			{
+				physical.getProducer();
+				return Proxy.newProxyInstance(getClass().getClassLoader(),
+						new Class<?>[] { MessageProducer.class },
+						new PooledProducer(this, (Destination) args[0]));
+			}
+
+			try
+			{
+				result = delegate(physical.session, method, args);
+			}
+			catch (JMSException e)
+			{
+				physical.healthy = false;
+				throw e;
+			}
+
+			if (name.equals("setMessageListener"))
+			{
+				// a session with a listener cannot be reused
+				physical.healthy = false;
+			}
+			else if (result instanceof MessageConsumer
+					|| result instanceof QueueBrowser)
+			{
+				synchronized (this)
+				{
+					consumers.add(result);
+				}
+			}
+			return result;
+		}
+
+		private void close()
+		{
+			List<Object> closing;
+
+			synchronized (this)
+			{
+				if (closed)
+				{
+					return;
+				}
+				closed = true;
+				closing = new ArrayList<Object>(consumers);
+				consumers.clear();
+			}
+
+			try
+			{
+				for (Object consumer : closing)
+				{
+					if (consumer instanceof MessageConsumer)
+					{
+						((MessageConsumer) consumer).close();
+					}
+					else
+					{
+						((QueueBrowser) consumer).close();
+					}
+				}
+			}
+			catch (JMSException e)
+			{
+				physical.healthy = false;
+			}
+
+			connection.physical.returnSession(physical);
+		}
+
+		private synchronized void checkOpen() throws IllegalStateException
+		{
+			if (closed)
+			{
+				throw new IllegalStateException("Session is closed");
+			}
+		}
+	}
+
+	/*
+	 * A MessageProducer handed to the application: a destination and
+	 * settings, applied to each send through the session's anonymous
+	 * producer.
+	 */
+	private static final class PooledProducer implements InvocationHandler
+	{
+		private final PooledSession session;
+
+		private final Destination destination;
+
+		private int deliveryMode = DeliveryMode.PERSISTENT;
+
+		private int priority = Message.DEFAULT_PRIORITY;
+
+		private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+
+		private boolean disableMessageID;
+
+		private boolean disableMessageTimestamp;
+
+		private boolean closed;
+
+		public PooledProducer(PooledSession session, Destination destination)
+		{
+			this.session = session;
+			this.destination = destination;
+		}
+
+		@Override
+		public synchronized Object invoke(Object proxy, Method method,
+				Object[] args) throws Throwable
+		{
+			Object result = objectMethod(proxy, method, args, "producer for "
+					+ destination);
+			if (result != null)
+			{
+				return result;
+			}
+
+			String name = method.getName();
+			if (name.equals("close"))
+			{
+				closed = true;
+				return null;
+			}
+			if (closed)
+			{
+				throw new IllegalStateException("Producer is closed");
+			}
+			session.checkOpen();
+
+			if (name.equals("send"))
+			{
+				send(method, args);
+				return null;
+			}
+			if (name.equals("getDestination"))
+			{
+				return destination;
+			}
+			if (name.equals("setDeliveryMode"))
+			{
+				deliveryMode = ((Integer) args[0]).intValue();
+				return null;
+			}
+			if (name.equals("getDeliveryMode"))
+			{
+				return Integer.valueOf(deliveryMode);
+			}
+			if (name.equals("setPriority"))
+			{
+				priority = ((Integer) args[0]).intValue();
+				return null;
+			}
+			if (name.equals("getPriority"))
+			{
+				return Integer.valueOf(priority);
+			}
+			if (name.equals("setTimeToLive"))
+			{
+				timeToLive = ((Long) args[0]).longValue();
+				return null;
+			}
+			if (name.equals("getTimeToLive"))
+			{
+				return Long.valueOf(timeToLive);
+			}
+			if (name.equals("setDisableMessageID"))
+			{
+				disableMessageID = ((Boolean) args[0]).booleanValue();
+				return null;
+			}
+			if (name.equals("getDisableMessageID"))
+			{
+				return Boolean.valueOf(disableMessageID);
+			}
+			if (name.equals("setDisableMessageTimestamp"))
+			{
+				disableMessageTimestamp = ((Boolean) args[0]).booleanValue();
+				return null;
+			}
+			if (name.equals("getDisableMessageTimestamp"))
+			{
+				return Boolean.valueOf(disableMessageTimestamp);
+			}
+
+			throw new IllegalStateException(name
+					+ " is not supported by a pooled producer");
+		}
+
+		private void send(Method method, Object[] args) throws JMSException
+		{
+			Destination sendTo = destination;
+			int index = 0;
+
+			if (method.getParameterTypes()[0] == Destination.class)
+			{
+				if (destination != null)
+				{
+					throw new UnsupportedOperationException(
+							"Producer has a destination");
+				}
+				sendTo = (Destination) args[0];
+				index = 1;
+			}
+			else if (destination == null)
+			{
+				throw new UnsupportedOperationException(
+						"Producer has no destination");
+			}
+
+			Message message = (Message) args[index];
+			int mode = deliveryMode;
+			int prio = priority;
+			long ttl = timeToLive;
+			if (args.length > index + 1)
+			{
+				mode = ((Integer) args[index + 1]).intValue();
+				prio = ((Integer) args[index + 2]).intValue();
+				ttl = ((Long) args[index + 3]).longValue();
+			}
+
+			try
+			{
+				MessageProducer producer = session.physical.getProducer();
+				producer.setDisableMessageID(disableMessageID);
+				producer.setDisableMessageTimestamp(disableMessageTimestamp);
+				producer.send(sendTo, message, mode, prio, ttl);
+			}
+			catch (JMSException e)
+			{
+				session.physical.healthy = false;
+				throw e;
+			}
+		}
+	}
+}
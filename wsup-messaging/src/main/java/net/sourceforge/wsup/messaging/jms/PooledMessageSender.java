@@ -0,0 +1,699 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.sourceforge.wsup.messaging.jms;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread-safe class for sending messages to a single destination from many
+ * threads at once.
+ * <p>
+ * Where {@link SimpleMessageSender} has a single {@link Session} and
+ * {@link MessageProducer}, and so serializes all the threads sending through
+ * it, this class keeps a pool of up to <code>maxSessions</code>
+ * <code>Session</code>/<code>MessageProducer</code> pairs on the same
+ * <code>Connection</code>. Each send leases a pair for its exclusive use,
+ * creating one if none is idle and the limit has not been reached, and
+ * waiting for one to be returned otherwise. Pairs are reused most recently
+ * returned first, and a pair whose send fails is discarded rather than
+ * returned to the pool.
+ * </p>
+ * <p>
+ * Messages can also be sent asynchronously, in which case the send is
+ * performed by an <code>ExecutorService</code> and the result reported to a
+ * {@link SendCallback}. The <code>ExecutorService</code> can be supplied by
+ * the application; otherwise, one with <code>maxSessions</code> threads is
+ * created when the sender is started, and shut down when it is closed.
+ * </p>
+ * <p>
+ * All the methods of this class may be called concurrently.
+ * </p>
+ */
+public class PooledMessageSender implements AutoCloseable
+{
+	private static final Logger log = LoggerFactory
+			.getLogger(PooledMessageSender.class);
+
+	private final Connection connection;
+
+	private final Destination destination;
+
+	private final int maxSessions;
+
+	private final ExecutorService suppliedExecutor;
+
+	private final BlockingDeque<Producer> idle = new LinkedBlockingDeque<Producer>();
+
+	private final AtomicInteger sessionCount = new AtomicInteger();
+
+	private volatile boolean started;
+
+	private volatile PayloadCodecs payloadCodecs;
+
+	private volatile MessageCompression compression;
+
+	/*
+	 * Guarded by "this".
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * Constructs a PooledMessageSender that creates its own
+	 * <code>ExecutorService</code> for asynchronous sends.
+	 * 
+	 * @param connection
+	 *            <code>Connection</code> to use.
+	 * @param destination
+	 *            <code>Destination</code> to use.
+	 * @param maxSessions
+	 *            Maximum number of <code>Session</code>s. Must be at least 1.
+	 */
+	public PooledMessageSender(Connection connection, Destination destination,
+			int maxSessions)
+	{
+		this(connection, destination, maxSessions, null);
+	}
+
+	/**
+	 * Constructs a PooledMessageSender.
+	 * 
+	 * @param connection
+	 *            <code>Connection</code> to use.
+	 * @param destination
+	 *            <code>Destination</code> to use.
+	 * @param maxSessions
+	 *            Maximum number of <code>Session</code>s. Must be at least 1.
+	 * @param executor
+	 *            <code>ExecutorService</code> on which asynchronous sends are
+	 *            performed, or <code>null</code> to create one. A supplied
+	 *            executor is not shut down by {@link #close()}.
+	 */
+	public PooledMessageSender(Connection connection, Destination destination,
+			int maxSessions, ExecutorService executor)
+	{
+		if (maxSessions < 1)
+		{
+			throw new IllegalArgumentException("maxSessions must be greater than 0");
+		}
+
+		this.connection = connection;
+		this.destination = destination;
+		this.maxSessions = maxSessions;
+		this.suppliedExecutor = executor;
+	}
+
+	/**
+	 * Start the operation of this object. <code>Session</code>s are created as
+	 * they are needed, so this does not itself create any.
+	 * <p>
+	 * Calling this method on an object that has already been started is benign.
+	 * </p>
+	 */
+	public synchronized void start()
+	{
+		if (started)
+		{
+			return;
+		}
+
+		executor = suppliedExecutor != null ? suppliedExecutor : Executors
+				.newFixedThreadPool(maxSessions, new SenderThreadFactory());
+		started = true;
+	}
+
+	/**
+	 * Close down the object, releasing its resources. Asynchronous sends that
+	 * have already been submitted are completed first, if the
+	 * <code>ExecutorService</code> belongs to this object. Sends made after
+	 * this method is called fail with an <code>IllegalStateException</code>.
+	 * <p>
+	 * Calling this method on an object that has not been started or has already
+	 * been closed is benign.
+	 * </p>
+	 */
+	@Override
+	public void close() throws JMSException
+	{
+		ExecutorService stopping;
+
+		synchronized (this)
+		{
+			if (!started)
+			{
+				return;
+			}
+
+			started = false;
+			stopping = executor;
+			executor = null;
+		}
+
+		if (stopping != suppliedExecutor)
+		{
+			stopping.shutdown();
+			try
+			{
+				stopping.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		JMSException failure = null;
+
+		for (Producer producer = idle.pollFirst(); producer != null; producer = idle
+				.pollFirst())
+		{
+			try
+			{
+				discard(producer);
+			}
+			catch (JMSException e)
+			{
+				failure = failure == null ? e : failure;
+			}
+		}
+
+		if (failure != null)
+		{
+			throw failure;
+		}
+	}
+
+	/**
+	 * Indicates whether or not this object has been started.
+	 * 
+	 * @return <code>true</code> after <code>start</code> returns and before
+	 *         <code>close</code> is called.
+	 */
+	public boolean isStarted()
+	{
+		return started;
+	}
+
+	/**
+	 * Returns the maximum number of <code>Session</code>s.
+	 * 
+	 * @return Maximum number of <code>Session</code>s.
+	 */
+	public int getMaxSessions()
+	{
+		return maxSessions;
+	}
+
+	/**
+	 * Returns the number of <code>Session</code>s currently open, whether idle
+	 * or leased.
+	 * 
+	 * @return Number of <code>Session</code>s.
+	 */
+	public int getSessionCount()
+	{
+		return sessionCount.get();
+	}
+
+	/**
+	 * Returns the number of <code>Session</code>s currently idle.
+	 * 
+	 * @return Number of idle <code>Session</code>s.
+	 */
+	public int getIdleCount()
+	{
+		return idle.size();
+	}
+
+	/**
+	 * Create and send a {@link javax.jms.TextMessage} encapsulating the
+	 * provided <code>String</code>.
+	 * 
+	 * @param text
+	 *            <code>String</code> to be sent.
+	 * @throws JMSException
+	 */
+	public void sendTextMessage(String text) throws JMSException
+	{
+		send(textCreator(text), null);
+	}
+
+	/**
+	 * Create and send an {@link javax.jms.ObjectMessage} encapsulating the
+	 * provided <code>Object</code>.
+	 * 
+	 * @param object
+	 *            <code>Serializable</code> object to be sent.
+	 * @throws JMSException
+	 */
+	public void sendObjectMessage(Serializable object) throws JMSException
+	{
+		send(objectCreator(object), null);
+	}
+
+	/**
+	 * Set the compression applied to text and object messages. Large bodies
+	 * are sent in compressed {@link javax.jms.BytesMessage}s.
+	 * 
+	 * @param compression
+	 *            {@link MessageCompression} instance, or <code>null</code> to
+	 *            send messages uncompressed.
+	 */
+	public void setCompression(MessageCompression compression)
+	{
+		this.compression = compression;
+	}
+
+	/**
+	 * Returns the compression applied to text and object messages.
+	 * 
+	 * @return {@link MessageCompression} instance, or <code>null</code> if
+	 *         none has been set.
+	 */
+	public MessageCompression getCompression()
+	{
+		return compression;
+	}
+
+	/**
+	 * Set the codecs used by {@link #sendPayload(Object)}.
+	 * 
+	 * @param payloadCodecs
+	 *            {@link PayloadCodecs} instance. May be <code>null</code>.
+	 */
+	public void setPayloadCodecs(PayloadCodecs payloadCodecs)
+	{
+		this.payloadCodecs = payloadCodecs;
+	}
+
+	/**
+	 * Returns the codecs used by {@link #sendPayload(Object)}.
+	 * 
+	 * @return {@link PayloadCodecs} instance, or <code>null</code> if none has
+	 *         been set.
+	 */
+	public PayloadCodecs getPayloadCodecs()
+	{
+		return payloadCodecs;
+	}
+
+	/**
+	 * Create and send a {@link javax.jms.BytesMessage} containing the provided
+	 * <code>Object</code>, encoded by the codec registered for its class.
+	 * 
+	 * @param payload
+	 *            Object to be sent.
+	 * @throws JMSException
+	 * @throws IllegalStateException
+	 *             If no codecs have been set.
+	 * @see #setPayloadCodecs(PayloadCodecs)
+	 */
+	public void sendPayload(Object payload) throws JMSException
+	{
+		send(payloadCreator(payload), null);
+	}
+
+	/**
+	 * Create a message using a leased <code>Session</code>, apply the
+	 * specified message properties, and send it.
+	 * 
+	 * @param creator
+	 *            <code>MessageCreator</code> that creates the message.
+	 * @param properties
+	 *            <code>Map</code> containing the properties to set on the
+	 *            message. May be <code>null</code>.
+	 * @return The <code>Message</code> that was sent.
+	 * @throws JMSException
+	 */
+	public Message send(MessageCreator creator, Map<String, Object> properties)
+			throws JMSException
+	{
+		Producer producer = lease();
+		boolean healthy = false;
+
+		try
+		{
+			Message message = creator.createMessage(producer.session);
+
+			if (properties != null)
+			{
+				for (Entry<String, Object> property : properties.entrySet())
+				{
+					message.setObjectProperty(property.getKey(), property
+							.getValue());
+				}
+			}
+
+			producer.producer.send(message);
+			healthy = true;
+			return message;
+		}
+		finally
+		{
+			release(producer, healthy);
+		}
+	}
+
+	/**
+	 * Asynchronously create and send a {@link javax.jms.TextMessage}.
+	 * 
+	 * @param text
+	 *            <code>String</code> to be sent.
+	 * @param callback
+	 *            <code>SendCallback</code> to be notified of the outcome. May
+	 *            be <code>null</code>.
+	 * @return <code>Future</code> that completes with the sent message.
+	 * @throws IllegalStateException
+	 *             If the sender is not started.
+	 */
+	public Future<Message> sendTextMessageAsync(String text,
+			SendCallback callback) throws IllegalStateException
+	{
+		return sendAsync(textCreator(text), null, callback);
+	}
+
+	/**
+	 * Asynchronously create and send an {@link javax.jms.ObjectMessage}.
+	 * 
+	 * @param object
+	 *            <code>Serializable</code> object to be sent.
+	 * @param callback
+	 *            <code>SendCallback</code> to be notified of the outcome. May
+	 *            be <code>null</code>.
+	 * @return <code>Future</code> that completes with the sent message.
+	 * @throws IllegalStateException
+	 *             If the sender is not started.
+	 */
+	public Future<Message> sendObjectMessageAsync(Serializable object,
+			SendCallback callback) throws IllegalStateException
+	{
+		return sendAsync(objectCreator(object), null, callback);
+	}
+
+	/**
+	 * Asynchronously create and send a message, as for
+	 * {@link #send(MessageCreator, Map)}.
+	 * 
+	 * @param creator
+	 *            <code>MessageCreator</code> that creates the message. It is
+	 *            called from a thread belonging to the executor.
+	 * @param properties
+	 *            <code>Map</code> containing the properties to set on the
+	 *            message. May be <code>null</code>.
+	 * @param callback
+	 *            <code>SendCallback</code> to be notified of the outcome. May
+	 *            be <code>null</code>.
+	 * @return <code>Future</code> that completes with the sent message.
+	 * @throws IllegalStateException
+	 *             If the sender is not started.
+	 */
+	public Future<Message> sendAsync(final MessageCreator creator,
+			final Map<String, Object> properties, final SendCallback callback)
+			throws IllegalStateException
+	{
+		ExecutorService service;
+
+		synchronized (this)
+		{
+			if (!started)
+			{
+				throw new IllegalStateException("Sender is not started");
+			}
+			service = executor;
+		}
+
+		return service.submit(new Callable<Message>()
+		{
+			@Override
+			public Message call() throws Exception
+			{
+				Message message;
+				try
+				{
+					message = send(creator, properties);
+				}
+				catch (Exception e)
+				{
+					if (callback != null)
+					{
+						callback.onFailure(e);
+					}
+					throw e;
+				}
+
+				if (callback != null)
+				{
+					callback.onSuccess(message);
+				}
+				return message;
+			}
+		});
+	}
+
+	/*
+	 * Lease a producer, creating one if none is idle and the limit has not
+	 * been reached, and waiting for one otherwise.
+	 */
+	private Producer lease() throws JMSException
+	{
+		for (;;)
+		{
+			if (!started)
+			{
+				throw new IllegalStateException("Sender is not started");
+			}
+
+			Producer producer = idle.pollFirst();
+			if (producer != null)
+			{
+				return producer;
+			}
+
+			int count = sessionCount.get();
+			if (count < maxSessions)
+			{
+				if (sessionCount.compareAndSet(count, count + 1))
+				{
+					return create();
+				}
+				continue;
+			}
+
+			try
+			{
+				producer = idle.pollFirst(100L, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted waiting for a Session");
+			}
+
+			if (producer != null)
+			{
+				return producer;
+			}
+		}
+	}
+
+	/*
+	 * Create a producer. The session count has already been incremented.
+	 */
+	private Producer create() throws JMSException
+	{
+		Session session = null;
+		try
+		{
+			session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(destination);
+			return new Producer(session, producer, SessionTracker.track(this,
+					session));
+		}
+		catch (JMSException e)
+		{
+			sessionCount.decrementAndGet();
+			closeQuietly(session);
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			sessionCount.decrementAndGet();
+			closeQuietly(session);
+			throw e;
+		}
+	}
+
+	/*
+	 * Return a producer to the pool, or discard it if its send failed or the
+	 * sender has been closed.
+	 */
+	private void release(Producer producer, boolean healthy)
+	{
+		if (healthy && started)
+		{
+			idle.offerFirst(producer);
+
+			/*
+			 * close may have drained the pool between the check and the
+			 * offer, in which case nothing else will close this one.
+			 */
+			if (started || !idle.remove(producer))
+			{
+				return;
+			}
+		}
+
+		try
+		{
+			discard(producer);
+		}
+		catch (JMSException e)
+		{
+			log.info("Exception eaten discarding Session", e);
+		}
+	}
+
+	private void discard(Producer producer) throws JMSException
+	{
+		sessionCount.decrementAndGet();
+		producer.tracking.release();
+		producer.session.close();
+	}
+
+	private static void closeQuietly(Session session)
+	{
+		if (session != null)
+		{
+			try
+			{
+				session.close();
+			}
+			catch (JMSException e)
+			{
+				log.info("Exception eaten closing Session", e);
+			}
+		}
+	}
+
+	private MessageCreator textCreator(final String text)
+	{
+		final MessageCompression compression = this.compression;
+
+		return new MessageCreator()
+		{
+			@Override
+			public Message createMessage(Session session) throws JMSException
+			{
+				if (compression != null)
+				{
+					return compression.createTextMessage(session, text);
+				}
+				return session.createTextMessage(text);
+			}
+		};
+	}
+
+	private MessageCreator objectCreator(final Serializable object)
+	{
+		final MessageCompression compression = this.compression;
+
+		return new MessageCreator()
+		{
+			@Override
+			public Message createMessage(Session session) throws JMSException
+			{
+				if (compression != null)
+				{
+					return compression.createObjectMessage(session, object);
+				}
+				return session.createObjectMessage(object);
+			}
+		};
+	}
+
+	private MessageCreator payloadCreator(final Object payload)
+			throws JMSException
+	{
+		final PayloadCodecs codecs = payloadCodecs;
+		if (codecs == null)
+		{
+			throw new IllegalStateException("No payload codecs have been set");
+		}
+
+		return new MessageCreator()
+		{
+			@Override
+			public Message createMessage(Session session) throws JMSException
+			{
+				return codecs.createMessage(session, payload);
+			}
+		};
+	}
+
+	/*
+	 * A Session and the MessageProducer created from it.
+	 */
+	private static class Producer
+	{
+		private final Session session;
+
+		private final MessageProducer producer;
+
+		private final SessionTracker.Handle tracking;
+
+		public Producer(Session session, MessageProducer producer,
+				SessionTracker.Handle tracking)
+		{
+			this.session = session;
+			this.producer = producer;
+			this.tracking = tracking;
+		}
+	}
+
+	private static class SenderThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "PooledMessageSender-"
+					+ threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
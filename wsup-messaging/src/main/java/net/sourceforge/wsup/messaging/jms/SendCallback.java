@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import javax.jms.Message;
+
+/**
+ * Interface through which {@link PooledMessageSender} reports the completion
+ * of an asynchronous send. Exactly one of the methods is called for each send,
+ * from a thread belonging to the sender's executor.
+ */
+public interface SendCallback
+{
+	/**
+	 * Called when a message has been sent.
+	 * 
+	 * @param message
+	 *            The <code>Message</code> that was sent.
+	 */
+	public void onSuccess(Message message);
+
+	/**
+	 * Called when a message could not be created or sent.
+	 * 
+	 * @param e
+	 *            The exception that prevented the message being sent.
+	 */
+	public void onFailure(Exception e);
+}
@@ -0,0 +1,274 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the JMS <code>Session</code>s held by the objects in this package, and
+ * closes any whose owner is garbage collected without having closed it.
+ * <p>
+ * This replaces the <code>finalize</code> "safety net" that
+ * {@link CloseOnFinalize} provided. Instead of every sender and receiver being
+ * finalizable, each <code>Session</code> is tracked by a
+ * <code>PhantomReference</code> to its owner from the time it is created
+ * until it is closed, so objects that have not been started, or have been
+ * closed, cost the garbage collector nothing. A daemon thread closes the
+ * sessions of owners that have been collected, and logs a warning for each.
+ * As before, it is not wise to rely on this: there is no telling how long
+ * the JVM will take to collect an object.
+ * </p>
+ * <p>
+ * If leak reporting is enabled, either by
+ * {@link #setLeakReporting(boolean)} or by setting the system property
+ * {@value #LEAK_REPORTING_PROPERTY} to <code>true</code>, the stack trace of
+ * each <code>Session</code>'s creation is captured and included in the
+ * warning. This is useful for finding the code responsible, but makes
+ * creating sessions noticeably more expensive, so it is off by default.
+ * </p>
+ * <p>
+ * The owner must not be reachable from its <code>Session</code>, or it can
+ * never be collected. An object that is receiving messages asynchronously is
+ * reachable from the JMS provider by design, through its
+ * <code>MessageListener</code>, and is in use rather than leaked, so
+ * {@link BaseAsyncMessageReceiver} stops tracking its <code>Session</code>
+ * once the listener is installed. Such an object is not collected until it is
+ * closed, or its <code>Connection</code> is.
+ * </p>
+ */
+public final class SessionTracker
+{
+	/**
+	 * System property that enables leak reporting when set to
+	 * <code>true</code>.
+	 */
+	public static final String LEAK_REPORTING_PROPERTY = "wsup.jms.leakReporting";
+
+	private static final Logger log = LoggerFactory
+			.getLogger(SessionTracker.class);
+
+	private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+	/*
+	 * Holds the references, which must remain reachable to be enqueued.
+	 */
+	private static final Set<TrackedSession> references = Collections
+			.newSetFromMap(new ConcurrentHashMap<TrackedSession, Boolean>());
+
+	private static final AtomicLong leakCount = new AtomicLong();
+
+	private static volatile boolean leakReporting = Boolean
+			.getBoolean(LEAK_REPORTING_PROPERTY);
+
+	/*
+	 * Guarded by SessionTracker.class.
+	 */
+	private static Thread reaper;
+
+	private SessionTracker()
+	{
+	}
+
+	/**
+	 * Start tracking a <code>Session</code>. The owner must call
+	 * {@link Handle#release()} when it closes the <code>Session</code>.
+	 * 
+	 * @param owner
+	 *            Object responsible for closing the <code>Session</code>. The
+	 *            <code>Session</code> must not refer to it, directly or
+	 *            indirectly.
+	 * @param session
+	 *            The <code>Session</code>.
+	 * @return {@link Handle} to be released when the <code>Session</code> is
+	 *         closed.
+	 */
+	public static Handle track(Object owner, Session session)
+	{
+		Throwable allocationSite = null;
+		if (leakReporting)
+		{
+			allocationSite = new Throwable("Session created by "
+					+ owner.getClass().getName() + " on thread "
+					+ Thread.currentThread().getName());
+		}
+
+		TrackedSession reference = new TrackedSession(owner, session,
+				allocationSite);
+		references.add(reference);
+		startReaper();
+		return new Handle(reference);
+	}
+
+	/**
+	 * Enable or disable leak reporting. This affects only sessions tracked
+	 * afterwards.
+	 * 
+	 * @param enabled
+	 *            <code>true</code> to capture the stack trace of each
+	 *            <code>Session</code>'s creation.
+	 */
+	public static void setLeakReporting(boolean enabled)
+	{
+		leakReporting = enabled;
+	}
+
+	/**
+	 * Indicates whether leak reporting is enabled.
+	 * 
+	 * @return <code>true</code> if enabled.
+	 */
+	public static boolean isLeakReporting()
+	{
+		return leakReporting;
+	}
+
+	/**
+	 * Returns the number of sessions currently tracked.
+	 * 
+	 * @return Number of sessions.
+	 */
+	public static int getTrackedCount()
+	{
+		return references.size();
+	}
+
+	/**
+	 * Returns the number of sessions that have been closed because their
+	 * owners were collected without closing them.
+	 * 
+	 * @return Number of leaked sessions.
+	 */
+	public static long getLeakCount()
+	{
+		return leakCount.get();
+	}
+
+	private static synchronized void startReaper()
+	{
+		if (reaper != null)
+		{
+			return;
+		}
+
+		reaper = new Thread("wsup-session-tracker")
+		{
+			@Override
+			public void run()
+			{
+				for (;;)
+				{
+					try
+					{
+						((TrackedSession) queue.remove()).reap();
+					}
+					catch (InterruptedException e)
+					{
+						// daemon thread; keep going
+					}
+					catch (RuntimeException e)
+					{
+						log.error("Exception reaping Session", e);
+					}
+				}
+			}
+		};
+		reaper.setDaemon(true);
+		reaper.start();
+	}
+
+	/**
+	 * Tracks one <code>Session</code>. Returned by
+	 * {@link SessionTracker#track(Object, Session)}.
+	 */
+	public static final class Handle
+	{
+		private final TrackedSession reference;
+
+		private Handle(TrackedSession reference)
+		{
+			this.reference = reference;
+		}
+
+		/**
+		 * Stop tracking the <code>Session</code>, normally because its owner
+		 * has closed, or is about to close, it. Calling this more than once is
+		 * benign.
+		 */
+		public void release()
+		{
+			references.remove(reference);
+			reference.clear();
+		}
+	}
+
+	/*
+	 * The reference to the owner of a Session. Holds the Session, which the
+	 * owner must not be reachable from.
+	 */
+	private static final class TrackedSession extends PhantomReference<Object>
+	{
+		private final Session session;
+
+		private final Throwable allocationSite;
+
+		public TrackedSession(Object owner, Session session,
+				Throwable allocationSite)
+		{
+			super(owner, queue);
+			this.session = session;
+			this.allocationSite = allocationSite;
+		}
+
+		public void reap()
+		{
+			if (!references.remove(this))
+			{
+				return;
+			}
+
+			leakCount.incrementAndGet();
+			if (allocationSite != null)
+			{
+				log.warn("Closing JMS Session whose owner was not closed",
+						allocationSite);
+			}
+			else
+			{
+				log.warn("Closing JMS Session whose owner was not closed; set "
+						+ LEAK_REPORTING_PROPERTY
+						+ "=true to report where it was created");
+			}
+
+			try
+			{
+				session.close();
+			}
+			catch (JMSException e)
+			{
+				log.info("Exception eaten closing Session", e);
+			}
+		}
+	}
+}
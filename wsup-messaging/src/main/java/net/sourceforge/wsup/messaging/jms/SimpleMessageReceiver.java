@@ -16,6 +16,9 @@
 
 package net.sourceforge.wsup.messaging.jms;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.jms.Connection;
 import javax.jms.Destination;
 import javax.jms.JMSException;
@@ -34,6 +37,12 @@ import javax.jms.Session;
  * <code>Session</code> and <code>MessageConsumer</code> classes are not
  * designed for concurrent access.
  * </p>
+ * <p>
+ * Where messages arrive in volume, {@link #receiveBatch(List, int, long)}
+ * receives several messages in one call, and
+ * {@link #acknowledgeBatch(List)} then commits or acknowledges them together,
+ * so that the cost of the commit or acknowledgement is shared by the batch.
+ * </p>
  */
 public class SimpleMessageReceiver extends BaseMessageReceiver
 {
@@ -105,7 +114,7 @@ public class SimpleMessageReceiver extends BaseMessageReceiver
 	 */
 	public synchronized Message receive() throws JMSException
 	{
-		return getConsumer().receive();
+		return decompress(getConsumer().receive());
 	}
 
 	/**
@@ -127,7 +136,7 @@ public class SimpleMessageReceiver extends BaseMessageReceiver
 	 */
 	public synchronized Message receive(long timeout) throws JMSException
 	{
-		return getConsumer().receive(timeout);
+		return decompress(getConsumer().receive(timeout));
 	}
 
 	/**
@@ -141,6 +150,164 @@ public class SimpleMessageReceiver extends BaseMessageReceiver
 	 */
 	public synchronized Message receiveNoWait() throws JMSException
 	{
-		return getConsumer().receiveNoWait();
+		return decompress(getConsumer().receiveNoWait());
+	}
+
+	/**
+	 * Receives up to <code>maxMessages</code> messages into a caller-supplied
+	 * list, which is cleared first. This waits up to <code>maxWait</code>
+	 * milliseconds for the first message, and then takes as many further
+	 * messages as are immediately available, up to the limit. The list can be
+	 * reused for successive batches.
+	 * <p>
+	 * Having processed the batch, the caller should call
+	 * {@link #acknowledgeBatch(List)} (or, for a transacted receiver,
+	 * {@link #commit()} or {@link #rollback()}) once for the whole batch.
+	 * </p>
+	 * 
+	 * @param batch
+	 *            <code>List</code> into which the messages are placed.
+	 * @param maxMessages
+	 *            Maximum number of messages to receive. Must be at least 1.
+	 * @param maxWait
+	 *            Maximum time (in milliseconds) to wait for the first message.
+	 *            Zero means not to wait.
+	 * @return Number of messages received, which may be zero if none arrived
+	 *         within <code>maxWait</code>.
+	 * @throws JMSException
+	 *             if the JMS provider fails to receive a message due to some
+	 *             internal error.
+	 */
+	public synchronized int receiveBatch(List<Message> batch, int maxMessages,
+			long maxWait) throws JMSException
+	{
+		if (maxMessages < 1)
+		{
+			throw new IllegalArgumentException("maxMessages must be greater than 0");
+		}
+
+		batch.clear();
+
+		MessageConsumer consumer = getConsumer();
+		Message message = maxWait > 0 ? consumer.receive(maxWait) : consumer
+				.receiveNoWait();
+
+		while (message != null)
+		{
+			batch.add(decompress(message));
+			if (batch.size() >= maxMessages)
+			{
+				break;
+			}
+			message = consumer.receiveNoWait();
+		}
+
+		return batch.size();
+	}
+
+	/**
+	 * Convenience method that receives up to <code>maxMessages</code> messages
+	 * into a new list.
+	 * 
+	 * @param maxMessages
+	 *            Maximum number of messages to receive. Must be at least 1.
+	 * @param maxWait
+	 *            Maximum time (in milliseconds) to wait for the first message.
+	 *            Zero means not to wait.
+	 * @return <code>List</code> of the messages received, which may be empty.
+	 * @throws JMSException
+	 *             if the JMS provider fails to receive a message due to some
+	 *             internal error.
+	 * @see #receiveBatch(List, int, long)
+	 */
+	public List<Message> receiveBatch(int maxMessages, long maxWait)
+			throws JMSException
+	{
+		List<Message> batch = new ArrayList<Message>(Math.min(maxMessages, 64));
+		receiveBatch(batch, maxMessages, maxWait);
+		return batch;
+	}
+
+	/**
+	 * Acknowledges a batch of messages received by this object, in the manner
+	 * appropriate to the acknowledgement mode:
+	 * <ul>
+	 * <li><code>Session.SESSION_TRANSACTED</code> - the <code>Session</code> is
+	 * committed.</li>
+	 * <li><code>Session.CLIENT_ACKNOWLEDGE</code> - the last message in the
+	 * batch is acknowledged, which acknowledges every message received by the
+	 * <code>Session</code> up to that point.</li>
+	 * <li><code>Session.AUTO_ACKNOWLEDGE</code> and
+	 * <code>Session.DUPS_OK_ACKNOWLEDGE</code> - nothing is done, since the
+	 * <code>Session</code> acknowledges the messages itself as they are
+	 * received, and <code>Message.acknowledge</code> has no effect in these
+	 * modes. With <code>Session.DUPS_OK_ACKNOWLEDGE</code> that
+	 * acknowledgement is lazy, so messages in a batch that was being
+	 * processed when the receiver failed may be delivered again.</li>
+	 * </ul>
+	 * 
+	 * @param batch
+	 *            Messages to be acknowledged. If empty, nothing is done.
+	 * @throws JMSException
+	 *             if the JMS provider fails to commit or acknowledge the
+	 *             messages due to some internal error.
+	 */
+	public synchronized void acknowledgeBatch(List<? extends Message> batch)
+			throws JMSException
+	{
+		if (batch.isEmpty())
+		{
+			return;
+		}
+
+		if (isTransacted())
+		{
+			getSession().commit();
+		}
+		else if (getAcknowledgeMode() == Session.CLIENT_ACKNOWLEDGE)
+		{
+			batch.get(batch.size() - 1).acknowledge();
+		}
+	}
+
+	/**
+	 * Commits all messages received in this transaction. Valid only for
+	 * receivers created with <code>Session.SESSION_TRANSACTED</code>.
+	 * 
+	 * @throws JMSException
+	 *             if the JMS provider fails to commit the transaction due to
+	 *             some internal error, or if the receiver is not transacted.
+	 */
+	public synchronized void commit() throws JMSException
+	{
+		getSession().commit();
+	}
+
+	/**
+	 * Rolls back the current transaction, so that the messages received in it
+	 * will be redelivered. Valid only for receivers created with
+	 * <code>Session.SESSION_TRANSACTED</code>.
+	 * 
+	 * @throws JMSException
+	 *             if the JMS provider fails to roll back the transaction due
+	 *             to some internal error, or if the receiver is not transacted.
+	 */
+	public synchronized void rollback() throws JMSException
+	{
+		getSession().rollback();
+	}
+
+	/**
+	 * Stops message delivery and restarts it with the oldest unacknowledged
+	 * message, so that messages received but not acknowledged will be
+	 * redelivered. Valid only for receivers that are not transacted.
+	 * 
+	 * @throws JMSException
+	 *             if the JMS provider fails to recover the session due to some
+	 *             internal error, or if the receiver is transacted.
+	 */
+	public synchronized void recover() throws JMSException
+	{
+		getSession().recover();
 	}
 }
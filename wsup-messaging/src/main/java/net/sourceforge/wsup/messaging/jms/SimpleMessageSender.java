@@ -43,8 +43,15 @@ import javax.jms.TextMessage;
  * <code>Session</code> and <code>MessageProducer</code> classes are not
  * designed for concurrent access.
  * </p>
+ * <p>
+ * Because every send is serialized through the one <code>Session</code>,
+ * applications that send from many threads at once should use
+ * {@link PooledMessageSender} instead.
+ * </p>
  */
+@SuppressWarnings("deprecation")
 public class SimpleMessageSender extends CloseOnFinalize
+		implements AutoCloseable
 {
 	private final Connection connection;
 
@@ -54,6 +61,12 @@ public class SimpleMessageSender extends CloseOnFinalize
 
 	private transient MessageProducer producer;
 
+	private transient SessionTracker.Handle tracking;
+
+	private volatile PayloadCodecs payloadCodecs;
+
+	private volatile MessageCompression compression;
+
 	/**
 	 * Constructs a MessageSender
 	 * 
@@ -90,6 +103,7 @@ public class SimpleMessageSender extends CloseOnFinalize
 		{
 			session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
 			producer = session.createProducer(destination);
+			tracking = SessionTracker.track(this, session);
 		}
 		catch (JMSException e)
 		{
@@ -105,6 +119,18 @@ public class SimpleMessageSender extends CloseOnFinalize
 		}
 	}
 
+	/**
+	 * Does nothing. This class still extends the deprecated
+	 * {@link CloseOnFinalize} for compatibility, but its <code>Session</code>s
+	 * are closed by {@link SessionTracker} if it is collected without being
+	 * closed. Overriding <code>finalize</code> with an empty method means that
+	 * instances are not registered for finalization at all.
+	 */
+	@Override
+	protected void finalize()
+	{
+	}
+
 	/**
 	 * Close down the object, releasing its resources.
 	 * <p>
@@ -119,6 +145,7 @@ public class SimpleMessageSender extends CloseOnFinalize
 		{
 			if (session != null)
 			{
+				tracking.release();
 				session.close();
 			}
 		}
@@ -126,6 +153,7 @@ public class SimpleMessageSender extends CloseOnFinalize
 		{
 			producer = null;
 			session = null;
+			tracking = null;
 		}
 	}
 
@@ -203,30 +231,144 @@ public class SimpleMessageSender extends CloseOnFinalize
 		return session.createTextMessage(message);
 	}
 
+	/**
+	 * Set the compression applied by {@link #sendTextMessage(String)} and
+	 * {@link #sendObjectMessage(Serializable)}.
+	 * 
+	 * @param compression
+	 *            {@link MessageCompression} instance, or <code>null</code> to
+	 *            send messages uncompressed.
+	 */
+	public void setCompression(MessageCompression compression)
+	{
+		this.compression = compression;
+	}
+
+	/**
+	 * Returns the compression applied to text and object messages.
+	 * 
+	 * @return {@link MessageCompression} instance, or <code>null</code> if
+	 *         none has been set.
+	 */
+	public MessageCompression getCompression()
+	{
+		return compression;
+	}
+
+	/**
+	 * Set the codecs used by {@link #sendPayload(Object)}.
+	 * 
+	 * @param payloadCodecs
+	 *            {@link PayloadCodecs} instance. May be <code>null</code>.
+	 */
+	public void setPayloadCodecs(PayloadCodecs payloadCodecs)
+	{
+		this.payloadCodecs = payloadCodecs;
+	}
+
+	/**
+	 * Returns the codecs used by {@link #sendPayload(Object)}.
+	 * 
+	 * @return {@link PayloadCodecs} instance, or <code>null</code> if none has
+	 *         been set.
+	 */
+	public PayloadCodecs getPayloadCodecs()
+	{
+		return payloadCodecs;
+	}
+
+	/**
+	 * Creates a {@link BytesMessage} containing the provided
+	 * <code>Object</code>, encoded by the codec registered for its class.
+	 * 
+	 * @param payload
+	 *            Object to be sent.
+	 * @return <code>BytesMessage</code> instance.
+	 * @throws JMSException
+	 * @throws IllegalStateException
+	 *             If no codecs have been set.
+	 * @see #setPayloadCodecs(PayloadCodecs)
+	 */
+	public synchronized BytesMessage createPayloadMessage(Object payload)
+			throws JMSException
+	{
+		PayloadCodecs codecs = payloadCodecs;
+		if (codecs == null)
+		{
+			throw new IllegalStateException("No payload codecs have been set");
+		}
+
+		return codecs.createMessage(session, payload);
+	}
+
+	/**
+	 * Convenience method to create and send a {@link BytesMessage} containing
+	 * the provided <code>Object</code>, encoded by the codec registered for
+	 * its class. This is usually both smaller and faster than
+	 * {@link #sendObjectMessage(Serializable)}.
+	 * 
+	 * @param payload
+	 *            Object to be sent.
+	 * @throws JMSException
+	 * @throws IllegalStateException
+	 *             If no codecs have been set.
+	 * @see #setPayloadCodecs(PayloadCodecs)
+	 */
+	public void sendPayload(Object payload) throws JMSException
+	{
+		sendMessage(createPayloadMessage(payload));
+	}
+
 	/**
 	 * Convenience method to create and send an {@link ObjectMessage}
-	 * encapsulating the provided <code>Object</code>.
+	 * encapsulating the provided <code>Object</code>. If compression has been
+	 * set, a large object is sent in a compressed {@link BytesMessage}
+	 * instead.
 	 * 
 	 * @param object
 	 *            <code>Serializable</code> object to be sent.
 	 * @throws JMSException
+	 * @see #setCompression(MessageCompression)
 	 */
 	public void sendObjectMessage(Serializable object) throws JMSException
 	{
-		sendMessage(createObjectMessage(object));
+		MessageCompression compression = this.compression;
+		if (compression == null)
+		{
+			sendMessage(createObjectMessage(object));
+			return;
+		}
+
+		synchronized (this)
+		{
+			sendMessage(compression.createObjectMessage(session, object));
+		}
 	}
 
 	/**
 	 * Convenience method to create and send a {@link TextMessage} encapsulating
-	 * the provided <code>String</code>.
+	 * the provided <code>String</code>. If compression has been set, a long
+	 * <code>String</code> is sent in a compressed {@link BytesMessage}
+	 * instead.
 	 * 
 	 * @param message
 	 *            <code>String</code> to be sent.
 	 * @throws JMSException
+	 * @see #setCompression(MessageCompression)
 	 */
 	public void sendTextMessage(String message) throws JMSException
 	{
-		sendMessage(createTextMessage(message));
+		MessageCompression compression = this.compression;
+		if (compression == null)
+		{
+			sendMessage(createTextMessage(message));
+			return;
+		}
+
+		synchronized (this)
+		{
+			sendMessage(compression.createTextMessage(session, message));
+		}
 	}
 
 	/**
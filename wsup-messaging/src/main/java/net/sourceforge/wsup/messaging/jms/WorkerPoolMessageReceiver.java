@@ -0,0 +1,808 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This is a base class for asynchronous JMS message receivers that process
+ * messages on a bounded pool of worker threads, without giving up
+ * at-least-once delivery. Where a {@link BaseAsyncMessageReceiver} calls
+ * <code>handleMessage</code> on the JMS provider's thread, so that a slow
+ * handler holds up delivery, this class receives messages on a thread of its
+ * own and hands them to <code>workers</code> threads, which call
+ * {@link #handleMessage(Message)} concurrently.
+ * <p>
+ * Each message received is given a sequence number, and the receiver keeps a
+ * completion watermark: the highest sequence number such that it, and every
+ * message before it, has been processed successfully. Only messages at or
+ * below the watermark are acknowledged, so a message is never acknowledged
+ * before it and everything received ahead of it have been processed. If the
+ * process stops first, the unacknowledged messages are redelivered. How far
+ * acknowledgement can follow the watermark depends on the acknowledgement
+ * mode:
+ * </p>
+ * <ul>
+ * <li>
+ * By default the <code>Session</code> is created with
+ * <code>Session.CLIENT_ACKNOWLEDGE</code>, in which
+ * <code>Message.acknowledge</code> acknowledges every message the session has
+ * received. The receiving thread can therefore only acknowledge when the
+ * watermark has caught up with the last message received, that is, when every
+ * message received has been processed. Under a steady load that happens when
+ * receiving pauses for capacity (see below) and the workers catch up.</li>
+ * <li>
+ * If the JMS provider has a mode in which <code>Message.acknowledge</code>
+ * acknowledges only that message (ActiveMQ's
+ * <code>ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE</code>, for example), it can be
+ * passed to
+ * {@link #WorkerPoolMessageReceiver(Connection, Destination, int, int, int)}.
+ * Each message is then acknowledged as soon as the watermark passes it, so a
+ * slow message holds up the acknowledgement only of those behind it, and
+ * receiving continues while it is being processed.</li>
+ * </ul>
+ * <p>
+ * At most <code>capacity</code> messages are received but not acknowledged at
+ * any time. When that many are unacknowledged, the receiving thread pauses (so
+ * that further messages stay with the JMS provider) until more can be
+ * acknowledged. This bounds the memory used by the receiver. A larger capacity
+ * gives the workers more to do before each pause, but means more messages are
+ * redelivered after a failure. Note that the provider may also hold messages
+ * ahead of their being received (ActiveMQ's "prefetch" does this), which
+ * should be taken into account.
+ * </p>
+ * <p>
+ * If <code>handleMessage</code> throws an exception, the receiver stops handing
+ * out messages, waits for the workers to finish (skipping any messages not yet
+ * started), and calls <code>Session.recover</code>, so that every
+ * unacknowledged message is redelivered. Handlers must therefore tolerate
+ * seeing a message more than once, as with any at-least-once delivery.
+ * </p>
+ * <p>
+ * With respect to thread safety:
+ * </p>
+ * <ul>
+ * <li>
+ * <code>handleMessage</code> will be called concurrently from the worker
+ * threads. It is not passed the <code>Session</code>, since a JMS
+ * <code>Session</code> may only be used by one thread; a handler that sends
+ * messages should use a thread-safe sender such as
+ * {@link PooledMessageSender}.</li>
+ * <li>
+ * {@link #start()} and {@link #close()} may be called from any thread, except
+ * that <code>handleMessage</code> must not call <code>close</code>, since
+ * <code>close</code> waits for the workers to finish.</li>
+ * </ul>
+ * <p>
+ * If {@link #setPayloadCodecs(PayloadCodecs)} has been called, messages
+ * containing a payload encoded by one of the codecs are decoded and delivered
+ * to {@link #handlePayload(Message, Object)} instead.
+ * </p>
+ */
+public abstract class WorkerPoolMessageReceiver extends BaseMessageReceiver
+{
+	/*
+	 * How long (in milliseconds) the receiving thread waits for a message
+	 * before checking whether it should acknowledge or stop.
+	 */
+	private static final long POLL_INTERVAL = 100L;
+
+	private static final Logger log = LoggerFactory
+			.getLogger(WorkerPoolMessageReceiver.class);
+
+	private final Destination destination;
+
+	private final int workers;
+
+	private final int capacity;
+
+	private final boolean individualAcknowledge;
+
+	private final AtomicLong messageCount = new AtomicLong();
+
+	private final AtomicLong failureCount = new AtomicLong();
+
+	private final AtomicLong acknowledgeCount = new AtomicLong();
+
+	private final AtomicLong pauseCount = new AtomicLong();
+
+	private volatile PayloadCodecs payloadCodecs;
+
+	/*
+	 * The following are guarded by "lock", which the workers use to report
+	 * completion to the receiving thread.
+	 */
+	private final Object lock = new Object();
+
+	private int outstanding;
+
+	/*
+	 * Sequence numbers of the last message received, of the completion
+	 * watermark, and of the last message acknowledged.
+	 */
+	private long received;
+
+	private long watermark;
+
+	private long acknowledged;
+
+	/*
+	 * Messages received but not yet acknowledged, in sequence order.
+	 */
+	private final ArrayDeque<Message> unacknowledged =
+			new ArrayDeque<Message>();
+
+	/*
+	 * Which messages above the watermark have been processed, indexed by
+	 * sequence number modulo capacity.
+	 */
+	private final boolean[] completed;
+
+	private boolean failed;
+
+	private boolean running;
+
+	/*
+	 * The following are guarded by "this".
+	 */
+	private Thread receiver;
+
+	/**
+	 * Create a WorkerPoolMessageReceiver.
+	 * 
+	 * @param connection
+	 *            <code>Connection</code> to use.
+	 * @param destination
+	 *            <code>Destination</code> to use.
+	 * @param workers
+	 *            Number of worker threads. Must be at least 1.
+	 * @param capacity
+	 *            Maximum number of messages received but not yet
+	 *            acknowledged. Must be at least <code>workers</code>.
+	 * @throws IllegalArgumentException
+	 *             If the limits are not valid.
+	 */
+	protected WorkerPoolMessageReceiver(Connection connection,
+			Destination destination, int workers, int capacity)
+	{
+		this(connection, destination, workers, capacity,
+				Session.CLIENT_ACKNOWLEDGE, false);
+	}
+
+	/**
+	 * Create a WorkerPoolMessageReceiver that acknowledges each message
+	 * individually, using a provider-specific acknowledgement mode.
+	 * 
+	 * @param connection
+	 *            <code>Connection</code> to use.
+	 * @param destination
+	 *            <code>Destination</code> to use.
+	 * @param workers
+	 *            Number of worker threads. Must be at least 1.
+	 * @param capacity
+	 *            Maximum number of messages received but not yet
+	 *            acknowledged. Must be at least <code>workers</code>.
+	 * @param individualAcknowledgeMode
+	 *            Acknowledgement mode in which
+	 *            <code>Message.acknowledge</code> acknowledges only that
+	 *            message, such as ActiveMQ's
+	 *            <code>ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE</code>. The
+	 *            standard JMS modes are rejected.
+	 * @throws IllegalArgumentException
+	 *             If the limits or the mode are not valid.
+	 */
+	protected WorkerPoolMessageReceiver(Connection connection,
+			Destination destination, int workers, int capacity,
+			int individualAcknowledgeMode)
+	{
+		this(connection, destination, workers, capacity,
+				individualAcknowledgeMode, true);
+	}
+
+	private WorkerPoolMessageReceiver(Connection connection,
+			Destination destination, int workers, int capacity,
+			int acknowledgeMode, boolean individualAcknowledge)
+	{
+		super(connection, destination, acknowledgeMode);
+
+		if (individualAcknowledge
+				&& acknowledgeMode >= Session.SESSION_TRANSACTED
+				&& acknowledgeMode <= Session.DUPS_OK_ACKNOWLEDGE)
+		{
+			throw new IllegalArgumentException(
+					"individualAcknowledgeMode must not be a standard mode");
+		}
+		if (workers < 1)
+		{
+			throw new IllegalArgumentException("workers must be greater than 0");
+		}
+		if (capacity < workers)
+		{
+			throw new IllegalArgumentException(
+					"capacity must not be less than workers");
+		}
+
+		this.destination = destination;
+		this.workers = workers;
+		this.capacity = capacity;
+		this.individualAcknowledge = individualAcknowledge;
+		this.completed = new boolean[capacity];
+	}
+
+	/**
+	 * Returns the number of worker threads.
+	 * 
+	 * @return Number of worker threads.
+	 */
+	public int getWorkers()
+	{
+		return workers;
+	}
+
+	/**
+	 * Returns the maximum number of messages received but not yet
+	 * acknowledged.
+	 * 
+	 * @return Capacity
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Start the operation of this object. Message delivery may begin before
+	 * this method returns.
+	 * <p>
+	 * Calling this method on an object that has already been started is benign.
+	 * </p>
+	 * 
+	 * @throws JMSException
+	 *             If the JMS <code>Session</code> or
+	 *             <code>MessageConsumer</code> cannot be created.
+	 */
+	@Override
+	public synchronized void start() throws JMSException
+	{
+		if (isStarted())
+		{
+			return;
+		}
+
+		super.start();
+
+		synchronized (lock)
+		{
+			outstanding = 0;
+			received = 0;
+			discardUnacknowledged();
+			failed = false;
+			running = true;
+		}
+
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(workers,
+				workers, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(capacity), new WorkerThreadFactory());
+
+		receiver = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				receive(executor);
+			}
+		}, "WorkerPoolMessageReceiver-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/**
+	 * Shut down the receiver. No more messages are received once this method
+	 * is called. This method waits for the workers to process the messages
+	 * already received, acknowledges them, and then closes the JMS
+	 * <code>Session</code>. (If a message failed, the unprocessed messages are
+	 * not acknowledged, and will be redelivered.)
+	 * <p>
+	 * Calling this method on an object that has not been started or has already
+	 * been closed is benign.
+	 * </p>
+	 */
+	@Override
+	public synchronized void close() throws JMSException
+	{
+		if (!isStarted())
+		{
+			return;
+		}
+
+		synchronized (lock)
+		{
+			running = false;
+			lock.notifyAll();
+		}
+
+		try
+		{
+			receiver.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			receiver = null;
+			super.close();
+		}
+	}
+
+	/**
+	 * Returns the number of messages received but not yet processed.
+	 * 
+	 * @return Number of messages waiting for, or being processed by, a worker.
+	 */
+	public int getOutstandingCount()
+	{
+		synchronized (lock)
+		{
+			return outstanding;
+		}
+	}
+
+	/**
+	 * Returns the number of messages processed successfully. Messages that are
+	 * redelivered are counted each time.
+	 * 
+	 * @return Number of messages processed.
+	 */
+	public long getMessageCount()
+	{
+		return messageCount.get();
+	}
+
+	/**
+	 * Returns the number of messages for which <code>handleMessage</code>
+	 * threw an exception.
+	 * 
+	 * @return Number of failures.
+	 */
+	public long getFailureCount()
+	{
+		return failureCount.get();
+	}
+
+	/**
+	 * Returns the number of times that received messages have been
+	 * acknowledged. With <code>Session.CLIENT_ACKNOWLEDGE</code>, each
+	 * acknowledgement covers every message processed since the one before;
+	 * with individual acknowledgement, each covers one message.
+	 * 
+	 * @return Number of acknowledgements.
+	 */
+	public long getAcknowledgeCount()
+	{
+		return acknowledgeCount.get();
+	}
+
+	/**
+	 * Returns the number of times that receiving paused because
+	 * <code>capacity</code> messages were outstanding.
+	 * 
+	 * @return Number of pauses.
+	 */
+	public long getPauseCount()
+	{
+		return pauseCount.get();
+	}
+
+	/**
+	 * This method will be called, on a worker thread, for each delivered
+	 * message. It will be called concurrently for different messages. If it
+	 * throws a <code>RuntimeException</code>, the message, and any others not
+	 * yet acknowledged, will be redelivered.
+	 * 
+	 * @param message
+	 *            JMS <code>Message</code> being delivered.
+	 */
+	protected abstract void handleMessage(Message message);
+
+	/**
+	 * This method will be called for each delivered message whose payload was
+	 * decoded by the codecs set by {@link #setPayloadCodecs(PayloadCodecs)}.
+	 * The default implementation passes the message to
+	 * {@link #handleMessage(Message)}.
+	 * 
+	 * @param message
+	 *            JMS <code>Message</code> being delivered.
+	 * @param payload
+	 *            The decoded payload.
+	 */
+	protected void handlePayload(Message message, Object payload)
+	{
+		handleMessage(message);
+	}
+
+	/**
+	 * Set the codecs used to decode message payloads. Messages that were not
+	 * encoded by one of these codecs are still passed to
+	 * {@link #handleMessage(Message)}. A message that cannot be decoded (or
+	 * decompressed) is treated as having failed.
+	 * 
+	 * @param payloadCodecs
+	 *            {@link PayloadCodecs} instance. May be <code>null</code>.
+	 */
+	public void setPayloadCodecs(PayloadCodecs payloadCodecs)
+	{
+		this.payloadCodecs = payloadCodecs;
+	}
+
+	/**
+	 * Returns the codecs used to decode message payloads.
+	 * 
+	 * @return {@link PayloadCodecs} instance, or <code>null</code> if none has
+	 *         been set.
+	 */
+	public PayloadCodecs getPayloadCodecs()
+	{
+		return payloadCodecs;
+	}
+
+	/*
+	 * The body of the receiving thread, which is the only thread to use the
+	 * Session.
+	 */
+	private void receive(ThreadPoolExecutor executor)
+	{
+		try
+		{
+			while (awaitCapacity())
+			{
+				Message message = getConsumer().receive(POLL_INTERVAL);
+				if (message == null)
+				{
+					continue;
+				}
+
+				long sequence;
+				synchronized (lock)
+				{
+					outstanding++;
+					sequence = ++received;
+					unacknowledged.addLast(message);
+				}
+
+				executor.execute(new Worker(message, sequence));
+			}
+		}
+		catch (JMSException e)
+		{
+			log.warn("Receiving stopped for " + destination, e);
+		}
+		catch (RuntimeException e)
+		{
+			log.warn("Receiving stopped for " + destination, e);
+		}
+		finally
+		{
+			executor.shutdown();
+			awaitTermination(executor);
+			finish();
+		}
+	}
+
+	/*
+	 * Wait until another message can be received, acknowledging messages as
+	 * the watermark passes them, and recovering the session once the workers
+	 * are idle after a failure. Returns false if the receiver is being closed.
+	 */
+	private boolean awaitCapacity() throws JMSException
+	{
+		boolean paused = false;
+
+		for (;;)
+		{
+			List<Message> acknowledge;
+			boolean recover = false;
+
+			synchronized (lock)
+			{
+				if (!running)
+				{
+					return false;
+				}
+
+				if (failed ? outstanding > 0 : !canAcknowledge()
+						&& received - acknowledged >= capacity)
+				{
+					if (!paused && !failed)
+					{
+						pauseCount.incrementAndGet();
+						paused = true;
+					}
+
+					try
+					{
+						lock.wait();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						return false;
+					}
+					continue;
+				}
+
+				if (failed)
+				{
+					recover = true;
+					acknowledge = Collections.emptyList();
+					discardUnacknowledged();
+					failed = false;
+				}
+				else
+				{
+					acknowledge = takeAcknowledgeable();
+				}
+			}
+
+			if (recover)
+			{
+				getSession().recover();
+				return true;
+			}
+
+			if (acknowledge.isEmpty())
+			{
+				return true;
+			}
+
+			acknowledge(acknowledge);
+		}
+	}
+
+	/*
+	 * Called once the workers have stopped. Acknowledge what they processed,
+	 * unless something failed, in which case closing the session will return
+	 * the messages to the provider.
+	 */
+	private void finish()
+	{
+		List<Message> acknowledge;
+
+		synchronized (lock)
+		{
+			acknowledge = failed ? Collections.<Message> emptyList()
+					: takeAcknowledgeable();
+			discardUnacknowledged();
+		}
+
+		try
+		{
+			acknowledge(acknowledge);
+		}
+		catch (JMSException e)
+		{
+			log.warn("Unable to acknowledge messages from " + destination, e);
+		}
+	}
+
+	private void acknowledge(List<Message> messages) throws JMSException
+	{
+		for (Message message : messages)
+		{
+			message.acknowledge();
+			acknowledgeCount.incrementAndGet();
+		}
+	}
+
+	/*
+	 * Can any messages be acknowledged? With CLIENT_ACKNOWLEDGE, which
+	 * acknowledges everything received, only once every message received has
+	 * been processed. Must be called holding "lock".
+	 */
+	private boolean canAcknowledge()
+	{
+		if (individualAcknowledge)
+		{
+			return watermark > acknowledged;
+		}
+
+		return watermark == received && received > acknowledged;
+	}
+
+	/*
+	 * Remove and return the messages to be acknowledged. Must be called
+	 * holding "lock".
+	 */
+	private List<Message> takeAcknowledgeable()
+	{
+		if (!canAcknowledge())
+		{
+			return Collections.emptyList();
+		}
+
+		if (!individualAcknowledge)
+		{
+			Message last = unacknowledged.peekLast();
+			unacknowledged.clear();
+			acknowledged = received;
+			return Collections.singletonList(last);
+		}
+
+		List<Message> messages = new ArrayList<Message>(
+				(int) (watermark - acknowledged));
+		while (acknowledged < watermark)
+		{
+			messages.add(unacknowledged.removeFirst());
+			acknowledged++;
+		}
+		return messages;
+	}
+
+	/*
+	 * Forget the unacknowledged messages, which the session will redeliver.
+	 * Must be called holding "lock", with no workers outstanding.
+	 */
+	private void discardUnacknowledged()
+	{
+		unacknowledged.clear();
+		Arrays.fill(completed, false);
+		watermark = received;
+		acknowledged = received;
+	}
+
+	/*
+	 * Called by a worker when it has finished with a message.
+	 */
+	private void complete(long sequence, boolean succeeded)
+	{
+		synchronized (lock)
+		{
+			outstanding--;
+			if (!succeeded)
+			{
+				failed = true;
+			}
+			else if (sequence > watermark)
+			{
+				completed[(int) (sequence % capacity)] = true;
+				while (watermark < received
+						&& completed[(int) ((watermark + 1) % capacity)])
+				{
+					watermark++;
+					completed[(int) (watermark % capacity)] = false;
+				}
+			}
+			lock.notifyAll();
+		}
+	}
+
+	private boolean hasFailed()
+	{
+		synchronized (lock)
+		{
+			return failed;
+		}
+	}
+
+	private void process(Message message) throws JMSException
+	{
+		PayloadCodecs codecs = payloadCodecs;
+
+		if (codecs == null || !codecs.isEncoded(message))
+		{
+			handleMessage(decompress(message));
+		}
+		else
+		{
+			handlePayload(message, codecs.decode(message));
+		}
+	}
+
+	private static void awaitTermination(ThreadPoolExecutor executor)
+	{
+		try
+		{
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Processes a single message on a worker thread.
+	 */
+	private class Worker implements Runnable
+	{
+		private final Message message;
+
+		private final long sequence;
+
+		public Worker(Message message, long sequence)
+		{
+			this.message = message;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void run()
+		{
+			boolean succeeded = false;
+
+			try
+			{
+				/*
+				 * Once something has failed, everything outstanding will be
+				 * redelivered, so don't bother processing it now.
+				 */
+				if (!hasFailed())
+				{
+					process(message);
+					messageCount.incrementAndGet();
+					succeeded = true;
+				}
+			}
+			catch (JMSException e)
+			{
+				failureCount.incrementAndGet();
+				log.warn("Unable to decode message from " + destination, e);
+			}
+			catch (RuntimeException e)
+			{
+				failureCount.incrementAndGet();
+				log.warn("Message from " + destination + " failed", e);
+			}
+			finally
+			{
+				complete(sequence, succeeded);
+			}
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable,
+					"WorkerPoolMessageReceiver-worker-"
+							+ threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.messaging.activemq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.PolicyMap;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.store.amq.AMQPersistenceAdapter;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+import org.junit.After;
+import org.junit.Test;
+
+public class BrokerProfileTest
+{
+	private static final String PERSIST_PATH = "target/BrokerProfileTest";
+
+	public BrokerProfileTest()
+	{
+	}
+
+	@After
+	public void tearDown()
+	{
+		File dir = new File(PERSIST_PATH);
+		if (dir.exists())
+		{
+			recursiveDeleteDirectory(dir);
+		}
+	}
+
+	private void recursiveDeleteDirectory(File dir)
+	{
+		File[] children = dir.listFiles();
+		for (File child : children)
+		{
+			if (child.isDirectory())
+			{
+				recursiveDeleteDirectory(child);
+			}
+			else
+			{
+				child.delete();
+			}
+		}
+
+		dir.delete();
+	}
+
+	@Test
+	public void testEmptyProfileChangesNothing()
+	{
+		BrokerProfile profile = new BrokerProfile();
+		assertNull(profile.getDispatchAsync());
+		assertNull(profile.getQueuePrefetch());
+		assertNull(profile.getMemoryLimit());
+		assertNull(profile.getJournalDiskSyncs());
+
+		ActiveMQConnectionFactory expectedFactory = new ActiveMQConnectionFactory();
+		ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory();
+		profile.configure(factory);
+		assertEquals(expectedFactory.isDispatchAsync(), factory
+				.isDispatchAsync());
+		assertEquals(expectedFactory.isOptimizeAcknowledge(), factory
+				.isOptimizeAcknowledge());
+		assertEquals(expectedFactory.getPrefetchPolicy().getQueuePrefetch(),
+				factory.getPrefetchPolicy().getQueuePrefetch());
+
+		BrokerService service = new BrokerService();
+		long memoryLimit = service.getSystemUsage().getMemoryUsage()
+				.getLimit();
+		profile.configure(service);
+		assertNull(service.getDestinationPolicy());
+		assertEquals(memoryLimit, service.getSystemUsage().getMemoryUsage()
+				.getLimit());
+
+		KahaDBPersistenceAdapter kaha = new KahaDBPersistenceAdapter();
+		profile.configure(kaha);
+		assertTrue(kaha.isEnableJournalDiskSyncs());
+	}
+
+	@Test
+	public void testConfiguresConnectionFactory()
+	{
+		BrokerProfile profile = new BrokerProfile();
+		profile.setDispatchAsync(Boolean.FALSE);
+		profile.setOptimizeAcknowledge(Boolean.TRUE);
+		profile.setUseAsyncSend(Boolean.TRUE);
+		profile.setQueuePrefetch(Integer.valueOf(123));
+		profile.setTopicPrefetch(Integer.valueOf(456));
+
+		ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory();
+		profile.configure(factory);
+
+		assertFalse(factory.isDispatchAsync());
+		assertTrue(factory.isOptimizeAcknowledge());
+		assertTrue(factory.isUseAsyncSend());
+		assertEquals(123, factory.getPrefetchPolicy().getQueuePrefetch());
+		assertEquals(456, factory.getPrefetchPolicy().getTopicPrefetch());
+	}
+
+	@Test
+	public void testConfiguresBrokerService()
+	{
+		BrokerProfile profile = new BrokerProfile();
+		profile.setProducerFlowControl(Boolean.FALSE);
+		profile.setMemoryLimit(Long.valueOf(12345678L));
+		profile.setDestinationMemoryLimit(Long.valueOf(1234567L));
+		profile.setDedicatedTaskRunner(Boolean.TRUE);
+
+		BrokerService service = new BrokerService();
+		profile.configure(service);
+
+		assertEquals(12345678L, service.getSystemUsage().getMemoryUsage()
+				.getLimit());
+		assertTrue(service.isDedicatedTaskRunner());
+
+		assertNotNull(service.getDestinationPolicy());
+		PolicyEntry entry = service.getDestinationPolicy().getEntryFor(
+				new ActiveMQQueue("any"));
+		assertNotNull(entry);
+		assertFalse(entry.isProducerFlowControl());
+		assertEquals(1234567L, entry.getMemoryLimit());
+	}
+
+	@Test
+	public void testKeepsExistingDefaultPolicy()
+	{
+		PolicyEntry existing = new PolicyEntry();
+		existing.setOptimizedDispatch(true);
+		PolicyMap policyMap = new PolicyMap();
+		policyMap.setDefaultEntry(existing);
+		BrokerService service = new BrokerService();
+		service.setDestinationPolicy(policyMap);
+
+		BrokerProfile profile = new BrokerProfile();
+		profile.setProducerFlowControl(Boolean.FALSE);
+		profile.configure(service);
+
+		assertSame(existing, service.getDestinationPolicy().getDefaultEntry());
+		assertTrue(existing.isOptimizedDispatch());
+		assertFalse(existing.isProducerFlowControl());
+	}
+
+	@Test
+	public void testClientSettingsAppliedOnStart() throws Exception
+	{
+		VMMessageBroker broker = new VMMessageBroker("BrokerProfileClient");
+		BrokerProfile profile = new BrokerProfile();
+		profile.setUseAsyncSend(Boolean.TRUE);
+		profile.setQueuePrefetch(Integer.valueOf(123));
+		broker.setProfile(profile);
+
+		broker.startBroker(true);
+		try
+		{
+			ActiveMQConnection connection = (ActiveMQConnection) broker
+					.createConnection();
+			assertTrue(connection.isUseAsyncSend());
+			assertEquals(123, connection.getPrefetchPolicy()
+					.getQueuePrefetch());
+			connection.close();
+		}
+		finally
+		{
+			broker.stopBroker(true);
+		}
+
+		// without a profile, the next start restores the defaults
+		broker.setProfile(null);
+		broker.startBroker(true);
+		try
+		{
+			ActiveMQConnectionFactory defaults =
+					new ActiveMQConnectionFactory();
+			ActiveMQConnection connection = (ActiveMQConnection) broker
+					.createConnection();
+			assertFalse(connection.isUseAsyncSend());
+			assertEquals(defaults.getPrefetchPolicy().getQueuePrefetch(),
+					connection.getPrefetchPolicy().getQueuePrefetch());
+			connection.close();
+		}
+		finally
+		{
+			broker.stopBroker(true);
+		}
+	}
+
+	@Test
+	public void testConfiguresKaha()
+	{
+		BrokerProfile profile = BrokerProfile.highThroughput();
+
+		KahaDBPersistenceAdapter kaha = new KahaDBPersistenceAdapter();
+		profile.configure(kaha);
+
+		assertFalse(kaha.isEnableJournalDiskSyncs());
+		assertTrue(kaha.isEnableIndexWriteAsync());
+		assertEquals(4 * 1024 * 1024, kaha.getJournalMaxWriteBatchSize());
+		assertEquals(10000, kaha.getIndexWriteBatchSize());
+	}
+
+	@Test
+	public void testConfiguresAMQ()
+	{
+		BrokerProfile profile = new BrokerProfile();
+		profile.setJournalDiskSyncs(Boolean.FALSE);
+
+		AMQPersistenceAdapter amq = new AMQPersistenceAdapter();
+		profile.configure(amq);
+		assertFalse(amq.isSyncOnWrite());
+
+		profile.setJournalDiskSyncs(Boolean.TRUE);
+		profile.configure(amq);
+		assertTrue(amq.isSyncOnWrite());
+	}
+
+	@Test
+	public void testHighThroughputBroker() throws Exception
+	{
+		VMMessageBrokerKaha broker = new VMMessageBrokerKaha(
+				"BrokerProfileTest");
+		broker.setPersistenceRootDir(new File(PERSIST_PATH));
+		BrokerProfile profile = BrokerProfile.highThroughput();
+		broker.setProfile(profile);
+		assertEquals(profile, broker.getProfile());
+
+		broker.startBroker(true);
+		try
+		{
+			ActiveMQConnection connection = (ActiveMQConnection) broker
+					.createConnection();
+			try
+			{
+				assertFalse(connection.isDispatchAsync());
+				assertFalse(connection.isOptimizeAcknowledge());
+				assertTrue(connection.isUseAsyncSend());
+				assertEquals(1000, connection.getPrefetchPolicy()
+						.getQueuePrefetch());
+
+				connection.start();
+				Session session = connection.createSession(false,
+						Session.AUTO_ACKNOWLEDGE);
+				ActiveMQQueue destination = new ActiveMQQueue("testQueue");
+				MessageProducer producer = session.createProducer(destination);
+				MessageConsumer consumer = session.createConsumer(destination);
+
+				for (int i = 0; i < 100; i++)
+				{
+					producer.send(session.createTextMessage("m" + i));
+				}
+				for (int i = 0; i < 100; i++)
+				{
+					Message message = consumer.receive(5000);
+					assertNotNull(message);
+					assertEquals("m" + i, ((TextMessage) message).getText());
+				}
+			}
+			finally
+			{
+				connection.close();
+			}
+		}
+		finally
+		{
+			broker.stopBroker(true);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package net.sourceforge.wsup.messaging.activemq;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+/**
+ * Measures persistent send and receive throughput over the VM transport for
+ * each embedded broker type (no store, Kaha and AMQ), first with the ActiveMQ
+ * defaults and then with {@link BrokerProfile#highThroughput()}. One thread
+ * sends while another receives, and the time until the last message is
+ * received is reported as messages per second.
+ * <p>
+ * This is not run as part of the build. Run it from the test classpath:
+ * </p>
+ * 
+ * <pre>
+ * java net.sourceforge.wsup.messaging.activemq.BrokerThroughputBenchmark [messages [bodySize]]
+ * </pre>
+ */
+public class BrokerThroughputBenchmark
+{
+	private static final int DEFAULT_MESSAGES = 20000;
+
+	private static final int DEFAULT_BODY_SIZE = 1024;
+
+	public static void main(String[] args) throws Exception
+	{
+		int messages = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_MESSAGES;
+		int bodySize = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_BODY_SIZE;
+
+		File root = File.createTempFile("brokerBenchmark", "");
+		root.delete();
+
+		try
+		{
+			String[] types = { "none", "kaha", "amq" };
+			for (String type : types)
+			{
+				report(type, "default", run(type, null, root, messages,
+						bodySize), messages);
+				report(type, "highThroughput", run(type, BrokerProfile
+						.highThroughput(), root, messages, bodySize), messages);
+			}
+		}
+		finally
+		{
+			recursiveDeleteDirectory(root);
+		}
+	}
+
+	private static VMMessageBroker createBroker(String type, File dir)
+	{
+		String name = "brokerBenchmark-" + type;
+		if ("kaha".equals(type))
+		{
+			VMMessageBrokerKaha broker = new VMMessageBrokerKaha(name);
+			broker.setPersistenceRootDir(dir);
+			return broker;
+		}
+		if ("amq".equals(type))
+		{
+			VMMessageBrokerAMQ broker = new VMMessageBrokerAMQ(name);
+			broker.setPersistenceRootDir(dir);
+			return broker;
+		}
+		return new VMMessageBroker(name);
+	}
+
+	private static long run(String type, BrokerProfile profile, File root,
+			final int messages, int bodySize) throws Exception
+	{
+		File dir = new File(root, type + (profile == null ? "-default" : "-profile"));
+		VMMessageBroker broker = createBroker(type, dir);
+		if (profile != null)
+		{
+			broker.setProfile(profile);
+		}
+		broker.startBroker(true);
+
+		try
+		{
+			Connection connection = broker.createConnection();
+			connection.start();
+
+			try
+			{
+				Session sendSession = connection.createSession(false,
+						Session.AUTO_ACKNOWLEDGE);
+				final Session receiveSession = connection.createSession(false,
+						Session.AUTO_ACKNOWLEDGE);
+				Queue queue = sendSession.createQueue("benchmark");
+				MessageProducer producer = sendSession.createProducer(queue);
+				producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+				final MessageConsumer consumer = receiveSession
+						.createConsumer(queue);
+
+				final Exception[] failure = new Exception[1];
+				Thread receiver = new Thread("benchmark-receiver")
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							for (int i = 0; i < messages; i++)
+							{
+								if (consumer.receive(30000) == null)
+								{
+									throw new IllegalStateException(
+											"Timed out after " + i
+													+ " messages");
+								}
+							}
+						}
+						catch (Exception e)
+						{
+							failure[0] = e;
+						}
+					}
+				};
+
+				byte[] body = new byte[bodySize];
+				long start = System.nanoTime();
+				receiver.start();
+				for (int i = 0; i < messages; i++)
+				{
+					BytesMessage message = sendSession.createBytesMessage();
+					message.writeBytes(body);
+					producer.send(message);
+				}
+				receiver.join();
+				long elapsed = System.nanoTime() - start;
+
+				if (failure[0] != null)
+				{
+					throw failure[0];
+				}
+				return elapsed;
+			}
+			finally
+			{
+				connection.close();
+			}
+		}
+		finally
+		{
+			broker.stopBroker(true);
+		}
+	}
+
+	private static void report(String type, String profile, long elapsed,
+			int messages)
+	{
+		System.out.printf("%-5s %-15s: %8d msg/s%n", type, profile,
+				(long) (messages / (elapsed / 1e9)));
+	}
+
+	private static void recursiveDeleteDirectory(File dir) throws IOException
+	{
+		File[] children = dir.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				if (child.isDirectory())
+				{
+					recursiveDeleteDirectory(child);
+				}
+				else
+				{
+					child.delete();
+				}
+			}
+		}
+
+		dir.delete();
+	}
+}
@@ -201,6 +201,43 @@ public class BaseAsyncMessageReceiverTest
 		assertFalse(obj.isStarted());
 	}
 	
+	@Test
+	public void testReceivesPayloads() throws Exception
+	{
+		ActiveMQQueue queue = new ActiveMQQueue("testPayloadQueue");
+		PayloadCodecs codecs = new PayloadCodecs();
+		codecs.register(1, new SamplePayload.Codec());
+		connection.start();
+		
+		Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		MessageProducer producer = session.createProducer(queue);
+		producer.send(codecs.createMessage(session, new SamplePayload(1, 2, "def", 3)));
+		producer.send(session.createTextMessage("abc"));
+		producer.close();
+		session.close();
+		
+		PayloadClass test = new PayloadClass(connection, queue);
+		test.setPayloadCodecs(codecs);
+		assertTrue(test.getPayloadCodecs() == codecs);
+		test.start();
+		
+		long start = System.currentTimeMillis();
+		while (test.getReceived().size() < 2)
+		{
+			Thread.yield();
+			if (System.currentTimeMillis() - start > 5000L)
+			{
+				fail("Didn't deliver in 5 seconds");
+			}
+		}
+		
+		test.close();
+		
+		assertEquals(2, test.getReceived().size());
+		assertEquals("payload def", test.getReceived().get(0));
+		assertEquals("abc", test.getReceived().get(1));
+	}
+	
 	private static class TestClass extends BaseAsyncMessageReceiver
 	{
 		private List<String> received = Collections.synchronizedList(new ArrayList<String>());
@@ -234,6 +271,20 @@ public class BaseAsyncMessageReceiverTest
 		}
 	}
 	
+	private static class PayloadClass extends TestClass
+	{
+		public PayloadClass(Connection connection, Destination destination)
+		{
+			super(connection, destination);
+		}
+
+		@Override
+		protected void handlePayload(Session session, Message message, Object payload)
+		{
+			getReceived().add("payload " + ((SamplePayload)payload).getName());
+		}
+	}
+	
 	private static class ExceptionClass extends BaseAsyncMessageReceiver
 	{
 		private RuntimeException re;
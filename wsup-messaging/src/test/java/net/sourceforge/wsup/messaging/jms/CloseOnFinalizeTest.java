@@ -20,6 +20,7 @@ import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
+@SuppressWarnings("deprecation")
 public class CloseOnFinalizeTest
 {
 	public CloseOnFinalizeTest()
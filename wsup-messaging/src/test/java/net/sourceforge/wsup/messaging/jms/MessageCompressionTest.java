@@ -0,0 +1,322 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageNotWriteableException;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import net.sourceforge.wsup.messaging.activemq.VMMessageBrokerKaha;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MessageCompressionTest
+{
+	private static VMMessageBrokerKaha broker;
+
+	private static int queueNumber;
+
+	private Connection connection;
+
+	private Session session;
+
+	private MessageCompression compression;
+
+	public MessageCompressionTest()
+	{
+	}
+
+	@BeforeClass
+	public static void oneTimeSetup() throws Exception
+	{
+		broker = new VMMessageBrokerKaha("messageCompressionTest");
+		broker.startBroker(true);
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() throws Exception
+	{
+		broker.stopBroker(true);
+	}
+
+	@Before
+	public void setup() throws Exception
+	{
+		connection = broker.createConnection();
+		connection.start();
+		session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		compression = new MessageCompression(1000, Deflater.BEST_SPEED);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		connection.close();
+	}
+
+	@Test
+	public void testConstruction()
+	{
+		assertEquals(MessageCompression.DEFAULT_THRESHOLD,
+				new MessageCompression().getThreshold());
+		assertEquals(1000, compression.getThreshold());
+
+		try
+		{
+			new MessageCompression(-1, Deflater.DEFAULT_COMPRESSION);
+			fail("didn't throw");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+
+		try
+		{
+			new MessageCompression(0, 10);
+			fail("didn't throw");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	@Test
+	public void testSmallTextNotCompressed() throws Exception
+	{
+		Message message = compression.createTextMessage(session, "abc");
+		assertTrue(message instanceof TextMessage);
+		assertFalse(MessageCompression.isCompressed(message));
+		assertSame(message, MessageCompression.decompress(message));
+		assertNull(MessageCompression.decompress(null));
+	}
+
+	@Test
+	public void testTextRoundTrip() throws Exception
+	{
+		String text = repeat("compressible text é ", 500);
+
+		Message message = compression.createTextMessage(session, text);
+		assertTrue(message instanceof BytesMessage);
+		assertTrue(MessageCompression.isCompressed(message));
+
+		message = sendAndReceive(message);
+		assertTrue(((BytesMessage) message).getBodyLength() < text.length() / 10);
+
+		TextMessage decompressed = (TextMessage) MessageCompression
+				.decompress(message);
+		assertEquals(text, decompressed.getText());
+		assertEquals(message.getJMSMessageID(), decompressed.getJMSMessageID());
+		assertEquals(MessageCompression.TEXT_BODY, decompressed
+				.getStringProperty(MessageCompression.BODY_TYPE_PROPERTY));
+
+		try
+		{
+			decompressed.setText("x");
+			fail("didn't throw");
+		}
+		catch (MessageNotWriteableException e)
+		{
+		}
+	}
+
+	@Test
+	public void testObjectRoundTrip() throws Exception
+	{
+		ArrayList<String> object = new ArrayList<String>();
+		for (int i = 0; i < 200; i++)
+		{
+			object.add("item " + (i % 10));
+		}
+
+		Message message = compression.createObjectMessage(session, object);
+		assertTrue(message instanceof BytesMessage);
+
+		ObjectMessage decompressed = (ObjectMessage) MessageCompression
+				.decompress(sendAndReceive(message));
+		assertEquals(object, decompressed.getObject());
+	}
+
+	@Test
+	public void testSmallObjectNotCompressed() throws Exception
+	{
+		Message message = compression.createObjectMessage(session, "abc");
+		assertTrue(message instanceof ObjectMessage);
+		assertEquals("abc", ((ObjectMessage) message).getObject());
+	}
+
+	@Test
+	public void testIncompressibleTextNotCompressed() throws Exception
+	{
+		Random random = new Random(42);
+		char[] chars = new char[2000];
+		for (int i = 0; i < chars.length; i++)
+		{
+			chars[i] = (char) (0x4E00 + random.nextInt(0x5000));
+		}
+		String text = new String(chars);
+
+		MessageCompression none = new MessageCompression(1000,
+				Deflater.NO_COMPRESSION);
+		Message message = none.createTextMessage(session, text);
+		assertTrue(message instanceof TextMessage);
+		assertEquals(text, ((TextMessage) message).getText());
+	}
+
+	@Test
+	public void testUnknownCompression() throws Exception
+	{
+		BytesMessage message = session.createBytesMessage();
+		message.setStringProperty(MessageCompression.COMPRESSION_PROPERTY,
+				"gzip");
+		assertTrue(MessageCompression.isCompressed(message));
+
+		try
+		{
+			MessageCompression.decompress(message);
+			fail("didn't throw");
+		}
+		catch (MessageFormatException e)
+		{
+		}
+	}
+
+	@Test
+	public void testCorruptBody() throws Exception
+	{
+		BytesMessage message = session.createBytesMessage();
+		message.setStringProperty(MessageCompression.COMPRESSION_PROPERTY,
+				MessageCompression.DEFLATE);
+		message.setStringProperty(MessageCompression.BODY_TYPE_PROPERTY,
+				MessageCompression.TEXT_BODY);
+		message.setIntProperty(MessageCompression.LENGTH_PROPERTY, 100);
+		message.writeBytes(new byte[] { 1, 2, 3, 4 });
+
+		try
+		{
+			MessageCompression.decompress(sendAndReceive(message));
+			fail("didn't throw");
+		}
+		catch (MessageFormatException e)
+		{
+		}
+	}
+
+	@Test
+	public void testImplausibleLength() throws Exception
+	{
+		int[] lengths = { 4096 * 1032,
+				MessageCompression.MAX_UNCOMPRESSED_LENGTH + 1 };
+		for (int length : lengths)
+		{
+			BytesMessage message = session.createBytesMessage();
+			message.setStringProperty(MessageCompression.COMPRESSION_PROPERTY,
+					MessageCompression.DEFLATE);
+			message.setStringProperty(MessageCompression.BODY_TYPE_PROPERTY,
+					MessageCompression.TEXT_BODY);
+			message.setIntProperty(MessageCompression.LENGTH_PROPERTY, length);
+			message.writeBytes(new byte[] { 1, 2, 3, 4 });
+
+			try
+			{
+				MessageCompression.decompress(sendAndReceive(message));
+				fail("didn't throw");
+			}
+			catch (MessageFormatException e)
+			{
+				assertTrue(e.getMessage().endsWith("is too large"));
+			}
+		}
+	}
+
+	@Test
+	public void testSendersAndReceivers() throws Exception
+	{
+		Queue queue = new ActiveMQQueue("compressionQueue" + (++queueNumber));
+		String text = repeat("abcdefgh", 1000);
+
+		SimpleMessageSender simpleSender = new SimpleMessageSender(connection,
+				queue);
+		simpleSender.setCompression(compression);
+		assertSame(compression, simpleSender.getCompression());
+		simpleSender.start();
+		simpleSender.sendTextMessage(text);
+		simpleSender.sendObjectMessage(text);
+		simpleSender.close();
+
+		PooledMessageSender pooledSender = new PooledMessageSender(connection,
+				queue, 2);
+		pooledSender.setCompression(compression);
+		pooledSender.start();
+		pooledSender.sendTextMessage(text);
+		pooledSender.close();
+
+		SimpleMessageReceiver receiver = new SimpleMessageReceiver(connection,
+				queue);
+		receiver.start();
+		assertEquals(text, ((TextMessage) receiver.receive(5000)).getText());
+		assertEquals(text, ((ObjectMessage) receiver.receive(5000)).getObject());
+
+		List<Message> batch = receiver.receiveBatch(10, 5000);
+		assertEquals(1, batch.size());
+		assertEquals(text, ((TextMessage) batch.get(0)).getText());
+		receiver.close();
+	}
+
+	private Message sendAndReceive(Message message) throws JMSException
+	{
+		Queue queue = session.createTemporaryQueue();
+		MessageConsumer consumer = session.createConsumer(queue);
+		session.createProducer(queue).send(message);
+
+		Message received = consumer.receive(5000);
+		consumer.close();
+		assertTrue(received != null);
+		return received;
+	}
+
+	private static String repeat(String text, int count)
+	{
+		char[] chars = new char[text.length() * count];
+		for (int i = 0; i < count; i++)
+		{
+			text.getChars(0, text.length(), chars, i * text.length());
+		}
+		return new String(chars);
+	}
+}
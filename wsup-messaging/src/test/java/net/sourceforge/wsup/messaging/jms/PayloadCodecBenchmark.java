@@ -0,0 +1,158 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import net.sourceforge.wsup.messaging.activemq.VMMessageBrokerKaha;
+
+import org.apache.activemq.command.ActiveMQObjectMessage;
+
+/**
+ * Compares sending {@link SamplePayload}s as <code>ObjectMessage</code>s with
+ * sending them as <code>BytesMessage</code>s encoded by a
+ * {@link PayloadCodec}, through a non-persistent embedded broker. For each
+ * format it reports the mean time for a send and receive round trip,
+ * including creating and decoding the message, and the size of the message
+ * body.
+ * <p>
+ * This is not run as part of the build. Run it from the test classpath:
+ * </p>
+ * 
+ * <pre>
+ * java net.sourceforge.wsup.messaging.jms.PayloadCodecBenchmark [iterations]
+ * </pre>
+ */
+public class PayloadCodecBenchmark
+{
+	private static final int WARMUP_ITERATIONS = 20000;
+
+	private static final int DEFAULT_ITERATIONS = 100000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_ITERATIONS;
+
+		VMMessageBrokerKaha broker = new VMMessageBrokerKaha(
+				"payloadCodecBenchmark");
+		broker.startBroker(true);
+
+		try
+		{
+			Connection connection = broker.createConnection();
+			connection.start();
+
+			try
+			{
+				Session session = connection.createSession(false,
+						Session.AUTO_ACKNOWLEDGE);
+				Queue queue = session.createTemporaryQueue();
+				MessageProducer producer = session.createProducer(queue);
+				producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+				MessageConsumer consumer = session.createConsumer(queue);
+
+				PayloadCodecs codecs = new PayloadCodecs();
+				codecs.register(1, new SamplePayload.Codec());
+
+				run("ObjectMessage", session, producer, consumer, null,
+						WARMUP_ITERATIONS);
+				run("BytesMessage ", session, producer, consumer, codecs,
+						WARMUP_ITERATIONS);
+
+				report("ObjectMessage", run("ObjectMessage", session,
+						producer, consumer, null, iterations), iterations,
+						objectSize(session));
+				report("BytesMessage ", run("BytesMessage", session,
+						producer, consumer, codecs, iterations), iterations,
+						codecSize(session, codecs));
+			}
+			finally
+			{
+				connection.close();
+			}
+		}
+		finally
+		{
+			broker.stopBroker(true);
+		}
+	}
+
+	private static long run(String name, Session session,
+			MessageProducer producer, MessageConsumer consumer,
+			PayloadCodecs codecs, int iterations) throws Exception
+	{
+		long check = 0;
+		long start = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++)
+		{
+			SamplePayload payload = payload(i);
+			Message message = codecs == null ? session
+					.createObjectMessage(payload) : codecs.createMessage(
+					session, payload);
+			producer.send(message);
+
+			Message received = consumer.receive();
+			SamplePayload decoded = (SamplePayload) (codecs == null ? ((ObjectMessage) received)
+					.getObject()
+					: codecs.decode(received));
+			check += decoded.getId();
+		}
+
+		long elapsed = System.nanoTime() - start;
+		if (check == -1)
+		{
+			// keep the decoded values live
+			System.out.println(name);
+		}
+		return elapsed;
+	}
+
+	private static void report(String name, long elapsed, int iterations,
+			long bodySize)
+	{
+		System.out.printf("%s: %8d ns/op, %4d body bytes%n", name, elapsed
+				/ iterations, bodySize);
+	}
+
+	private static long objectSize(Session session) throws Exception
+	{
+		// ActiveMQ serializes the object when the message is created
+		ObjectMessage message = session.createObjectMessage(payload(1));
+		return ((ActiveMQObjectMessage) message)
+				.getContent().getLength();
+	}
+
+	private static long codecSize(Session session, PayloadCodecs codecs)
+			throws Exception
+	{
+		BytesMessage message = codecs.createMessage(session, payload(1));
+		message.reset();
+		return message.getBodyLength();
+	}
+
+	private static SamplePayload payload(int i)
+	{
+		return new SamplePayload(i, i % 100, "item-" + (i % 1000), i * 0.25);
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageFormatException;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import net.sourceforge.wsup.messaging.activemq.VMMessageBrokerKaha;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PayloadCodecsTest
+{
+	private static VMMessageBrokerKaha broker;
+
+	private Connection connection;
+
+	private Session session;
+
+	private PayloadCodecs codecs;
+
+	public PayloadCodecsTest()
+	{
+	}
+
+	@BeforeClass
+	public static void oneTimeSetup() throws Exception
+	{
+		broker = new VMMessageBrokerKaha("payloadCodecsTest");
+		broker.startBroker(true);
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() throws Exception
+	{
+		broker.stopBroker(true);
+	}
+
+	@Before
+	public void setup() throws Exception
+	{
+		connection = broker.createConnection();
+		session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		codecs = new PayloadCodecs();
+		codecs.register(7, new SamplePayload.Codec());
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		connection.close();
+	}
+
+	@Test
+	public void testVarLong() throws Exception
+	{
+		long[] values = { 0, 1, -1, 63, -64, 64, -65, 8191, -8192,
+				Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE,
+				Long.MIN_VALUE };
+		int[] lengths = { 1, 1, 1, 1, 1, 2, 2, 2, 2, 5, 5, 10, 10 };
+
+		for (int i = 0; i < values.length; i++)
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			PayloadCodecs.writeVarLong(new DataOutputStream(bytes), values[i]);
+			assertEquals(Long.toString(values[i]), lengths[i], bytes.size());
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					bytes.toByteArray()));
+			assertEquals(values[i], PayloadCodecs.readVarLong(in));
+		}
+	}
+
+	@Test
+	public void testVarIntOutOfRange() throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PayloadCodecs.writeVarLong(new DataOutputStream(bytes),
+				Integer.MAX_VALUE + 1L);
+
+		try
+		{
+			PayloadCodecs.readVarInt(new DataInputStream(
+					new ByteArrayInputStream(bytes.toByteArray())));
+			fail("didn't throw");
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	@Test
+	public void testString() throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		PayloadCodecs.writeString(out, "café");
+		PayloadCodecs.writeString(out, null);
+		PayloadCodecs.writeString(out, "");
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		assertEquals("café", PayloadCodecs.readString(in));
+		assertNull(PayloadCodecs.readString(in));
+		assertEquals("", PayloadCodecs.readString(in));
+	}
+
+	@Test
+	public void testDuplicateRegistration()
+	{
+		try
+		{
+			codecs.register(7, new StringCodec());
+			fail("didn't throw");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+
+		try
+		{
+			codecs.register(8, new SamplePayload.Codec());
+			fail("didn't throw");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception
+	{
+		SamplePayload payload = new SamplePayload(12345L, -3, "widget", 9.5);
+
+		assertTrue(codecs.canEncode(payload));
+		BytesMessage message = codecs.createMessage(session, payload);
+		assertEquals(7, message.getIntProperty(PayloadCodecs.TYPE_PROPERTY));
+		assertTrue(codecs.isEncoded(message));
+
+		// send and receive so the body is read from a delivered message
+		message = (BytesMessage) sendAndReceive(message);
+
+		SamplePayload decoded = (SamplePayload) codecs.decode(message);
+		assertEquals(12345L, decoded.getId());
+		assertEquals(-3, decoded.getQuantity());
+		assertEquals("widget", decoded.getName());
+		assertEquals(9.5, decoded.getPrice(), 0.0);
+	}
+
+	@Test
+	public void testLargePayload() throws Exception
+	{
+		char[] chars = new char[100000];
+		Arrays.fill(chars, 'x');
+		SamplePayload payload = new SamplePayload(1, 2, new String(chars), 3);
+
+		BytesMessage message = codecs.createMessage(session, payload);
+		message = (BytesMessage) sendAndReceive(message);
+		assertEquals(100000, ((SamplePayload) codecs.decode(message))
+				.getName().length());
+
+		// buffers are trimmed, but continue to work
+		message = codecs.createMessage(session, new SamplePayload(1, 2, "y",
+				3));
+		message = (BytesMessage) sendAndReceive(message);
+		assertEquals("y", ((SamplePayload) codecs.decode(message)).getName());
+	}
+
+	@Test
+	public void testUnregisteredClass() throws Exception
+	{
+		assertFalse(codecs.canEncode("abc"));
+		assertFalse(codecs.canEncode(null));
+
+		try
+		{
+			codecs.createMessage(session, "abc");
+			fail("didn't throw");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	@Test
+	public void testUnknownType() throws Exception
+	{
+		BytesMessage message = session.createBytesMessage();
+		assertFalse(codecs.isEncoded(message));
+		assertFalse(codecs.isEncoded(session.createTextMessage("abc")));
+
+		message.setIntProperty(PayloadCodecs.TYPE_PROPERTY, 99);
+		assertFalse(codecs.isEncoded(message));
+
+		try
+		{
+			codecs.decode(message);
+			fail("didn't throw");
+		}
+		catch (MessageFormatException e)
+		{
+		}
+	}
+
+	@Test
+	public void testTruncatedBody() throws Exception
+	{
+		BytesMessage message = session.createBytesMessage();
+		message.setIntProperty(PayloadCodecs.TYPE_PROPERTY, 7);
+		message.writeByte((byte) 2);
+		message = (BytesMessage) sendAndReceive(message);
+
+		try
+		{
+			codecs.decode(message);
+			fail("didn't throw");
+		}
+		catch (MessageFormatException e)
+		{
+			assertTrue(e.getLinkedException() instanceof IOException);
+		}
+	}
+
+	private Message sendAndReceive(Message message)
+			throws JMSException
+	{
+		Queue queue = session.createTemporaryQueue();
+		MessageConsumer consumer = session.createConsumer(queue);
+		session.createProducer(queue).send(message);
+		connection.start();
+
+		Message received = consumer.receive(5000);
+		consumer.close();
+		assertTrue(received != null);
+		return received;
+	}
+
+	private static class StringCodec implements PayloadCodec<String>
+	{
+		public StringCodec()
+		{
+		}
+
+		@Override
+		public Class<String> getPayloadClass()
+		{
+			return String.class;
+		}
+
+		@Override
+		public void encode(String payload, DataOutput out)
+				throws IOException
+		{
+			PayloadCodecs.writeString(out, payload);
+		}
+
+		@Override
+		public String decode(DataInput in) throws IOException
+		{
+			return PayloadCodecs.readString(in);
+		}
+	}
+}
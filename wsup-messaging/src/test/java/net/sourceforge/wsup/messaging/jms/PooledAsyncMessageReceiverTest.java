@@ -0,0 +1,452 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+
+package net.sourceforge.wsup.messaging.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import net.sourceforge.wsup.messaging.activemq.VMMessageBroker;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PooledAsyncMessageReceiverTest
+{
+	private static VMMessageBroker broker;
+
+	private static int queueNumber;
+
+	private ActiveMQQueue destination;
+
+	private Connection connection;
+
+	public PooledAsyncMessageReceiverTest()
+	{
+	}
+
+	@BeforeClass
+	public static void oneTimeSetup() throws Exception
+	{
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("jms.prefetchPolicy.queuePrefetch", "1");
+
+		broker = new VMMessageBroker("pooledTest", params);
+		broker.startBroker(true);
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() throws Exception
+	{
+		broker.stopBroker(true);
+	}
+
+	@Before
+	public void setup() throws Exception
+	{
+		destination = new ActiveMQQueue("pooledQueue" + (++queueNumber));
+		connection = broker.createConnection();
+		connection.start();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		connection.close();
+	}
+
+	private void send(int count) throws JMSException
+	{
+		Session session = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		MessageProducer producer = session.createProducer(destination);
+		for (int i = 0; i < count; i++)
+		{
+			producer.send(session.createTextMessage("message" + i));
+		}
+		session.close();
+	}
+
+	private static void waitFor(String what, Condition condition)
+			throws Exception
+	{
+		long start = System.currentTimeMillis();
+		while (!condition.isTrue())
+		{
+			if (System.currentTimeMillis() - start > 10000L)
+			{
+				fail(what + " didn't happen in 10 seconds");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testConsumesConcurrently() throws Exception
+	{
+		final TestClass test = new TestClass(connection, destination, 3, 3);
+		test.setScaleInterval(0);
+		assertFalse(test.isStarted());
+		test.start();
+		assertTrue(test.isStarted());
+		assertEquals(3, test.getConsumerCount());
+
+		test.setDelay(20);
+		send(30);
+
+		waitFor("Delivery", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getMessageCount() == 30;
+			}
+		});
+
+		assertEquals(0, test.getInFlightCount());
+		assertTrue(test.getMaxConcurrent() > 1);
+
+		List<PooledAsyncMessageReceiver.ConsumerMetrics> metrics = test
+				.getConsumerMetrics();
+		assertEquals(3, metrics.size());
+		Set<Integer> ids = new HashSet<Integer>();
+		long total = 0;
+		for (PooledAsyncMessageReceiver.ConsumerMetrics consumer : metrics)
+		{
+			ids.add(consumer.getConsumerId());
+			total += consumer.getMessageCount();
+			assertTrue(consumer.getMessageCount() > 0);
+			assertTrue(consumer.getThroughput() > 0.0);
+			assertTrue(consumer.getMeanHandlingTime() >= 20.0);
+			assertEquals(0, consumer.getFailureCount());
+		}
+		assertEquals(3, ids.size());
+		assertEquals(30, total);
+
+		test.close();
+		assertFalse(test.isStarted());
+		assertEquals(0, test.getConsumerCount());
+		assertEquals(3, test.getStarts());
+		assertEquals(3, test.getCloses());
+	}
+
+	@Test
+	public void testScalesWithBacklog() throws Exception
+	{
+		final TestClass test = new TestClass(connection, destination, 1, 4);
+		test.setScaleInterval(20);
+		test.setLatch(new CountDownLatch(1));
+		test.start();
+		assertEquals(1, test.getConsumerCount());
+
+		send(20);
+
+		waitFor("Scale up", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getConsumerCount() == 4;
+			}
+		});
+
+		test.getLatch().countDown();
+
+		waitFor("Delivery", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getMessageCount() == 20;
+			}
+		});
+
+		waitFor("Scale down", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getConsumerCount() == 1;
+			}
+		});
+
+		test.close();
+	}
+
+	@Test
+	public void testSetConcurrency() throws Exception
+	{
+		TestClass test = new TestClass(connection, destination, 2, 5);
+		test.setScaleInterval(0);
+		assertEquals(0, test.getScaleInterval());
+
+		try
+		{
+			test.setConcurrency(3);
+			fail("didn't throw");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+
+		test.start();
+		test.setConcurrency(4);
+		assertEquals(4, test.getConsumerCount());
+		test.setConcurrency(10);
+		assertEquals(5, test.getConsumerCount());
+		test.setConcurrency(0);
+		assertEquals(2, test.getConsumerCount());
+		assertEquals(5, test.getStarts());
+		assertEquals(3, test.getCloses());
+
+		test.close();
+		test.close();
+		assertEquals(5, test.getCloses());
+	}
+
+	@Test
+	public void testCloseDrainsInFlightMessages() throws Exception
+	{
+		final TestClass test = new TestClass(connection, destination, 2, 2);
+		test.setScaleInterval(0);
+		test.setDelay(200);
+		test.start();
+
+		send(10);
+
+		waitFor("Delivery", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getInFlightCount() > 0;
+			}
+		});
+
+		test.close();
+
+		// everything started was finished, and nothing else was delivered
+		assertEquals(test.getStartedCount(), test.getMessageCount());
+		assertTrue(test.getMessageCount() < 10);
+
+		// undelivered messages are still on the queue
+		TestClass second = new TestClass(connection, destination, 1, 1);
+		second.setScaleInterval(0);
+		second.start();
+		final long remaining = 10 - test.getMessageCount();
+		final TestClass check = second;
+		waitFor("Redelivery", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return check.getMessageCount() >= remaining;
+			}
+		});
+		second.close();
+
+		/*
+		 * The acknowledgement of the last message handled by a consumer can
+		 * race the closing of that consumer, in which case ActiveMQ delivers
+		 * it again. That is permitted, but nothing else may be redelivered.
+		 */
+		assertTrue(second.getMessageCount() <= remaining + 2);
+	}
+
+	@Test
+	public void testCountsFailures() throws Exception
+	{
+		final TestClass test = new TestClass(connection, destination, 1, 1);
+		test.setScaleInterval(0);
+		test.setFail(true);
+		test.start();
+
+		send(1);
+
+		waitFor("Failure", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getConsumerMetrics().get(0).getFailureCount() > 0;
+			}
+		});
+
+		test.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsTopic()
+	{
+		new TestClass(connection, new ActiveMQTopic("topic"), 1, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsBadMin()
+	{
+		new TestClass(connection, destination, 0, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsBadMax()
+	{
+		new TestClass(connection, destination, 2, 1);
+	}
+
+	private interface Condition
+	{
+		boolean isTrue();
+	}
+
+	private static class TestClass extends PooledAsyncMessageReceiver
+	{
+		private final AtomicInteger concurrent = new AtomicInteger();
+
+		private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+		private final AtomicInteger startedCount = new AtomicInteger();
+
+		private final AtomicInteger starts = new AtomicInteger();
+
+		private final AtomicInteger closes = new AtomicInteger();
+
+		private volatile long delay;
+
+		private volatile boolean fail;
+
+		private volatile CountDownLatch latch;
+
+		public TestClass(Connection connection, Destination destination,
+				int minConsumers, int maxConsumers)
+		{
+			super(connection, destination, Session.AUTO_ACKNOWLEDGE,
+					minConsumers, maxConsumers);
+		}
+
+		public void setDelay(long delay)
+		{
+			this.delay = delay;
+		}
+
+		public void setFail(boolean fail)
+		{
+			this.fail = fail;
+		}
+
+		public void setLatch(CountDownLatch latch)
+		{
+			this.latch = latch;
+		}
+
+		public CountDownLatch getLatch()
+		{
+			return latch;
+		}
+
+		public int getMaxConcurrent()
+		{
+			return maxConcurrent.get();
+		}
+
+		public int getStartedCount()
+		{
+			return startedCount.get();
+		}
+
+		public int getStarts()
+		{
+			return starts.get();
+		}
+
+		public int getCloses()
+		{
+			return closes.get();
+		}
+
+		@Override
+		protected void onStart(Session session)
+		{
+			starts.incrementAndGet();
+		}
+
+		@Override
+		protected void onClose()
+		{
+			closes.incrementAndGet();
+		}
+
+		@Override
+		protected void handleMessage(Session session, Message message)
+		{
+			startedCount.incrementAndGet();
+			int now = concurrent.incrementAndGet();
+			synchronized (maxConcurrent)
+			{
+				if (now > maxConcurrent.get())
+				{
+					maxConcurrent.set(now);
+				}
+			}
+
+			try
+			{
+				if (fail)
+				{
+					throw new IllegalStateException("boom");
+				}
+
+				if (latch != null)
+				{
+					latch.await(10, TimeUnit.SECONDS);
+				}
+
+				if (delay > 0)
+				{
+					Thread.sleep(delay);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				concurrent.decrementAndGet();
+			}
+		}
+	}
+}
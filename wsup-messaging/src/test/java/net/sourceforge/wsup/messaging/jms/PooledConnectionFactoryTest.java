@@ -0,0 +1,492 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.ResourceAllocationException;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import net.sourceforge.wsup.messaging.activemq.VMMessageBroker;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PooledConnectionFactoryTest
+{
+	private static VMMessageBroker broker;
+
+	private static int queueNumber;
+
+	private PooledConnectionFactory factory;
+
+	private ActiveMQQueue destination;
+
+	public PooledConnectionFactoryTest()
+	{
+	}
+
+	@BeforeClass
+	public static void oneTimeSetup() throws Exception
+	{
+		broker = new VMMessageBroker("pooledFactoryTest");
+		broker.startBroker(true);
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() throws Exception
+	{
+		broker.stopBroker(true);
+	}
+
+	@Before
+	public void setup() throws Exception
+	{
+		factory = new PooledConnectionFactory(broker);
+		destination = new ActiveMQQueue("pooledFactoryQueue" + (++queueNumber));
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		factory.close();
+	}
+
+	@Test
+	public void testConfiguration()
+	{
+		assertEquals(PooledConnectionFactory.DEFAULT_MAX_CONNECTIONS, factory
+				.getMaxConnections());
+		factory.setMaxConnections(3);
+		factory.setMaxSessionsPerConnection(7);
+		factory.setIdleTimeout(0);
+		factory.setSessionWaitTimeout(10);
+		assertEquals(3, factory.getMaxConnections());
+		assertEquals(7, factory.getMaxSessionsPerConnection());
+		assertEquals(0, factory.getIdleTimeout());
+		assertEquals(10, factory.getSessionWaitTimeout());
+
+		try
+		{
+			factory.setMaxConnections(0);
+			fail("didn't throw");
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+
+	@Test
+	public void testConnectionsAndSessionsReused() throws Exception
+	{
+		for (int i = 0; i < 5; i++)
+		{
+			Connection connection = factory.createConnection();
+			Session session = connection.createSession(false,
+					Session.AUTO_ACKNOWLEDGE);
+			MessageProducer producer = session.createProducer(destination);
+			producer.send(session.createTextMessage("message" + i));
+			producer.close();
+			session.close();
+			connection.close();
+		}
+
+		PooledConnectionFactory.Statistics statistics = factory
+				.getStatistics();
+		assertEquals(1, statistics.getConnectionCount());
+		assertEquals(1, statistics.getConnectionsCreated());
+		assertEquals(1, statistics.getSessionsCreated());
+		assertEquals(5, statistics.getSessionsBorrowed());
+		assertEquals(4, statistics.getSessionsReused());
+		assertEquals(0.8, statistics.getReuseRatio(), 0.0001);
+		assertEquals(0, statistics.getActiveSessions());
+		assertEquals(1, statistics.getIdleSessions());
+
+		assertEquals(5, receiveAll());
+	}
+
+	@Test
+	public void testSessionsPooledByMode() throws Exception
+	{
+		Connection connection = factory.createConnection();
+		connection.createSession(false, Session.AUTO_ACKNOWLEDGE).close();
+		connection.createSession(true, Session.SESSION_TRANSACTED).close();
+		connection.createSession(false, Session.CLIENT_ACKNOWLEDGE).close();
+
+		Session session = connection.createSession(true,
+				Session.SESSION_TRANSACTED);
+		assertTrue(session.getTransacted());
+		session.close();
+		connection.close();
+
+		assertEquals(3, factory.getStatistics().getSessionsCreated());
+		assertEquals(3, factory.getStatistics().getIdleSessions());
+	}
+
+	@Test
+	public void testUncommittedWorkRolledBack() throws Exception
+	{
+		Connection connection = factory.createConnection();
+		Session session = connection.createSession(true,
+				Session.SESSION_TRANSACTED);
+		session.createProducer(destination).send(
+				session.createTextMessage("never"));
+		session.close();
+		connection.close();
+
+		assertEquals(0, receiveAll());
+	}
+
+	@Test
+	public void testUnacknowledgedMessagesRecovered() throws Exception
+	{
+		Connection connection = factory.createConnection();
+		connection.start();
+		Session sender = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		sender.createProducer(destination).send(
+				sender.createTextMessage("abc"));
+		sender.close();
+
+		Session session = connection.createSession(false,
+				Session.CLIENT_ACKNOWLEDGE);
+		assertNotNull(session.createConsumer(destination).receive(5000));
+		session.close();
+		connection.close();
+
+		assertEquals(2, factory.getStatistics().getIdleSessions());
+		assertEquals(1, receiveAll());
+	}
+
+	@Test
+	public void testConsumersClosedWithSession() throws Exception
+	{
+		Connection connection = factory.createConnection();
+		connection.start();
+		Session session = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		MessageConsumer consumer = session.createConsumer(destination);
+		session.close();
+
+		// the consumer no longer takes messages from the queue
+		Session sender = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		sender.createProducer(destination).send(
+				sender.createTextMessage("abc"));
+		sender.close();
+		connection.close();
+
+		try
+		{
+			consumer.receiveNoWait();
+			fail("didn't throw");
+		}
+		catch (JMSException e)
+		{
+		}
+		assertEquals(1, receiveAll());
+	}
+
+	@Test
+	public void testProducerSettings() throws Exception
+	{
+		Connection connection = factory.createConnection();
+		Session session = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+
+		MessageProducer producer = session.createProducer(destination);
+		assertEquals(destination, producer.getDestination());
+		assertEquals(DeliveryMode.PERSISTENT, producer.getDeliveryMode());
+		producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+		producer.setPriority(7);
+		producer.send(session.createTextMessage("abc"));
+
+		MessageProducer anonymous = session.createProducer(null);
+		assertNull(anonymous.getDestination());
+		anonymous.send(destination, session.createTextMessage("def"));
+
+		try
+		{
+			producer.send(destination, session.createTextMessage("ghi"));
+			fail("didn't throw");
+		}
+		catch (UnsupportedOperationException e)
+		{
+		}
+
+		producer.close();
+		try
+		{
+			producer.send(session.createTextMessage("jkl"));
+			fail("didn't throw");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+
+		session.close();
+		connection.close();
+
+		Connection receiving = broker.createConnection();
+		receiving.start();
+		Session receiver = receiving.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		MessageConsumer consumer = receiver.createConsumer(destination);
+		TextMessage message = (TextMessage) consumer.receive(5000);
+		TextMessage other = (TextMessage) consumer.receive(5000);
+		if (!message.getText().equals("abc"))
+		{
+			// the broker does not order persistent and non-persistent messages
+			TextMessage swap = message;
+			message = other;
+			other = swap;
+		}
+		assertEquals("abc", message.getText());
+		assertEquals(DeliveryMode.NON_PERSISTENT, message.getJMSDeliveryMode());
+		assertEquals(7, message.getJMSPriority());
+		assertEquals("def", other.getText());
+		receiving.close();
+	}
+
+	@Test
+	public void testClosedObjects() throws Exception
+	{
+		Connection connection = factory.createConnection();
+		Session session = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+
+		try
+		{
+			connection.setClientID("abc");
+			fail("didn't throw");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+
+		// closing the connection closes its sessions
+		connection.close();
+		connection.close();
+		try
+		{
+			session.createTextMessage("abc");
+			fail("didn't throw");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+		try
+		{
+			connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			fail("didn't throw");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+
+		assertEquals(0, factory.getStatistics().getActiveSessions());
+		assertFalse(connection.equals(factory.createConnection()));
+	}
+
+	@Test
+	public void testMaxSessions() throws Exception
+	{
+		factory.setMaxSessionsPerConnection(2);
+		factory.setSessionWaitTimeout(50);
+
+		Connection connection = factory.createConnection();
+		Session first = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+
+		try
+		{
+			connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+			fail("didn't throw");
+		}
+		catch (ResourceAllocationException e)
+		{
+		}
+
+		first.close();
+		assertNotNull(connection.createSession(false,
+				Session.CLIENT_ACKNOWLEDGE));
+		assertEquals(2, factory.getStatistics().getActiveSessions());
+		assertEquals(1, factory.getStatistics().getSessionsEvicted());
+		connection.close();
+	}
+
+	@Test
+	public void testMaxConnections() throws Exception
+	{
+		factory.setMaxConnections(2);
+
+		Connection one = factory.createConnection();
+		Connection two = factory.createConnection();
+		Connection three = factory.createConnection();
+		assertEquals(2, factory.getStatistics().getConnectionCount());
+
+		one.close();
+		two.close();
+		three.close();
+	}
+
+	@Test
+	public void testMaxConnectionsConcurrent() throws Exception
+	{
+		factory.setMaxConnections(2);
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Connection> opened = new CopyOnWriteArrayList<Connection>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++)
+		{
+			Thread thread = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						opened.add(factory.createConnection());
+					}
+					catch (Exception e)
+					{
+						// counted below
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join(10000);
+		}
+
+		assertEquals(8, opened.size());
+		assertEquals(2, factory.getStatistics().getConnectionCount());
+		assertEquals(2, factory.getStatistics().getConnectionsCreated());
+
+		for (Connection connection : opened)
+		{
+			connection.close();
+		}
+	}
+
+	@Test
+	public void testIdleEviction() throws Exception
+	{
+		factory.setIdleTimeout(1);
+
+		Connection connection = factory.createConnection();
+		connection.createSession(false, Session.AUTO_ACKNOWLEDGE).close();
+		Thread.sleep(20);
+
+		factory.evictIdle();
+		assertEquals(1, factory.getStatistics().getConnectionCount());
+		assertEquals(0, factory.getStatistics().getIdleSessions());
+		assertEquals(1, factory.getStatistics().getSessionsEvicted());
+
+		connection.close();
+		Thread.sleep(20);
+		factory.evictIdle();
+		assertEquals(0, factory.getStatistics().getConnectionCount());
+	}
+
+	@Test
+	public void testFactoryClose() throws Exception
+	{
+		Connection connection = factory.createConnection();
+		factory.close();
+		factory.close();
+
+		try
+		{
+			factory.createConnection();
+			fail("didn't throw");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+
+		connection.close();
+	}
+
+	@Test
+	public void testSimpleMessageSender() throws Exception
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			Connection connection = factory.createConnection();
+			SimpleMessageSender sender = new SimpleMessageSender(connection,
+					destination);
+			sender.start();
+			sender.sendTextMessage("message" + i);
+			sender.close();
+			connection.close();
+		}
+
+		assertEquals(1, factory.getStatistics().getSessionsCreated());
+		assertEquals(3, receiveAll());
+	}
+
+	private int receiveAll() throws Exception
+	{
+		Connection connection = broker.createConnection();
+		connection.start();
+
+		try
+		{
+			Session session = connection.createSession(false,
+					Session.AUTO_ACKNOWLEDGE);
+			MessageConsumer consumer = session.createConsumer(destination);
+
+			int count = 0;
+			while (consumer.receive(500) != null)
+			{
+				count++;
+			}
+			return count;
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+
+package net.sourceforge.wsup.messaging.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.IllegalStateException;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import net.sourceforge.wsup.messaging.activemq.VMMessageBroker;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class PooledMessageSenderTest
+{
+	private static VMMessageBroker broker;
+
+	private static int queueNumber;
+
+	private ActiveMQQueue destination;
+
+	private Connection connection;
+
+	private Session consumerSession;
+
+	private MessageConsumer consumer;
+
+	public PooledMessageSenderTest()
+	{
+	}
+
+	@BeforeClass
+	public static void oneTimeSetup() throws Exception
+	{
+		broker = new VMMessageBroker("pooledSenderTest");
+		broker.startBroker(true);
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() throws Exception
+	{
+		broker.stopBroker(true);
+	}
+
+	@Before
+	public void setup() throws Exception
+	{
+		destination = new ActiveMQQueue("pooledSenderQueue" + (++queueNumber));
+		connection = broker.createConnection();
+		connection.start();
+		consumerSession = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		consumer = consumerSession.createConsumer(destination);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		connection.close();
+	}
+
+	@Test
+	public void testSendFromManyThreads() throws Exception
+	{
+		final PooledMessageSender sender = new PooledMessageSender(connection,
+				destination, 3);
+		assertEquals(3, sender.getMaxSessions());
+		assertFalse(sender.isStarted());
+		sender.start();
+		assertTrue(sender.isStarted());
+
+		final List<Exception> failures = Collections
+				.synchronizedList(new ArrayList<Exception>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++)
+		{
+			final int threadNumber = t;
+			threads.add(new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for (int i = 0; i < 25; i++)
+						{
+							sender.sendTextMessage(threadNumber + ":" + i);
+						}
+					}
+					catch (Exception e)
+					{
+						failures.add(e);
+					}
+				}
+			});
+		}
+
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertTrue(sender.getSessionCount() <= 3);
+		assertEquals(sender.getSessionCount(), sender.getIdleCount());
+
+		Set<String> received = new HashSet<String>();
+		for (int i = 0; i < 200; i++)
+		{
+			received.add(((TextMessage) consumer.receive(5000L)).getText());
+		}
+		assertEquals(200, received.size());
+		assertNull(consumer.receiveNoWait());
+
+		sender.close();
+		assertFalse(sender.isStarted());
+		assertEquals(0, sender.getSessionCount());
+		sender.close();
+	}
+
+	@Test
+	public void testSendWithCreatorAndProperties() throws Exception
+	{
+		PooledMessageSender sender = new PooledMessageSender(connection,
+				destination, 1);
+		sender.start();
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("prop", "value");
+
+		Message sent = sender.send(new MessageCreator()
+		{
+			@Override
+			public Message createMessage(Session session) throws JMSException
+			{
+				return session.createTextMessage("created");
+			}
+		}, properties);
+
+		TextMessage message = (TextMessage) consumer.receive(5000L);
+		assertEquals("created", message.getText());
+		assertEquals("value", message.getStringProperty("prop"));
+		assertEquals(sent.getJMSMessageID(), message.getJMSMessageID());
+
+		sender.sendObjectMessage(Integer.valueOf(42));
+		assertEquals(Integer.valueOf(42), ((ObjectMessage) consumer
+				.receive(5000L)).getObject());
+
+		assertEquals(1, sender.getSessionCount());
+		sender.close();
+	}
+
+	@Test
+	public void testAsyncSend() throws Exception
+	{
+		PooledMessageSender sender = new PooledMessageSender(connection,
+				destination, 2);
+		sender.start();
+
+		TestCallback callback = new TestCallback(10);
+		List<Future<Message>> futures = new ArrayList<Future<Message>>();
+		for (int i = 0; i < 10; i++)
+		{
+			futures.add(sender.sendTextMessageAsync("async" + i, callback));
+		}
+
+		assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+		assertEquals(10, callback.successes.size());
+		assertTrue(callback.failures.isEmpty());
+		for (Future<Message> future : futures)
+		{
+			assertTrue(callback.successes.contains(future.get()));
+		}
+
+		sender.sendObjectMessageAsync(Integer.valueOf(1), null).get();
+
+		for (int i = 0; i < 11; i++)
+		{
+			assertTrue(consumer.receive(5000L) != null);
+		}
+
+		sender.close();
+	}
+
+	@Test
+	public void testAsyncFailure() throws Exception
+	{
+		PooledMessageSender sender = new PooledMessageSender(connection,
+				destination, 2);
+		sender.start();
+
+		TestCallback callback = new TestCallback(1);
+		Future<Message> future = sender.sendAsync(new MessageCreator()
+		{
+			@Override
+			public Message createMessage(Session session) throws JMSException
+			{
+				throw new JMSException("boom");
+			}
+		}, null, callback);
+
+		try
+		{
+			future.get();
+			fail("didn't throw");
+		}
+		catch (ExecutionException e)
+		{
+			assertEquals("boom", e.getCause().getMessage());
+		}
+
+		assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+		assertEquals(1, callback.failures.size());
+		assertTrue(callback.successes.isEmpty());
+
+		// the session that failed is not reused
+		assertEquals(0, sender.getSessionCount());
+
+		sender.close();
+	}
+
+	@Test
+	public void testNotStarted() throws Exception
+	{
+		PooledMessageSender sender = new PooledMessageSender(connection,
+				destination, 1);
+		try
+		{
+			sender.sendTextMessage("not started");
+			fail("didn't throw");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+
+		try
+		{
+			sender.sendTextMessageAsync("not started", null);
+			fail("didn't throw");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsZeroSessions()
+	{
+		new PooledMessageSender(connection, destination, 0);
+	}
+
+	private static class TestCallback implements SendCallback
+	{
+		private final CountDownLatch latch;
+
+		private final List<Message> successes = Collections
+				.synchronizedList(new ArrayList<Message>());
+
+		private final List<Exception> failures = Collections
+				.synchronizedList(new ArrayList<Exception>());
+
+		public TestCallback(int count)
+		{
+			latch = new CountDownLatch(count);
+		}
+
+		@Override
+		public void onSuccess(Message message)
+		{
+			successes.add(message);
+			latch.countDown();
+		}
+
+		@Override
+		public void onFailure(Exception e)
+		{
+			failures.add(e);
+			latch.countDown();
+		}
+	}
+}
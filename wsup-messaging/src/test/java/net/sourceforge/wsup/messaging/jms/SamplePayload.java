@@ -0,0 +1,97 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Sample payload, and its codec, used by the payload codec tests and
+ * benchmark.
+ */
+public class SamplePayload implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private final long id;
+
+	private final int quantity;
+
+	private final String name;
+
+	private final double price;
+
+	public SamplePayload(long id, int quantity, String name, double price)
+	{
+		this.id = id;
+		this.quantity = quantity;
+		this.name = name;
+		this.price = price;
+	}
+
+	public long getId()
+	{
+		return id;
+	}
+
+	public int getQuantity()
+	{
+		return quantity;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public double getPrice()
+	{
+		return price;
+	}
+
+	public static class Codec implements PayloadCodec<SamplePayload>
+	{
+		public Codec()
+		{
+		}
+
+		@Override
+		public Class<SamplePayload> getPayloadClass()
+		{
+			return SamplePayload.class;
+		}
+
+		@Override
+		public void encode(SamplePayload payload, DataOutput out)
+				throws IOException
+		{
+			PayloadCodecs.writeVarLong(out, payload.id);
+			PayloadCodecs.writeVarInt(out, payload.quantity);
+			PayloadCodecs.writeString(out, payload.name);
+			out.writeDouble(payload.price);
+		}
+
+		@Override
+		public SamplePayload decode(DataInput in) throws IOException
+		{
+			long id = PayloadCodecs.readVarLong(in);
+			int quantity = PayloadCodecs.readVarInt(in);
+			String name = PayloadCodecs.readString(in);
+			double price = in.readDouble();
+			return new SamplePayload(id, quantity, name, price);
+		}
+	}
+}
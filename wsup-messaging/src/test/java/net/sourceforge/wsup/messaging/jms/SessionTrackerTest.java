@@ -0,0 +1,236 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SessionTrackerTest
+{
+	public SessionTrackerTest()
+	{
+	}
+
+	@After
+	public void tearDown()
+	{
+		SessionTracker.setLeakReporting(false);
+	}
+
+	@Test
+	public void testRelease() throws Exception
+	{
+		CountDownLatch closed = new CountDownLatch(1);
+		Object owner = new Object();
+
+		SessionTracker.Handle handle = SessionTracker.track(owner,
+				session(closed));
+		handle.release();
+		handle.release();
+
+		owner = null;
+		collect();
+		assertFalse(closed.await(500, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testLeakClosesSession() throws Exception
+	{
+		SessionTracker.setLeakReporting(true);
+		assertTrue(SessionTracker.isLeakReporting());
+
+		CountDownLatch closed = new CountDownLatch(1);
+		long leaks = SessionTracker.getLeakCount();
+
+		track(closed);
+
+		long start = System.currentTimeMillis();
+		while (!closed.await(100, TimeUnit.MILLISECONDS))
+		{
+			collect();
+			if (System.currentTimeMillis() - start > 10000L)
+			{
+				fail("Session not closed in 10 seconds");
+			}
+		}
+
+		assertTrue(SessionTracker.getLeakCount() > leaks);
+	}
+
+	@Test
+	public void testTrackedCount() throws Exception
+	{
+		Object owner = new Object();
+		int count = SessionTracker.getTrackedCount();
+
+		SessionTracker.Handle handle = SessionTracker.track(owner,
+				session(new CountDownLatch(1)));
+		assertEquals(count + 1, SessionTracker.getTrackedCount());
+		handle.release();
+		assertEquals(count, SessionTracker.getTrackedCount());
+	}
+
+	@Test
+	public void testSenderReleasesOnClose() throws Exception
+	{
+		CountDownLatch closed = new CountDownLatch(1);
+		int count = SessionTracker.getTrackedCount();
+
+		SimpleMessageSender sender = new SimpleMessageSender(connection(closed),
+				null);
+		sender.start();
+		assertEquals(count + 1, SessionTracker.getTrackedCount());
+		sender.close();
+		assertEquals(count, SessionTracker.getTrackedCount());
+		assertEquals(0, closed.getCount());
+	}
+
+	@Test
+	public void testListeningReceiverIsNotReaped() throws Exception
+	{
+		CountDownLatch closed = new CountDownLatch(1);
+		int count = SessionTracker.getTrackedCount();
+
+		startReceiver(closed);
+		assertEquals(count, SessionTracker.getTrackedCount());
+
+		collect();
+		assertFalse(closed.await(500, TimeUnit.MILLISECONDS));
+	}
+
+	/*
+	 * Starts an asynchronous receiver, whose listener the Session holds, and
+	 * drops it.
+	 */
+	private static void startReceiver(CountDownLatch closed)
+			throws JMSException
+	{
+		new TestReceiver(connection(closed)).start();
+	}
+
+	/*
+	 * Tracks a Session with an owner that is unreachable once this returns.
+	 */
+	private static void track(CountDownLatch closed)
+	{
+		SessionTracker.track(new Object(), session(closed));
+	}
+
+	private static void collect() throws InterruptedException
+	{
+		System.gc();
+		Thread.sleep(10);
+	}
+
+	private static Session session(final CountDownLatch closed)
+	{
+		return (Session) Proxy.newProxyInstance(SessionTrackerTest.class
+				.getClassLoader(), new Class<?>[] { Session.class },
+				new InvocationHandler()
+				{
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args)
+					{
+						if (method.getName().equals("close"))
+						{
+							closed.countDown();
+						}
+						if (method.getName().equals("createConsumer"))
+						{
+							return consumer();
+						}
+						return null;
+					}
+				});
+	}
+
+	private static Connection connection(final CountDownLatch closed)
+	{
+		final Session session = session(closed);
+
+		return (Connection) Proxy.newProxyInstance(
+				SessionTrackerTest.class.getClassLoader(),
+				new Class<?>[] { Connection.class },
+				new InvocationHandler()
+				{
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args)
+					{
+						if (method.getName().equals("createSession"))
+						{
+							return session;
+						}
+						return null;
+					}
+				});
+	}
+
+	/*
+	 * A MessageConsumer that, like a real one, holds its listener.
+	 */
+	private static MessageConsumer consumer()
+	{
+		return (MessageConsumer) Proxy.newProxyInstance(
+				SessionTrackerTest.class.getClassLoader(),
+				new Class<?>[] { MessageConsumer.class },
+				new InvocationHandler()
+				{
+					@SuppressWarnings("unused")
+					private Object listener;
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args)
+					{
+						if (method.getName().equals("setMessageListener"))
+						{
+							listener = args[0];
+						}
+						return null;
+					}
+				});
+	}
+
+	private static class TestReceiver extends BaseAsyncMessageReceiver
+	{
+		public TestReceiver(Connection connection)
+		{
+			super(connection, null, Session.AUTO_ACKNOWLEDGE);
+		}
+
+		@Override
+		protected void handleMessage(Session session, Message message)
+		{
+		}
+	}
+}
@@ -22,6 +22,8 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import javax.jms.Connection;
@@ -30,6 +32,7 @@ import javax.jms.ConnectionMetaData;
 import javax.jms.Destination;
 import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.ServerSessionPool;
 import javax.jms.Session;
 import javax.jms.TextMessage;
@@ -178,6 +181,100 @@ public class SimpleMessageReceiverTest
 		receiver.close();
 	}
 
+	@Test
+	public void testReceiveBatchTransacted() throws Exception
+	{
+		for (int i = 0; i < 7; i++)
+		{
+			sender.sendTextMessage("batch" + i);
+		}
+
+		SimpleMessageReceiver receiver = new SimpleMessageReceiver(connection,
+				destination, Session.SESSION_TRANSACTED);
+		receiver.start();
+
+		List<Message> batch = receiveBatches(receiver, 5, 5000L);
+		assertEquals(5, batch.size());
+		assertEquals("batch0", ((TextMessage) batch.get(0)).getText());
+		assertEquals("batch4", ((TextMessage) batch.get(4)).getText());
+
+		// rolled back messages are redelivered (after the broker's
+		// redelivery delay)
+		receiver.rollback();
+		batch = receiveBatches(receiver, 5, 5000L);
+		assertEquals(5, batch.size());
+		assertEquals("batch0", ((TextMessage) batch.get(0)).getText());
+		receiver.acknowledgeBatch(batch);
+
+		batch = receiveBatches(receiver, 5, 1000L);
+		assertEquals(2, batch.size());
+		assertEquals("batch5", ((TextMessage) batch.get(0)).getText());
+		receiver.commit();
+
+		assertEquals(0, receiver.receiveBatch(batch, 5, 0L));
+		assertTrue(batch.isEmpty());
+		receiver.acknowledgeBatch(batch);
+		receiver.close();
+	}
+
+	@Test
+	public void testReceiveBatchClientAcknowledge() throws Exception
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			sender.sendTextMessage("ack" + i);
+		}
+
+		SimpleMessageReceiver receiver = new SimpleMessageReceiver(connection,
+				destination, Session.CLIENT_ACKNOWLEDGE);
+		receiver.start();
+
+		List<Message> batch = receiveBatches(receiver, 10, 1000L);
+		assertEquals(3, batch.size());
+
+		// unacknowledged messages are redelivered
+		receiver.recover();
+		batch = receiveBatches(receiver, 3, 5000L);
+		assertEquals(3, batch.size());
+		assertEquals("ack0", ((TextMessage) batch.get(0)).getText());
+		receiver.acknowledgeBatch(batch);
+		receiver.close();
+
+		receiver = new SimpleMessageReceiver(connection, destination);
+		receiver.start();
+		assertTrue(receiver.receiveBatch(10, 100L).isEmpty());
+		receiver.close();
+	}
+
+	@Test
+	public void testReceiveBatchDupsOkAcknowledge() throws Exception
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			sender.sendTextMessage("dups" + i);
+		}
+
+		SimpleMessageReceiver receiver = new SimpleMessageReceiver(connection,
+				destination, Session.DUPS_OK_ACKNOWLEDGE);
+		receiver.start();
+
+		List<Message> batch = receiveBatches(receiver, 3, 5000L);
+		assertEquals(3, batch.size());
+		assertEquals("dups0", ((TextMessage) batch.get(0)).getText());
+
+		// the session acknowledges these itself; this must not throw
+		receiver.acknowledgeBatch(batch);
+		receiver.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testReceiveBatchRejectsZero() throws Exception
+	{
+		SimpleMessageReceiver receiver = new SimpleMessageReceiver(connection,
+				destination);
+		receiver.receiveBatch(0, 0L);
+	}
+
 	@Test
 	public void testJmsExceptionDuringStart() throws Exception
 	{
@@ -210,6 +307,34 @@ public class SimpleMessageReceiverTest
 		assertFalse(receiver.isStarted());
 	}
 
+	/*
+	 * Messages are dispatched to the consumer asynchronously, so one call to
+	 * receiveBatch may return fewer messages than are on the queue. This
+	 * receives batches until it has the number expected, or the time is up.
+	 */
+	private static List<Message> receiveBatches(SimpleMessageReceiver receiver,
+			int expected, long maxWait) throws JMSException
+	{
+		List<Message> received = new ArrayList<Message>();
+		List<Message> batch = new ArrayList<Message>();
+		long deadline = System.currentTimeMillis() + maxWait;
+
+		while (received.size() < expected)
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+			{
+				break;
+			}
+
+			receiver.receiveBatch(batch, expected - received.size(), remaining);
+			assertTrue(batch.size() <= expected - received.size());
+			received.addAll(batch);
+		}
+
+		return received;
+	}
+
 	private static class ExceptionConnection implements Connection
 	{
 		private JMSException je;
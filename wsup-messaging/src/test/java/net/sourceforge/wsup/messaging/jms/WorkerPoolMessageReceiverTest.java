@@ -0,0 +1,544 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License"); 
+ *  you may not use this file except in compliance with the License. 
+ *  You may obtain a copy of the License at 
+ *  
+ *  http://www.apache.org/licenses/LICENSE-2.0 
+ *  
+ *  Unless required by applicable law or agreed to in writing, software 
+ *  distributed under the License is distributed on an "AS IS" BASIS, 
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ *  See the License for the specific language governing permissions and 
+ *  limitations under the License. 
+ */
+package net.sourceforge.wsup.messaging.jms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import net.sourceforge.wsup.messaging.activemq.VMMessageBroker;
+
+import org.apache.activemq.ActiveMQSession;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class WorkerPoolMessageReceiverTest
+{
+	private static VMMessageBroker broker;
+
+	private static int queueNumber;
+
+	private ActiveMQQueue destination;
+
+	private Connection connection;
+
+	public WorkerPoolMessageReceiverTest()
+	{
+	}
+
+	@BeforeClass
+	public static void oneTimeSetup() throws Exception
+	{
+		broker = new VMMessageBroker("workerPoolTest");
+		broker.startBroker(true);
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() throws Exception
+	{
+		broker.stopBroker(true);
+	}
+
+	@Before
+	public void setup() throws Exception
+	{
+		destination = new ActiveMQQueue("workerPoolQueue" + (++queueNumber));
+		connection = broker.createConnection();
+		connection.start();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		connection.close();
+	}
+
+	private void send(int count) throws JMSException
+	{
+		Session session = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		MessageProducer producer = session.createProducer(destination);
+		for (int i = 0; i < count; i++)
+		{
+			producer.send(session.createTextMessage("message" + i));
+		}
+		session.close();
+	}
+
+	private int drain() throws JMSException
+	{
+		Session session = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		MessageConsumer consumer = session.createConsumer(destination);
+		int count = 0;
+		while (consumer.receive(500) != null)
+		{
+			count++;
+		}
+		session.close();
+		return count;
+	}
+
+	private static void waitFor(String what, Condition condition)
+			throws Exception
+	{
+		long start = System.currentTimeMillis();
+		while (!condition.isTrue())
+		{
+			if (System.currentTimeMillis() - start > 10000L)
+			{
+				fail(what + " didn't happen in 10 seconds");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testProcessesConcurrently() throws Exception
+	{
+		final TestClass test = new TestClass(connection, destination, 4, 8);
+		assertEquals(4, test.getWorkers());
+		assertEquals(8, test.getCapacity());
+		assertEquals(Session.CLIENT_ACKNOWLEDGE, test.getAcknowledgeMode());
+		assertFalse(test.isStarted());
+		test.start();
+		assertTrue(test.isStarted());
+
+		test.setDelay(20);
+		send(40);
+
+		waitFor("Delivery", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getMessageCount() == 40;
+			}
+		});
+
+		assertTrue(test.getMaxConcurrent() > 1);
+		assertEquals(40, test.getTexts().size());
+		assertEquals(0, test.getFailureCount());
+
+		waitFor("Acknowledgement", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getOutstandingCount() == 0
+						&& test.getAcknowledgeCount() > 0;
+			}
+		});
+
+		test.close();
+		assertFalse(test.isStarted());
+		test.close();
+
+		// everything was acknowledged
+		assertEquals(0, drain());
+	}
+
+	@Test
+	public void testPausesWhenFull() throws Exception
+	{
+		final TestClass test = new TestClass(connection, destination, 2, 3);
+		test.setLatch(new CountDownLatch(1));
+		test.start();
+
+		send(10);
+
+		waitFor("Pause", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getPauseCount() > 0;
+			}
+		});
+
+		// nothing more is received while the workers are blocked
+		Thread.sleep(300);
+		assertEquals(3, test.getOutstandingCount());
+		assertEquals(2, test.getStartedCount());
+		assertEquals(0, test.getAcknowledgeCount());
+
+		test.getLatch().countDown();
+
+		waitFor("Delivery", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getMessageCount() == 10;
+			}
+		});
+
+		waitFor("Acknowledgement", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getAcknowledgeCount() > 0;
+			}
+		});
+
+		assertTrue(test.getMaxConcurrent() <= 2);
+		test.close();
+		assertEquals(0, drain());
+	}
+
+	@Test
+	public void testAcknowledgesIndividuallyBehindSlowMessage()
+			throws Exception
+	{
+		final TestClass test = new TestClass(connection, destination, 2, 4,
+				ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE);
+		assertEquals(ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE,
+				test.getAcknowledgeMode());
+		test.setHold("message3");
+		test.setLatch(new CountDownLatch(1));
+		test.start();
+
+		send(8);
+
+		// the messages ahead of the slow one are acknowledged while it runs
+		waitFor("Acknowledgement", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getAcknowledgeCount() == 3;
+			}
+		});
+
+		// the slow message holds up only those behind it
+		waitFor("Pause", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getPauseCount() > 0;
+			}
+		});
+		Thread.sleep(300);
+		assertEquals(3, test.getAcknowledgeCount());
+		assertEquals(7, test.getStartedCount());
+
+		test.getLatch().countDown();
+
+		waitFor("Delivery", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getMessageCount() == 8
+						&& test.getAcknowledgeCount() == 8;
+			}
+		});
+
+		test.close();
+		assertEquals(0, drain());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsStandardIndividualMode()
+	{
+		new TestClass(connection, destination, 2, 2,
+				Session.CLIENT_ACKNOWLEDGE);
+	}
+
+	@Test
+	public void testRedeliversAfterFailure() throws Exception
+	{
+		final TestClass test = new TestClass(connection, destination, 2, 5);
+		test.setFailOnce("message2");
+		test.start();
+
+		send(5);
+
+		waitFor("Redelivery", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getTexts().size() == 5;
+			}
+		});
+
+		assertEquals(1, test.getFailureCount());
+		assertTrue(test.getRedeliveredCount() > 0);
+		test.close();
+		assertEquals(0, drain());
+	}
+
+	@Test
+	public void testCloseFinishesReceivedMessages() throws Exception
+	{
+		final TestClass test = new TestClass(connection, destination, 2, 4);
+		test.setDelay(100);
+		test.start();
+
+		send(20);
+
+		waitFor("Delivery", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getStartedCount() > 0;
+			}
+		});
+
+		test.close();
+
+		// everything received was processed, and nothing else
+		assertEquals(test.getStartedCount(), test.getMessageCount());
+		assertTrue(test.getMessageCount() < 20);
+		assertEquals(0, test.getOutstandingCount());
+
+		// and the rest are still on the queue
+		assertEquals(20 - test.getMessageCount(), drain());
+	}
+
+	@Test
+	public void testReceivesPayloads() throws Exception
+	{
+		PayloadCodecs codecs = new PayloadCodecs();
+		codecs.register(1, new SamplePayload.Codec());
+
+		final TestClass test = new TestClass(connection, destination, 2, 2);
+		test.setPayloadCodecs(codecs);
+		assertEquals(codecs, test.getPayloadCodecs());
+		test.start();
+
+		Session session = connection.createSession(false,
+				Session.AUTO_ACKNOWLEDGE);
+		MessageProducer producer = session.createProducer(destination);
+		producer.send(codecs.createMessage(session, new SamplePayload(7, 3,
+				"seven", 1.5)));
+		session.close();
+
+		waitFor("Delivery", new Condition()
+		{
+			@Override
+			public boolean isTrue()
+			{
+				return test.getPayload() != null;
+			}
+		});
+
+		assertEquals(7, ((SamplePayload) test.getPayload()).getId());
+		test.close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsBadWorkers()
+	{
+		new TestClass(connection, destination, 0, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsBadCapacity()
+	{
+		new TestClass(connection, destination, 2, 1);
+	}
+
+	@Test
+	public void testNotStarted() throws Exception
+	{
+		TestClass test = new TestClass(connection, destination, 1, 1);
+		assertNull(test.getPayloadCodecs());
+		assertEquals(0, test.getOutstandingCount());
+		test.close();
+	}
+
+	private interface Condition
+	{
+		boolean isTrue();
+	}
+
+	private static class TestClass extends WorkerPoolMessageReceiver
+	{
+		private final AtomicInteger concurrent = new AtomicInteger();
+
+		private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+		private final AtomicInteger startedCount = new AtomicInteger();
+
+		private final AtomicInteger redeliveredCount = new AtomicInteger();
+
+		private final Set<String> texts = new HashSet<String>();
+
+		private final AtomicBoolean failed = new AtomicBoolean();
+
+		private volatile long delay;
+
+		private volatile String failOnce;
+
+		private volatile CountDownLatch latch;
+
+		private volatile String hold;
+
+		private volatile Object payload;
+
+		public TestClass(Connection connection, Destination destination,
+				int workers, int capacity)
+		{
+			super(connection, destination, workers, capacity);
+		}
+
+		public TestClass(Connection connection, Destination destination,
+				int workers, int capacity, int individualAcknowledgeMode)
+		{
+			super(connection, destination, workers, capacity,
+					individualAcknowledgeMode);
+		}
+
+		public void setHold(String text)
+		{
+			this.hold = text;
+		}
+
+		public void setDelay(long delay)
+		{
+			this.delay = delay;
+		}
+
+		public void setFailOnce(String text)
+		{
+			this.failOnce = text;
+		}
+
+		public void setLatch(CountDownLatch latch)
+		{
+			this.latch = latch;
+		}
+
+		public CountDownLatch getLatch()
+		{
+			return latch;
+		}
+
+		public int getMaxConcurrent()
+		{
+			return maxConcurrent.get();
+		}
+
+		public int getStartedCount()
+		{
+			return startedCount.get();
+		}
+
+		public int getRedeliveredCount()
+		{
+			return redeliveredCount.get();
+		}
+
+		public Set<String> getTexts()
+		{
+			synchronized (texts)
+			{
+				return new HashSet<String>(texts);
+			}
+		}
+
+		public Object getPayload()
+		{
+			return payload;
+		}
+
+		@Override
+		protected void handlePayload(Message message, Object payload)
+		{
+			this.payload = payload;
+		}
+
+		@Override
+		protected void handleMessage(Message message)
+		{
+			startedCount.incrementAndGet();
+			int now = concurrent.incrementAndGet();
+			synchronized (maxConcurrent)
+			{
+				if (now > maxConcurrent.get())
+				{
+					maxConcurrent.set(now);
+				}
+			}
+
+			try
+			{
+				if (message.getJMSRedelivered())
+				{
+					redeliveredCount.incrementAndGet();
+				}
+
+				String text = ((TextMessage) message).getText();
+				if (text.equals(failOnce) && failed.compareAndSet(false, true))
+				{
+					throw new IllegalStateException("boom");
+				}
+
+				if (latch != null && (hold == null || hold.equals(text)))
+				{
+					latch.await(10, TimeUnit.SECONDS);
+				}
+
+				if (delay > 0)
+				{
+					Thread.sleep(delay);
+				}
+
+				synchronized (texts)
+				{
+					texts.add(text);
+				}
+			}
+			catch (JMSException e)
+			{
+				throw new RuntimeException(e);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				concurrent.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.wsup.struts2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.jcip.annotations.Immutable;
+import net.sourceforge.wsup.core.Ensure;
+
+@Immutable
+/**
+ * KeysetPaging is an immutable object that encapsulates the state of keyset (seek) based paging.
+ * <p>
+ * Unlike {@link Paging}, which needs the total count up front and whose pages are located by
+ * offset, a keyset page is located by the key of the last item on the previous page. Neither a
+ * count query nor an offset scan is required, so the cost of fetching a page does not depend on
+ * how deep into the results it is. The price is that the total number of items is not known:
+ * {@link #getTotalCount()} and {@link #getLastPage()} report only what has been seen so far (the
+ * pages up to and including this one, plus the next page if there is one).
+ * </p>
+ * <p>
+ * The usual pattern is to ask the database for <code>pageSize + 1</code> rows after the last key;
+ * if more than <code>pageSize</code> come back there is a next page, and the extra row is dropped.
+ * </p>
+ *
+ * @param <K> type of the ordering key
+ */
+public class KeysetPaging<K> implements PagingInfo
+{
+    /**
+     * Constructor.
+     *
+     * @param page the current page number (1 based)
+     * @param pageSize the maximum number of items per page
+     * @param itemCount the number of items actually on this page
+     * @param hasNextPage <code>true</code> if there are more items after this page
+     * @param lastKey the key of the last item on this page, which is the token used to fetch
+     *            the next page (may be <code>null</code> if the page is empty)
+     */
+    public KeysetPaging(int page,
+                        final int pageSize,
+                        final int itemCount,
+                        final boolean hasNextPage,
+                        final K lastKey)
+    {
+        Ensure.isGreaterThenZero("invalid pageSize", pageSize);
+        Ensure.isInRange("invalid itemCount", itemCount, 0, pageSize);
+
+        if (page < 1)
+        {
+            page = 1;
+        }
+
+        this.page = page;
+        this.pageSize = pageSize;
+        this.hasNextPage = hasNextPage;
+        this.lastKey = lastKey;
+
+        if (itemCount > 0)
+        {
+            firstPos = (page - 1) * pageSize + 1;
+            lastPos = firstPos + itemCount - 1;
+        }
+        else
+        {
+            firstPos = 0;
+            lastPos = 0;
+        }
+
+        if (hasNextPage)
+        {
+            lastPage = page + 1;
+            totalCount = lastPos + 1;
+        }
+        else if (itemCount > 0)
+        {
+            lastPage = page;
+            totalCount = lastPos;
+        }
+        else
+        {
+            // An empty page past the first means the earlier pages were full, so report those
+            lastPage = page - 1;
+            totalCount = lastPage * pageSize;
+        }
+    }
+
+    private final int     page;
+    private final int     pageSize;
+    private final int     firstPos;
+    private final int     lastPos;
+    private final int     lastPage;
+    private final int     totalCount;
+    private final boolean hasNextPage;
+    private final K       lastKey;
+
+    @Override
+    public int getPage()
+    {
+        return page;
+    }
+
+    @Override
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * @return the last page known so far; this is the next page if there is one
+     */
+    @Override
+    public int getLastPage()
+    {
+        return lastPage;
+    }
+
+    /**
+     * @return the number of items known so far; this is a lower bound on the total if there is a
+     *         next page
+     */
+    @Override
+    public int getTotalCount()
+    {
+        return totalCount;
+    }
+
+    @Override
+    public int getFirstPos()
+    {
+        return firstPos;
+    }
+
+    @Override
+    public int getLastPos()
+    {
+        return lastPos;
+    }
+
+    /**
+     * @return <code>true</code> if there are more items after this page
+     */
+    public boolean isHasNextPage()
+    {
+        return hasNextPage;
+    }
+
+    /**
+     * @return the key of the last item on this page, to be passed back to fetch the next page
+     */
+    public K getLastKey()
+    {
+        return lastKey;
+    }
+
+    /**
+     * Build a list of up to <code>num</code> page numbers that can actually be navigated to. The
+     * keys of earlier pages are not known, so these are only the first page (which needs no key),
+     * the current page, and the next page if there is one. Pages closest to the current page are
+     * preferred when <code>num</code> is too small to include them all.
+     *
+     * @param num the maximum number of pages in the list
+     * @return an ascending list of page numbers; empty if there are no items
+     */
+    @Override
+    public List<Integer> buildPageList(final int num)
+    {
+        List<Integer> list = new ArrayList<Integer>();
+        if (page <= lastPage)
+        {
+            addPage(list, page, num);
+        }
+        if (hasNextPage)
+        {
+            addPage(list, page + 1, num);
+        }
+        if (lastPage >= 1)
+        {
+            addPage(list, 1, num);
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    private static void addPage(final List<Integer> list, final int p, final int num)
+    {
+        if (list.size() < num && !list.contains(p))
+        {
+            list.add(p);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String
+            .format("KeysetPaging [firstPos=%s, hasNextPage=%s, lastKey=%s, lastPos=%s, page=%s, pageSize=%s]",
+                    firstPos,
+                    hasNextPage,
+                    lastKey,
+                    lastPos,
+                    page,
+                    pageSize);
+    }
+}
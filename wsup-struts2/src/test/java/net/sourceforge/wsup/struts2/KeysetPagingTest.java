@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sourceforge.wsup.struts2;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class KeysetPagingTest
+{
+    @Test
+    public final void testFirstPageWithMore()
+    {
+        KeysetPaging<Long> p = new KeysetPaging<Long>(1, 10, 10, true, 42L);
+
+        assertEquals(1, p.getFirstPos());
+        assertEquals(10, p.getLastPos());
+        assertEquals(1, p.getPage());
+        assertEquals(2, p.getLastPage());
+        assertEquals(10, p.getPageSize());
+        assertEquals(11, p.getTotalCount());
+        assertTrue(p.isHasNextPage());
+        assertEquals(Long.valueOf(42L), p.getLastKey());
+        assertEquals(Arrays.asList(new Integer[] { 1, 2 }), p.buildPageList(5));
+    }
+
+    @Test
+    public final void testDeepLastPage()
+    {
+        KeysetPaging<String> p = new KeysetPaging<String>(1000, 10, 5, false, "zz");
+
+        assertEquals(9991, p.getFirstPos());
+        assertEquals(9995, p.getLastPos());
+        assertEquals(1000, p.getPage());
+        assertEquals(1000, p.getLastPage());
+        assertEquals(9995, p.getTotalCount());
+        assertFalse(p.isHasNextPage());
+        assertEquals(Arrays.asList(new Integer[] { 1, 1000 }), p.buildPageList(3));
+        assertEquals(Arrays.asList(new Integer[] { 1000 }), p.buildPageList(1));
+    }
+
+    @Test
+    public final void testEmpty()
+    {
+        KeysetPaging<Long> p = new KeysetPaging<Long>(0, 20, 0, false, null);
+
+        assertEquals(0, p.getFirstPos());
+        assertEquals(0, p.getLastPos());
+        assertEquals(1, p.getPage());
+        assertEquals(0, p.getLastPage());
+        assertEquals(0, p.getTotalCount());
+        assertNull(p.getLastKey());
+        assertTrue(p.buildPageList(5).isEmpty());
+        assertTrue(p.toString().contains("page=1"));
+    }
+
+    @Test
+    public final void testMiddlePageWithMore()
+    {
+        KeysetPaging<Long> p = new KeysetPaging<Long>(7, 10, 10, true, 70L);
+
+        assertEquals(8, p.getLastPage());
+        assertEquals(71, p.getTotalCount());
+        assertEquals(Arrays.asList(new Integer[] { 1, 7, 8 }), p.buildPageList(5));
+        assertEquals(Arrays.asList(new Integer[] { 7, 8 }), p.buildPageList(2));
+    }
+
+    @Test
+    public final void testEmptyPageAfterEnd()
+    {
+        KeysetPaging<Long> p = new KeysetPaging<Long>(4, 10, 0, false, null);
+
+        assertEquals(0, p.getFirstPos());
+        assertEquals(0, p.getLastPos());
+        assertEquals(4, p.getPage());
+        assertEquals(3, p.getLastPage());
+        assertEquals(30, p.getTotalCount());
+        assertEquals(Arrays.asList(new Integer[] { 1 }), p.buildPageList(5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public final void testTooManyItems()
+    {
+        new KeysetPaging<Long>(1, 10, 11, false, null);
+    }
+}